@@ -0,0 +1,482 @@
+package com.hulk.model.pc.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 确认仓库(至少一次消费)
+ * <p>包装一个普通仓库, 消费者通过lease()租用产品而不是直接取走, 消费成功后ack, 失败后nack:
+ * <p>1. nack或者租约超时(消费者卡死/崩溃)的产品按指数退避延迟后重新投递, 延迟队列使用DelayWarehouse;
+ * <p>2. 投递maxAttempts次仍然失败的产品放入死信仓库(为空时丢弃并记录日志);
+ * <p>3. 租约超时时间固定, 在途租约按到期顺序放在FIFO队列中, 租用/确认/超时检查都是O(1), 不需要定时线程.
+ * <p>租约超时后再ack返回false, 此时产品已经被重新投递, 消费者需要能处理重复产品(幂等).
+ * <p>get()/drainTo()租用后立即确认, 与普通仓库相同. ConsumerBase.setAckMode(true)时使用lease/ack/nack.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class AckWarehouse<T> implements IWarehouse<T> {
+
+	private static final String TAG = "AckWarehouse";
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30 * 1000;
+
+	/**
+	 * 等待产品时检查重试队列和租约超时的间隔
+	 */
+	private static final long CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private static final int LEASED = 0;
+	private static final int ACKED = 1;
+	private static final int NACKED = 2;
+	private static final int EXPIRED = 3;
+
+	/**
+	 * 租约
+	 * @param <T>
+	 */
+	public static final class Lease<T> {
+		@SuppressWarnings("rawtypes")
+		private static final AtomicIntegerFieldUpdater<Lease> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Lease.class, "state");
+
+		final T product;
+		final int attempt;
+		final long deadline;
+		volatile int state = LEASED;
+
+		Lease(T product, int attempt, long deadline) {
+			this.product = product;
+			this.attempt = attempt;
+			this.deadline = deadline;
+		}
+
+		boolean complete(int newState) {
+			return STATE.compareAndSet(this, LEASED, newState);
+		}
+
+		public T getProduct() {
+			return product;
+		}
+
+		/**
+		 * 第几次投递, 从1开始
+		 * @return
+		 */
+		public int getAttempt() {
+			return attempt;
+		}
+
+		@Override
+		public String toString() {
+			return "Lease[attempt=" + attempt + ", state=" + state + ", product=" + product + "]";
+		}
+	}
+
+	/**
+	 * 等待重试的产品
+	 * @param <T>
+	 */
+	private static final class Retry<T> {
+		final T product;
+		final int attempt;
+
+		Retry(T product, int attempt) {
+			this.product = product;
+			this.attempt = attempt;
+		}
+	}
+
+	protected final IWarehouse<T> mWarehouse;
+
+	private final DelayWarehouse<Retry<T>> mRetries = new DelayWarehouse<Retry<T>>();
+
+	/**
+	 * 在途租约, 按到期时间排序(租约时间固定, 等于租用顺序)
+	 */
+	private final ConcurrentLinkedQueue<Lease<T>> mInFlight = new ConcurrentLinkedQueue<Lease<T>>();
+
+	/**
+	 * 同时只有一个线程检查租约超时
+	 */
+	private final ReentrantLock mReapLock = new ReentrantLock();
+
+	protected volatile IWarehouse<T> mDeadLetter;
+
+	private volatile int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private volatile long mInitialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INITIAL_BACKOFF_MILLIS);
+	private volatile long mMaxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BACKOFF_MILLIS);
+
+	/**
+	 * 租约超时, 小于等于0表示不超时
+	 */
+	private volatile long mLeaseTimeoutNanos = 0;
+
+	private final AtomicLong mAckedCount = new AtomicLong();
+	private final AtomicLong mRetriedCount = new AtomicLong();
+	private final AtomicLong mExpiredCount = new AtomicLong();
+	private final AtomicLong mDeadLetterCount = new AtomicLong();
+
+	/**
+	 * 每个线程复用的获取列表
+	 */
+	private final ThreadLocal<List<T>> mDrainBuffer = new ThreadLocal<List<T>>() {
+		@Override
+		protected List<T> initialValue() {
+			return new ArrayList<T>();
+		}
+	};
+
+	public AckWarehouse(IWarehouse<T> warehouse) {
+		this(warehouse, null);
+	}
+
+	/**
+	 * 构造函数
+	 * @param warehouse 存放新产品的仓库
+	 * @param deadLetter 死信仓库, 为空时丢弃
+	 */
+	public AckWarehouse(IWarehouse<T> warehouse, IWarehouse<T> deadLetter) {
+		if(warehouse == null) {
+			throw new IllegalArgumentException("warehouse is null");
+		}
+		this.mWarehouse = warehouse;
+		this.mDeadLetter = deadLetter;
+	}
+
+	@Override
+	public void put(T data) {
+		mWarehouse.put(data);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products) {
+		return mWarehouse.putAll(products);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+		return mWarehouse.putAll(products, timeout, unit);
+	}
+
+	/**
+	 * 租用后立即确认
+	 */
+	@Override
+	public T get() {
+		Lease<T> lease = lease();
+		if(lease == null) {
+			return null;
+		}
+		ack(lease);
+		return lease.product;
+	}
+
+	/**
+	 * 租用后立即确认
+	 */
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		return drainTo(c, maxElements, -1L, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+		if(c == null || maxElements <= 0) {
+			return 0;
+		}
+		List<Lease<T>> leases = new ArrayList<Lease<T>>(Math.min(maxElements, 64));
+		int count = doLease(leases, maxElements, unit.toNanos(timeout));
+		for(Lease<T> lease : leases) {
+			ack(lease);
+			c.add(lease.product);
+		}
+		return count;
+	}
+
+	/**
+	 * 租用一个产品, 没有产品时一直等待
+	 * @return 线程被中断时返回null
+	 */
+	public Lease<T> lease() {
+		return lease(-1L, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 租用一个产品
+	 * @param timeout 小于0表示一直等待
+	 * @param unit
+	 * @return 超时返回null
+	 */
+	public Lease<T> lease(long timeout, TimeUnit unit) {
+		List<Lease<T>> leases = new ArrayList<Lease<T>>(1);
+		if(doLease(leases, 1, timeout < 0 ? -1L : unit.toNanos(timeout)) <= 0) {
+			return null;
+		}
+		return leases.get(0);
+	}
+
+	/**
+	 * 批量租用
+	 * @param c
+	 * @param maxElements
+	 * @param timeout 小于0表示一直等待
+	 * @param unit
+	 * @return 租用的数量
+	 */
+	public int lease(Collection<? super Lease<T>> c, int maxElements, long timeout, TimeUnit unit) {
+		if(c == null || maxElements <= 0) {
+			return 0;
+		}
+		return doLease(c, maxElements, timeout < 0 ? -1L : unit.toNanos(timeout));
+	}
+
+	/**
+	 * 租用产品: 先取到期的重试产品, 再从仓库获取新产品.
+	 * <p>等待时最多等待CHECK_INTERVAL_NANOS, 然后重新检查重试队列和租约超时.
+	 * @param c
+	 * @param maxElements
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 租用的数量, 超时或者中断返回0
+	 */
+	protected int doLease(Collection<? super Lease<T>> c, int maxElements, long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		List<T> buffer = mDrainBuffer.get();
+		while(true) {
+			reapExpired();
+			int count = 0;
+			Retry<T> retry;
+			while(count < maxElements && (retry = mRetries.poll()) != null) {
+				c.add(newLease(retry.product, retry.attempt));
+				count++;
+			}
+			if(count < maxElements) {
+				long waitNanos = 0;
+				if(count == 0) {
+					long remaining = deadline - System.nanoTime();
+					waitNanos = timeoutNanos < 0 ? CHECK_INTERVAL_NANOS
+							: Math.max(0L, Math.min(CHECK_INTERVAL_NANOS, remaining));
+				}
+				try {
+					mWarehouse.drainTo(buffer, maxElements - count, waitNanos, TimeUnit.NANOSECONDS);
+					for(T product : buffer) {
+						c.add(newLease(product, 1));
+						count++;
+					}
+				} finally {
+					buffer.clear();
+				}
+			}
+			if(count > 0) {
+				return count;
+			}
+			if(Thread.currentThread().isInterrupted()) {
+				//仓库等待被中断时保留了中断状态(例如消费者被停止), 不再继续等待
+				return 0;
+			}
+			if(timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+				return 0;
+			}
+		}
+	}
+
+	private Lease<T> newLease(T product, int attempt) {
+		long leaseTimeoutNanos = mLeaseTimeoutNanos;
+		Lease<T> lease = new Lease<T>(product, attempt, System.nanoTime() + leaseTimeoutNanos);
+		if(leaseTimeoutNanos > 0) {
+			mInFlight.offer(lease);
+		}
+		return lease;
+	}
+
+	/**
+	 * 确认消费成功
+	 * @param lease
+	 * @return 租约已经超时(产品已被重新投递)或者已经确认过时返回false
+	 */
+	public boolean ack(Lease<T> lease) {
+		if(!lease.complete(ACKED)) {
+			return false;
+		}
+		mAckedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * 消费失败, 退避后重新投递, 超过最大投递次数后放入死信仓库
+	 * @param lease
+	 * @return 租约已经超时或者已经确认过时返回false
+	 */
+	public boolean nack(Lease<T> lease) {
+		if(!lease.complete(NACKED)) {
+			return false;
+		}
+		retryOrDeadLetter(lease);
+		return true;
+	}
+
+	/**
+	 * 移除队首已经完成的租约, 超时的租约重新投递. 在途队列只在这里移除, 只需要检查队首.
+	 */
+	private void reapExpired() {
+		if(mInFlight.isEmpty() || !mReapLock.tryLock()) {
+			return;
+		}
+		try {
+			long now = System.nanoTime();
+			Lease<T> head;
+			while((head = mInFlight.peek()) != null) {
+				if(head.state == LEASED) {
+					if(head.deadline - now > 0) {
+						break;
+					}
+					if(head.complete(EXPIRED)) {
+						mExpiredCount.incrementAndGet();
+						SysLog.w(TAG, "reapExpired: lease expired, attempt=" + head.attempt);
+						retryOrDeadLetter(head);
+					}
+				}
+				mInFlight.poll();
+			}
+		} finally {
+			mReapLock.unlock();
+		}
+	}
+
+	private void retryOrDeadLetter(Lease<T> lease) {
+		if(lease.attempt >= mMaxAttempts) {
+			mDeadLetterCount.incrementAndGet();
+			IWarehouse<T> deadLetter = mDeadLetter;
+			if(deadLetter != null) {
+				deadLetter.put(lease.product);
+			} else {
+				SysLog.e(TAG, "retryOrDeadLetter: drop product after attempts=" + lease.attempt + ", product=" + lease.product);
+			}
+			return;
+		}
+		mRetriedCount.incrementAndGet();
+		mRetries.put(new Retry<T>(lease.product, lease.attempt + 1), getBackoffNanos(lease.attempt), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 第attempt次投递失败后的退避时间: initialBackoff * 2^(attempt-1), 不超过maxBackoff
+	 * @param attempt
+	 * @return
+	 */
+	protected long getBackoffNanos(int attempt) {
+		long backoff = mInitialBackoffNanos;
+		long max = mMaxBackoffNanos;
+		for(int i = 1; i < attempt && backoff < max; i++) {
+			backoff <<= 1;
+		}
+		return Math.min(backoff, max);
+	}
+
+	/**
+	 * 等待消费的产品数量, 包括等待重试的, 不包括在途的
+	 */
+	@Override
+	public int size() {
+		return mWarehouse.size() + mRetries.size();
+	}
+
+	@Override
+	public WarehouseMetrics getMetrics() {
+		return mWarehouse.getMetrics();
+	}
+
+	/**
+	 * 最多投递次数, 包括第一次
+	 * @param maxAttempts
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		if(maxAttempts <= 0) {
+			throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+		}
+		this.mMaxAttempts = maxAttempts;
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * 设置退避时间
+	 * @param initialBackoff 第一次重试的延迟
+	 * @param maxBackoff 最大延迟
+	 * @param unit
+	 */
+	public void setBackoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+		if(initialBackoff < 0 || maxBackoff < initialBackoff) {
+			throw new IllegalArgumentException("Invalid backoff: initial=" + initialBackoff + ", max=" + maxBackoff);
+		}
+		this.mInitialBackoffNanos = unit.toNanos(initialBackoff);
+		this.mMaxBackoffNanos = unit.toNanos(maxBackoff);
+	}
+
+	/**
+	 * 设置租约超时, 小于等于0表示不超时. 需要在消费者启动之前设置
+	 * @param leaseTimeout
+	 * @param unit
+	 */
+	public void setLeaseTimeout(long leaseTimeout, TimeUnit unit) {
+		this.mLeaseTimeoutNanos = unit.toNanos(leaseTimeout);
+	}
+
+	public long getLeaseTimeout(TimeUnit unit) {
+		return unit.convert(mLeaseTimeoutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void setDeadLetter(IWarehouse<T> deadLetter) {
+		this.mDeadLetter = deadLetter;
+	}
+
+	public IWarehouse<T> getDeadLetter() {
+		return mDeadLetter;
+	}
+
+	public IWarehouse<T> getWarehouse() {
+		return mWarehouse;
+	}
+
+	public long getAckedCount() {
+		return mAckedCount.get();
+	}
+
+	public long getRetriedCount() {
+		return mRetriedCount.get();
+	}
+
+	public long getExpiredCount() {
+		return mExpiredCount.get();
+	}
+
+	public long getDeadLetterCount() {
+		return mDeadLetterCount.get();
+	}
+
+	/**
+	 * 等待重试的产品数量
+	 * @return
+	 */
+	public int getRetryCount() {
+		return mRetries.size();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size() + ", acked=" + getAckedCount()
+				+ ", retried=" + getRetriedCount() + ", expired=" + getExpiredCount()
+				+ ", deadLetter=" + getDeadLetterCount() + "]";
+	}
+}
@@ -0,0 +1,87 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 加性增长/乘性减小(AIMD)容量策略
+ * <p>缓冲区满时容量增加increment; 连续shrinkWindow次取出后产品数量都不超过容量的1/4,
+ * 容量乘以decreaseFactor, 不小于minCapacity. 突发流量过后缓冲区会逐步收缩, 不会一直保持最大值.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class AimdCapacityPolicy<T> implements CapacityPolicy<T> {
+
+	/**
+	 * 默认缩小比例
+	 */
+	public static final double DEFAULT_DECREASE_FACTOR = 0.5;
+
+	/**
+	 * 默认判断利用率低的连续取出次数
+	 */
+	public static final int DEFAULT_SHRINK_WINDOW = 1000;
+
+	private final int mIncrement;
+	private final double mDecreaseFactor;
+	private final int mMinCapacity;
+	private final int mShrinkWindow;
+
+	/**
+	 * 连续利用率低的取出次数, 多线程调用时为近似值
+	 */
+	private int mLowCount = 0;
+
+	public AimdCapacityPolicy() {
+		this(WarehouseBase.CAPACITY_GRADIENT_UNIT, DEFAULT_DECREASE_FACTOR,
+				WarehouseBase.DEFAULT_PRODUST_CAPACITY, DEFAULT_SHRINK_WINDOW);
+	}
+
+	/**
+	 * 构造函数
+	 * @param increment 满时增加的容量
+	 * @param decreaseFactor 缩小比例, (0, 1)
+	 * @param minCapacity 最小容量
+	 * @param shrinkWindow 判断利用率低的连续取出次数
+	 */
+	public AimdCapacityPolicy(int increment, double decreaseFactor, int minCapacity, int shrinkWindow) {
+		if(increment <= 0) {
+			throw new IllegalArgumentException("increment must be positive: " + increment);
+		}
+		if(decreaseFactor <= 0 || decreaseFactor >= 1) {
+			throw new IllegalArgumentException("decreaseFactor must be in (0, 1): " + decreaseFactor);
+		}
+		this.mIncrement = increment;
+		this.mDecreaseFactor = decreaseFactor;
+		this.mMinCapacity = Math.max(1, minCapacity);
+		this.mShrinkWindow = Math.max(1, shrinkWindow);
+	}
+
+	@Override
+	public void onPut(T product, int size) {
+		//不需要统计
+	}
+
+	@Override
+	public int onPutFull(int capacity, int size, int maxCapacity) {
+		mLowCount = 0;
+		return Math.min(maxCapacity, capacity + mIncrement);
+	}
+
+	@Override
+	public int onGet(T product, int capacity, int size, int maxCapacity) {
+		if(capacity <= mMinCapacity || size > (capacity >> 2)) {
+			mLowCount = 0;
+			return capacity;
+		}
+		if(++mLowCount < mShrinkWindow) {
+			return capacity;
+		}
+		mLowCount = 0;
+		return Math.max(mMinCapacity, (int) (capacity * mDecreaseFactor));
+	}
+
+	@Override
+	public String toString() {
+		return "AimdCapacityPolicy[increment=" + mIncrement + ", decreaseFactor=" + mDecreaseFactor
+				+ ", minCapacity=" + mMinCapacity + ", shrinkWindow=" + mShrinkWindow + "]";
+	}
+}
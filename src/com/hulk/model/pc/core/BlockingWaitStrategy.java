@@ -0,0 +1,74 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 阻塞等待策略
+ * <p>在锁的条件上等待, 直到signalAll或者超时. 没有线程等待时signalAll不加锁.
+ * <p>检查状态和进入等待之间的唤醒可能丢失, 所以每次最多等待timeoutNanos, 然后重新检查.
+ * @author zhanghao
+ *
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+
+	/**
+	 * 默认每次最多等待1毫秒
+	 */
+	public static final long DEFAULT_TIMEOUT_NANOS = 1000 * 1000;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mCondition = mLock.newCondition();
+	private final AtomicInteger mWaiters = new AtomicInteger();
+	private final long mTimeoutNanos;
+
+	public BlockingWaitStrategy() {
+		this(DEFAULT_TIMEOUT_NANOS);
+	}
+
+	public BlockingWaitStrategy(long timeout, TimeUnit unit) {
+		this(unit.toNanos(timeout));
+	}
+
+	private BlockingWaitStrategy(long timeoutNanos) {
+		if(timeoutNanos <= 0) {
+			throw new IllegalArgumentException("timeout must be positive: " + timeoutNanos);
+		}
+		this.mTimeoutNanos = timeoutNanos;
+	}
+
+	@Override
+	public void idle(int idleCount) throws InterruptedException {
+		mLock.lock();
+		try {
+			mWaiters.incrementAndGet();
+			try {
+				mCondition.awaitNanos(mTimeoutNanos);
+			} finally {
+				mWaiters.decrementAndGet();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		if(mWaiters.get() <= 0) {
+			return;
+		}
+		mLock.lock();
+		try {
+			mCondition.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BlockingWaitStrategy[timeoutNanos=" + mTimeoutNanos + "]";
+	}
+}
@@ -0,0 +1,409 @@
+package com.hulk.model.pc.core;
+
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 广播仓库: 每个产品交给所有订阅者
+ * <p>IWarehouse.get会取走产品, 同一个产品交给多个消费者(例如写文件和网络转发)需要复制到多个仓库.
+ * 广播仓库只有一个共享的环形数组, 每个订阅者有自己的读序列号(游标), 取出产品只移动自己的游标, 不复制产品.
+ * <p>生产者与RingWarehouse相同CAS抢占写序列号, 最慢的游标决定是否已满: 最慢的订阅者落后capacity个产品时生产者等待.
+ * <p>用法: 先subscribe得到Subscription, 它实现IWarehouse, 直接交给ConsumerBase/ConsumerPool;
+ * 多个消费者共用一个Subscription时每个产品只被其中一个取出(组内竞争), 不同Subscription之间是广播.
+ * <p>注意:
+ * <p>1. 订阅者从订阅时的写序列号开始, 只能收到订阅之后放入的产品, 需要在生产者启动之前订阅;
+ * <p>2. 没有订阅者时放入不会等待, 产品没有人接收;
+ * <p>3. 槽位在被覆盖之前一直引用产品, 最多保留数组长度个产品;
+ * <p>4. 直接对本仓库get/poll/drainTo时使用默认订阅者(第一次调用时订阅), 与其他订阅者一样只能收到之后放入的产品;
+ * <p>5. 溢出策略不支持DROP_OLDEST.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class BroadcastWarehouse<T> extends RingWarehouseBase<T> {
+
+	private static final String TAG = "BroadcastWarehouse";
+
+	/**
+	 * 产品数组
+	 */
+	protected final AtomicReferenceArray<Object> mBuffer;
+
+	/**
+	 * 槽位已发布的序列号, 等于读序列号时可读
+	 */
+	protected final AtomicLongArray mPublished;
+
+	/**
+	 * 写序列号
+	 */
+	protected final PaddedAtomicLong mTail = new PaddedAtomicLong();
+
+	/**
+	 * 缓存的最慢游标, 只会小于等于实际值, 减少生产者遍历订阅者
+	 */
+	private final PaddedAtomicLong mGatingCache = new PaddedAtomicLong();
+
+	/**
+	 * 所有订阅者, 生产者遍历时不加锁
+	 */
+	private final CopyOnWriteArrayList<Subscription<T>> mSubscriptions = new CopyOnWriteArrayList<Subscription<T>>();
+
+	/**
+	 * 直接get/poll本仓库时使用的订阅者
+	 */
+	private volatile Subscription<T> mDefaultSubscription;
+
+	public BroadcastWarehouse() {
+		super();
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+		mPublished = initPublished(mBufferSize);
+	}
+
+	public BroadcastWarehouse(int capacity) {
+		super(capacity);
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+		mPublished = initPublished(mBufferSize);
+	}
+
+	public BroadcastWarehouse(int capacity, int maxCapacity) {
+		super(capacity, maxCapacity);
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+		mPublished = initPublished(mBufferSize);
+	}
+
+	private static AtomicLongArray initPublished(int size) {
+		AtomicLongArray published = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			published.set(i, -1L);
+		}
+		return published;
+	}
+
+	/**
+	 * 订阅, 从当前写序列号开始接收产品
+	 * @param name 订阅者名称, 用于日志
+	 * @return
+	 */
+	public synchronized Subscription<T> subscribe(String name) {
+		Subscription<T> subscription = new Subscription<T>(this, name, mTail.get());
+		mSubscriptions.add(subscription);
+		SysLog.i(TAG, "subscribe: " + name + ", subscribers=" + mSubscriptions.size());
+		return subscription;
+	}
+
+	/**
+	 * 直接get/poll本仓库时使用的订阅者, 第一次调用时订阅
+	 * @return
+	 */
+	public Subscription<T> getDefaultSubscription() {
+		Subscription<T> subscription = mDefaultSubscription;
+		if(subscription == null || subscription.isClosed()) {
+			synchronized (this) {
+				subscription = mDefaultSubscription;
+				if(subscription == null || subscription.isClosed()) {
+					subscription = subscribe(TAG + "-default");
+					mDefaultSubscription = subscription;
+				}
+			}
+		}
+		return subscription;
+	}
+
+	/**
+	 * 取消订阅, 不再限制生产者
+	 * @param subscription
+	 * @return
+	 */
+	synchronized boolean unsubscribe(Subscription<T> subscription) {
+		if(!mSubscriptions.remove(subscription)) {
+			return false;
+		}
+		SysLog.i(TAG, "unsubscribe: " + subscription.getName() + ", subscribers=" + mSubscriptions.size());
+		//最慢的游标可能变了, 唤醒等待的生产者
+		signalWaiters();
+		return true;
+	}
+
+	public int getSubscriberCount() {
+		return mSubscriptions.size();
+	}
+
+	/**
+	 * 最慢的游标, 没有订阅者时为写序列号
+	 * @param tail
+	 * @return
+	 */
+	private long getMinimumCursor(long tail) {
+		long min = tail;
+		for(Subscription<T> subscription : mSubscriptions) {
+			long cursor = subscription.mCursor.get();
+			if(cursor < min) {
+				min = cursor;
+			}
+		}
+		return min;
+	}
+
+	@Override
+	public boolean offer(T product) {
+		checkNotNull(product);
+		while(true) {
+			long tail = mTail.get();
+			long wrapPoint = tail - capacity;
+			if(wrapPoint >= mGatingCache.get()) {
+				long min = getMinimumCursor(tail);
+				mGatingCache.set(min);
+				if(wrapPoint >= min) {
+					//最慢的订阅者还没有取出一圈之前的产品
+					return false;
+				}
+			}
+			if(mTail.compareAndSet(tail, tail + 1)) {
+				int index = (int) (tail & mMask);
+				markPutTime(index);
+				mBuffer.lazySet(index, product);
+				//发布: 订阅者看到序列号后一定能看到产品
+				mPublished.lazySet(index, tail);
+				return true;
+			}
+			//其他生产者抢先了, 重试
+		}
+	}
+
+	/**
+	 * 广播仓库没有共享的读序列号, 通过默认订阅者取出
+	 */
+	@Override
+	public T poll() {
+		return getDefaultSubscription().poll();
+	}
+
+	/**
+	 * 通过默认订阅者取出, 统计由订阅者记录
+	 */
+	@Override
+	protected T getProduct(long timeoutNanos) {
+		return getDefaultSubscription().getProduct(timeoutNanos);
+	}
+
+	@Override
+	protected int doDrainTo(Collection<? super T> c, int maxElements, long timeoutNanos) {
+		return getDefaultSubscription().doDrainTo(c, maxElements, timeoutNanos);
+	}
+
+	/**
+	 * 最慢的订阅者还没有取出的数量
+	 */
+	@Override
+	public int size() {
+		long tail = mTail.get();
+		long size = tail - getMinimumCursor(tail);
+		if(size < 0) {
+			return 0;
+		}
+		return size > mBufferSize ? mBufferSize : (int) size;
+	}
+
+	@Override
+	public void setOverflowPolicy(OverflowPolicy<T> overflowPolicy) {
+		if(overflowPolicy != null && overflowPolicy.getMode() == OverflowPolicy.Mode.DROP_OLDEST) {
+			throw new IllegalArgumentException("DROP_OLDEST is not supported by " + TAG);
+		}
+		super.setOverflowPolicy(overflowPolicy);
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[size=" + size() + ", capacity=" + capacity + ", bufferSize=" + mBufferSize
+				+ ", subscribers=" + mSubscriptions.size() + "]";
+	}
+
+	/**
+	 * 订阅者
+	 * <p>get/drainTo移动自己的游标, put/putAll放入广播仓库.
+	 * 多个消费者共用时先读出产品再CAS游标, 槽位在所有游标越过之前不会被覆盖.
+	 * @param <T>
+	 */
+	public static class Subscription<T> implements IWarehouse<T> {
+
+		private final BroadcastWarehouse<T> mWarehouse;
+
+		private final String mName;
+
+		/**
+		 * 读序列号
+		 */
+		final PaddedAtomicLong mCursor;
+
+		private volatile boolean closed = false;
+
+		Subscription(BroadcastWarehouse<T> warehouse, String name, long cursor) {
+			this.mWarehouse = warehouse;
+			this.mName = name;
+			this.mCursor = new PaddedAtomicLong(cursor);
+		}
+
+		/**
+		 * 非阻塞获取产品
+		 * @return 没有新产品或者已经取消订阅时返回null
+		 */
+		@SuppressWarnings("unchecked")
+		public T poll() {
+			if(closed) {
+				return null;
+			}
+			BroadcastWarehouse<T> warehouse = mWarehouse;
+			while(true) {
+				long cursor = mCursor.get();
+				int index = (int) (cursor & warehouse.mMask);
+				if(warehouse.mPublished.get(index) != cursor) {
+					//还没有发布
+					return null;
+				}
+				T product = (T) warehouse.mBuffer.get(index);
+				if(mCursor.compareAndSet(cursor, cursor + 1)) {
+					warehouse.recordSojourn(index);
+					WarehouseMetrics metrics = warehouse.mMetrics;
+					if(metrics != null) {
+						metrics.recordGet();
+					}
+					return product;
+				}
+				//同组的其他消费者抢先了, 重试
+			}
+		}
+
+		@Override
+		public T get() {
+			return getProduct(-1L);
+		}
+
+		/**
+		 * 获取产品, 没有新产品时按广播仓库的等待策略等待
+		 * @param timeoutNanos 小于0表示一直等待
+		 * @return 超时, 线程被中断或者已经取消订阅时返回null
+		 */
+		protected T getProduct(long timeoutNanos) {
+			T product = poll();
+			if(product == null) {
+				long deadline = System.nanoTime() + timeoutNanos;
+				int idleCount = 0;
+				try {
+					while((product = poll()) == null) {
+						if(closed || timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+							return null;
+						}
+						if(Thread.interrupted()) {
+							throw new InterruptedException();
+						}
+						idleCount = mWarehouse.idle(idleCount);
+					}
+				} catch (InterruptedException e) {
+					//消费者被停止时会中断等待, 不是错误, 保留中断状态交给调用者处理
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			//唤醒等待最慢游标的生产者
+			mWarehouse.signalWaiters();
+			return product;
+		}
+
+		@Override
+		public int drainTo(Collection<? super T> c, int maxElements) {
+			return doDrainTo(c, maxElements, -1L);
+		}
+
+		@Override
+		public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+			return doDrainTo(c, maxElements, unit.toNanos(timeout));
+		}
+
+		private int doDrainTo(Collection<? super T> c, int maxElements, long timeoutNanos) {
+			if(c == null || maxElements <= 0) {
+				return 0;
+			}
+			T product = getProduct(timeoutNanos);
+			if(product == null) {
+				return 0;
+			}
+			c.add(product);
+			int count = 1;
+			while(count < maxElements && (product = poll()) != null) {
+				c.add(product);
+				count++;
+			}
+			if(count > 1) {
+				mWarehouse.signalWaiters();
+			}
+			return count;
+		}
+
+		/**
+		 * 放入广播仓库, 所有订阅者都会收到
+		 */
+		@Override
+		public void put(T data) {
+			mWarehouse.put(data);
+		}
+
+		@Override
+		public int putAll(Collection<? extends T> products) {
+			return mWarehouse.putAll(products);
+		}
+
+		@Override
+		public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+			return mWarehouse.putAll(products, timeout, unit);
+		}
+
+		/**
+		 * 该订阅者还没有取出的数量
+		 */
+		@Override
+		public int size() {
+			long size = mWarehouse.mTail.get() - mCursor.get();
+			if(size < 0) {
+				return 0;
+			}
+			return size > mWarehouse.mBufferSize ? mWarehouse.mBufferSize : (int) size;
+		}
+
+		/**
+		 * 广播仓库的统计, 取出数量为所有订阅者之和
+		 */
+		@Override
+		public WarehouseMetrics getMetrics() {
+			return mWarehouse.getMetrics();
+		}
+
+		/**
+		 * 取消订阅, 之后get返回null
+		 */
+		public void close() {
+			closed = true;
+			mWarehouse.unsubscribe(this);
+		}
+
+		public boolean isClosed() {
+			return closed;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public BroadcastWarehouse<T> getWarehouse() {
+			return mWarehouse;
+		}
+
+		@Override
+		public String toString() {
+			return "Subscription[" + mName + ", size=" + size() + "]";
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 忙等策略
+ * <p>不让出CPU, 延迟最低, 但是会独占一个CPU核, 只适合线程数小于CPU核数的低延迟场景.
+ * @author zhanghao
+ *
+ */
+public class BusySpinWaitStrategy implements WaitStrategy {
+
+	@Override
+	public void idle(int idleCount) {
+		SpinWait.onSpinWait();
+	}
+
+	@Override
+	public void signalAll() {
+		//不需要唤醒
+	}
+
+	@Override
+	public String toString() {
+		return "BusySpinWaitStrategy";
+	}
+}
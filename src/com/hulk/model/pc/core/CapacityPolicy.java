@@ -0,0 +1,43 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 容量策略
+ * <p>代替固定梯度增长的fixMaxCapacity, 运行时根据负载增大或者缩小缓冲区容量.
+ * <p>可选实现:
+ * <p>1. AimdCapacityPolicy: 满时线性增长, 长时间利用率低时按比例缩小;
+ * <p>2. LatencyCapacityPolicy: 根据出队速率估算产品停留时间(Little定律), 容量对齐目标延迟;
+ * <p>3. MemoryBudgetCapacityPolicy: 根据产品平均大小, 容量对齐内存预算.
+ * <p>WarehouseBase在持有锁时调用; 无锁仓库(RingWarehouseBase)会被多个线程同时调用, 统计值允许近似.
+ * <p>返回的容量由仓库限制在[1, maxCapacity]之间, 容量变化通过OnWarehouseCapacityListener回调.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public interface CapacityPolicy<T> {
+
+	/**
+	 * 产品放入后调用
+	 * @param product
+	 * @param size 放入后的产品数量
+	 */
+	void onPut(T product, int size);
+
+	/**
+	 * 缓冲区满时调用
+	 * @param capacity 当前容量
+	 * @param size 当前产品数量
+	 * @param maxCapacity 容量最大值
+	 * @return 新的容量, 不增长时返回capacity
+	 */
+	int onPutFull(int capacity, int size, int maxCapacity);
+
+	/**
+	 * 产品取出后调用
+	 * @param product
+	 * @param capacity 当前容量
+	 * @param size 取出后的产品数量
+	 * @param maxCapacity 容量最大值
+	 * @return 新的容量, 不变时返回capacity
+	 */
+	int onGet(T product, int capacity, int size, int maxCapacity);
+}
@@ -1,5 +1,11 @@
 package com.hulk.model.pc.core;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 消费者基类
  * @author zhanghao
@@ -10,6 +16,11 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 
 	private static final String TAG = "ConsumerBase";
 	
+	/**
+	 * 确认模式没有设置获取超时时, 每次租用最多等待的时间(毫秒), 之后回到循环检查是否被停止
+	 */
+	public static final long ACK_LEASE_TIMEOUT = 500;
+	
 	/**
 	 * 产品仓库
 	 */
@@ -41,8 +52,80 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 	 */
 	protected long mSleepTime = DEFAULT_ONCE_SLEEP_TIME;
 	
+	/**
+	 * 每次循环之间的等待策略, 为空时使用sleepTime()固定睡眠
+	 */
+	protected volatile WaitStrategy mWaitStrategy;
+	
+	/**
+	 * 连续空闲(没有消费到产品)的循环次数, 用于等待策略退避
+	 */
+	protected int mIdleCount = 0;
+	
+	/**
+	 * 批量消费数量, 大于1时使用批量模式: 每次从仓库最多取出mBatchSize个产品, 调用doConsumeBatch
+	 */
+	protected int mBatchSize = 1;
+	
+	/**
+	 * 获取产品的等待超时(毫秒), 小于等于0表示一直等待.
+	 * <p>大于0时仓库为空也会定期返回, 检查是否被停止.
+	 */
+	protected long mGetTimeout = 0;
+	
+	/**
+	 * 批量模式下取到第一批产品后, 不满一批时最多再等待的时间(毫秒), 0表示不等待.
+	 * <p>负载高时凑满一批再消费, 减少消费次数; 负载低时延迟不超过该时间.
+	 */
+	protected long mMaxLinger = 0;
+	
+	/**
+	 * 设置了获取超时时单个模式复用的产品列表
+	 */
+	private List<T> mSingle;
+	
+	/**
+	 * 批量模式复用的产品列表
+	 */
+	private List<T> mBatch;
+	
+	/**
+	 * 确认模式(至少一次)使用的仓库, 为空时直接从仓库取走产品
+	 */
+	protected volatile AckWarehouse<T> mAckWarehouse;
+	
+	/**
+	 * 确认模式下租用的列表
+	 */
+	private List<AckWarehouse.Lease<T>> mLeases;
+	
 	protected OnPCListener mListener;
 	
+	/**
+	 * 线程状态锁: 保护mAlive/mWaiting, 用于等待线程退出
+	 */
+	private final Object mStateLock = new Object();
+	
+	/**
+	 * 已经启动还没有退出
+	 */
+	private boolean mAlive = false;
+	
+	/**
+	 * 是否正在等待产品或者睡眠, 只有此时停止才中断线程, 避免中断doConsume中的文件IO
+	 */
+	private boolean mWaiting = false;
+	
+	/**
+	 * 运行线程
+	 */
+	private volatile Thread mThread;
+	
+	/**
+	 * 正在排空停止, 每次循环之间不再睡眠
+	 */
+	private volatile boolean mDraining = false;
+	
 	public ConsumerBase(IWarehouse<T> warehouse) {
 		this.mWarehouse = warehouse;
 		initName();
@@ -51,13 +134,25 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 	@Override
 	public void run() {
 		SysLog.i(TAG, "run: Stasrting...");
-		onPCStarting();
-		running = true;
-		stopped = false;
-		doRun();
-		running = false;
-		SysLog.w(TAG, "run: Finished");
-		onPCFinised();
+		synchronized (mStateLock) {
+			mAlive = true;
+		}
+		mThread = Thread.currentThread();
+		try {
+			onPCStarting();
+			running = true;
+			doRun();
+			running = false;
+			SysLog.w(TAG, "run: Finished");
+			onPCFinised();
+		} finally {
+			running = false;
+			mThread = null;
+			synchronized (mStateLock) {
+				mAlive = false;
+				mStateLock.notifyAll();
+			}
+		}
 	}
 	
 	/**
@@ -67,19 +162,32 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 		//死循环服务消费产品
 		while(true) {
 			try {
+				checkInterrupted();
 				if(isStopped()) {
 					String thread = getCurrentThreadInfo();
 					SysLog.w(TAG,  "doRun: Stopped, loopCount= " + loopCount + ", " + thread);
 					return;
 				}
-				//mWarehouse.get()为阻塞仓库，没有货物是会等待
-				T product = mWarehouse.get();
-				boolean consumed = doConsume(product);
-				if(consumed) {
-					loopCount++;
+				if(isAckMode()) {
+					consumeLeasesOnce();
+				} else if(isBatchMode()) {
+					consumeBatchOnce();
 				} else {
-					if(isDebugMode()) {
-						SysLog.e(TAG,  "doRun: Failed consume product=" + product);
+					T product = getProduct();
+					if(product == null && (mGetTimeout > 0 || isStopped() || mDraining
+							|| Thread.currentThread().isInterrupted())) {
+						//等待超时或者被停止唤醒(中断), 重新检查是否停止
+						mIdleCount++;
+						continue;
+					}
+					mIdleCount = product != null ? 0 : mIdleCount + 1;
+					boolean consumed = doConsume(product);
+					if(consumed) {
+						loopCount++;
+					} else {
+						if(isDebugMode()) {
+							SysLog.e(TAG,  "doRun: Failed consume product=" + product);
+						}
 					}
 				}
 				//建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况
@@ -93,19 +201,247 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 		}
 	}
 	
+	/**
+	 * 从仓库获取一个产品
+	 * @return 设置了获取超时时, 超时返回null
+	 */
+	private T getProduct() {
+		if(!beginWaiting()) {
+			return null;
+		}
+		try {
+			if(mGetTimeout <= 0) {
+				//mWarehouse.get()为阻塞仓库，没有货物是会等待
+				return mWarehouse.get();
+			}
+			if(mSingle == null) {
+				mSingle = new ArrayList<T>(1);
+			}
+			List<T> single = mSingle;
+			try {
+				int count = mWarehouse.drainTo(single, 1, mGetTimeout, TimeUnit.MILLISECONDS);
+				return count > 0 ? single.get(0) : null;
+			} finally {
+				single.clear();
+			}
+		} finally {
+			endWaiting();
+		}
+	}
+	
+	/**
+	 * 开始等待产品或者睡眠, 之后停止时可以中断线程
+	 * @return 已经停止时返回false, 不需要等待
+	 */
+	private boolean beginWaiting() {
+		synchronized (mStateLock) {
+			mWaiting = true;
+		}
+		//stop先设置stopped再检查mWaiting, 两边至少有一边能看到对方, 不会错过唤醒
+		if(isStopped()) {
+			endWaiting();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * 结束等待, 清除停止时的中断状态, 中断不会带到doConsume中
+	 */
+	private void endWaiting() {
+		synchronized (mStateLock) {
+			mWaiting = false;
+		}
+		if(stopped || mDraining) {
+			Thread.interrupted();
+		}
+	}
+	
+	/**
+	 * 唤醒正在等待产品或者睡眠的线程
+	 */
+	private void wakeUp() {
+		synchronized (mStateLock) {
+			Thread thread = mThread;
+			if(mWaiting && thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * 批量消费一次: 从仓库一次取出最多mBatchSize个产品, 一起消费
+	 */
+	private void consumeBatchOnce() {
+		if(mBatch == null) {
+			mBatch = new ArrayList<T>(mBatchSize);
+		}
+		List<T> batch = mBatch;
+		batch.clear();
+		int count = 0;
+		if(!beginWaiting()) {
+			return;
+		}
+		try {
+			if(mGetTimeout > 0) {
+				count = mWarehouse.drainTo(batch, mBatchSize, mGetTimeout, TimeUnit.MILLISECONDS);
+			} else {
+				//mWarehouse.drainTo()为阻塞仓库，没有货物是会等待
+				count = mWarehouse.drainTo(batch, mBatchSize);
+			}
+		} finally {
+			endWaiting();
+		}
+		if(count <= 0) {
+			mIdleCount++;
+			return;
+		}
+		mIdleCount = 0;
+		if(mMaxLinger > 0) {
+			lingerBatch(batch);
+		}
+		try {
+			int consumed = doConsumeBatch(batch);
+			loopCount += consumed;
+			if(consumed < count && isDebugMode()) {
+				SysLog.e(TAG,  "consumeBatchOnce: Failed consume " + (count - consumed) + " of " + count + " products");
+			}
+		} finally {
+			//不持有已消费产品的引用
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * 不满一批时在mMaxLinger内继续取出, 直到满一批(isBatchFull), 超时, 或者正在停止
+	 * @param batch
+	 */
+	private void lingerBatch(List<T> batch) {
+		long deadline = System.currentTimeMillis() + mMaxLinger;
+		while(batch.size() < mBatchSize && !isBatchFull(batch) && !isStopped() && !mDraining) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0 || !beginWaiting()) {
+				return;
+			}
+			try {
+				mWarehouse.drainTo(batch, mBatchSize - batch.size(), remaining, TimeUnit.MILLISECONDS);
+			} finally {
+				endWaiting();
+			}
+		}
+	}
+	
+	/**
+	 * 批量模式下当前这批是否已经够大, 不再等待mMaxLinger. 默认只按数量(mBatchSize)判断
+	 * <p>子类可以按产品大小判断, 例如日志的总长度.
+	 * @param batch
+	 * @return
+	 */
+	protected boolean isBatchFull(List<T> batch) {
+		return false;
+	}
+	
+	/**
+	 * 确认模式消费一次: 租用产品, 逐个调用doConsume, 成功ack, 失败或者抛出异常nack(退避后重新投递)
+	 * <p>批量模式只影响一次租用的数量, 不调用doConsumeBatch, 因为它的返回值不能区分哪个产品失败.
+	 */
+	private void consumeLeasesOnce() {
+		AckWarehouse<T> ackWarehouse = mAckWarehouse;
+		if(mLeases == null) {
+			mLeases = new ArrayList<AckWarehouse.Lease<T>>(Math.max(1, mBatchSize));
+		}
+		List<AckWarehouse.Lease<T>> leases = mLeases;
+		leases.clear();
+		int count = 0;
+		if(!beginWaiting()) {
+			return;
+		}
+		try {
+			//有限等待: 租用循环中的等待被中断后也能回到doRun检查是否被停止
+			count = ackWarehouse.lease(leases, Math.max(1, mBatchSize), mGetTimeout > 0 ? mGetTimeout : ACK_LEASE_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		} finally {
+			endWaiting();
+		}
+		if(count <= 0) {
+			mIdleCount++;
+			return;
+		}
+		mIdleCount = 0;
+		try {
+			for(int i = 0; i < count; i++) {
+				AckWarehouse.Lease<T> lease = leases.get(i);
+				boolean consumed = false;
+				try {
+					consumed = doConsume(lease.getProduct());
+				} catch (RuntimeException e) {
+					SysLog.e(TAG, "consumeLeasesOnce Exception: " + e + ", attempt=" + lease.getAttempt(), e);
+				}
+				if(consumed) {
+					ackWarehouse.ack(lease);
+					loopCount++;
+				} else {
+					ackWarehouse.nack(lease);
+					if(isDebugMode()) {
+						SysLog.e(TAG,  "consumeLeasesOnce: Failed consume product=" + lease.getProduct());
+					}
+				}
+			}
+		} finally {
+			leases.clear();
+		}
+	}
+	
+	/**
+	 * 批量消费产品
+	 * <p>默认逐个调用doConsume, 子类可以重写实现一次处理整批产品(例如合并写文件).
+	 * @param products 本次取出的产品, 函数返回后会被清空
+	 * @return 消费完成的数量
+	 */
+	protected int doConsumeBatch(List<T> products) {
+		int consumed = 0;
+		for(T product : products) {
+			if(doConsume(product)) {
+				consumed++;
+			}
+		}
+		return consumed;
+	}
+	
+	/**
+	 * 线程被外部中断(不是stop唤醒, 例如Executor.shutdownNow)时按停止处理,
+	 * 仓库等待被中断后会保留中断状态, 不处理的话之后每次等待都会立刻返回.
+	 */
+	private void checkInterrupted() {
+		if(!stopped && Thread.currentThread().isInterrupted()) {
+			SysLog.w(TAG, "checkInterrupted: Interrupted, stop " + mName);
+			stopped = true;
+		}
+	}
+	
 	/**
 	 * 线程睡眠
 	 * 建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况
 	 */
 	protected void doSleep() {
-		long sleepTime = sleepTime();
-		if (sleepTime <= 0) {
+		WaitStrategy waitStrategy = mWaitStrategy;
+		long sleepTime = waitStrategy != null ? 0 : sleepTime();
+		if((waitStrategy == null && sleepTime <= 0) || mDraining || !beginWaiting()) {
 			return;
 		}
 		try {
-			Thread.sleep(sleepTime);
+			if(waitStrategy != null) {
+				waitStrategy.idle(mIdleCount);
+			} else {
+				Thread.sleep(sleepTime);
+			}
 		} catch (InterruptedException e) {
-			SysLog.e(TAG, "doSleep Interrupted: " + e);
+			if(!isStopped()) {
+				//不是stop唤醒, 保留中断状态, 下一次循环按停止处理
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			endWaiting();
 		}
 	}
 	
@@ -139,10 +475,7 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 	}
 	
 	public boolean isProductCacheEmpty() {
-		if(mWarehouse instanceof WarehouseBase) {
-			return ((ConsumerBase)mWarehouse).isProductCacheEmpty();
-		}
-		return false;
+		return mWarehouse != null && mWarehouse.size() <= 0;
 	}
 	
 	public T removeFistProduct() {
@@ -216,20 +549,182 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
 	public void start() {
 		initName();
 		SysLog.i(TAG, "start: " + mName);
+		//在启动线程之前重置, 避免线程开始运行前的stop被覆盖
+		stopped = false;
+		mDraining = false;
 		Thread t = new Thread(this, mName);
-		t.start();
+		launch(t, null);
+	}
+	
+	/**
+	 * 使用指定的ThreadFactory创建线程运行
+	 * @param threadFactory
+	 */
+	public void start(ThreadFactory threadFactory) {
+		initName();
+		SysLog.i(TAG, "start: " + mName + " by " + threadFactory);
+		stopped = false;
+		mDraining = false;
+		Thread t = threadFactory.newThread(this);
+		launch(t, null);
+	}
+	
+	/**
+	 * 在指定的Executor中运行, 运行期间一直占用一个Executor线程
+	 * <p>与start(ThreadFactory)不同名, 同时实现两个接口的参数不会有歧义.
+	 * @param executor
+	 */
+	public void startOn(Executor executor) {
+		initName();
+		SysLog.i(TAG, "start: " + mName + " on " + executor);
+		stopped = false;
+		mDraining = false;
+		launch(null, executor);
+	}
+	
+	/**
+	 * 启动线程或者交给Executor, 启动之前标记为存活, 避免线程开始运行前awaitTermination直接返回
+	 * @param thread
+	 * @param executor
+	 */
+	private void launch(Thread thread, Executor executor) {
+		synchronized (mStateLock) {
+			mAlive = true;
+		}
+		try {
+			if(thread != null) {
+				thread.start();
+			} else {
+				executor.execute(this);
+			}
+		} catch (RuntimeException e) {
+			synchronized (mStateLock) {
+				mAlive = false;
+				mStateLock.notifyAll();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * 在虚拟线程中运行(JDK21及以上), 不支持时退回普通线程
+	 * <p>大部分时间在等待的生产者/消费者可以创建成千上万个, 不会占用同样数量的系统线程.
+	 * <p>MONITOR模式的WarehouseBase等待时会固定载体线程, 建议先切换为CONDITION模式.
+	 */
+	public void startVirtual() {
+		initName();
+		PCThreads.checkVirtualThreadFriendly(mWarehouse);
+		start(PCThreads.newVirtualThreadFactory(mName));
+	}
+	
+	/**
+	 * 设置停止标记并唤醒正在等待产品或者睡眠的线程, 不像stop那样向仓库放入产品, 线程池停止工作者时使用
+	 */
+	public void requestStop() {
+		this.stopped = true;
+		wakeUp();
 	}
 	
 	@Override
 	public void stop() {
 		SysLog.w(TAG, "stop: " + mName);
 		this.stopped = true;
+		//正在等待产品或者睡眠时立刻唤醒, 正在消费时消费完当前产品后退出
+		wakeUp();
 		if(isProductCacheEmpty()) {
 			//数据为空,需要手动,加一个元素,触发下一次循环
 			triggerStoppedManually();
 		}
 	}
 	
+	/**
+	 * 停止并等待线程退出
+	 * @param drain 是否先等待仓库中的产品被消费完
+	 * @param timeout 排空和等待退出的总时间
+	 * @param unit
+	 * @return 是否已经排空(drain为true时)并且线程已经退出
+	 */
+	@Override
+	public boolean stop(boolean drain, long timeout, TimeUnit unit) {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		boolean drained = true;
+		if(drain) {
+			mDraining = true;
+			//唤醒正在睡眠的线程, 尽快开始排空
+			wakeUp();
+			drained = awaitDrained(nanos);
+			if(!drained) {
+				SysLog.w(TAG, "stop: " + mName + " Not drained, remaining size=" + mWarehouse.size());
+			}
+		}
+		stop();
+		try {
+			return awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && drained;
+		} catch (InterruptedException e) {
+			SysLog.e(TAG, "stop Interrupted: " + mName);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * 等待仓库排空, 线程已经退出时不再等待
+	 * @param nanos
+	 * @return 是否已经排空
+	 */
+	protected boolean awaitDrained(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		long waitMillis = 1;
+		while(!isProductCacheEmpty()) {
+			if(deadline - System.nanoTime() <= 0 || !isAlive()) {
+				return isProductCacheEmpty();
+			}
+			try {
+				Thread.sleep(waitMillis);
+			} catch (InterruptedException e) {
+				SysLog.e(TAG, "awaitDrained Interrupted: " + e);
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			waitMillis = Math.min(waitMillis * 2, 50);
+		}
+		return true;
+	}
+	
+	/**
+	 * 等待线程退出(包括onPCFinised执行完), 没有启动时直接返回true
+	 * @param timeout
+	 * @param unit
+	 * @return 是否已经退出
+	 * @throws InterruptedException
+	 */
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		synchronized (mStateLock) {
+			while(mAlive) {
+				if(nanos <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(mStateLock, nanos);
+				nanos = deadline - System.nanoTime();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * 已经启动还没有退出, 与isRunning不同, 线程开始运行之前也返回true
+	 * @return
+	 */
+	public boolean isAlive() {
+		synchronized (mStateLock) {
+			return mAlive;
+		}
+	}
+	
 	/**
 	 * 手动触发停止. 添加一个对象,使其自动跳出循环
 	 *  eg:
@@ -270,8 +765,80 @@ public abstract class ConsumerBase<T> implements Runnable, IPCModel<T> {
     	mSleepTime = sleepTime;
 	}
     
+    @Override
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+    	mWaitStrategy = waitStrategy;
+	}
+    
+    public WaitStrategy getWaitStrategy() {
+    	return mWaitStrategy;
+	}
+    
     @Override
 	public void setOnPCListener(OnPCListener listener) {
 		mListener = listener;
 	}
+    
+    /**
+     * 设置批量消费数量, 大于1时每次从仓库最多取出batchSize个产品, 调用doConsumeBatch.
+     * <p>需要在start之前设置.
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+    	this.mBatchSize = batchSize;
+    }
+    
+    public int getBatchSize() {
+    	return this.mBatchSize;
+    }
+    
+    /**
+     * 设置获取产品的等待超时(毫秒), 小于等于0表示一直等待.
+     * <p>大于0时仓库为空也会定期醒来检查是否被停止, 单个和批量模式都有效.
+     * @param getTimeout
+     */
+    public void setGetTimeout(long getTimeout) {
+    	this.mGetTimeout = getTimeout;
+    }
+    
+    public long getGetTimeout() {
+    	return this.mGetTimeout;
+    }
+    
+    /**
+     * 设置批量模式下最多等待凑满一批的时间(毫秒), 0表示有多少消费多少
+     * @param maxLinger
+     */
+    public void setMaxLinger(long maxLinger) {
+    	this.mMaxLinger = maxLinger;
+    }
+    
+    public long getMaxLinger() {
+    	return this.mMaxLinger;
+    }
+    
+    public boolean isBatchMode() {
+    	return this.mBatchSize > 1;
+    }
+    
+    /**
+     * 设置确认模式(至少一次): 仓库需要是AckWarehouse, 产品被租用而不是直接取走,
+     * doConsume返回true时确认, 返回false或者抛出异常时按AckWarehouse的退避策略重新投递.
+     * <p>需要在start之前设置.
+     * @param ackMode
+     */
+    public void setAckMode(boolean ackMode) {
+    	if(!ackMode) {
+    		mAckWarehouse = null;
+    		return;
+    	}
+    	if(!(mWarehouse instanceof AckWarehouse)) {
+    		throw new IllegalStateException("Ack mode requires AckWarehouse: " + mWarehouse);
+    	}
+    	mAckWarehouse = (AckWarehouse<T>) mWarehouse;
+    }
+    
+    public boolean isAckMode() {
+    	return this.mAckWarehouse != null;
+    }
 }
@@ -0,0 +1,62 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 消费者线程池
+ * <p>多个消费者共用一个仓库, 工作者由PCWorkerFactory创建.
+ * <p>停止时唤醒正在等待产品的工作者. 工作者没有设置获取超时时默认设置为DEFAULT_GET_TIMEOUT, 作为唤醒之外的兜底.
+ * <p>eg: 4个消费者写日志, 停止时先把仓库排空:
+ * <pre>
+ * ConsumerPool&lt;String&gt; pool = new ConsumerPool&lt;String&gt;(warehouse, new PCWorkerFactory&lt;String, ConsumerBase&lt;String&gt;&gt;() {
+ *     public ConsumerBase&lt;String&gt; newWorker(IWarehouse&lt;String&gt; warehouse, int index) {
+ *         return new LogConsumer(warehouse, txtFile, true);
+ *     }
+ * }, 4);
+ * pool.start();
+ * ...
+ * pool.stop(true, 5, TimeUnit.SECONDS);
+ * pool.awaitTermination(1, TimeUnit.SECONDS);
+ * </pre>
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class ConsumerPool<T> extends PCPoolBase<T, ConsumerBase<T>> {
+
+	/**
+	 * 工作者默认获取超时(毫秒)
+	 */
+	public static final long DEFAULT_GET_TIMEOUT = 100;
+
+	public ConsumerPool(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends ConsumerBase<T>> factory, int poolSize) {
+		super(warehouse, factory, poolSize, null, null);
+	}
+
+	public ConsumerPool(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends ConsumerBase<T>> factory, int poolSize,
+			Executor executor) {
+		super(warehouse, factory, poolSize, executor, null);
+	}
+
+	public ConsumerPool(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends ConsumerBase<T>> factory, int poolSize,
+			ThreadFactory threadFactory) {
+		super(warehouse, factory, poolSize, null, threadFactory);
+	}
+
+	@Override
+	protected void configureWorker(ConsumerBase<T> worker) {
+		super.configureWorker(worker);
+		if(worker.getGetTimeout() <= 0) {
+			worker.setGetTimeout(DEFAULT_GET_TIMEOUT);
+		}
+	}
+
+	/**
+	 * 设置停止标记并唤醒正在等待产品的工作者, 不依赖获取超时
+	 */
+	@Override
+	protected void stopWorker(ConsumerBase<T> worker) {
+		worker.requestStop();
+	}
+}
@@ -0,0 +1,683 @@
+package com.hulk.model.pc.core;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 延迟仓库
+ * <p>存放时指定延迟时间或者释放时间, 获取时阻塞到最早的产品到期, 用于重试队列等定时场景,
+ * 不再需要用ProducerBase.sleepTime模拟延迟.
+ * <p>使用最小堆按到期时间排序(到期时间相同按存放顺序), 存取O(log n), 不为每个产品创建线程或者定时器.
+ * <p>只有一个消费者(leader)按堆顶到期时间定时等待, 其他消费者无限期等待, 避免大量消费者同时被定时唤醒.
+ * <p>capacity小于等于0表示不限容量; 限制容量时, 缓冲区满的处理与WarehouseBase相同.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class DelayWarehouse<T> implements IWarehouse<T> {
+
+	private static final String TAG = "DelayWarehouse";
+
+	/**
+	 * 堆元素
+	 * @param <T>
+	 */
+	private static final class Entry<T> {
+		final T product;
+		/**
+		 * 放入时间和到期时间, System.nanoTime()
+		 */
+		final long putTime;
+		final long deadline;
+		final long seq;
+
+		Entry(T product, long putTime, long deadline, long seq) {
+			this.product = product;
+			this.putTime = putTime;
+			this.deadline = deadline;
+			this.seq = seq;
+		}
+	}
+
+	private static final Comparator<Entry<?>> DEADLINE_COMPARATOR = new Comparator<Entry<?>>() {
+		@Override
+		public int compare(Entry<?> e1, Entry<?> e2) {
+			//nanoTime可能溢出, 比较差值
+			long diff = e1.deadline - e2.deadline;
+			if(diff != 0) {
+				return diff < 0 ? -1 : 1;
+			}
+			return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+		}
+	};
+
+	private final PriorityQueue<Entry<T>> mHeap;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+
+	/**
+	 * 堆顶产品到期或者有新的堆顶产品
+	 */
+	private final Condition mAvailable = mLock.newCondition();
+
+	/**
+	 * 缓冲区不满
+	 */
+	private final Condition mNotFull = mLock.newCondition();
+
+	/**
+	 * 按堆顶到期时间定时等待的消费者线程
+	 */
+	private Thread mLeader = null;
+
+	/**
+	 * 存放序号, 持有锁时递增
+	 */
+	private long mSeq = 0;
+
+	/**
+	 * 缓冲区容量, 小于等于0时不限容量
+	 */
+	protected volatile int capacity;
+
+	/**
+	 * 存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+	 */
+	protected boolean mPutFullWaitingDisabled = false;
+
+	protected boolean mDebugMode = false;
+
+	protected OnWarehouseListener<T> mListener;
+
+	/**
+	 * 统计, 为空时不统计. 停留时间从放入开始计算, 包括延迟时间
+	 */
+	protected volatile WarehouseMetrics mMetrics;
+
+	/**
+	 * 不限容量
+	 */
+	public DelayWarehouse() {
+		this(0);
+	}
+
+	/**
+	 * 构造函数
+	 * @param capacity 缓冲区容量, 小于等于0时不限容量
+	 */
+	public DelayWarehouse(int capacity) {
+		this.capacity = capacity;
+		int initialCapacity = capacity > 0 ? Math.min(capacity, WarehouseBase.MAX_PRODUST_CAPACITY)
+				: WarehouseBase.DEFAULT_PRODUST_CAPACITY;
+		this.mHeap = new PriorityQueue<Entry<T>>(initialCapacity, DEADLINE_COMPARATOR);
+	}
+
+	/**
+	 * 存放立即到期的产品
+	 */
+	@Override
+	public void put(T product) {
+		putProduct(product, 0L, -1L);
+	}
+
+	/**
+	 * 存放延迟产品
+	 * @param product
+	 * @param delay 延迟时间
+	 * @param unit
+	 * @return 是否放入, 缓冲区满且不能等待时返回false
+	 */
+	public boolean put(T product, long delay, TimeUnit unit) {
+		return putProduct(product, unit.toNanos(delay), -1L);
+	}
+
+	/**
+	 * 存放在指定时间释放的产品
+	 * @param product
+	 * @param timeMillis 释放时间, System.currentTimeMillis()
+	 * @return 是否放入
+	 */
+	public boolean putAt(T product, long timeMillis) {
+		long delayMillis = timeMillis - System.currentTimeMillis();
+		return putProduct(product, TimeUnit.MILLISECONDS.toNanos(delayMillis), -1L);
+	}
+
+	/**
+	 * 非阻塞存放延迟产品
+	 * @param product
+	 * @param delay
+	 * @param unit
+	 * @return 缓冲区满时返回false
+	 */
+	public boolean offer(T product, long delay, TimeUnit unit) {
+		return putProduct(product, unit.toNanos(delay), 0L);
+	}
+
+	/**
+	 * 存放产品
+	 * @param product
+	 * @param delayNanos 延迟时间
+	 * @param timeoutNanos 缓冲区满时的等待时间, 小于0表示一直等待
+	 * @return 是否放入
+	 */
+	protected boolean putProduct(T product, long delayNanos, long timeoutNanos) {
+		checkNotNull(product);
+		mLock.lock();
+		try {
+			if(!awaitPutPrepared(product, timeoutNanos)) {
+				recordRejected(1);
+				return false;
+			}
+			addEntry(product, delayNanos);
+			return true;
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "put Interrupted, Can not put product=" + product + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+			recordRejected(1);
+			return false;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 等待缓冲区不满, 需要持有锁
+	 * @param product
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 是否可以放入
+	 * @throws InterruptedException
+	 */
+	private boolean awaitPutPrepared(T product, long timeoutNanos) throws InterruptedException {
+		if(!isProductBufferFull()) {
+			return true;
+		}
+		doPutFullCallback(product);
+		if(timeoutNanos == 0) {
+			return false;
+		}
+		if(!checkPutFullWaitingEnabled()) {
+			//存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,直接略过,避免内存溢出.
+			SysLog.i(TAG, "put: Not prepared, Can not put product=" + product);
+			return false;
+		}
+		if(isDebugMode()) {
+			String thread = getCurrentThreadInfo();
+			SysLog.w(TAG, "put: ## products buffer is full, waiting for thread=" + thread);
+		}
+		long nanos = timeoutNanos;
+		long start = System.nanoTime();
+		try {
+			while(isProductBufferFull()) {
+				if(timeoutNanos >= 0 && nanos <= 0) {
+					return false;
+				}
+				nanos = await(mNotFull, nanos);
+			}
+		} finally {
+			WarehouseMetrics metrics = mMetrics;
+			if(metrics != null) {
+				metrics.recordPutBlocked(System.nanoTime() - start);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 放入堆中, 成为新的堆顶时唤醒消费者重新计算等待时间. 需要持有锁
+	 * @param product
+	 * @param delayNanos
+	 */
+	private void addEntry(T product, long delayNanos) {
+		long now = System.nanoTime();
+		Entry<T> entry = new Entry<T>(product, now, now + Math.max(0L, delayNanos), mSeq++);
+		mHeap.offer(entry);
+		if(mHeap.peek() == entry) {
+			mLeader = null;
+			mAvailable.signal();
+		}
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordPut(mHeap.size());
+		}
+	}
+
+	/**
+	 * 获取到期的产品
+	 * <p>没有到期产品时阻塞, 直到堆顶产品到期.
+	 * @return 线程被中断时返回null
+	 */
+	@Override
+	public T get() {
+		return getProduct(-1L);
+	}
+
+	/**
+	 * 获取到期的产品, 最多等待timeout
+	 * @param timeout
+	 * @param unit
+	 * @return 超时或者线程被中断时返回null
+	 */
+	public T get(long timeout, TimeUnit unit) {
+		return getProduct(unit.toNanos(timeout));
+	}
+
+	/**
+	 * 非阻塞获取到期的产品
+	 * @return 没有到期产品时返回null
+	 */
+	public T poll() {
+		return getProduct(0L);
+	}
+
+	/**
+	 * 获取到期的产品
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return
+	 */
+	protected T getProduct(long timeoutNanos) {
+		mLock.lock();
+		try {
+			Entry<T> entry = awaitExpired(timeoutNanos);
+			if(entry == null) {
+				return null;
+			}
+			mHeap.poll();
+			mNotFull.signal();
+			recordGet(entry);
+			return entry.product;
+		} catch (InterruptedException e) {
+			//消费者被停止时会中断等待, 不是错误, 保留中断状态交给调用者处理
+			if(isDebugMode()) {
+				SysLog.i(TAG, "get Interrupted, thread=" + getCurrentThreadInfo());
+			}
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			afterGet();
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 等待堆顶产品到期, 需要持有锁
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 到期的堆顶元素(没有移除), 超时返回null
+	 * @throws InterruptedException
+	 */
+	private Entry<T> awaitExpired(long timeoutNanos) throws InterruptedException {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics == null || timeoutNanos == 0) {
+			return doAwaitExpired(timeoutNanos);
+		}
+		long start = System.nanoTime();
+		Entry<T> first = mHeap.peek();
+		if(first != null && first.deadline - start <= 0) {
+			//已经到期, 不需要等待
+			return first;
+		}
+		try {
+			return doAwaitExpired(timeoutNanos);
+		} finally {
+			metrics.recordGetIdle(System.nanoTime() - start);
+		}
+	}
+
+	private Entry<T> doAwaitExpired(long timeoutNanos) throws InterruptedException {
+		long nanos = timeoutNanos;
+		boolean emptyCallback = false;
+		while(true) {
+			Entry<T> first = mHeap.peek();
+			if(first == null) {
+				if(!emptyCallback) {
+					emptyCallback = true;
+					doGetEmptyCallback();
+				}
+				if(timeoutNanos >= 0 && nanos <= 0) {
+					return null;
+				}
+				nanos = await(mAvailable, nanos);
+				continue;
+			}
+			long delay = first.deadline - System.nanoTime();
+			if(delay <= 0) {
+				return first;
+			}
+			if(timeoutNanos >= 0 && nanos <= 0) {
+				return null;
+			}
+			//等待期间堆顶可能被其他线程取走, 不持有引用
+			first = null;
+			if((timeoutNanos >= 0 && nanos < delay) || mLeader != null) {
+				nanos = await(mAvailable, nanos);
+			} else {
+				Thread thisThread = Thread.currentThread();
+				mLeader = thisThread;
+				try {
+					long left = mAvailable.awaitNanos(delay);
+					if(timeoutNanos >= 0) {
+						nanos -= delay - left;
+					}
+				} finally {
+					if(mLeader == thisThread) {
+						mLeader = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * 获取结束后, 如果没有leader且还有产品, 唤醒下一个消费者接替. 需要持有锁
+	 */
+	private void afterGet() {
+		if(mLeader == null && mHeap.peek() != null) {
+			mAvailable.signal();
+		}
+	}
+
+	private void recordGet(Entry<T> entry) {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordGet();
+			metrics.recordSojourn(System.nanoTime() - entry.putTime);
+		}
+	}
+
+	private void recordRejected(int count) {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordRejected(count);
+		}
+	}
+
+	private static long await(Condition condition, long nanos) throws InterruptedException {
+		if(nanos < 0) {
+			condition.await();
+			return nanos;
+		}
+		return condition.awaitNanos(nanos);
+	}
+
+	/**
+	 * 批量存放立即到期的产品
+	 */
+	@Override
+	public int putAll(Collection<? extends T> products) {
+		return doPutAll(products, -1L);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+		return doPutAll(products, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量存放立即到期的产品, 一次加锁
+	 * @param products
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际放入的数量
+	 */
+	protected int doPutAll(Collection<? extends T> products, long timeoutNanos) {
+		if(products == null || products.isEmpty()) {
+			return 0;
+		}
+		int count = 0;
+		mLock.lock();
+		try {
+			long deadline = System.nanoTime() + timeoutNanos;
+			for(T product : products) {
+				checkNotNull(product);
+				long nanos = timeoutNanos < 0 ? -1L : Math.max(0L, deadline - System.nanoTime());
+				if(!awaitPutPrepared(product, nanos)) {
+					break;
+				}
+				addEntry(product, 0L);
+				count++;
+			}
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "putAll Interrupted, Can not put products from index " + count + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+		} finally {
+			recordRejected(products.size() - count);
+			if(count > 1) {
+				mAvailable.signalAll();
+			}
+			mLock.unlock();
+		}
+		return count;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		return doDrainTo(c, maxElements, -1L);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+		return doDrainTo(c, maxElements, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量获取到期的产品: 等待第一个产品到期, 然后取出所有已到期的产品
+	 * @param c
+	 * @param maxElements
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际取出的数量
+	 */
+	protected int doDrainTo(Collection<? super T> c, int maxElements, long timeoutNanos) {
+		if(c == null || maxElements <= 0) {
+			return 0;
+		}
+		int count = 0;
+		mLock.lock();
+		try {
+			if(awaitExpired(timeoutNanos) == null) {
+				return 0;
+			}
+			long now = System.nanoTime();
+			Entry<T> first;
+			while(count < maxElements && (first = mHeap.peek()) != null && first.deadline - now <= 0) {
+				mHeap.poll();
+				recordGet(first);
+				c.add(first.product);
+				count++;
+			}
+		} catch (InterruptedException e) {
+			if(isDebugMode()) {
+				SysLog.i(TAG, "drainTo Interrupted, thread=" + getCurrentThreadInfo());
+			}
+			Thread.currentThread().interrupt();
+		} finally {
+			if(count > 0) {
+				mNotFull.signalAll();
+			}
+			afterGet();
+			mLock.unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * 所有产品数量, 包括没有到期的
+	 */
+	@Override
+	public int size() {
+		mLock.lock();
+		try {
+			return mHeap.size();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 最早到期的产品剩余的延迟时间
+	 * @param unit
+	 * @return 没有产品时返回-1, 已经到期返回0
+	 */
+	public long getHeadDelay(TimeUnit unit) {
+		mLock.lock();
+		try {
+			Entry<T> first = mHeap.peek();
+			if(first == null) {
+				return -1L;
+			}
+			long delay = first.deadline - System.nanoTime();
+			return unit.convert(Math.max(0L, delay), TimeUnit.NANOSECONDS);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 清空所有产品
+	 */
+	public void clear() {
+		mLock.lock();
+		try {
+			mHeap.clear();
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 启用或者关闭统计
+	 * @param enabled
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if(!enabled) {
+			mMetrics = null;
+		} else if(mMetrics == null) {
+			mMetrics = new WarehouseMetrics(this);
+		}
+	}
+
+	public boolean isMetricsEnabled() {
+		return mMetrics != null;
+	}
+
+	@Override
+	public WarehouseMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	public boolean isProductBufferEmpty() {
+		return size() <= 0;
+	}
+
+	/**
+	 * 需要持有锁
+	 * @return
+	 */
+	private boolean isProductBufferFull() {
+		return capacity > 0 && mHeap.size() >= capacity;
+	}
+
+	/**
+	 * 检查缓冲区满时,是否启用等待
+	 * <p>主线程默认不能等待,避免android出现ANE
+	 * @return
+	 */
+	protected boolean checkPutFullWaitingEnabled() {
+		if(mPutFullWaitingDisabled) {
+			return false;
+		}
+		String threadName = Thread.currentThread().getName();
+		//默认可等待
+		boolean waitingEnabled = true;
+		if("main".equals(threadName)) {
+			//主线程默认不能等待,在android中,等待会出现ANR
+			waitingEnabled = false;
+		}
+		if(mListener != null) {
+			waitingEnabled = mListener.onPutWaitingEnabled(this);
+		}
+		return waitingEnabled;
+	}
+
+	/**
+	 * Put满时回调
+	 * @param product
+	 */
+	protected void doPutFullCallback(T product) {
+		if(mListener != null) {
+			mListener.onPutFull(this, product);
+		}
+	}
+
+	/**
+	 * Get为空时回调
+	 */
+	protected void doGetEmptyCallback() {
+		if(mListener != null) {
+			mListener.onGetEmpty(this);
+		}
+	}
+
+	/**
+	 * 设置容量, 小于等于0时不限容量
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		mLock.lock();
+		try {
+			this.capacity = capacity;
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * 获取当前线程信息
+	 * @return
+	 */
+	protected String getCurrentThreadInfo() {
+		return SysLog.getCurrentThreadInfo();
+	}
+
+	public void setDebugMode(boolean debugMode) {
+    	this.mDebugMode = debugMode;
+    }
+
+    public boolean isDebugMode() {
+    	return this.mDebugMode;
+    }
+
+    /**
+     * 设置监听器, 监听器的产品类型由调用者保证与仓库一致
+     */
+    @SuppressWarnings("unchecked")
+    public void setListener(OnWarehouseListener<?> listener) {
+    	mListener = (OnWarehouseListener<T>) listener;
+	}
+
+    /**
+     * 设置存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+     * @param putFullWaitingDisabled
+     */
+    public void setPutFullWaitingDisabled(boolean putFullWaitingDisabled) {
+    	this.mPutFullWaitingDisabled = putFullWaitingDisabled;
+    }
+
+    protected static void checkNotNull(Object product) {
+    	if(product == null) {
+    		throw new NullPointerException("product is null");
+    	}
+    }
+
+    @Override
+    public String toString() {
+    	return getClass().getSimpleName() + "[size=" + size() + ", capacity=" + capacity + "]";
+    }
+}
@@ -1,5 +1,7 @@
 package com.hulk.model.pc.core;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * 生产者-消费者 模型接口
  * @author zhanghao
@@ -38,6 +40,25 @@ public interface IPCModel<T> {
 	 */
 	void stop();
 	
+	/**
+	 * 停止线程运行并等待退出
+	 * <p>drain为true时先等待仓库中的产品被消费完, 超时后直接停止, 不会丢掉正在处理的产品.
+	 * @param drain 是否先排空仓库
+	 * @param timeout 排空和等待退出的总时间
+	 * @param unit
+	 * @return 是否已经排空(drain为true时)并且线程已经退出
+	 */
+	boolean stop(boolean drain, long timeout, TimeUnit unit);
+	
+	/**
+	 * 等待线程退出
+	 * @param timeout
+	 * @param unit
+	 * @return 是否已经退出
+	 * @throws InterruptedException
+	 */
+	boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException;
+	
 	/**
 	 * 获取循环次数
 	 * @return
@@ -61,4 +82,12 @@ public interface IPCModel<T> {
 	 * @param sleepTime
 	 */
 	void setSleepTime(long sleepTime);
+	
+	/**
+	 * 设置每次循环之间的等待策略, 设置后代替sleepTime的固定睡眠.
+	 * <p>低延迟场景可以使用BusySpinWaitStrategy/YieldingWaitStrategy/ParkingWaitStrategy,
+	 * 后台任务可以使用SleepingWaitStrategy/BlockingWaitStrategy, null表示恢复固定睡眠.
+	 * @param waitStrategy
+	 */
+	void setWaitStrategy(WaitStrategy waitStrategy);
 }
@@ -1,5 +1,8 @@
 package com.hulk.model.pc.core;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 仓库接口
  * <p>生产者消费者模式
@@ -13,10 +16,60 @@ public interface IWarehouse<T> {
 	 * @param data
 	 */
 	void put(T data);
-	
+
 	/**
 	 * 获取数据
 	 * @return
 	 */
 	T get();
+
+	/**
+	 * 批量存放数据
+	 * <p>一次加锁放入尽可能多的数据, 缓冲区满时与put相同的等待策略.
+	 * @param products
+	 * @return 实际放入的数量
+	 */
+	int putAll(Collection<? extends T> products);
+
+	/**
+	 * 批量存放数据, 最多等待timeout
+	 * @param products
+	 * @param timeout
+	 * @param unit
+	 * @return 实际放入的数量, 超时返回已放入的数量
+	 */
+	int putAll(Collection<? extends T> products, long timeout, TimeUnit unit);
+
+	/**
+	 * 批量获取数据
+	 * <p>缓冲区为空时与get相同的等待, 有数据后一次取出最多maxElements个.
+	 * @param c 存放取出的数据
+	 * @param maxElements 最多取出的数量
+	 * @return 实际取出的数量
+	 */
+	int drainTo(Collection<? super T> c, int maxElements);
+
+	/**
+	 * 批量获取数据, 缓冲区为空时最多等待timeout
+	 * @param c 存放取出的数据
+	 * @param maxElements 最多取出的数量
+	 * @param timeout
+	 * @param unit
+	 * @return 实际取出的数量, 超时返回0
+	 */
+	int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit);
+
+	/**
+	 * 当前产品数量
+	 * <p>不加锁读取, 并发时为近似值, 用于监控和停止前排空判断.
+	 * @return
+	 */
+	int size();
+
+	/**
+	 * 统计信息
+	 * <p>需要先启用统计, 没有启用时返回null.
+	 * @return
+	 */
+	WarehouseMetrics getMetrics();
 }
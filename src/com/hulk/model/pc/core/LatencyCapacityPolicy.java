@@ -0,0 +1,129 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 目标延迟容量策略
+ * <p>统计出队速率(指数滑动平均), 根据Little定律(产品数量 = 出队速率 * 停留时间)估算停留时间,
+ * 容量对齐为 出队速率 * 目标停留时间:
+ * <p>1. 缓冲区满时, 只有估算停留时间小于目标才增长, 否则让生产者等待(背压);
+ * <p>2. 每个统计周期结束时按新的速率调整容量, 可以增大也可以缩小, 不小于minCapacity.
+ * <p>还没有统计出速率时, 与原来一样每次增长CAPACITY_GRADIENT_UNIT.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class LatencyCapacityPolicy<T> implements CapacityPolicy<T> {
+
+	/**
+	 * 默认统计周期
+	 */
+	public static final long DEFAULT_SAMPLE_INTERVAL_MS = 100;
+
+	/**
+	 * 滑动平均中新样本的权重
+	 */
+	private static final double EWMA_ALPHA = 0.3;
+
+	private final long mTargetSojournNanos;
+	private final long mSampleIntervalNanos;
+	private final int mMinCapacity;
+
+	/**
+	 * 出队速率, 个/纳秒
+	 */
+	private volatile double mRate = 0;
+
+	/**
+	 * 当前统计周期的开始时间和出队数量, 多线程调用时为近似值
+	 */
+	private long mSampleStart = System.nanoTime();
+	private int mSampleCount = 0;
+
+	public LatencyCapacityPolicy(long targetSojourn, TimeUnit unit) {
+		this(targetSojourn, unit, WarehouseBase.DEFAULT_PRODUST_CAPACITY);
+	}
+
+	/**
+	 * 构造函数
+	 * @param targetSojourn 目标停留时间
+	 * @param unit
+	 * @param minCapacity 最小容量
+	 */
+	public LatencyCapacityPolicy(long targetSojourn, TimeUnit unit, int minCapacity) {
+		if(targetSojourn <= 0) {
+			throw new IllegalArgumentException("targetSojourn must be positive: " + targetSojourn);
+		}
+		this.mTargetSojournNanos = unit.toNanos(targetSojourn);
+		this.mSampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SAMPLE_INTERVAL_MS);
+		this.mMinCapacity = Math.max(1, minCapacity);
+	}
+
+	@Override
+	public void onPut(T product, int size) {
+		//不需要统计
+	}
+
+	@Override
+	public int onPutFull(int capacity, int size, int maxCapacity) {
+		double rate = mRate;
+		if(rate <= 0) {
+			return Math.min(maxCapacity, capacity + WarehouseBase.CAPACITY_GRADIENT_UNIT);
+		}
+		int target = targetCapacity(rate, maxCapacity);
+		//估算停留时间已经超过目标, 不增长
+		return Math.max(capacity, target);
+	}
+
+	@Override
+	public int onGet(T product, int capacity, int size, int maxCapacity) {
+		mSampleCount++;
+		long now = System.nanoTime();
+		long elapsed = now - mSampleStart;
+		if(elapsed < mSampleIntervalNanos) {
+			return capacity;
+		}
+		double sample = (double) mSampleCount / elapsed;
+		mSampleStart = now;
+		mSampleCount = 0;
+		double rate = mRate;
+		rate = rate <= 0 ? sample : rate + EWMA_ALPHA * (sample - rate);
+		mRate = rate;
+		return targetCapacity(rate, maxCapacity);
+	}
+
+	private int targetCapacity(double rate, int maxCapacity) {
+		double target = rate * mTargetSojournNanos;
+		if(target >= maxCapacity) {
+			return maxCapacity;
+		}
+		return Math.max(mMinCapacity, (int) target);
+	}
+
+	/**
+	 * 出队速率
+	 * @return 个/秒
+	 */
+	public double getRatePerSecond() {
+		return mRate * TimeUnit.SECONDS.toNanos(1);
+	}
+
+	/**
+	 * 按当前出队速率估算的停留时间
+	 * @param size 产品数量
+	 * @return 纳秒, 没有统计出速率时返回-1
+	 */
+	public long estimateSojournNanos(int size) {
+		double rate = mRate;
+		if(rate <= 0) {
+			return -1L;
+		}
+		return (long) (size / rate);
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyCapacityPolicy[targetSojournMs=" + TimeUnit.NANOSECONDS.toMillis(mTargetSojournNanos)
+				+ ", minCapacity=" + mMinCapacity + ", ratePerSecond=" + (long) getRatePerSecond() + "]";
+	}
+}
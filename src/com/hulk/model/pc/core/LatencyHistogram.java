@@ -0,0 +1,149 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图
+ * <p>对数-线性分桶(类似HdrHistogram): 每个2的幂次区间再分为16个子桶, 相对误差不超过1/16,
+ * 覆盖0到Long.MAX_VALUE纳秒. 记录时只做原子加, 不分配内存, 可以多线程同时记录.
+ * @author zhanghao
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * 子桶位数, 每个2的幂次区间分为2^SUB_BUCKET_BITS个子桶
+	 */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = ((63 - SUB_BUCKET_BITS) << SUB_BUCKET_BITS) + 2 * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder mTotalCount = new LongAdder();
+	private final LongAdder mTotalValue = new LongAdder();
+	private final AtomicLong mMax = new AtomicLong();
+
+	/**
+	 * 记录一个值
+	 * @param value 纳秒, 小于0时按0记录
+	 */
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		mCounts.incrementAndGet(indexOf(value));
+		mTotalCount.increment();
+		mTotalValue.add(value);
+		long max = mMax.get();
+		while(value > max && !mMax.compareAndSet(max, value)) {
+			max = mMax.get();
+		}
+	}
+
+	/**
+	 * 值对应的桶下标: 小于32的值一个值一个桶, 其他按最高位分区间, 区间内取最高5位
+	 * @param value
+	 * @return
+	 */
+	private static int indexOf(long value) {
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = Math.max(0, msb - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * 桶的上限值(包含)
+	 * @param index
+	 * @return
+	 */
+	private static long highestValueOf(int index) {
+		if(index < 2 * SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long sub = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+		long high = ((sub + 1) << shift) - 1;
+		return high < 0 ? Long.MAX_VALUE : high;
+	}
+
+	/**
+	 * 百分位数
+	 * @param percentile 0到100
+	 * @return 该百分位所在桶的上限值, 没有记录时返回0
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] counts = new long[BUCKET_COUNT];
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mCounts.get(i);
+			total += counts[i];
+		}
+		return valueAtPercentile(counts, total, percentile);
+	}
+
+	/**
+	 * 一次读取桶计数, 计算多个百分位数
+	 * @param percentiles
+	 * @return
+	 */
+	public long[] getValuesAtPercentiles(double... percentiles) {
+		long total = 0;
+		long[] counts = new long[BUCKET_COUNT];
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mCounts.get(i);
+			total += counts[i];
+		}
+		long[] values = new long[percentiles.length];
+		for(int i = 0; i < percentiles.length; i++) {
+			values[i] = valueAtPercentile(counts, total, percentiles[i]);
+		}
+		return values;
+	}
+
+	private long valueAtPercentile(long[] counts, long total, double percentile) {
+		if(total <= 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * total);
+		target = Math.max(1, target);
+		long count = 0;
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			count += counts[i];
+			if(count >= target) {
+				return Math.min(highestValueOf(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	public long getCount() {
+		return mTotalCount.sum();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * 平均值
+	 * @return 没有记录时返回0
+	 */
+	public long getMean() {
+		long count = mTotalCount.sum();
+		return count > 0 ? mTotalValue.sum() / count : 0;
+	}
+
+	/**
+	 * 清空, 与record同时调用时会丢失少量记录
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKET_COUNT; i++) {
+			mCounts.set(i, 0);
+		}
+		mTotalCount.reset();
+		mTotalValue.reset();
+		mMax.set(0);
+	}
+}
@@ -0,0 +1,116 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 内存预算容量策略
+ * <p>统计放入产品的平均大小(指数滑动平均), 容量对齐为 内存预算 / 平均大小:
+ * 产品变小时缓冲区满可以增长, 产品变大时取出后缩小, 避免大产品把缓冲区撑到最大值导致内存溢出.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class MemoryBudgetCapacityPolicy<T> implements CapacityPolicy<T> {
+
+	/**
+	 * 产品大小估算
+	 * @param <T>
+	 */
+	public interface SizeEstimator<T> {
+		/**
+		 * 估算产品占用的字节数
+		 * @param product
+		 * @return
+		 */
+		long estimateSize(T product);
+	}
+
+	/**
+	 * 字符串大小估算: 对象头 + 每个字符2字节
+	 */
+	public static final SizeEstimator<CharSequence> CHAR_SEQUENCE_ESTIMATOR = new SizeEstimator<CharSequence>() {
+		@Override
+		public long estimateSize(CharSequence product) {
+			return 40L + 2L * product.length();
+		}
+	};
+
+	/**
+	 * 新样本的权重为1/16
+	 */
+	private static final int EWMA_SHIFT = 4;
+
+	private final long mBudgetBytes;
+	private final SizeEstimator<? super T> mEstimator;
+	private final int mMinCapacity;
+
+	/**
+	 * 平均大小, 多线程调用时为近似值
+	 */
+	private volatile long mAverageSize = 0;
+
+	public MemoryBudgetCapacityPolicy(long budgetBytes, SizeEstimator<? super T> estimator) {
+		this(budgetBytes, estimator, 1);
+	}
+
+	/**
+	 * 构造函数
+	 * @param budgetBytes 缓冲区内存预算
+	 * @param estimator 产品大小估算
+	 * @param minCapacity 最小容量
+	 */
+	public MemoryBudgetCapacityPolicy(long budgetBytes, SizeEstimator<? super T> estimator, int minCapacity) {
+		if(budgetBytes <= 0) {
+			throw new IllegalArgumentException("budgetBytes must be positive: " + budgetBytes);
+		}
+		if(estimator == null) {
+			throw new IllegalArgumentException("estimator is null");
+		}
+		this.mBudgetBytes = budgetBytes;
+		this.mEstimator = estimator;
+		this.mMinCapacity = Math.max(1, minCapacity);
+	}
+
+	@Override
+	public void onPut(T product, int size) {
+		long sample = Math.max(1L, mEstimator.estimateSize(product));
+		long average = mAverageSize;
+		mAverageSize = average <= 0 ? sample : average + ((sample - average) >> EWMA_SHIFT);
+	}
+
+	@Override
+	public int onPutFull(int capacity, int size, int maxCapacity) {
+		return Math.max(capacity, budgetCapacity(maxCapacity));
+	}
+
+	@Override
+	public int onGet(T product, int capacity, int size, int maxCapacity) {
+		int budget = budgetCapacity(maxCapacity);
+		//取出时只缩小, 增长在缓冲区满时进行
+		return Math.min(capacity, budget);
+	}
+
+	private int budgetCapacity(int maxCapacity) {
+		long average = mAverageSize;
+		if(average <= 0) {
+			return maxCapacity;
+		}
+		long capacity = mBudgetBytes / average;
+		if(capacity >= maxCapacity) {
+			return maxCapacity;
+		}
+		return (int) Math.max(mMinCapacity, capacity);
+	}
+
+	/**
+	 * 产品平均大小
+	 * @return 字节
+	 */
+	public long getAverageSize() {
+		return mAverageSize;
+	}
+
+	@Override
+	public String toString() {
+		return "MemoryBudgetCapacityPolicy[budgetBytes=" + mBudgetBytes + ", averageSize=" + mAverageSize
+				+ ", minCapacity=" + mMinCapacity + "]";
+	}
+}
@@ -0,0 +1,54 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 无锁环形数组仓库: 多生产者-单消费者(MPSC)
+ * <p>生产者与RingWarehouse相同使用CAS抢占槽位, 只有一个消费者线程时读序列号不需要CAS.
+ * <p>注意: 同一时刻只能有一个线程调用get/poll. 溢出策略不支持DROP_OLDEST.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class MpscRingWarehouse<T> extends RingWarehouse<T> {
+
+	private static final String TAG = "MpscRingWarehouse";
+
+	public MpscRingWarehouse() {
+		super();
+	}
+
+	public MpscRingWarehouse(int capacity) {
+		super(capacity);
+	}
+
+	public MpscRingWarehouse(int capacity, int maxCapacity) {
+		super(capacity, maxCapacity);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T poll() {
+		//只有消费者线程修改读序列号
+		long head = mHead.get();
+		int index = (int) (head & mMask);
+		if(mSequences.get(index) != head + 1) {
+			return null;
+		}
+		T product = (T) mBuffer.get(index);
+		recordSojourn(index);
+		mBuffer.lazySet(index, null);
+		mSequences.lazySet(index, head + mBufferSize);
+		mHead.lazySet(head + 1);
+		return product;
+	}
+
+	/**
+	 * 不支持DROP_OLDEST: 丢弃时生产者线程要调用poll, 会和消费者同时取出
+	 */
+	@Override
+	public void setOverflowPolicy(OverflowPolicy<T> overflowPolicy) {
+		if(overflowPolicy != null && overflowPolicy.getMode() == OverflowPolicy.Mode.DROP_OLDEST) {
+			throw new IllegalArgumentException("DROP_OLDEST is not supported by " + TAG);
+		}
+		super.setOverflowPolicy(overflowPolicy);
+	}
+}
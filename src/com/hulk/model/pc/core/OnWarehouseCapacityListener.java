@@ -0,0 +1,20 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 仓库容量监听器
+ * <p>容量自动增长或者CapacityPolicy调整容量时回调.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public interface OnWarehouseCapacityListener<T> extends OnWarehouseListener<T> {
+
+	/**
+	 * 容量变化回调函数
+	 * @param warehouse
+	 * @param oldCapacity
+	 * @param newCapacity
+	 * @param reason 调整原因, 例如策略名称
+	 */
+	void onCapacityChanged(IWarehouse<T> warehouse, int oldCapacity, int newCapacity, String reason);
+}
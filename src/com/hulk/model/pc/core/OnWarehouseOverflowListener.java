@@ -0,0 +1,21 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 仓库溢出监听器
+ * <p>设置OverflowPolicy后, 缓冲区满时每次丢弃/转存/调用者处理都会回调, 可以按count降低日志频率.
+ * <p>丢弃时在仓库锁内回调, 需要尽快返回.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public interface OnWarehouseOverflowListener<T> extends OnWarehouseListener<T> {
+
+	/**
+	 * 溢出处理回调函数
+	 * @param warehouse
+	 * @param product 被处理的产品, DROP_OLDEST时为被丢弃的旧产品
+	 * @param action 处理结果
+	 * @param count 该处理结果的累计数量
+	 */
+	void onOverflow(IWarehouse<T> warehouse, T product, OverflowPolicy.Action action, long count);
+}
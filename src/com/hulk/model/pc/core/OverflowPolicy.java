@@ -0,0 +1,280 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 缓冲区满时的处理策略(背压/降载)
+ * <p>代替原来的"等待或者丢弃": 设置到仓库后, 缓冲区满且容量不能再增长时按策略处理:
+ * <p>1. BLOCK: 一直等待, 与原来相同;
+ * <p>2. BLOCK_TIMEOUT: 最多等待timeout, 超时丢弃该产品;
+ * <p>3. DROP_NEWEST: 丢弃要放入的产品;
+ * <p>4. DROP_OLDEST: 丢弃最早放入的产品(PriorityWarehouse丢弃优先级最低的, 按key分片的ShardedWarehouse只丢弃同一分片的),
+ * 放入新产品; 单消费者的Spsc/MpscRingWarehouse和BroadcastWarehouse不支持;
+ * <p>5. DROP_BY_PRIORITY: 优先级不低于minPriority的产品等待, 低优先级的产品按采样率保留(等待)或者丢弃;
+ * <p>6. SPILL: 交给Handler转存(例如写入磁盘), 在调用线程中执行, 不持有仓库锁;
+ * <p>7. CALLER_RUNS: 交给Handler直接在生产者线程中处理, 相当于生产者临时变成消费者, 自然降低生产速度.
+ * <p>等待类策略仍然遵守checkPutFullWaitingEnabled(主线程不能等待), 不能等待时丢弃.
+ * <p>每种处理结果都有计数, 并通过OnWarehouseOverflowListener回调. 计数保存在策略对象中,
+ * 需要分别统计时每个仓库使用单独的策略对象.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public final class OverflowPolicy<T> {
+
+	/**
+	 * 策略
+	 */
+	public enum Mode {
+		BLOCK,
+		BLOCK_TIMEOUT,
+		DROP_NEWEST,
+		DROP_OLDEST,
+		DROP_BY_PRIORITY,
+		SPILL,
+		CALLER_RUNS
+	}
+
+	/**
+	 * 处理结果
+	 */
+	public enum Action {
+		/**
+		 * 丢弃了要放入的产品(包括不能等待时)
+		 */
+		DROP_NEWEST,
+		/**
+		 * 丢弃了最早的产品
+		 */
+		DROP_OLDEST,
+		/**
+		 * 等待超时丢弃
+		 */
+		DROP_TIMEOUT,
+		/**
+		 * 低优先级产品被丢弃
+		 */
+		DROP_BY_PRIORITY,
+		/**
+		 * 交给Handler转存
+		 */
+		SPILL,
+		/**
+		 * 在生产者线程中处理
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * 溢出产品处理, SPILL和CALLER_RUNS使用
+	 * @param <T>
+	 */
+	public interface Handler<T> {
+		/**
+		 * 处理放不进仓库的产品
+		 * @param product
+		 */
+		void handle(T product);
+	}
+
+	private final Mode mMode;
+	private final long mTimeoutNanos;
+	private final Handler<? super T> mHandler;
+	private final PriorityWarehouse.PriorityExtractor<? super T> mPriorityExtractor;
+	private final int mMinPriority;
+	private final int mSampleRate;
+	private final AtomicLong mSampleCounter = new AtomicLong();
+	private final AtomicLongArray mCounts = new AtomicLongArray(Action.values().length);
+
+	private OverflowPolicy(Mode mode, long timeoutNanos, Handler<? super T> handler,
+			PriorityWarehouse.PriorityExtractor<? super T> priorityExtractor, int minPriority, int sampleRate) {
+		this.mMode = mode;
+		this.mTimeoutNanos = timeoutNanos;
+		this.mHandler = handler;
+		this.mPriorityExtractor = priorityExtractor;
+		this.mMinPriority = minPriority;
+		this.mSampleRate = sampleRate;
+	}
+
+	/**
+	 * 一直等待
+	 */
+	public static <T> OverflowPolicy<T> block() {
+		return new OverflowPolicy<T>(Mode.BLOCK, -1L, null, null, 0, 0);
+	}
+
+	/**
+	 * 最多等待timeout, 超时丢弃
+	 */
+	public static <T> OverflowPolicy<T> blockWithTimeout(long timeout, TimeUnit unit) {
+		if(timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+		}
+		return new OverflowPolicy<T>(Mode.BLOCK_TIMEOUT, unit.toNanos(timeout), null, null, 0, 0);
+	}
+
+	/**
+	 * 丢弃要放入的产品
+	 */
+	public static <T> OverflowPolicy<T> dropNewest() {
+		return new OverflowPolicy<T>(Mode.DROP_NEWEST, 0L, null, null, 0, 0);
+	}
+
+	/**
+	 * 丢弃下一个要被取出的产品
+	 */
+	public static <T> OverflowPolicy<T> dropOldest() {
+		return new OverflowPolicy<T>(Mode.DROP_OLDEST, 0L, null, null, 0, 0);
+	}
+
+	/**
+	 * 按优先级丢弃
+	 * @param priorityExtractor 产品优先级, 数值大的优先
+	 * @param minPriority 不低于该优先级的产品等待
+	 * @param sampleRate 低优先级产品每sampleRate个保留(等待)1个, 小于等于0时全部丢弃
+	 */
+	public static <T> OverflowPolicy<T> dropByPriority(PriorityWarehouse.PriorityExtractor<? super T> priorityExtractor,
+			int minPriority, int sampleRate) {
+		if(priorityExtractor == null) {
+			throw new IllegalArgumentException("priorityExtractor is null");
+		}
+		return new OverflowPolicy<T>(Mode.DROP_BY_PRIORITY, -1L, null, priorityExtractor, minPriority, sampleRate);
+	}
+
+	/**
+	 * 交给Handler转存
+	 */
+	public static <T> OverflowPolicy<T> spill(Handler<? super T> handler) {
+		if(handler == null) {
+			throw new IllegalArgumentException("handler is null");
+		}
+		return new OverflowPolicy<T>(Mode.SPILL, 0L, handler, null, 0, 0);
+	}
+
+	/**
+	 * 在生产者线程中直接处理
+	 */
+	public static <T> OverflowPolicy<T> callerRuns(Handler<? super T> handler) {
+		if(handler == null) {
+			throw new IllegalArgumentException("handler is null");
+		}
+		return new OverflowPolicy<T>(Mode.CALLER_RUNS, 0L, handler, null, 0, 0);
+	}
+
+	public Mode getMode() {
+		return mMode;
+	}
+
+	/**
+	 * 等待时间
+	 * @return BLOCK和DROP_BY_PRIORITY为-1(一直等待), 不等待的策略为0
+	 */
+	public long getTimeoutNanos() {
+		return mTimeoutNanos;
+	}
+
+	/**
+	 * 是否交给Handler处理(不持有仓库锁)
+	 * @return
+	 */
+	public boolean isHandoff() {
+		return mMode == Mode.SPILL || mMode == Mode.CALLER_RUNS;
+	}
+
+	/**
+	 * 是否等待
+	 * @param product
+	 * @return BLOCK/BLOCK_TIMEOUT, 以及DROP_BY_PRIORITY中高优先级或者被采样保留的产品返回true
+	 */
+	public boolean shouldWait(T product) {
+		switch (mMode) {
+		case BLOCK:
+		case BLOCK_TIMEOUT:
+			return true;
+		case DROP_BY_PRIORITY:
+			if(mPriorityExtractor.getPriority(product) >= mMinPriority) {
+				return true;
+			}
+			return mSampleRate > 0 && mSampleCounter.incrementAndGet() % mSampleRate == 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 不等待时的丢弃结果
+	 * @return
+	 */
+	Action getDropAction() {
+		switch (mMode) {
+		case DROP_OLDEST:
+			return Action.DROP_OLDEST;
+		case DROP_BY_PRIORITY:
+			return Action.DROP_BY_PRIORITY;
+		case SPILL:
+			return Action.SPILL;
+		case CALLER_RUNS:
+			return Action.CALLER_RUNS;
+		default:
+			return Action.DROP_NEWEST;
+		}
+	}
+
+	/**
+	 * 交给Handler处理, 调用时不能持有仓库锁
+	 * @param product
+	 */
+	void handoff(T product) {
+		mHandler.handle(product);
+	}
+
+	/**
+	 * 计数加1并回调监听器
+	 * @param warehouse
+	 * @param listener
+	 * @param product
+	 * @param action
+	 */
+	void report(IWarehouse<T> warehouse, OnWarehouseListener<T> listener, T product, Action action) {
+		long count = mCounts.incrementAndGet(action.ordinal());
+		WarehouseMetrics metrics = warehouse.getMetrics();
+		if(metrics != null && action != Action.SPILL && action != Action.CALLER_RUNS) {
+			metrics.recordRejected(1);
+		}
+		if(listener instanceof OnWarehouseOverflowListener) {
+			((OnWarehouseOverflowListener<T>) listener).onOverflow(warehouse, product, action, count);
+		}
+	}
+
+	/**
+	 * 处理结果的数量
+	 * @param action
+	 * @return
+	 */
+	public long getCount(Action action) {
+		return mCounts.get(action.ordinal());
+	}
+
+	/**
+	 * 所有丢弃的数量
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return getCount(Action.DROP_NEWEST) + getCount(Action.DROP_OLDEST)
+				+ getCount(Action.DROP_TIMEOUT) + getCount(Action.DROP_BY_PRIORITY);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("OverflowPolicy[mode=").append(mMode);
+		for(Action action : Action.values()) {
+			long count = getCount(action);
+			if(count > 0) {
+				sb.append(", ").append(action).append('=').append(count);
+			}
+		}
+		return sb.append(']').toString();
+	}
+}
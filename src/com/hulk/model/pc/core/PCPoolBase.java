@@ -0,0 +1,433 @@
+package com.hulk.model.pc.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生产者/消费者线程池基类
+ * <p>多个工作者共用一个仓库, 由Executor或者ThreadFactory启动(都为空时每个工作者创建一个线程).
+ * <p>支持运行时调整工作者数量, 汇总循环次数, 协调停止, 监听器转发给每个工作者.
+ * @author zhanghao
+ *
+ * @param <T> 产品类型
+ * @param <W> 工作者类型
+ */
+public abstract class PCPoolBase<T, W extends IPCModel<T> & Runnable> implements IPCModel<T> {
+
+	private static final String TAG = "PCPoolBase";
+
+	/**
+	 * 产品仓库
+	 */
+	protected IWarehouse<T> mWarehouse;
+
+	/**
+	 * 工作者工厂
+	 */
+	protected final PCWorkerFactory<T, ? extends W> mFactory;
+
+	/**
+	 * 启动工作者的Executor, 优先使用
+	 */
+	protected final Executor mExecutor;
+
+	/**
+	 * 创建工作者线程的ThreadFactory
+	 */
+	protected final ThreadFactory mThreadFactory;
+
+	/**
+	 * 线程池名称, 也是工作者线程名称前缀
+	 */
+	protected String mName;
+
+	/**
+	 * 工作者数量
+	 */
+	protected int mPoolSize;
+
+	/**
+	 * 当前工作者, 持有this锁时读写
+	 */
+	protected final List<W> mWorkers = new ArrayList<W>();
+
+	/**
+	 * 被resize移除但是线程还没有退出的工作者, 持有this锁时读写
+	 */
+	protected final List<W> mRetiringWorkers = new ArrayList<W>();
+
+	/**
+	 * 已经退出的工作者的循环次数
+	 */
+	protected long mRetiredLoopCount = 0;
+
+	/**
+	 * 正在运行的工作者线程数量, 持有this锁时读写
+	 */
+	protected int mActiveCount = 0;
+
+	/**
+	 * 创建过的工作者数量, 用于工作者序号
+	 */
+	protected int mCreatedCount = 0;
+
+	protected volatile boolean running = false;
+
+	protected boolean mDebugMode = false;
+
+	protected long mSleepTime = DEFAULT_ONCE_SLEEP_TIME;
+
+	protected WaitStrategy mWaitStrategy;
+
+	protected OnPCListener mListener;
+
+	/**
+	 * @param warehouse 共用的产品仓库
+	 * @param factory 工作者工厂
+	 * @param poolSize 工作者数量
+	 * @param executor 启动工作者的Executor, 可以为空
+	 * @param threadFactory 创建工作者线程的ThreadFactory, 可以为空
+	 */
+	protected PCPoolBase(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends W> factory, int poolSize,
+			Executor executor, ThreadFactory threadFactory) {
+		if(factory == null) {
+			throw new IllegalArgumentException("factory is null");
+		}
+		if(poolSize <= 0) {
+			throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+		}
+		this.mWarehouse = warehouse;
+		this.mFactory = factory;
+		this.mPoolSize = poolSize;
+		this.mExecutor = executor;
+		this.mThreadFactory = threadFactory;
+		this.mName = getClass().getSimpleName();
+	}
+
+	/**
+	 * 设置工作者停止标记, 不清理仓库
+	 * @param worker
+	 */
+	protected abstract void stopWorker(W worker);
+
+	/**
+	 * 创建工作者后的配置, 子类可以重写
+	 * @param worker
+	 */
+	protected void configureWorker(W worker) {
+		worker.setDebugMode(mDebugMode);
+		worker.setSleepTime(mSleepTime);
+		worker.setWaitStrategy(mWaitStrategy);
+		if(mListener != null) {
+			worker.setOnPCListener(mListener);
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		if(running) {
+			SysLog.w(TAG, "start: Already running " + mName);
+			return;
+		}
+		SysLog.i(TAG, "start: " + mName + ", poolSize=" + mPoolSize);
+		running = true;
+		for(int i = mWorkers.size(); i < mPoolSize; i++) {
+			addWorker();
+		}
+	}
+
+	/**
+	 * 调整工作者数量
+	 * <p>运行中增加时立刻启动新的工作者, 减少时停止最后加入的工作者(当前产品处理完后退出).
+	 * @param poolSize
+	 */
+	public synchronized void resize(int poolSize) {
+		if(poolSize <= 0) {
+			throw new IllegalArgumentException("poolSize must be positive: " + poolSize);
+		}
+		SysLog.i(TAG, "resize: " + mName + ", " + mPoolSize + " -> " + poolSize);
+		mPoolSize = poolSize;
+		if(!running) {
+			return;
+		}
+		while(mWorkers.size() < poolSize) {
+			addWorker();
+		}
+		while(mWorkers.size() > poolSize) {
+			W worker = mWorkers.remove(mWorkers.size() - 1);
+			mRetiringWorkers.add(worker);
+			stopWorker(worker);
+		}
+	}
+
+	/**
+	 * 创建并启动一个工作者, 需要持有this锁
+	 */
+	private void addWorker() {
+		int index = mCreatedCount++;
+		W worker = mFactory.newWorker(mWarehouse, index);
+		if(worker == null) {
+			throw new IllegalStateException("factory created null worker, index=" + index);
+		}
+		configureWorker(worker);
+		mWorkers.add(worker);
+		mActiveCount++;
+		try {
+			launch(new WorkerRunner(worker), mName + "-" + index);
+		} catch (RuntimeException e) {
+			mActiveCount--;
+			mWorkers.remove(worker);
+			SysLog.e(TAG, "addWorker: Failed to launch worker " + index + ": " + e, e);
+			throw e;
+		}
+	}
+
+	/**
+	 * 启动工作者: 优先Executor, 其次ThreadFactory, 都为空时创建新线程
+	 * @param runnable
+	 * @param name
+	 */
+	protected void launch(Runnable runnable, String name) {
+		if(mExecutor != null) {
+			mExecutor.execute(runnable);
+		} else if(mThreadFactory != null) {
+			Thread t = mThreadFactory.newThread(runnable);
+			if(t == null) {
+				throw new IllegalStateException("ThreadFactory returned null thread");
+			}
+			t.start();
+		} else {
+			Thread t = new Thread(runnable, name);
+			t.start();
+		}
+	}
+
+	/**
+	 * 工作者退出时回调
+	 * @param worker
+	 */
+	private synchronized void onWorkerExit(W worker) {
+		mActiveCount--;
+		if(!mRetiringWorkers.remove(worker)) {
+			//不是被resize移除的, 停止或者自己退出(例如onStopped返回true)
+			mWorkers.remove(worker);
+		}
+		//线程退出后循环次数不会再变化
+		mRetiredLoopCount += worker.getLoopCount();
+		if(mActiveCount <= 0) {
+			running = false;
+		}
+		notifyAll();
+	}
+
+	@Override
+	public void stop() {
+		stop(false, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 停止所有工作者并等待退出
+	 * @param drain 是否等待仓库中的产品被消费完再停止
+	 * @param timeout 排空和等待退出的总时间, 超时后直接停止
+	 * @param unit
+	 * @return 仓库是否已经排空(drain为true时)并且所有工作者已经退出
+	 */
+	@Override
+	public boolean stop(boolean drain, long timeout, TimeUnit unit) {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		boolean drained = true;
+		if(drain) {
+			drained = awaitDrained(nanos);
+			if(!drained) {
+				SysLog.w(TAG, "stop: " + mName + " Not drained, remaining size=" + mWarehouse.size());
+			}
+		}
+		List<W> workers;
+		synchronized (this) {
+			workers = new ArrayList<W>(mWorkers);
+		}
+		SysLog.w(TAG, "stop: " + mName + ", workers=" + workers.size());
+		for(W worker : workers) {
+			stopWorker(worker);
+		}
+		try {
+			return awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) && drained;
+		} catch (InterruptedException e) {
+			SysLog.e(TAG, "stop Interrupted: " + mName);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * 等待仓库排空
+	 * @param nanos
+	 * @return 是否已经排空
+	 */
+	protected boolean awaitDrained(long nanos) {
+		long deadline = System.nanoTime() + nanos;
+		long waitMillis = 1;
+		while(mWarehouse.size() > 0) {
+			if(deadline - System.nanoTime() <= 0 || !isRunning()) {
+				return mWarehouse.size() <= 0;
+			}
+			try {
+				Thread.sleep(waitMillis);
+			} catch (InterruptedException e) {
+				SysLog.e(TAG, "awaitDrained Interrupted: " + e);
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			waitMillis = Math.min(waitMillis * 2, 50);
+		}
+		return true;
+	}
+
+	/**
+	 * 等待所有工作者线程退出
+	 * @param timeout
+	 * @param unit
+	 * @return 是否全部退出
+	 * @throws InterruptedException
+	 */
+	@Override
+	public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		while(mActiveCount > 0) {
+			if(nanos <= 0) {
+				return false;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, nanos);
+			nanos = deadline - System.nanoTime();
+		}
+		return true;
+	}
+
+	/**
+	 * 汇总所有工作者(包括已退出的)的循环次数
+	 */
+	@Override
+	public synchronized int getLoopCount() {
+		long count = mRetiredLoopCount;
+		for(W worker : mWorkers) {
+			count += worker.getLoopCount();
+		}
+		for(W worker : mRetiringWorkers) {
+			count += worker.getLoopCount();
+		}
+		return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * 正在运行的工作者线程数量
+	 * @return
+	 */
+	public synchronized int getActiveCount() {
+		return mActiveCount;
+	}
+
+	public synchronized int getPoolSize() {
+		return mPoolSize;
+	}
+
+	/**
+	 * 当前工作者列表的副本
+	 * @return
+	 */
+	public synchronized List<W> getWorkers() {
+		return new ArrayList<W>(mWorkers);
+	}
+
+	@Override
+	public IWarehouse<T> getWarehouse() {
+		return mWarehouse;
+	}
+
+	@Override
+	public synchronized void setWarehouse(IWarehouse<T> warehouse) {
+		mWarehouse = warehouse;
+		for(W worker : mWorkers) {
+			worker.setWarehouse(warehouse);
+		}
+	}
+
+	/**
+	 * 设置每个工作者的监听器
+	 */
+	@Override
+	public synchronized void setOnPCListener(OnPCListener listener) {
+		mListener = listener;
+		for(W worker : mWorkers) {
+			worker.setOnPCListener(listener);
+		}
+	}
+
+	@Override
+	public synchronized void setDebugMode(boolean debugMode) {
+		mDebugMode = debugMode;
+		for(W worker : mWorkers) {
+			worker.setDebugMode(debugMode);
+		}
+	}
+
+	@Override
+	public synchronized void setSleepTime(long sleepTime) {
+		mSleepTime = sleepTime;
+		for(W worker : mWorkers) {
+			worker.setSleepTime(sleepTime);
+		}
+	}
+
+	@Override
+	public synchronized void setWaitStrategy(WaitStrategy waitStrategy) {
+		mWaitStrategy = waitStrategy;
+		for(W worker : mWorkers) {
+			worker.setWaitStrategy(waitStrategy);
+		}
+	}
+
+	public void setName(String name) {
+		mName = name;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public String toString() {
+		return mName + "[poolSize=" + mPoolSize + ", active=" + getActiveCount()
+				+ ", loopCount=" + getLoopCount() + ", running=" + running + "]";
+	}
+
+	/**
+	 * 运行工作者, 退出时通知线程池
+	 */
+	private class WorkerRunner implements Runnable {
+
+		private final W mWorker;
+
+		WorkerRunner(W worker) {
+			this.mWorker = worker;
+		}
+
+		@Override
+		public void run() {
+			try {
+				mWorker.run();
+			} finally {
+				onWorkerExit(mWorker);
+			}
+		}
+	}
+}
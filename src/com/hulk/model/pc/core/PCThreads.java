@@ -0,0 +1,131 @@
+package com.hulk.model.pc.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 生产者/消费者线程工具类
+ * <p>JDK21及以上通过反射创建虚拟线程(Thread.ofVirtual), 低版本(包括Android)自动退回普通线程,
+ * 编译不依赖JDK21.
+ * @author zhanghao
+ *
+ */
+public class PCThreads {
+
+	private static final String TAG = "PCThreads";
+
+	/**
+	 * Thread.ofVirtual(), 不支持时为null
+	 */
+	private static final Method OF_VIRTUAL;
+
+	/**
+	 * Thread.isVirtual(), 不支持时为null
+	 */
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method ofVirtual = null;
+		Method isVirtual = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (Throwable e) {
+			//JDK21以下没有虚拟线程
+			ofVirtual = null;
+			isVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		IS_VIRTUAL = isVirtual;
+	}
+
+	private PCThreads() {
+	}
+
+	/**
+	 * 当前运行环境是否支持虚拟线程
+	 * @return
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * 线程是否为虚拟线程
+	 * @param t
+	 * @return
+	 */
+	public static boolean isVirtual(Thread t) {
+		if(t == null || IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(t);
+		} catch (Throwable e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 创建虚拟线程工厂, 线程名称为namePrefix-序号
+	 * <p>不支持虚拟线程时返回普通线程工厂.
+	 * @param namePrefix
+	 * @return
+	 */
+	public static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+		if(OF_VIRTUAL != null) {
+			try {
+				//Thread.ofVirtual().name(namePrefix + "-", 0).factory()
+				Object builder = OF_VIRTUAL.invoke(null);
+				Method name = builder.getClass().getMethod("name", String.class, long.class);
+				name.setAccessible(true);
+				builder = name.invoke(builder, namePrefix + "-", 0L);
+				Method factory = builder.getClass().getMethod("factory");
+				factory.setAccessible(true);
+				return (ThreadFactory) factory.invoke(builder);
+			} catch (Throwable e) {
+				SysLog.w(TAG, "newVirtualThreadFactory: Failed to create virtual thread factory: " + e);
+			}
+		} else {
+			SysLog.w(TAG, "newVirtualThreadFactory: Virtual thread is not supported, use platform thread.");
+		}
+		return newThreadFactory(namePrefix);
+	}
+
+	/**
+	 * 创建普通线程工厂, 线程名称为namePrefix-序号
+	 * @param namePrefix
+	 * @return
+	 */
+	public static ThreadFactory newThreadFactory(final String namePrefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger mIndex = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, namePrefix + "-" + mIndex.getAndIncrement());
+			}
+		};
+	}
+
+	/**
+	 * 检查仓库在虚拟线程中是否会阻塞载体线程(pinning)
+	 * <p>synchronized监视器上wait会把虚拟线程固定在载体线程上, MONITOR模式的WarehouseBase
+	 * 需要切换为CONDITION模式.
+	 * @param warehouse
+	 * @return 是否适合虚拟线程
+	 */
+	public static boolean checkVirtualThreadFriendly(IWarehouse<?> warehouse) {
+		if(warehouse instanceof WarehouseBase) {
+			WarehouseBase<?> base = (WarehouseBase<?>) warehouse;
+			if(!base.isConditionMode()) {
+				SysLog.w(TAG, "checkVirtualThreadFriendly: " + warehouse.getClass().getName()
+						+ " is in MONITOR mode and pins virtual threads while waiting,"
+						+ " please call setBlockingMode(BlockingMode.CONDITION) before starting.");
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,20 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 生产者/消费者工作者工厂
+ * <p>线程池(ConsumerPool/ProducerPool)通过工厂创建每一个工作者, 所有工作者共用同一个仓库.
+ * @author zhanghao
+ *
+ * @param <T> 产品类型
+ * @param <W> 工作者类型
+ */
+public interface PCWorkerFactory<T, W> {
+
+	/**
+	 * 创建工作者
+	 * @param warehouse 共用的产品仓库
+	 * @param index 工作者序号, 从0开始
+	 * @return
+	 */
+	W newWorker(IWarehouse<T> warehouse, int index);
+}
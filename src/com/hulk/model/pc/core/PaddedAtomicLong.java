@@ -0,0 +1,28 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 填充缓存行的AtomicLong
+ * <p>环形仓库的读写序列号分别被消费者和生产者频繁修改,
+ * 填充字段使两个序列号不落在同一个缓存行, 避免伪共享(false sharing).
+ * @author zhanghao
+ *
+ */
+class PaddedAtomicLong extends AtomicLong {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 填充字段, 不使用
+	 */
+	protected long p1, p2, p3, p4, p5, p6, p7;
+
+	public PaddedAtomicLong() {
+		super();
+	}
+
+	public PaddedAtomicLong(long initialValue) {
+		super(initialValue);
+	}
+}
@@ -0,0 +1,72 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * park退避等待策略
+ * <p>先自旋, 再yield, 最后LockSupport.parkNanos, park时间从minParkNanos开始每次翻倍, 不超过maxParkNanos.
+ * <p>拿到产品后idleCount归零, 重新从自旋开始, 兼顾延迟和CPU占用.
+ * @author zhanghao
+ *
+ */
+public class ParkingWaitStrategy implements WaitStrategy {
+
+	public static final int DEFAULT_SPIN_TRIES = 100;
+	public static final int DEFAULT_YIELD_TRIES = 100;
+	public static final long DEFAULT_MIN_PARK_NANOS = 1000;
+	public static final long DEFAULT_MAX_PARK_NANOS = 1000 * 1000;
+
+	private final int mSpinTries;
+	private final int mYieldTries;
+	private final long mMinParkNanos;
+	private final long mMaxParkNanos;
+
+	public ParkingWaitStrategy() {
+		this(DEFAULT_SPIN_TRIES, DEFAULT_YIELD_TRIES, DEFAULT_MIN_PARK_NANOS, DEFAULT_MAX_PARK_NANOS);
+	}
+
+	/**
+	 * @param spinTries 自旋次数
+	 * @param yieldTries yield次数
+	 * @param minParkNanos 第一次park的纳秒数
+	 * @param maxParkNanos 最大park的纳秒数
+	 */
+	public ParkingWaitStrategy(int spinTries, int yieldTries, long minParkNanos, long maxParkNanos) {
+		if(minParkNanos <= 0 || maxParkNanos < minParkNanos) {
+			throw new IllegalArgumentException("Invalid park nanos: min=" + minParkNanos + ", max=" + maxParkNanos);
+		}
+		this.mSpinTries = spinTries;
+		this.mYieldTries = yieldTries;
+		this.mMinParkNanos = minParkNanos;
+		this.mMaxParkNanos = maxParkNanos;
+	}
+
+	@Override
+	public void idle(int idleCount) throws InterruptedException {
+		if(idleCount < mSpinTries) {
+			SpinWait.onSpinWait();
+			return;
+		}
+		if(idleCount < mSpinTries + mYieldTries) {
+			Thread.yield();
+			return;
+		}
+		int parkCount = idleCount - mSpinTries - mYieldTries;
+		long parkNanos = parkCount >= 30 ? mMaxParkNanos : Math.min(mMinParkNanos << parkCount, mMaxParkNanos);
+		LockSupport.parkNanos(this, parkNanos);
+		if(Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		//park有超时, 不需要唤醒
+	}
+
+	@Override
+	public String toString() {
+		return "ParkingWaitStrategy[spinTries=" + mSpinTries + ", yieldTries=" + mYieldTries
+				+ ", minParkNanos=" + mMinParkNanos + ", maxParkNanos=" + mMaxParkNanos + "]";
+	}
+}
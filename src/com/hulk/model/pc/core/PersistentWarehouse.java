@@ -0,0 +1,1139 @@
+package com.hulk.model.pc.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.io.SyncFailedException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 持久化仓库
+ * <p>产品先追加到磁盘预写日志(WAL)再放入内存队列, 进程崩溃后重新创建仓库时恢复所有没有确认(ack)的产品.
+ * <p>日志文件:
+ * <p>1. 分段文件, 每条记录为[4字节长度][4字节CRC32][数据], 超过segmentBytes后换新的分段;
+ * <p>2. 消费确认位置(分段, 偏移)保存在consumer.ack文件中, 确认位置之前的分段被删除;
+ * <p>3. 恢复时从确认位置开始读取, 遇到校验失败或者不完整的记录(写入时崩溃)截断该分段剩余部分,
+ * 之后的产品写入新的分段.
+ * <p>刷盘(group commit):
+ * <p>1. BATCH: 后台线程每syncIntervalMillis(或者未刷盘数据超过syncBytes时)写入并fsync一次,
+ * 生产者不等待, 崩溃时最多丢失一个刷盘间隔的产品;
+ * <p>2. ALWAYS: put在产品fsync后返回, 同时等待的多个生产者共用一次fsync.
+ * <p>确认: 默认取出即确认(autoAck); 关闭autoAck后调用ack()确认之前取出的所有产品,
+ * 没有确认的产品重启后会再次取出(至少一次). 确认位置在刷盘时一起保存.
+ * <p>内存中的产品数量受capacity限制, 缓冲区满的处理与DelayWarehouse相同; 恢复的产品可以超过capacity.
+ * <p>追加和fsync通过RandomAccessFile(FileDescriptor.sync), 不使用可中断的FileChannel, 被中断的生产者写入时不会关闭日志文件.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class PersistentWarehouse<T> implements IWarehouse<T> {
+
+	private static final String TAG = "PersistentWarehouse";
+
+	/**
+	 * 刷盘方式
+	 */
+	public enum SyncMode {
+		BATCH,
+		ALWAYS
+	}
+
+	public static final String SEGMENT_SUFFIX = ".wal";
+
+	public static final String ACK_FILE_NAME = "consumer.ack";
+
+	public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+	public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+	public static final int DEFAULT_SYNC_BYTES = 1024 * 1024;
+
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final int ACK_RECORD_SIZE = 20;
+
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 队列元素: 产品和记录结束位置
+	 * @param <T>
+	 */
+	private static final class Entry<T> {
+		final T product;
+		final long segment;
+		final long end;
+		final long putTime;
+
+		Entry(T product, long segment, long end, long putTime) {
+			this.product = product;
+			this.segment = segment;
+			this.end = end;
+			this.putTime = putTime;
+		}
+	}
+
+	private final ArrayDeque<Entry<T>> mEntries = new ArrayDeque<Entry<T>>();
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final Condition mNotFull = mLock.newCondition();
+
+	protected final File mDir;
+
+	protected final SpillingWarehouse.Serializer<T> mSerializer;
+
+	protected final SyncMode mSyncMode;
+
+	/**
+	 * 内存中的产品容量, 小于等于0时不限容量
+	 */
+	protected volatile int capacity;
+
+	private volatile long mSegmentBytes = DEFAULT_SEGMENT_BYTES;
+
+	private volatile long mSyncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+
+	private volatile int mSyncBytes = DEFAULT_SYNC_BYTES;
+
+	private volatile boolean mAutoAck = true;
+
+	/**
+	 * 写入状态, 持有mLock时访问
+	 */
+	private long mWriteSegment;
+	private long mWritePosition;
+	private RandomAccessFile mWriteFile;
+	private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+	private long mAppendSeq = 0;
+	private long mUnsyncedBytes = 0;
+
+	/**
+	 * 取出位置和确认位置, 持有mLock时访问
+	 */
+	private long mDeliveredSegment;
+	private long mDeliveredPosition;
+	private long mAckSegment;
+	private long mAckPosition;
+
+	/**
+	 * 已经保存的确认位置, 只在刷盘线程(leader)中访问
+	 */
+	private long mSavedAckSegment = -1;
+	private long mSavedAckPosition = -1;
+	private RandomAccessFile mAckFile;
+
+	/**
+	 * group commit: 同时只有一个线程(leader)刷盘, 其他线程等待结果
+	 */
+	private final ReentrantLock mSyncLock = new ReentrantLock();
+	private final Condition mSynced = mSyncLock.newCondition();
+	private final Condition mSyncRequested = mSyncLock.newCondition();
+	private boolean mSyncing = false;
+	private volatile long mSyncedSeq = 0;
+	private volatile long mSyncCount = 0;
+	private volatile long mSyncFailedCount = 0;
+
+	private volatile boolean mClosed = false;
+	private Thread mSyncThread;
+
+	/**
+	 * 存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+	 */
+	protected boolean mPutFullWaitingDisabled = false;
+
+	protected boolean mDebugMode = false;
+
+	protected OnWarehouseListener<T> mListener;
+
+	protected volatile WarehouseMetrics mMetrics;
+
+	public PersistentWarehouse(File dir, SpillingWarehouse.Serializer<T> serializer) {
+		this(dir, serializer, WarehouseBase.MAX_PRODUST_CAPACITY, SyncMode.BATCH);
+	}
+
+	/**
+	 * 构造函数, 恢复目录中没有确认的产品
+	 * @param dir 日志目录, 不存在时创建
+	 * @param serializer 产品序列化
+	 * @param capacity 内存中的产品容量, 小于等于0时不限容量
+	 * @param syncMode 刷盘方式
+	 */
+	public PersistentWarehouse(File dir, SpillingWarehouse.Serializer<T> serializer, int capacity,
+			SyncMode syncMode) {
+		if(dir == null) {
+			throw new IllegalArgumentException("dir is null");
+		}
+		if(serializer == null) {
+			throw new IllegalArgumentException("serializer is null");
+		}
+		this.mDir = dir;
+		this.mSerializer = serializer;
+		this.capacity = capacity;
+		this.mSyncMode = syncMode == null ? SyncMode.BATCH : syncMode;
+		if(!dir.exists() && !dir.mkdirs()) {
+			throw new IllegalStateException("Failed to create dir: " + dir);
+		}
+		try {
+			recover();
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to recover " + dir + ": " + e, e);
+		}
+		startSyncThread();
+	}
+
+	/**
+	 * 恢复没有确认的产品, 并打开新的分段追加
+	 * @throws IOException
+	 */
+	private void recover() throws IOException {
+		mAckFile = new RandomAccessFile(new File(mDir, ACK_FILE_NAME), "rw");
+		long ackSegment = -1;
+		long ackPosition = 0;
+		if(mAckFile.length() >= ACK_RECORD_SIZE) {
+			byte[] ack = new byte[ACK_RECORD_SIZE];
+			mAckFile.seek(0);
+			mAckFile.readFully(ack);
+			ByteBuffer buffer = ByteBuffer.wrap(ack);
+			long segment = buffer.getLong();
+			long position = buffer.getLong();
+			int crc = buffer.getInt();
+			if(crc == crc(ack, 0, 16)) {
+				ackSegment = segment;
+				ackPosition = position;
+			} else {
+				SysLog.w(TAG, "recover: ack file is corrupted, replay all segments");
+			}
+		}
+		List<Long> segments = listSegments();
+		long now = System.nanoTime();
+		long lastSegment = -1;
+		for(Long segment : segments) {
+			if(segment < ackSegment) {
+				deleteSegment(segment);
+				continue;
+			}
+			long start = segment == ackSegment ? ackPosition : 0;
+			long end = recoverSegment(segment, start, now);
+			if(end == 0 && segment != ackSegment) {
+				//重启后新建的空分段
+				deleteSegment(segment);
+				continue;
+			}
+			lastSegment = segment;
+		}
+		if(ackSegment < 0) {
+			ackSegment = segments.isEmpty() ? 0 : segments.get(0);
+			ackPosition = 0;
+		}
+		mAckSegment = mDeliveredSegment = ackSegment;
+		mAckPosition = mDeliveredPosition = ackPosition;
+		mSavedAckSegment = ackSegment;
+		mSavedAckPosition = ackPosition;
+		//不在旧分段后面追加, 避免确认位置超过被截断的分段长度
+		mWriteSegment = Math.max(lastSegment, ackSegment) + 1;
+		mWritePosition = 0;
+		mWriteFile = openWriteFile(mWriteSegment);
+		if(!mEntries.isEmpty()) {
+			SysLog.w(TAG, "recover: recovered products=" + mEntries.size() + ", dir=" + mDir);
+		}
+	}
+
+	/**
+	 * 读取一个分段中的记录, 截断不完整或者校验失败的部分
+	 * @param segment
+	 * @param start 开始位置
+	 * @param now
+	 * @return 有效数据的结束位置
+	 * @throws IOException
+	 */
+	private long recoverSegment(long segment, long start, long now) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+		FileChannel channel = file.getChannel();
+		long end = start;
+		try {
+			long size = channel.size();
+			if(start > size) {
+				SysLog.w(TAG, "recoverSegment: ack position=" + start + " is beyond size=" + size + ", segment=" + segment);
+				return size;
+			}
+			channel.position(start);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), WRITE_BUFFER_SIZE));
+			while(end < size) {
+				int length;
+				int crc;
+				byte[] data;
+				try {
+					length = in.readInt();
+					crc = in.readInt();
+					if(length < 0 || end + RECORD_HEADER_SIZE + length > size) {
+						break;
+					}
+					data = new byte[length];
+					in.readFully(data);
+				} catch (EOFException e) {
+					break;
+				}
+				if(crc != crc(data, 0, data.length)) {
+					SysLog.w(TAG, "recoverSegment: checksum mismatch at " + end + ", segment=" + segment);
+					break;
+				}
+				end += RECORD_HEADER_SIZE + length;
+				try {
+					mEntries.addLast(new Entry<T>(mSerializer.deserialize(data), segment, end, now));
+				} catch (RuntimeException e) {
+					SysLog.e(TAG, "recoverSegment: Failed to deserialize record at " + end + ": " + e, e);
+				}
+			}
+			if(end < size) {
+				SysLog.w(TAG, "recoverSegment: truncate segment=" + segment + " from " + size + " to " + end);
+				channel.truncate(end);
+				channel.force(true);
+			}
+			return end;
+		} finally {
+			file.close();
+		}
+	}
+
+	private void startSyncThread() {
+		mSyncThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!mClosed) {
+					mSyncLock.lock();
+					try {
+						mSyncRequested.await(mSyncIntervalMillis, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						SysLog.e(TAG, "sync thread Interrupted: " + e);
+						break;
+					} finally {
+						mSyncLock.unlock();
+					}
+					syncTo(-1L);
+				}
+			}
+		}, TAG + "-sync");
+		mSyncThread.setDaemon(true);
+		mSyncThread.start();
+	}
+
+	@Override
+	public void put(T product) {
+		putProduct(product, -1L);
+	}
+
+	/**
+	 * 非阻塞存放
+	 * @param product
+	 * @return 缓冲区满时返回false
+	 */
+	public boolean offer(T product) {
+		return putProduct(product, 0L);
+	}
+
+	/**
+	 * 存放产品, 写入日志后放入内存队列
+	 * @param product
+	 * @param timeoutNanos 缓冲区满时的等待时间, 小于0表示一直等待
+	 * @return 是否放入
+	 */
+	protected boolean putProduct(T product, long timeoutNanos) {
+		checkNotNull(product);
+		checkNotClosed();
+		//在锁外序列化和计算校验和
+		byte[] data = mSerializer.serialize(product);
+		int crc = crc(data, 0, data.length);
+		long seq;
+		mLock.lock();
+		try {
+			if(!awaitPutPrepared(product, timeoutNanos)) {
+				recordRejected(1);
+				return false;
+			}
+			seq = appendEntry(product, data, crc);
+			mNotEmpty.signal();
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "put Interrupted, Can not put product=" + product + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+			recordRejected(1);
+			return false;
+		} catch (IOException e) {
+			SysLog.e(TAG, "put IOException: " + e, e);
+			recordRejected(1);
+			return false;
+		} finally {
+			mLock.unlock();
+		}
+		afterAppend(seq);
+		return true;
+	}
+
+	/**
+	 * 写入后按刷盘方式等待fsync或者唤醒刷盘线程
+	 * @param seq
+	 */
+	private void afterAppend(long seq) {
+		if(mSyncMode == SyncMode.ALWAYS) {
+			syncTo(seq);
+		} else if(mUnsyncedBytes >= mSyncBytes) {
+			requestSync();
+		}
+	}
+
+	/**
+	 * 写入日志并放入队列, 需要持有锁
+	 * @return 写入序号
+	 * @throws IOException
+	 */
+	private long appendEntry(T product, byte[] data, int crc) throws IOException {
+		if(mWritePosition >= mSegmentBytes) {
+			rollSegment();
+		}
+		int recordSize = RECORD_HEADER_SIZE + data.length;
+		if(recordSize > mWriteBuffer.remaining()) {
+			flushWriteBuffer();
+		}
+		if(recordSize > mWriteBuffer.remaining()) {
+			//大记录直接写入
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			header.putInt(data.length).putInt(crc).flip();
+			writeFully(header);
+			writeFully(ByteBuffer.wrap(data));
+		} else {
+			mWriteBuffer.putInt(data.length);
+			mWriteBuffer.putInt(crc);
+			mWriteBuffer.put(data);
+		}
+		mWritePosition += recordSize;
+		mUnsyncedBytes += recordSize;
+		mEntries.addLast(new Entry<T>(product, mWriteSegment, mWritePosition, System.nanoTime()));
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordPut(mEntries.size());
+		}
+		return ++mAppendSeq;
+	}
+
+	/**
+	 * 换新的分段, 旧分段先fsync, 之后的刷盘只需要处理当前分段. 需要持有锁
+	 * @throws IOException
+	 */
+	private void rollSegment() throws IOException {
+		flushWriteBuffer();
+		mWriteFile.getFD().sync();
+		mWriteFile.close();
+		mWriteSegment++;
+		mWritePosition = 0;
+		mWriteFile = openWriteFile(mWriteSegment);
+	}
+
+	private RandomAccessFile openWriteFile(long segment) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+		file.seek(file.length());
+		return file;
+	}
+
+	private void flushWriteBuffer() throws IOException {
+		if(mWriteBuffer.position() == 0) {
+			return;
+		}
+		mWriteBuffer.flip();
+		writeFully(mWriteBuffer);
+		mWriteBuffer.clear();
+	}
+
+	/**
+	 * 追加到当前分段, 需要持有锁
+	 * @param buffer 堆内存缓冲区
+	 * @throws IOException
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		mWriteFile.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		buffer.position(buffer.limit());
+	}
+
+	/**
+	 * 等待缓冲区不满, 需要持有锁
+	 * @param product
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 是否可以放入
+	 * @throws InterruptedException
+	 */
+	private boolean awaitPutPrepared(T product, long timeoutNanos) throws InterruptedException {
+		if(!isProductBufferFull()) {
+			return true;
+		}
+		doPutFullCallback(product);
+		if(timeoutNanos == 0) {
+			return false;
+		}
+		if(!checkPutFullWaitingEnabled()) {
+			//存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,直接略过,避免内存溢出.
+			SysLog.i(TAG, "put: Not prepared, Can not put product=" + product);
+			return false;
+		}
+		long nanos = timeoutNanos;
+		long start = System.nanoTime();
+		try {
+			while(isProductBufferFull()) {
+				if(timeoutNanos >= 0 && nanos <= 0) {
+					return false;
+				}
+				nanos = await(mNotFull, nanos);
+			}
+		} finally {
+			WarehouseMetrics metrics = mMetrics;
+			if(metrics != null) {
+				metrics.recordPutBlocked(System.nanoTime() - start);
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public T get() {
+		return getProduct(-1L);
+	}
+
+	/**
+	 * 获取产品, 最多等待timeout
+	 * @param timeout
+	 * @param unit
+	 * @return 超时或者线程被中断时返回null
+	 */
+	public T get(long timeout, TimeUnit unit) {
+		return getProduct(unit.toNanos(timeout));
+	}
+
+	/**
+	 * 非阻塞获取
+	 * @return 为空时返回null
+	 */
+	public T poll() {
+		return getProduct(0L);
+	}
+
+	protected T getProduct(long timeoutNanos) {
+		mLock.lock();
+		try {
+			if(!awaitNotEmpty(timeoutNanos)) {
+				return null;
+			}
+			Entry<T> entry = takeEntry();
+			mNotFull.signal();
+			return entry.product;
+		} catch (InterruptedException e) {
+			//消费者被停止时会中断等待, 不是错误, 保留中断状态交给调用者处理
+			if(isDebugMode()) {
+				SysLog.i(TAG, "get Interrupted, thread=" + getCurrentThreadInfo());
+			}
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 等待产品, 需要持有锁
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 超时返回false
+	 * @throws InterruptedException
+	 */
+	private boolean awaitNotEmpty(long timeoutNanos) throws InterruptedException {
+		if(!mEntries.isEmpty()) {
+			return true;
+		}
+		doGetEmptyCallback();
+		long nanos = timeoutNanos;
+		long start = System.nanoTime();
+		try {
+			while(mEntries.isEmpty()) {
+				if(timeoutNanos >= 0 && nanos <= 0) {
+					return false;
+				}
+				nanos = await(mNotEmpty, nanos);
+			}
+		} finally {
+			WarehouseMetrics metrics = mMetrics;
+			if(metrics != null && timeoutNanos != 0) {
+				metrics.recordGetIdle(System.nanoTime() - start);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 取出队首产品, 更新取出位置, autoAck时同时确认. 需要持有锁
+	 * @return
+	 */
+	private Entry<T> takeEntry() {
+		Entry<T> entry = mEntries.pollFirst();
+		mDeliveredSegment = entry.segment;
+		mDeliveredPosition = entry.end;
+		if(mAutoAck) {
+			mAckSegment = entry.segment;
+			mAckPosition = entry.end;
+		}
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordGet();
+			metrics.recordSojourn(System.nanoTime() - entry.putTime);
+		}
+		return entry;
+	}
+
+	/**
+	 * 确认之前取出的所有产品, 确认位置在下一次刷盘时保存
+	 * <p>关闭autoAck时使用, 多个消费者时确认的是所有消费者已经取出的产品.
+	 */
+	public void ack() {
+		mLock.lock();
+		try {
+			mAckSegment = mDeliveredSegment;
+			mAckPosition = mDeliveredPosition;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 设置是否取出即确认, 默认true
+	 * @param autoAck
+	 */
+	public void setAutoAck(boolean autoAck) {
+		this.mAutoAck = autoAck;
+	}
+
+	public boolean isAutoAck() {
+		return mAutoAck;
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products) {
+		return doPutAll(products, -1L);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+		return doPutAll(products, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量存放, 一次加锁写入, ALWAYS时只等待一次fsync
+	 * @param products
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际放入的数量
+	 */
+	protected int doPutAll(Collection<? extends T> products, long timeoutNanos) {
+		if(products == null || products.isEmpty()) {
+			return 0;
+		}
+		checkNotClosed();
+		List<byte[]> records = new ArrayList<byte[]>(products.size());
+		for(T product : products) {
+			checkNotNull(product);
+			records.add(mSerializer.serialize(product));
+		}
+		int count = 0;
+		long seq = 0;
+		mLock.lock();
+		try {
+			long deadline = System.nanoTime() + timeoutNanos;
+			int i = 0;
+			for(T product : products) {
+				byte[] data = records.get(i++);
+				long nanos = timeoutNanos < 0 ? -1L : Math.max(0L, deadline - System.nanoTime());
+				if(!awaitPutPrepared(product, nanos)) {
+					break;
+				}
+				seq = appendEntry(product, data, crc(data, 0, data.length));
+				count++;
+			}
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "putAll Interrupted, Can not put products from index " + count + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			SysLog.e(TAG, "putAll IOException: " + e, e);
+		} finally {
+			recordRejected(products.size() - count);
+			if(count > 0) {
+				mNotEmpty.signalAll();
+			}
+			mLock.unlock();
+		}
+		if(count > 0) {
+			afterAppend(seq);
+		}
+		return count;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		return doDrainTo(c, maxElements, -1L);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+		return doDrainTo(c, maxElements, unit.toNanos(timeout));
+	}
+
+	protected int doDrainTo(Collection<? super T> c, int maxElements, long timeoutNanos) {
+		if(c == null || maxElements <= 0) {
+			return 0;
+		}
+		int count = 0;
+		mLock.lock();
+		try {
+			if(!awaitNotEmpty(timeoutNanos)) {
+				return 0;
+			}
+			while(count < maxElements && !mEntries.isEmpty()) {
+				c.add(takeEntry().product);
+				count++;
+			}
+		} catch (InterruptedException e) {
+			if(isDebugMode()) {
+				SysLog.i(TAG, "drainTo Interrupted, thread=" + getCurrentThreadInfo());
+			}
+			Thread.currentThread().interrupt();
+		} finally {
+			if(count > 0) {
+				mNotFull.signalAll();
+			}
+			mLock.unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * 立即刷盘, 返回时之前放入的产品和确认位置都已经fsync
+	 */
+	public void sync() {
+		syncTo(-1L);
+	}
+
+	/**
+	 * 唤醒刷盘线程
+	 */
+	private void requestSync() {
+		mSyncLock.lock();
+		try {
+			mSyncRequested.signal();
+		} finally {
+			mSyncLock.unlock();
+		}
+	}
+
+	/**
+	 * group commit: 已经有线程在刷盘时等待它完成, 否则成为leader执行一次刷盘
+	 * @param targetSeq 需要刷盘的写入序号, 小于0表示无条件执行一次新的刷盘
+	 */
+	private void syncTo(long targetSeq) {
+		mSyncLock.lock();
+		try {
+			while(targetSeq < 0 || mSyncedSeq < targetSeq) {
+				if(mSyncing) {
+					mSynced.await();
+					continue;
+				}
+				mSyncing = true;
+				long synced = -1;
+				mSyncLock.unlock();
+				try {
+					synced = doSync();
+				} finally {
+					mSyncLock.lock();
+					mSyncing = false;
+					if(synced > mSyncedSeq) {
+						mSyncedSeq = synced;
+					}
+					mSynced.signalAll();
+				}
+				if(targetSeq < 0) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "sync Interrupted, thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+		} finally {
+			mSyncLock.unlock();
+		}
+	}
+
+	/**
+	 * 刷盘: 持有锁写入缓冲的数据, 不持有锁fsync, 然后保存确认位置并删除已经确认的分段
+	 * <p>失败时记录日志并返回写入序号, 不让生产者一直等待.
+	 * @return 已经刷盘的写入序号
+	 */
+	private long doSync() {
+		RandomAccessFile file;
+		long writeSegment;
+		long seq;
+		long ackSegment;
+		long ackPosition;
+		mLock.lock();
+		try {
+			seq = mAppendSeq;
+			ackSegment = mAckSegment;
+			ackPosition = mAckPosition;
+			if(seq == mSyncedSeq && ackSegment == mSavedAckSegment && ackPosition == mSavedAckPosition) {
+				return seq;
+			}
+			file = mWriteFile;
+			writeSegment = mWriteSegment;
+			try {
+				flushWriteBuffer();
+			} catch (IOException e) {
+				SysLog.e(TAG, "doSync: Failed to write: " + e, e);
+				mSyncFailedCount++;
+				return seq;
+			}
+			mUnsyncedBytes = 0;
+		} finally {
+			mLock.unlock();
+		}
+		try {
+			if(seq != mSyncedSeq && file != null) {
+				syncFile(file, writeSegment);
+			}
+			if(ackSegment != mSavedAckSegment || ackPosition != mSavedAckPosition) {
+				saveAck(ackSegment, ackPosition);
+				for(long segment = mSavedAckSegment; segment < ackSegment; segment++) {
+					deleteSegment(segment);
+				}
+				mSavedAckSegment = ackSegment;
+				mSavedAckPosition = ackPosition;
+			}
+			mSyncCount++;
+		} catch (IOException e) {
+			SysLog.e(TAG, "doSync: Failed to sync: " + e, e);
+			mSyncFailedCount++;
+		}
+		return seq;
+	}
+
+	/**
+	 * fsync写入分段, 不持有锁
+	 * @param file
+	 * @param segment
+	 * @throws IOException
+	 */
+	private void syncFile(RandomAccessFile file, long segment) throws IOException {
+		try {
+			file.getFD().sync();
+		} catch (SyncFailedException e) {
+			mLock.lock();
+			try {
+				if(segment != mWriteSegment) {
+					//刷盘期间换了分段, 旧分段在换分段时已经fsync并关闭
+					return;
+				}
+			} finally {
+				mLock.unlock();
+			}
+			throw e;
+		}
+	}
+
+	private void saveAck(long segment, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(ACK_RECORD_SIZE);
+		buffer.putLong(segment).putLong(position);
+		buffer.putInt(crc(buffer.array(), 0, 16));
+		mAckFile.seek(0);
+		mAckFile.write(buffer.array());
+		mAckFile.getFD().sync();
+	}
+
+	/**
+	 * 关闭: 停止刷盘线程, 最后刷盘一次并关闭文件. 没有取出的产品保留在磁盘中, 下次创建时恢复
+	 */
+	public void close() {
+		if(mClosed) {
+			return;
+		}
+		mClosed = true;
+		//刷盘线程检查mClosed后退出, 不中断它, 避免丢失最后一次刷盘
+		requestSync();
+		try {
+			mSyncThread.join();
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "close Interrupted: " + e);
+			Thread.currentThread().interrupt();
+		}
+		syncTo(-1L);
+		mLock.lock();
+		try {
+			mWriteFile.close();
+			mAckFile.close();
+		} catch (IOException e) {
+			SysLog.e(TAG, "close IOException: " + e, e);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public boolean isClosed() {
+		return mClosed;
+	}
+
+	private void checkNotClosed() {
+		if(mClosed) {
+			throw new IllegalStateException(TAG + " is closed: " + mDir);
+		}
+	}
+
+	private List<Long> listSegments() {
+		List<Long> segments = new ArrayList<Long>();
+		File[] files = mDir.listFiles();
+		if(files == null) {
+			return segments;
+		}
+		for(File file : files) {
+			String name = file.getName();
+			if(!name.endsWith(SEGMENT_SUFFIX)) {
+				continue;
+			}
+			try {
+				segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				SysLog.w(TAG, "listSegments: ignore " + file);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	protected File segmentFile(long segment) {
+		return new File(mDir, String.format(Locale.US, "%016d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private void deleteSegment(long segment) {
+		File file = segmentFile(segment);
+		if(file.exists() && !file.delete()) {
+			SysLog.w(TAG, "deleteSegment: Failed to delete " + file);
+		}
+	}
+
+	private static int crc(byte[] data, int offset, int length) {
+		CRC32 crc32 = new CRC32();
+		crc32.update(data, offset, length);
+		return (int) crc32.getValue();
+	}
+
+	private static long await(Condition condition, long nanos) throws InterruptedException {
+		if(nanos < 0) {
+			condition.await();
+			return nanos;
+		}
+		return condition.awaitNanos(nanos);
+	}
+
+	private void recordRejected(int count) {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordRejected(count);
+		}
+	}
+
+	@Override
+	public int size() {
+		mLock.lock();
+		try {
+			return mEntries.size();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * 需要持有锁
+	 * @return
+	 */
+	private boolean isProductBufferFull() {
+		return capacity > 0 && mEntries.size() >= capacity;
+	}
+
+	public boolean isProductBufferEmpty() {
+		return size() <= 0;
+	}
+
+	/**
+	 * 检查缓冲区满时,是否启用等待
+	 * <p>主线程默认不能等待,避免android出现ANE
+	 * @return
+	 */
+	protected boolean checkPutFullWaitingEnabled() {
+		if(mPutFullWaitingDisabled) {
+			return false;
+		}
+		String threadName = Thread.currentThread().getName();
+		//默认可等待
+		boolean waitingEnabled = true;
+		if("main".equals(threadName)) {
+			//主线程默认不能等待,在android中,等待会出现ANR
+			waitingEnabled = false;
+		}
+		if(mListener != null) {
+			waitingEnabled = mListener.onPutWaitingEnabled(this);
+		}
+		return waitingEnabled;
+	}
+
+	protected void doPutFullCallback(T product) {
+		if(mListener != null) {
+			mListener.onPutFull(this, product);
+		}
+	}
+
+	protected void doGetEmptyCallback() {
+		if(mListener != null) {
+			mListener.onGetEmpty(this);
+		}
+	}
+
+	/**
+	 * 设置容量, 小于等于0时不限容量
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		mLock.lock();
+		try {
+			this.capacity = capacity;
+			mNotFull.signalAll();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public void setSegmentBytes(long segmentBytes) {
+		if(segmentBytes <= 0) {
+			throw new IllegalArgumentException("segmentBytes must be positive: " + segmentBytes);
+		}
+		this.mSegmentBytes = segmentBytes;
+	}
+
+	public long getSegmentBytes() {
+		return mSegmentBytes;
+	}
+
+	/**
+	 * BATCH时的刷盘间隔
+	 * @param syncIntervalMillis
+	 */
+	public void setSyncIntervalMillis(long syncIntervalMillis) {
+		if(syncIntervalMillis <= 0) {
+			throw new IllegalArgumentException("syncIntervalMillis must be positive: " + syncIntervalMillis);
+		}
+		this.mSyncIntervalMillis = syncIntervalMillis;
+	}
+
+	public long getSyncIntervalMillis() {
+		return mSyncIntervalMillis;
+	}
+
+	/**
+	 * BATCH时未刷盘数据超过syncBytes立即唤醒刷盘线程
+	 * @param syncBytes
+	 */
+	public void setSyncBytes(int syncBytes) {
+		this.mSyncBytes = syncBytes;
+	}
+
+	public SyncMode getSyncMode() {
+		return mSyncMode;
+	}
+
+	/**
+	 * fsync次数, 用于观察group commit的合并效果
+	 * @return
+	 */
+	public long getSyncCount() {
+		return mSyncCount;
+	}
+
+	public long getSyncFailedCount() {
+		return mSyncFailedCount;
+	}
+
+	public File getDir() {
+		return mDir;
+	}
+
+	public void setMetricsEnabled(boolean enabled) {
+		if(!enabled) {
+			mMetrics = null;
+		} else if(mMetrics == null) {
+			mMetrics = new WarehouseMetrics(this);
+		}
+	}
+
+	public boolean isMetricsEnabled() {
+		return mMetrics != null;
+	}
+
+	@Override
+	public WarehouseMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	protected String getCurrentThreadInfo() {
+		return SysLog.getCurrentThreadInfo();
+	}
+
+	public void setDebugMode(boolean debugMode) {
+		this.mDebugMode = debugMode;
+	}
+
+	public boolean isDebugMode() {
+		return this.mDebugMode;
+	}
+
+	/**
+	 * 设置监听器, 监听器的产品类型由调用者保证与仓库一致
+	 */
+	@SuppressWarnings("unchecked")
+	public void setListener(OnWarehouseListener<?> listener) {
+		mListener = (OnWarehouseListener<T>) listener;
+	}
+
+	/**
+	 * 设置存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+	 * @param putFullWaitingDisabled
+	 */
+	public void setPutFullWaitingDisabled(boolean putFullWaitingDisabled) {
+		this.mPutFullWaitingDisabled = putFullWaitingDisabled;
+	}
+
+	protected static void checkNotNull(Object product) {
+		if(product == null) {
+			throw new NullPointerException("product is null");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size() + ", capacity=" + capacity
+				+ ", syncMode=" + mSyncMode + ", dir=" + mDir + "]";
+	}
+}
@@ -0,0 +1,292 @@
+package com.hulk.model.pc.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+
+/**
+ * 优先级仓库
+ * <p>使用堆(PriorityQueue)代替LinkedList缓冲区, 存放和获取都是O(log n), 优先级高的产品先被消费,
+ * 不需要在onGet中遍历列表.
+ * <p>优先级由Comparator(比较结果小的优先)或者PriorityExtractor(数值大的优先)决定, 优先级相同时按存放顺序(FIFO).
+ * <p>容量、满/空回调、阻塞模式与WarehouseBase相同, mProductBuffer只作为MONITOR模式的监视器, 不存放产品.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class PriorityWarehouse<T> extends WarehouseBase<T> {
+
+	private static final String TAG = "PriorityWarehouse";
+
+	/**
+	 * 产品优先级
+	 * @param <T>
+	 */
+	public interface PriorityExtractor<T> {
+		/**
+		 * 获取产品优先级, 数值大的优先
+		 * @param product
+		 * @return
+		 */
+		int getPriority(T product);
+	}
+
+	/**
+	 * 堆元素: 保存存放时计算的优先级和序号, 序号用于相同优先级时保持FIFO
+	 * <p>启用统计时同时保存放入时间, 取出顺序与放入顺序不同, 不能使用WarehouseBase的FIFO放入时间队列.
+	 * @param <T>
+	 */
+	private static final class Entry<T> {
+		final T product;
+		final int priority;
+		final long seq;
+		final long putTime;
+
+		Entry(T product, int priority, long seq, long putTime) {
+			this.product = product;
+			this.priority = priority;
+			this.seq = seq;
+			this.putTime = putTime;
+		}
+	}
+
+	/**
+	 * 产品堆, 持有锁时访问
+	 */
+	protected final PriorityQueue<Entry<T>> mHeap;
+
+	private final Comparator<? super T> mComparator;
+	private final PriorityExtractor<? super T> mPriorityExtractor;
+
+	/**
+	 * 存放序号, 持有锁时递增
+	 */
+	private long mSeq = 0;
+
+	/**
+	 * 最近一次从堆中移除的产品的放入时间, 持有锁时读写
+	 */
+	private long mRemovedPutTime = 0;
+
+	/**
+	 * 按Comparator排序, 比较结果小的优先
+	 * @param capacity
+	 * @param comparator
+	 */
+	public PriorityWarehouse(int capacity, Comparator<? super T> comparator) {
+		this(capacity, comparator, null);
+	}
+
+	/**
+	 * 按PriorityExtractor排序, 数值大的优先
+	 * @param capacity
+	 * @param priorityExtractor
+	 */
+	public PriorityWarehouse(int capacity, PriorityExtractor<? super T> priorityExtractor) {
+		this(capacity, null, priorityExtractor);
+	}
+
+	private PriorityWarehouse(int capacity, Comparator<? super T> comparator, PriorityExtractor<? super T> priorityExtractor) {
+		super(capacity, new LinkedList<T>());
+		if(comparator == null && priorityExtractor == null) {
+			throw new IllegalArgumentException("comparator and priorityExtractor are both null");
+		}
+		this.mComparator = comparator;
+		this.mPriorityExtractor = priorityExtractor;
+		int initialCapacity = capacity > 0 ? Math.min(capacity, MAX_PRODUST_CAPACITY) : DEFAULT_PRODUST_CAPACITY;
+		this.mHeap = new PriorityQueue<Entry<T>>(initialCapacity, new Comparator<Entry<T>>() {
+			@Override
+			public int compare(Entry<T> e1, Entry<T> e2) {
+				int result;
+				if(mComparator != null) {
+					result = mComparator.compare(e1.product, e2.product);
+				} else {
+					//数值大的优先
+					result = e1.priority < e2.priority ? 1 : (e1.priority == e2.priority ? 0 : -1);
+				}
+				if(result != 0) {
+					return result;
+				}
+				return e1.seq < e2.seq ? -1 : (e1.seq == e2.seq ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * 默认放入堆中, 子类可以重写
+	 */
+	@Override
+	protected boolean onPut(T product) {
+		if(isShowInfoMode()) {
+			SysLog.i(TAG, "onPut: product=" + product);
+		}
+		return false;
+	}
+
+	/**
+	 * 默认取出优先级最高的产品, 子类可以重写
+	 */
+	@Override
+	protected T onGet() {
+		return null;
+	}
+
+	private Entry<T> newEntry(T product) {
+		int priority = mPriorityExtractor != null ? mPriorityExtractor.getPriority(product) : 0;
+		long putTime = mMetrics != null ? System.nanoTime() : 0L;
+		return new Entry<T>(product, priority, mSeq++, putTime);
+	}
+
+	@Override
+	protected void addProduct(T product) {
+		mHeap.add(newEntry(product));
+	}
+
+	/**
+	 * 堆中没有位置的概念, 忽略index
+	 */
+	@Override
+	protected void addProduct(int index, T product) {
+		addProduct(product);
+	}
+
+	/**
+	 * 只读取数组中的产品, 不保存数组
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void addProducts(T... products) {
+		if(products == null) {
+			return;
+		}
+		addProducts(Arrays.asList(products));
+	}
+
+	@Override
+	protected void addProducts(Collection<? extends T> c) {
+		if(c == null || c.isEmpty()) {
+			return;
+		}
+		for(T product : c) {
+			addProduct(product);
+		}
+	}
+
+	/**
+	 * 移除并返回优先级最高的产品
+	 */
+	@Override
+	protected T removeFistProduct() {
+		Entry<T> entry = mHeap.poll();
+		if(entry == null) {
+			return null;
+		}
+		mRemovedPutTime = entry.putTime;
+		return entry.product;
+	}
+
+	/**
+	 * 移除并返回优先级最低的产品
+	 * <p>需要遍历堆, O(n), 只用于缓冲区满时丢弃产品.
+	 */
+	@Override
+	protected T removeLastProduct() {
+		Entry<T> last = findLastEntry();
+		if(last == null) {
+			return null;
+		}
+		mHeap.remove(last);
+		mRemovedPutTime = last.putTime;
+		return last.product;
+	}
+
+	/**
+	 * 放入时间保存在堆元素中
+	 */
+	@Override
+	protected void recordPutTime(T product, long time) {
+	}
+
+	/**
+	 * 刚移除的堆元素的放入时间, 启用统计前放入的产品为0
+	 */
+	@Override
+	protected long takePutTime(T product) {
+		long putTime = mRemovedPutTime;
+		mRemovedPutTime = 0;
+		return putTime;
+	}
+
+	/**
+	 * DROP_OLDEST时丢弃优先级最低的产品, 不丢弃马上要被消费的最高优先级产品
+	 */
+	@Override
+	protected T removeOverflowProduct() {
+		return removeLastProduct();
+	}
+
+	/**
+	 * 优先级最高的产品
+	 */
+	@Override
+	protected T getFirstProduct() {
+		Entry<T> entry = mHeap.peek();
+		return entry != null ? entry.product : null;
+	}
+
+	/**
+	 * 优先级最低的产品, O(n)
+	 */
+	@Override
+	protected T getLastProduct() {
+		Entry<T> last = findLastEntry();
+		return last != null ? last.product : null;
+	}
+
+	/**
+	 * 按堆内部数组顺序获取, 不是优先级顺序, O(n)
+	 */
+	@Override
+	protected T getProduct(int index) {
+		if(index < 0 || index >= mHeap.size()) {
+			return null;
+		}
+		Iterator<Entry<T>> it = mHeap.iterator();
+		for(int i = 0; i < index; i++) {
+			it.next();
+		}
+		return it.next().product;
+	}
+
+	private Entry<T> findLastEntry() {
+		Comparator<? super Entry<T>> comparator = mHeap.comparator();
+		Entry<T> last = null;
+		for(Entry<T> entry : mHeap) {
+			if(last == null || comparator.compare(entry, last) > 0) {
+				last = entry;
+			}
+		}
+		return last;
+	}
+
+	@Override
+	public boolean isProductBufferEmpty() {
+		return mHeap.isEmpty();
+	}
+
+	@Override
+	protected int getProductBufferSize() {
+		return mHeap.size();
+	}
+
+	public Comparator<? super T> getComparator() {
+		return mComparator;
+	}
+
+	public PriorityExtractor<? super T> getPriorityExtractor() {
+		return mPriorityExtractor;
+	}
+}
@@ -1,5 +1,9 @@
 package com.hulk.model.pc.core;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 生产者基类
  * @author zhanghao
@@ -42,8 +46,48 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
 	 */
 	protected long mSleepTime = DEFAULT_ONCE_SLEEP_TIME;
 	
+	/**
+	 * 每次循环之间的等待策略, 为空时使用sleepTime()固定睡眠
+	 */
+	protected volatile WaitStrategy mWaitStrategy;
+	
+	/**
+	 * 连续空闲(没有生产出产品)的循环次数, 用于等待策略退避
+	 */
+	protected int mIdleCount = 0;
+	
 	protected OnPCListener mPCListener;
 	
+	/**
+	 * 线程状态锁: 保护mAlive/mSleeping/mPutting, 用于等待线程退出
+	 */
+	private final Object mStateLock = new Object();
+	
+	/**
+	 * 已经启动还没有退出
+	 */
+	private boolean mAlive = false;
+	
+	/**
+	 * 是否正在睡眠, 只有此时停止才中断线程, 不中断doProduce和put
+	 */
+	private boolean mSleeping = false;
+	
+	/**
+	 * 是否正在放入产品(可能阻塞在仓库已满), requestStop(true)时中断
+	 */
+	private boolean mPutting = false;
+	
+	/**
+	 * 停止时是否中断阻塞的put, 由requestStop设置
+	 */
+	private volatile boolean mInterruptPut = false;
+	
+	/**
+	 * 运行线程
+	 */
+	private volatile Thread mThread;
+	
 	public ProducerBase(IWarehouse<T> warehouse) {
 		this.mWarehouse = warehouse;
 		initName();
@@ -52,13 +96,25 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
 	@Override
 	public void run() {
 		SysLog.i(TAG, "run: Stasrting...");
-		onPCStarting();
-		running = true;
-		stopped = false;
-		doRun();
-		running = false;
-		SysLog.w(TAG, "run: Finished");
-		onPCFinised();
+		synchronized (mStateLock) {
+			mAlive = true;
+		}
+		mThread = Thread.currentThread();
+		try {
+			onPCStarting();
+			running = true;
+			doRun();
+			running = false;
+			SysLog.w(TAG, "run: Finished");
+			onPCFinised();
+		} finally {
+			running = false;
+			mThread = null;
+			synchronized (mStateLock) {
+				mAlive = false;
+				mStateLock.notifyAll();
+			}
+		}
 	}
 
 	/**
@@ -68,6 +124,7 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
 	private void doRun() {
 		while(true) {
 			try {
+				checkInterrupted();
 				if(isStopped()) {
 					String thread = getCurrentThreadInfo();
 					SysLog.w(TAG,  "doRun: Stopped, loopCount= " + loopCount + ", thread=" + thread);
@@ -76,9 +133,11 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
 				T product = doProduce();
 				if(product != null) {
 					//mWarehouse.get()为阻塞仓库，没有货物是会等待
-					mWarehouse.put(product);
+					putProduct(product);
 					loopCount++;
+					mIdleCount = 0;
 				} else {
+					mIdleCount++;
 					SysLog.e(TAG,  "doRun: Failed to produce for product is null.");
 				}
 				//建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况
@@ -92,19 +151,105 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
 		}
 	}
 	
+	/**
+	 * 线程被外部中断(不是stop唤醒, 例如Executor.shutdownNow)时按停止处理,
+	 * 仓库等待被中断后会保留中断状态, 不处理的话之后每次等待都会立刻返回.
+	 */
+	private void checkInterrupted() {
+		if(!stopped && Thread.currentThread().isInterrupted()) {
+			SysLog.w(TAG, "checkInterrupted: Interrupted, stop " + mName);
+			stopped = true;
+		}
+	}
+	
 	/**
 	 * 线程睡眠
 	 * 建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况
 	 */
 	protected void doSleep() {
-		long sleepTime = sleepTime();
-		if (sleepTime <= 0) {
+		WaitStrategy waitStrategy = mWaitStrategy;
+		long sleepTime = waitStrategy != null ? 0 : sleepTime();
+		if(waitStrategy == null && sleepTime <= 0) {
 			return;
 		}
+		synchronized (mStateLock) {
+			mSleeping = true;
+		}
 		try {
-			Thread.sleep(sleepTime);
+			//stop先设置stopped再检查mSleeping, 不会错过唤醒
+			if(isStopped()) {
+				return;
+			}
+			if(waitStrategy != null) {
+				waitStrategy.idle(mIdleCount);
+			} else {
+				Thread.sleep(sleepTime);
+			}
 		} catch (InterruptedException e) {
-			SysLog.e(TAG, "doSleep Interrupted: " + e);
+			if(!isStopped()) {
+				//不是stop唤醒, 保留中断状态, 下一次循环按停止处理
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			synchronized (mStateLock) {
+				mSleeping = false;
+			}
+			if(stopped) {
+				//清除停止时的中断状态
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	/**
+	 * 放入产品, 记录正在放入的状态, 让requestStop(true)可以中断阻塞的put
+	 * @param product
+	 */
+	private void putProduct(T product) {
+		synchronized (mStateLock) {
+			mPutting = true;
+		}
+		try {
+			if(stopped && mInterruptPut) {
+				//requestStop在标记放入之前调用, 不再等待仓库空位
+				Thread.currentThread().interrupt();
+			}
+			mWarehouse.put(product);
+		} finally {
+			synchronized (mStateLock) {
+				mPutting = false;
+			}
+			if(stopped) {
+				//清除停止时的中断状态
+				Thread.interrupted();
+			}
+		}
+	}
+	
+	/**
+	 * 设置停止标记并唤醒线程, 不像stop那样移除仓库中的产品, 线程池停止工作者时使用
+	 * @param interruptPut 是否中断阻塞在仓库已满的put, 为true时当前产品被仓库拒绝, 否则放入后再退出
+	 */
+	public void requestStop(boolean interruptPut) {
+		mInterruptPut = interruptPut;
+		this.stopped = true;
+		synchronized (mStateLock) {
+			Thread thread = mThread;
+			if(thread != null && (mSleeping || mPutting && interruptPut)) {
+				thread.interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * 唤醒正在睡眠的线程
+	 */
+	private void wakeUp() {
+		synchronized (mStateLock) {
+			Thread thread = mThread;
+			if(mSleeping && thread != null) {
+				thread.interrupt();
+			}
 		}
 	}
 	
@@ -217,19 +362,143 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
 	public void start() {
 		initName();
 		SysLog.i(TAG, "start: " + mName);
+		//在启动线程之前重置, 避免线程开始运行前的stop被覆盖
+		stopped = false;
+		mInterruptPut = false;
 		Thread t = new Thread(this, mName);
-		t.start();
+		launch(t, null);
+	}
+	
+	/**
+	 * 使用指定的ThreadFactory创建线程运行
+	 * @param threadFactory
+	 */
+	public void start(ThreadFactory threadFactory) {
+		initName();
+		SysLog.i(TAG, "start: " + mName + " by " + threadFactory);
+		stopped = false;
+		mInterruptPut = false;
+		Thread t = threadFactory.newThread(this);
+		launch(t, null);
+	}
+	
+	/**
+	 * 在指定的Executor中运行, 运行期间一直占用一个Executor线程
+	 * <p>与start(ThreadFactory)不同名, 同时实现两个接口的参数不会有歧义.
+	 * @param executor
+	 */
+	public void startOn(Executor executor) {
+		initName();
+		SysLog.i(TAG, "start: " + mName + " on " + executor);
+		stopped = false;
+		mInterruptPut = false;
+		launch(null, executor);
+	}
+	
+	/**
+	 * 启动线程或者交给Executor, 启动之前标记为存活, 避免线程开始运行前awaitTermination直接返回
+	 * @param thread
+	 * @param executor
+	 */
+	private void launch(Thread thread, Executor executor) {
+		synchronized (mStateLock) {
+			mAlive = true;
+		}
+		try {
+			if(thread != null) {
+				thread.start();
+			} else {
+				executor.execute(this);
+			}
+		} catch (RuntimeException e) {
+			synchronized (mStateLock) {
+				mAlive = false;
+				mStateLock.notifyAll();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * 在虚拟线程中运行(JDK21及以上), 不支持时退回普通线程
+	 * <p>大部分时间在等待的生产者/消费者可以创建成千上万个, 不会占用同样数量的系统线程.
+	 * <p>MONITOR模式的WarehouseBase等待时会固定载体线程, 建议先切换为CONDITION模式.
+	 */
+	public void startVirtual() {
+		initName();
+		PCThreads.checkVirtualThreadFriendly(mWarehouse);
+		start(PCThreads.newVirtualThreadFactory(mName));
 	}
 	
 	public void stop() {
 		SysLog.w(TAG, "stop: " + mName);
 		this.stopped = true;
+		wakeUp();
 		if(isProductCacheFull()) {
 			//数据为满员,需要手动移除一个元素,触发下一次循环
 			triggerStoppedManually();
 		}
 	}
 	
+	/**
+	 * 停止并等待线程退出
+	 * <p>drain为true时不调用triggerStoppedManually移除产品, 正在放入的产品等仓库有空位后放入再退出.
+	 * @param drain 是否保留正在放入的产品
+	 * @param timeout 等待退出的时间
+	 * @param unit
+	 * @return 线程是否已经退出
+	 */
+	@Override
+	public boolean stop(boolean drain, long timeout, TimeUnit unit) {
+		if(drain) {
+			SysLog.w(TAG, "stop: " + mName + ", drain=true");
+			this.stopped = true;
+			wakeUp();
+		} else {
+			stop();
+		}
+		try {
+			return awaitTermination(timeout, unit);
+		} catch (InterruptedException e) {
+			SysLog.e(TAG, "stop Interrupted: " + mName);
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * 等待线程退出(包括onPCFinised执行完), 没有启动时直接返回true
+	 * @param timeout
+	 * @param unit
+	 * @return 是否已经退出
+	 * @throws InterruptedException
+	 */
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		long deadline = System.nanoTime() + nanos;
+		synchronized (mStateLock) {
+			while(mAlive) {
+				if(nanos <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(mStateLock, nanos);
+				nanos = deadline - System.nanoTime();
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * 已经启动还没有退出, 与isRunning不同, 线程开始运行之前也返回true
+	 * @return
+	 */
+	public boolean isAlive() {
+		synchronized (mStateLock) {
+			return mAlive;
+		}
+	}
+	
 	/**
 	 * 手动触发停止. 添加一个对象,跳出循环 eg:
 	 * if(mWarehouse != null) {
@@ -265,6 +534,15 @@ public abstract class ProducerBase<T> implements Runnable, IPCModel<T> {
     	mSleepTime = sleepTime;
 	}
     
+    @Override
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+    	mWaitStrategy = waitStrategy;
+	}
+    
+    public WaitStrategy getWaitStrategy() {
+    	return mWaitStrategy;
+	}
+    
     @Override
 	public void setOnPCListener(OnPCListener listener) {
 		mPCListener = listener;
@@ -0,0 +1,38 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 生产者线程池
+ * <p>多个生产者共用一个仓库, 工作者由PCWorkerFactory创建.
+ * <p>停止时不会像ProducerBase.stop那样移除仓库中的产品;
+ * 阻塞在仓库已满的生产者被中断后退出, 当前产品被仓库拒绝(记录为拒绝).
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class ProducerPool<T> extends PCPoolBase<T, ProducerBase<T>> {
+
+	public ProducerPool(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends ProducerBase<T>> factory, int poolSize) {
+		super(warehouse, factory, poolSize, null, null);
+	}
+
+	public ProducerPool(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends ProducerBase<T>> factory, int poolSize,
+			Executor executor) {
+		super(warehouse, factory, poolSize, executor, null);
+	}
+
+	public ProducerPool(IWarehouse<T> warehouse, PCWorkerFactory<T, ? extends ProducerBase<T>> factory, int poolSize,
+			ThreadFactory threadFactory) {
+		super(warehouse, factory, poolSize, null, threadFactory);
+	}
+
+	/**
+	 * 设置停止标记并中断阻塞在仓库已满的工作者
+	 */
+	@Override
+	protected void stopWorker(ProducerBase<T> worker) {
+		worker.requestStop(true);
+	}
+}
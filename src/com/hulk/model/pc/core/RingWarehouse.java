@@ -0,0 +1,124 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 无锁环形数组仓库: 多生产者-多消费者(MPMC)
+ * <p>每个槽位有一个序列号, 生产者和消费者分别CAS写序列号和读序列号抢占槽位,
+ * 再通过槽位序列号发布/回收, 不需要任何锁.
+ * <p>单生产者或单消费者场景可以使用更轻量的SpscRingWarehouse/MpscRingWarehouse.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class RingWarehouse<T> extends RingWarehouseBase<T> {
+
+	/**
+	 * 产品数组
+	 */
+	protected final AtomicReferenceArray<Object> mBuffer;
+
+	/**
+	 * 槽位序列号: 等于写序列号时可写, 等于写序列号+1时可读
+	 */
+	protected final AtomicLongArray mSequences;
+
+	/**
+	 * 写序列号
+	 */
+	protected final PaddedAtomicLong mTail = new PaddedAtomicLong();
+
+	/**
+	 * 读序列号
+	 */
+	protected final PaddedAtomicLong mHead = new PaddedAtomicLong();
+
+	public RingWarehouse() {
+		super();
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+		mSequences = initSequences(mBufferSize);
+	}
+
+	public RingWarehouse(int capacity) {
+		super(capacity);
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+		mSequences = initSequences(mBufferSize);
+	}
+
+	public RingWarehouse(int capacity, int maxCapacity) {
+		super(capacity, maxCapacity);
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+		mSequences = initSequences(mBufferSize);
+	}
+
+	private static AtomicLongArray initSequences(int size) {
+		AtomicLongArray sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		return sequences;
+	}
+
+	@Override
+	public boolean offer(T product) {
+		checkNotNull(product);
+		while(true) {
+			long tail = mTail.get();
+			if(tail - mHead.get() >= capacity) {
+				//超过逻辑容量
+				return false;
+			}
+			int index = (int) (tail & mMask);
+			long dif = mSequences.get(index) - tail;
+			if(dif == 0) {
+				if(mTail.compareAndSet(tail, tail + 1)) {
+					markPutTime(index);
+					mBuffer.lazySet(index, product);
+					//发布: 消费者看到序列号后一定能看到产品
+					mSequences.lazySet(index, tail + 1);
+					return true;
+				}
+			} else if(dif < 0) {
+				//槽位还没有被消费, 数组已满
+				return false;
+			}
+			//其他生产者抢先了, 重试
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T poll() {
+		while(true) {
+			long head = mHead.get();
+			int index = (int) (head & mMask);
+			long dif = mSequences.get(index) - (head + 1);
+			if(dif == 0) {
+				if(mHead.compareAndSet(head, head + 1)) {
+					T product = (T) mBuffer.get(index);
+					recordSojourn(index);
+					mBuffer.lazySet(index, null);
+					//回收: 槽位留给下一圈的生产者
+					mSequences.lazySet(index, head + mBufferSize);
+					return product;
+				}
+			} else if(dif < 0) {
+				//槽位还没有发布, 缓冲区为空
+				return null;
+			}
+			//其他消费者抢先了, 重试
+		}
+	}
+
+	@Override
+	public int size() {
+		long head = mHead.get();
+		long tail = mTail.get();
+		long size = tail - head;
+		if(size < 0) {
+			return 0;
+		}
+		return size > mBufferSize ? mBufferSize : (int) size;
+	}
+}
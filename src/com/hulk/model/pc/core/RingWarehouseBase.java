@@ -0,0 +1,795 @@
+package com.hulk.model.pc.core;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 环形数组仓库基类
+ * <p>预分配长度为2的幂次的数组, 使用CAS序列号代替synchronized锁, 存取产品不再分配链表节点.
+ * <p>保留WarehouseBase的容量语义和OnWarehouseListener回调:
+ * <p>1. 数组长度由maxCapacity向上取整为2的幂次, capacity为逻辑容量, 不超过数组长度;
+ * <p>2. 容量自动增长时每次增加CAPACITY_GRADIENT_UNIT, 直到maxCapacity;
+ * <p>3. 缓冲区满时回调onPutFull, 根据onPutWaitingEnabled决定等待或者丢弃; 缓冲区空时回调onGetEmpty.
+ * <p>满/空时按WaitStrategy等待(默认ParkingWaitStrategy: 先自旋, 再yield, 最后parkNanos), 不会占用锁.
+ * <p>ProducerBase/ConsumerBase子类只需要在构造函数中换成环形仓库即可.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public abstract class RingWarehouseBase<T> implements IWarehouse<T> {
+
+	private static final String TAG = "RingWarehouseBase";
+
+	/**
+	 * 数组长度, 2的幂次
+	 */
+	protected final int mBufferSize;
+
+	/**
+	 * 序列号转数组下标的掩码
+	 */
+	protected final int mMask;
+
+	/**
+	 * 缓冲区容量(逻辑容量)
+	 */
+	protected volatile int capacity;
+
+	/**
+	 * 缓冲区容量最大值, 不超过数组长度
+	 */
+	protected int mMaxCapacity;
+
+	/**
+	 * 存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+	 */
+	protected boolean mPutFullWaitingDisabled = false;
+
+	/**
+	 * 容量是否自动增长
+	 */
+	protected volatile boolean mCapacityAuto = false;
+
+	protected boolean mDebugMode = false;
+
+	protected OnWarehouseListener<T> mListener;
+
+	/**
+	 * 缓冲区满/空时的等待策略
+	 */
+	protected volatile WaitStrategy mWaitStrategy = new ParkingWaitStrategy();
+
+	/**
+	 * 正在idle的生产者/消费者数量, 为0时放入/取出不调用signalAll
+	 * <p>只有等待的线程修改, 单独占用缓存行避免与序列号伪共享
+	 */
+	private final PaddedAtomicLong mWaiters = new PaddedAtomicLong();
+
+	/**
+	 * 容量策略, 为空时按mCapacityAuto固定梯度增长
+	 */
+	protected volatile CapacityPolicy<T> mCapacityPolicy;
+
+	/**
+	 * 统计, 为空时不统计
+	 */
+	protected volatile WarehouseMetrics mMetrics;
+
+	/**
+	 * 每个槽位的放入时间, 用于统计停留时间. 生产者在发布序列号之前写入, 消费者在回收槽位之前读取
+	 */
+	protected volatile long[] mPutTimes;
+
+	/**
+	 * 缓冲区满时的处理策略, 为空时按checkPutFullWaitingEnabled等待或者丢弃
+	 */
+	protected volatile OverflowPolicy<T> mOverflowPolicy;
+
+	public RingWarehouseBase() {
+		this(WarehouseBase.DEFAULT_PRODUST_CAPACITY, WarehouseBase.MAX_PRODUST_CAPACITY);
+	}
+
+	public RingWarehouseBase(int capacity) {
+		this(capacity, capacity);
+	}
+
+	/**
+	 * 构造函数
+	 * @param capacity 缓冲区容量
+	 * @param maxCapacity 缓冲区容量最大值, 数组长度为其向上取整的2的幂次
+	 */
+	public RingWarehouseBase(int capacity, int maxCapacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		if(maxCapacity < capacity) {
+			maxCapacity = capacity;
+		}
+		this.mBufferSize = roundToPowerOfTwo(maxCapacity);
+		this.mMask = mBufferSize - 1;
+		this.capacity = capacity;
+		this.mMaxCapacity = maxCapacity;
+	}
+
+	/**
+	 * 向上取整为2的幂次
+	 * @param value
+	 * @return
+	 */
+	protected static int roundToPowerOfTwo(int value) {
+		if(value > (1 << 30)) {
+			throw new IllegalArgumentException("capacity is too large: " + value);
+		}
+		int n = 1;
+		while(n < value) {
+			n <<= 1;
+		}
+		return n;
+	}
+
+	/**
+	 * 非阻塞放入产品
+	 * @param product
+	 * @return 缓冲区满时返回false
+	 */
+	public abstract boolean offer(T product);
+
+	/**
+	 * 非阻塞获取产品
+	 * @return 缓冲区为空时返回null
+	 */
+	public abstract T poll();
+
+	/**
+	 * 当前产品数量(并发时为近似值)
+	 * @return
+	 */
+	public abstract int size();
+
+	/**
+	 * 存放产品
+	 * <p>生产者调用，如果缓冲区满了且可以等待，该生产者线程就自旋/park等待.
+	 */
+	@Override
+	public void put(T product) {
+		putProduct(product, -1L);
+	}
+
+	/**
+	 * 获取产品
+	 * <p>消费者调用，如果缓冲区为空，该消费者线程就自旋/park等待.
+	 * @return 线程被中断时返回null
+	 */
+	@Override
+	public T get() {
+		return getProduct(-1L);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products) {
+		return doPutAll(products, -1L);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+		return doPutAll(products, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量存放产品
+	 * @param products
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际放入的数量
+	 */
+	protected int doPutAll(Collection<? extends T> products, long timeoutNanos) {
+		if(products == null || products.isEmpty()) {
+			return 0;
+		}
+		long deadline = System.nanoTime() + timeoutNanos;
+		int count = 0;
+		for(T product : products) {
+			long nanos = timeoutNanos < 0 ? -1L : Math.max(0L, deadline - System.nanoTime());
+			if(putProduct(product, nanos)) {
+				count++;
+			} else if(mOverflowPolicy == null) {
+				break;
+			}
+			//设置了溢出策略时, 没有放入的产品已经按策略处理, 继续放入后面的产品
+		}
+		return count;
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		return doDrainTo(c, maxElements, -1L);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+		return doDrainTo(c, maxElements, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量获取产品: 等待第一个产品, 然后非阻塞取出剩余的
+	 * @param c
+	 * @param maxElements
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际取出的数量
+	 */
+	protected int doDrainTo(Collection<? super T> c, int maxElements, long timeoutNanos) {
+		if(c == null || maxElements <= 0) {
+			return 0;
+		}
+		T product = getProduct(timeoutNanos);
+		if(product == null) {
+			return 0;
+		}
+		c.add(product);
+		int count = 1;
+		while(count < maxElements && (product = poll()) != null) {
+			applyCapacityPolicyOnGet(product);
+			afterGet();
+			c.add(product);
+			count++;
+		}
+		if(count > 1) {
+			signalWaiters();
+		}
+		return count;
+	}
+
+	/**
+	 * 放入产品, 缓冲区满时回调onPutFull, 尝试增长容量, 根据是否可以等待决定等待或者丢弃
+	 * @param product
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 是否放入
+	 */
+	protected boolean putProduct(T product, long timeoutNanos) {
+		if(offer(product)) {
+			afterPut(product);
+			return true;
+		}
+		doPutFullCallback(product);
+		if(fixMaxCapacity() && offer(product)) {
+			afterPut(product);
+			return true;
+		}
+		OverflowPolicy<T> policy = mOverflowPolicy;
+		if(policy != null) {
+			return putOverflow(policy, product, timeoutNanos);
+		}
+		boolean waitingEnabled = checkPutFullWaitingEnabled();
+		if(!waitingEnabled) {
+			//存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,直接略过,避免内存溢出.
+			SysLog.i(TAG, "put: Not prepared, Can not put product=" + product);
+			recordRejected();
+			return false;
+		}
+		if(awaitOffer(product, timeoutNanos)) {
+			return true;
+		}
+		recordRejected();
+		return false;
+	}
+
+	/**
+	 * 缓冲区满时等待放入
+	 * @param product
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 是否放入, 超时或者中断返回false
+	 */
+	private boolean awaitOffer(T product, long timeoutNanos) {
+		if(isDebugMode()) {
+			String thread = getCurrentThreadInfo();
+			SysLog.w(TAG, "putProduct: ## products buffer is full, waiting for thread=" + thread);
+		}
+		long start = System.nanoTime();
+		long deadline = start + timeoutNanos;
+		int idleCount = 0;
+		try {
+			while(!offer(product)) {
+				if(timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+					return false;
+				}
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				idleCount = idle(idleCount);
+			}
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "put Interrupted, Can not put product=" + product + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			WarehouseMetrics metrics = mMetrics;
+			if(metrics != null) {
+				metrics.recordPutBlocked(System.nanoTime() - start);
+			}
+		}
+		afterPut(product);
+		return true;
+	}
+
+	/**
+	 * 缓冲区满且容量不能增长时按溢出策略处理
+	 * <p>无锁仓库中SPILL/CALLER_RUNS直接在调用线程中执行Handler.
+	 * @param policy
+	 * @param product
+	 * @param timeoutNanos 调用者的等待时间, 小于0表示不限制
+	 * @return 是否放入
+	 */
+	private boolean putOverflow(OverflowPolicy<T> policy, T product, long timeoutNanos) {
+		if(policy.shouldWait(product)) {
+			if(!checkPutFullWaitingEnabled()) {
+				policy.report(this, mListener, product, OverflowPolicy.Action.DROP_NEWEST);
+				return false;
+			}
+			long nanos = policy.getTimeoutNanos();
+			if(timeoutNanos >= 0 && (nanos < 0 || timeoutNanos < nanos)) {
+				nanos = timeoutNanos;
+			}
+			if(awaitOffer(product, nanos)) {
+				return true;
+			}
+			policy.report(this, mListener, product,
+					nanos >= 0 ? OverflowPolicy.Action.DROP_TIMEOUT : OverflowPolicy.Action.DROP_NEWEST);
+			return false;
+		}
+		switch (policy.getMode()) {
+		case DROP_OLDEST:
+			//其他生产者可能同时放入, 最多尝试数组长度次
+			for(int i = 0; i < mBufferSize; i++) {
+				T oldest = pollOverflowProduct(product);
+				if(oldest != null) {
+					//与getProduct一样记录取出, 放入和取出数量才能对应
+					applyCapacityPolicyOnGet(oldest);
+					afterGet();
+					policy.report(this, mListener, oldest, OverflowPolicy.Action.DROP_OLDEST);
+				}
+				if(offer(product)) {
+					afterPut(product);
+					return true;
+				}
+			}
+			policy.report(this, mListener, product, OverflowPolicy.Action.DROP_NEWEST);
+			return false;
+		case SPILL:
+		case CALLER_RUNS:
+			try {
+				policy.handoff(product);
+			} catch (Exception e) {
+				SysLog.e(TAG, "putOverflow Exception: " + e, e);
+			}
+			policy.report(this, mListener, product, policy.getDropAction());
+			return false;
+		default:
+			policy.report(this, mListener, product, policy.getDropAction());
+			return false;
+		}
+	}
+
+	/**
+	 * DROP_OLDEST时为放入product取出的旧产品, 默认poll()
+	 * <p>在生产者线程中调用, 只允许一个消费者的仓库不能支持DROP_OLDEST
+	 * @param product 要放入的产品
+	 * @return 为空时返回null
+	 */
+	protected T pollOverflowProduct(T product) {
+		return poll();
+	}
+
+	/**
+	 * 放入成功后唤醒等待的消费者, 并通知容量策略
+	 * @param product
+	 */
+	private void afterPut(T product) {
+		signalWaiters();
+		CapacityPolicy<T> policy = mCapacityPolicy;
+		if(policy != null) {
+			policy.onPut(product, size());
+		}
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordPut(size());
+		}
+	}
+
+	/**
+	 * 取出成功后记录统计
+	 */
+	private void afterGet() {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordGet();
+		}
+	}
+
+	private void recordRejected() {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordRejected(1);
+		}
+	}
+
+	/**
+	 * 记录槽位的放入时间, offer实现在发布序列号之前调用
+	 * @param index 数组下标
+	 */
+	protected final void markPutTime(int index) {
+		long[] times = mPutTimes;
+		if(times != null) {
+			times[index] = System.nanoTime();
+		}
+	}
+
+	/**
+	 * 记录槽位中产品的停留时间, poll实现在回收槽位之前调用
+	 * @param index 数组下标
+	 */
+	protected final void recordSojourn(int index) {
+		long[] times = mPutTimes;
+		WarehouseMetrics metrics = mMetrics;
+		if(times == null || metrics == null) {
+			return;
+		}
+		long putTime = times[index];
+		if(putTime != 0) {
+			metrics.recordSojourn(System.nanoTime() - putTime);
+		}
+	}
+
+	/**
+	 * 取出产品后按容量策略调整容量
+	 * @param product
+	 */
+	private void applyCapacityPolicyOnGet(T product) {
+		CapacityPolicy<T> policy = mCapacityPolicy;
+		if(policy == null) {
+			return;
+		}
+		int old = capacity;
+		int newCapacity = policy.onGet(product, old, size(), Math.min(mMaxCapacity, mBufferSize));
+		if(newCapacity != old) {
+			changeCapacity(newCapacity, "onGet");
+		}
+	}
+
+	/**
+	 * 获取产品, 缓冲区为空时回调onGetEmpty并等待
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 超时或者线程被中断时返回null
+	 */
+	protected T getProduct(long timeoutNanos) {
+		T product = poll();
+		if(product != null) {
+			applyCapacityPolicyOnGet(product);
+			afterGet();
+			signalWaiters();
+			return product;
+		}
+		doGetEmptyCallback();
+		if(isDebugMode()) {
+			String thread = getCurrentThreadInfo();
+			SysLog.w(TAG, "getProduct: ## products is empty, please wait...thread=" + thread);
+		}
+		long start = System.nanoTime();
+		long deadline = start + timeoutNanos;
+		int idleCount = 0;
+		try {
+			while((product = poll()) == null) {
+				if(timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+					return null;
+				}
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				idleCount = idle(idleCount);
+			}
+		} catch (InterruptedException e) {
+			//消费者被停止时会中断等待, 不是错误, 保留中断状态交给调用者处理
+			if(isDebugMode()) {
+				SysLog.i(TAG, "get Interrupted, thread=" + getCurrentThreadInfo());
+			}
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			WarehouseMetrics metrics = mMetrics;
+			if(metrics != null) {
+				metrics.recordGetIdle(System.nanoTime() - start);
+			}
+		}
+		applyCapacityPolicyOnGet(product);
+		afterGet();
+		signalWaiters();
+		return product;
+	}
+
+	/**
+	 * 按等待策略等待一次
+	 * @param idleCount 连续等待次数
+	 * @return 下一次的等待次数
+	 * @throws InterruptedException
+	 */
+	protected int idle(int idleCount) throws InterruptedException {
+		mWaiters.incrementAndGet();
+		try {
+			mWaitStrategy.idle(idleCount);
+		} finally {
+			mWaiters.decrementAndGet();
+		}
+		return idleCount + 1;
+	}
+
+	/**
+	 * 有线程在idle时才唤醒
+	 * <p>检查计数和进入等待之间的唤醒可能丢失, 由等待策略每次最多等待一段时间兜底
+	 */
+	protected final void signalWaiters() {
+		if(mWaiters.get() > 0) {
+			mWaitStrategy.signalAll();
+		}
+	}
+
+	/**
+	 * 检查缓冲区满时,是否启用等待
+	 * <p>主线程默认不能等待,避免android出现ANE
+	 * @return
+	 */
+	protected boolean checkPutFullWaitingEnabled() {
+		if(mPutFullWaitingDisabled) {
+			return false;
+		}
+		String threadName = Thread.currentThread().getName();
+		//默认可等待
+		boolean waitingEnabled = true;
+		if("main".equals(threadName)) {
+			//主线程默认不能等待,在android中,等待会出现ANR
+			waitingEnabled = false;
+		}
+		if(mListener != null) {
+			waitingEnabled = mListener.onPutWaitingEnabled(this);
+		}
+		return waitingEnabled;
+	}
+
+	/**
+	 * Put满时回调
+	 * @param product
+	 */
+	protected void doPutFullCallback(T product) {
+		if(mListener != null) {
+			mListener.onPutFull(this, product);
+		}
+	}
+
+	/**
+	 * Get为空时回调
+	 */
+	protected void doGetEmptyCallback() {
+		if(mListener != null) {
+			mListener.onGetEmpty(this);
+		}
+	}
+
+	/**
+	 * 容量自动增长: 每次增加一个变化梯度, 不超过最大容量和数组长度
+	 * @return 容量是否有增长
+	 */
+	public boolean fixMaxCapacity() {
+		CapacityPolicy<T> policy = mCapacityPolicy;
+		if(policy == null && !mCapacityAuto) {
+			return false;
+		}
+		int limit = Math.min(mMaxCapacity, mBufferSize);
+		int old = capacity;
+		if(old >= limit) {
+			return false;
+		}
+		int fixCapacity;
+		if(policy != null) {
+			fixCapacity = policy.onPutFull(old, size(), limit);
+			if(fixCapacity <= old) {
+				return false;
+			}
+		} else {
+			fixCapacity = old + WarehouseBase.CAPACITY_GRADIENT_UNIT;
+		}
+		changeCapacity(fixCapacity, "fixMaxCapacity");
+		SysLog.w(TAG, "fixMaxCapacity: Fixed capacity=" + capacity);
+		return true;
+	}
+
+	/**
+	 * 修改容量并回调OnWarehouseCapacityListener
+	 * <p>多个线程同时调整时以最后一次为准.
+	 * @param newCapacity 限制在[1, min(maxCapacity, bufferSize)]
+	 * @param reason
+	 */
+	protected void changeCapacity(int newCapacity, String reason) {
+		int oldCapacity = capacity;
+		newCapacity = Math.max(1, Math.min(newCapacity, Math.min(mMaxCapacity, mBufferSize)));
+		if(newCapacity == oldCapacity) {
+			return;
+		}
+		capacity = newCapacity;
+		if(isDebugMode()) {
+			SysLog.i(TAG, "changeCapacity: " + oldCapacity + " -> " + newCapacity + ", reason=" + reason
+					+ ", policy=" + mCapacityPolicy);
+		}
+		if(mListener instanceof OnWarehouseCapacityListener) {
+			((OnWarehouseCapacityListener<T>) mListener).onCapacityChanged(this, oldCapacity, newCapacity, reason);
+		}
+	}
+
+	/**
+	 * 设置容量策略, 代替mCapacityAuto的固定梯度增长, 为空时恢复原来的增长方式
+	 * <p>无锁仓库中策略会被多个线程同时调用.
+	 * @param capacityPolicy
+	 */
+	public void setCapacityPolicy(CapacityPolicy<T> capacityPolicy) {
+		this.mCapacityPolicy = capacityPolicy;
+	}
+
+	public CapacityPolicy<T> getCapacityPolicy() {
+		return this.mCapacityPolicy;
+	}
+
+	/**
+	 * 设置缓冲区满时的处理策略, 为空时恢复原来的等待或者丢弃
+	 * @param overflowPolicy
+	 */
+	public void setOverflowPolicy(OverflowPolicy<T> overflowPolicy) {
+		this.mOverflowPolicy = overflowPolicy;
+	}
+
+	public OverflowPolicy<T> getOverflowPolicy() {
+		return this.mOverflowPolicy;
+	}
+
+	/**
+	 * 启用或者关闭统计
+	 * <p>需要在生产者/消费者启动之前设置.
+	 * @param enabled
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if(!enabled) {
+			mMetrics = null;
+			mPutTimes = null;
+			return;
+		}
+		if(mMetrics == null) {
+			setMetrics(new WarehouseMetrics(this));
+		}
+	}
+
+	/**
+	 * 使用指定的统计对象, 例如多个仓库合并统计
+	 * @param metrics
+	 */
+	protected void setMetrics(WarehouseMetrics metrics) {
+		mPutTimes = new long[mBufferSize];
+		mMetrics = metrics;
+	}
+
+	public boolean isMetricsEnabled() {
+		return mMetrics != null;
+	}
+
+	@Override
+	public WarehouseMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	public boolean isProductBufferEmpty() {
+		return size() <= 0;
+	}
+
+	public boolean isProductBufferFull() {
+		return size() >= capacity;
+	}
+
+	public void setCapacity(int capacity) {
+		if(capacity <= 0 || capacity > mBufferSize) {
+			throw new IllegalArgumentException("capacity must be in [1, " + mBufferSize + "]: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * 设置缓冲区容量最大值, 不能超过数组长度
+	 * @param maxCapacity
+	 */
+	public void setMaxCapacity(int maxCapacity) {
+		if(maxCapacity > mBufferSize) {
+			SysLog.w(TAG, "setMaxCapacity: maxCapacity=" + maxCapacity + " is limited to buffer size " + mBufferSize);
+			maxCapacity = mBufferSize;
+		}
+		this.mMaxCapacity = maxCapacity;
+	}
+
+	public int getMaxCapacity() {
+		return this.mMaxCapacity;
+	}
+
+	/**
+	 * 数组长度
+	 * @return
+	 */
+	public int getBufferSize() {
+		return this.mBufferSize;
+	}
+
+	public void setCapacityAuto(boolean capacityAuto) {
+		this.mCapacityAuto = capacityAuto;
+	}
+
+	/**
+	 * 设置缓冲区满/空时的等待策略, 需要在生产者/消费者启动之前设置
+	 * @param waitStrategy
+	 */
+	public void setWaitStrategy(WaitStrategy waitStrategy) {
+		if(waitStrategy == null) {
+			throw new IllegalArgumentException("waitStrategy is null");
+		}
+		this.mWaitStrategy = waitStrategy;
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return this.mWaitStrategy;
+	}
+
+	/**
+	 * 获取当前线程信息
+	 * @return
+	 */
+	protected String getCurrentThreadInfo() {
+		return SysLog.getCurrentThreadInfo();
+	}
+
+	public void setDebugMode(boolean debugMode) {
+    	this.mDebugMode = debugMode;
+    }
+
+    public boolean isDebugMode() {
+    	return this.mDebugMode;
+    }
+
+    /**
+     * 设置监听器, 监听器的产品类型由调用者保证与仓库一致
+     */
+    @SuppressWarnings("unchecked")
+    public void setListener(OnWarehouseListener<?> listener) {
+    	mListener = (OnWarehouseListener<T>) listener;
+	}
+
+    /**
+     * 设置存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+     * @param putFullWaitingDisabled
+     */
+    public void setPutFullWaitingDisabled(boolean putFullWaitingDisabled) {
+    	this.mPutFullWaitingDisabled = putFullWaitingDisabled;
+    }
+
+    /**
+     * 禁用存放缓存等待: 在缓冲区满,如果线程不能等待,就把产品丢弃,避免等待.
+     */
+    public void disablePutFullWaiting() {
+    	this.mPutFullWaitingDisabled = true;
+    }
+
+    protected static void checkNotNull(Object product) {
+    	if(product == null) {
+    		throw new NullPointerException("product is null");
+    	}
+    }
+
+    @Override
+    public String toString() {
+    	return getClass().getSimpleName() + "[size=" + size() + ", capacity=" + capacity
+    			+ ", maxCapacity=" + mMaxCapacity + ", bufferSize=" + mBufferSize + "]";
+    }
+}
@@ -0,0 +1,277 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分片仓库
+ * <p>内部由N个RingWarehouse分片组成, 多个生产者分散到不同分片存放, 不再争用同一个锁或者同一个序列号,
+ * 存放吞吐量可以随CPU核数增长.
+ * <p>分片规则:
+ * <p>1. 默认按线程分片: 每个线程第一次访问时轮流分配一个本地分片, 本地分片满时依次尝试其他分片;
+ * <p>2. 设置KeySelector后按key分片: 相同key的产品总是存放在同一个分片, 分片满时按容量语义等待或丢弃.
+ * <p>消费者先从本地分片获取, 本地分片为空时依次从其他分片窃取(work-stealing).
+ * <p>顺序: 不保证全局FIFO; 按key分片时相同key的产品出队顺序为FIFO.
+ * 如果需要相同key严格按顺序处理, 每个分片使用一个消费者直接消费getShard(index).
+ * <p>容量为所有分片的总容量, 平均分配到每个分片.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class ShardedWarehouse<T> extends RingWarehouseBase<T> {
+
+	private static final String TAG = "ShardedWarehouse";
+
+	/**
+	 * 产品分片的key
+	 * @param <T>
+	 */
+	public interface KeySelector<T> {
+		/**
+		 * 获取产品的key, 相同key的产品存放在同一个分片
+		 * @param product
+		 * @return
+		 */
+		Object getKey(T product);
+	}
+
+	/**
+	 * 分片, 数量为2的幂次
+	 */
+	protected final RingWarehouse<T>[] mShards;
+
+	/**
+	 * 分片下标掩码
+	 */
+	protected final int mShardMask;
+
+	/**
+	 * 按key分片, 为空时按线程分片
+	 */
+	protected final KeySelector<? super T> mKeySelector;
+
+	/**
+	 * 线程本地分片的分配序号
+	 */
+	private final AtomicInteger mNextHome = new AtomicInteger();
+
+	/**
+	 * 线程本地分片
+	 */
+	private final ThreadLocal<Integer> mHome = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return mNextHome.getAndIncrement() & mShardMask;
+		}
+	};
+
+	/**
+	 * 分片数量为CPU核数
+	 */
+	public ShardedWarehouse() {
+		this(Runtime.getRuntime().availableProcessors(), WarehouseBase.DEFAULT_PRODUST_CAPACITY,
+				WarehouseBase.MAX_PRODUST_CAPACITY);
+	}
+
+	public ShardedWarehouse(int shardCount, int capacity) {
+		this(shardCount, capacity, capacity);
+	}
+
+	public ShardedWarehouse(int shardCount, int capacity, int maxCapacity) {
+		this(shardCount, capacity, maxCapacity, null);
+	}
+
+	/**
+	 * 构造函数
+	 * @param shardCount 分片数量, 向上取整为2的幂次
+	 * @param capacity 总容量
+	 * @param maxCapacity 总容量最大值
+	 * @param keySelector 按key分片, 为空时按线程分片
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardedWarehouse(int shardCount, int capacity, int maxCapacity, KeySelector<? super T> keySelector) {
+		super(capacity, maxCapacity);
+		if(shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+		}
+		int count = roundToPowerOfTwo(shardCount);
+		this.mShardMask = count - 1;
+		this.mKeySelector = keySelector;
+		this.mShards = (RingWarehouse<T>[]) new RingWarehouse<?>[count];
+		int shardCapacity = shardCapacity(this.capacity);
+		int shardMaxCapacity = shardCapacity(this.mMaxCapacity);
+		for(int i = 0; i < count; i++) {
+			mShards[i] = new RingWarehouse<T>(shardCapacity, shardMaxCapacity);
+		}
+		SysLog.i(TAG, "ShardedWarehouse: shardCount=" + count + ", shardCapacity=" + shardCapacity
+				+ ", keySelector=" + keySelector);
+	}
+
+	/**
+	 * 每个分片的容量, 向上取整
+	 * @param total
+	 * @return
+	 */
+	protected int shardCapacity(int total) {
+		int count = mShardMask + 1;
+		return Math.max(1, (total + count - 1) / count);
+	}
+
+	/**
+	 * 产品对应的分片下标
+	 * @param product
+	 * @return
+	 */
+	protected int shardIndex(T product) {
+		if(mKeySelector != null) {
+			Object key = mKeySelector.getKey(product);
+			int h = key == null ? 0 : key.hashCode();
+			//高位参与运算, 避免hashCode低位相同时集中到一个分片
+			h ^= (h >>> 16);
+			return h & mShardMask;
+		}
+		return mHome.get();
+	}
+
+	@Override
+	public boolean offer(T product) {
+		checkNotNull(product);
+		int index = shardIndex(product);
+		if(mShards[index].offer(product)) {
+			return true;
+		}
+		if(mKeySelector != null) {
+			//按key分片时不能换分片, 否则相同key的产品会乱序
+			return false;
+		}
+		for(int i = 1; i <= mShardMask; i++) {
+			if(mShards[(index + i) & mShardMask].offer(product)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public T poll() {
+		int home = mHome.get();
+		T product = mShards[home].poll();
+		if(product != null) {
+			return product;
+		}
+		//本地分片为空, 从其他分片窃取
+		for(int i = 1; i <= mShardMask; i++) {
+			product = mShards[(home + i) & mShardMask].poll();
+			if(product != null) {
+				return product;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 按key分片时只能从产品所在的分片丢弃, 其他分片腾出位置也放不进去
+	 */
+	@Override
+	protected T pollOverflowProduct(T product) {
+		if(mKeySelector != null) {
+			return mShards[shardIndex(product)].poll();
+		}
+		return super.pollOverflowProduct(product);
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(RingWarehouse<T> shard : mShards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	/**
+	 * 分片共用同一个统计对象, 停留时间在分片中记录
+	 */
+	@Override
+	protected void setMetrics(WarehouseMetrics metrics) {
+		super.setMetrics(metrics);
+		for(RingWarehouse<T> shard : mShards) {
+			shard.setMetrics(metrics);
+		}
+	}
+
+	@Override
+	public void setMetricsEnabled(boolean enabled) {
+		super.setMetricsEnabled(enabled);
+		if(!enabled) {
+			for(RingWarehouse<T> shard : mShards) {
+				shard.setMetricsEnabled(false);
+			}
+		}
+	}
+
+	@Override
+	protected void changeCapacity(int newCapacity, String reason) {
+		super.changeCapacity(newCapacity, reason);
+		applyShardCapacity();
+	}
+
+	@Override
+	public void setCapacity(int capacity) {
+		super.setCapacity(capacity);
+		applyShardCapacity();
+	}
+
+	@Override
+	public void setMaxCapacity(int maxCapacity) {
+		super.setMaxCapacity(maxCapacity);
+		int shardMaxCapacity = shardCapacity(this.mMaxCapacity);
+		for(RingWarehouse<T> shard : mShards) {
+			shard.setMaxCapacity(shardMaxCapacity);
+		}
+	}
+
+	/**
+	 * 总容量变化后重新分配每个分片的容量
+	 */
+	protected void applyShardCapacity() {
+		int shardCapacity = shardCapacity(this.capacity);
+		for(RingWarehouse<T> shard : mShards) {
+			shard.setCapacity(Math.min(shardCapacity, shard.getBufferSize()));
+		}
+	}
+
+	/**
+	 * 把当前线程绑定到指定分片, 之后按线程分片存放和优先获取都使用该分片
+	 * @param index
+	 */
+	public void bindShard(int index) {
+		if(index < 0 || index > mShardMask) {
+			throw new IllegalArgumentException("shard index must be in [0, " + mShardMask + "]: " + index);
+		}
+		mHome.set(index);
+	}
+
+	/**
+	 * 获取分片, 用于每个分片单独消费(相同key严格按顺序处理)
+	 * <p>直接从分片获取时使用分片自己的等待策略.
+	 * @param index
+	 * @return
+	 */
+	public RingWarehouse<T> getShard(int index) {
+		return mShards[index];
+	}
+
+	public int getShardCount() {
+		return mShards.length;
+	}
+
+	public KeySelector<? super T> getKeySelector() {
+		return mKeySelector;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size() + ", capacity=" + capacity
+				+ ", maxCapacity=" + mMaxCapacity + ", shardCount=" + mShards.length + "]";
+	}
+}
@@ -0,0 +1,44 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 固定睡眠等待策略
+ * <p>每次Thread.sleep固定毫秒数, 与原来的sleepTime行为相同, 适合对延迟不敏感的后台任务.
+ * @author zhanghao
+ *
+ */
+public class SleepingWaitStrategy implements WaitStrategy {
+
+	private final long mSleepTime;
+
+	public SleepingWaitStrategy() {
+		this(IPCModel.DEFAULT_ONCE_SLEEP_TIME);
+	}
+
+	/**
+	 * @param sleepTime 每次睡眠毫秒数, 0表示不睡眠
+	 */
+	public SleepingWaitStrategy(long sleepTime) {
+		this.mSleepTime = sleepTime;
+	}
+
+	@Override
+	public void idle(int idleCount) throws InterruptedException {
+		if(mSleepTime > 0) {
+			Thread.sleep(mSleepTime);
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		//不需要唤醒
+	}
+
+	public long getSleepTime() {
+		return mSleepTime;
+	}
+
+	@Override
+	public String toString() {
+		return "SleepingWaitStrategy[sleepTime=" + mSleepTime + "]";
+	}
+}
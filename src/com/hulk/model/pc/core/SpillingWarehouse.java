@@ -0,0 +1,569 @@
+package com.hulk.model.pc.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 溢出到磁盘的仓库
+ * <p>内存中是一个有界的RingWarehouse, 内存满时产品经Serializer序列化后追加到磁盘分段文件,
+ * 内存取空后再按FIFO顺序从磁盘读回. 突发大量产品时既不会内存溢出, 也不会阻塞生产者.
+ * <p>顺序: 一旦开始溢出, 之后放入的产品都写入磁盘, 直到磁盘中的产品全部被取出, 因此同一个生产者的产品保持FIFO.
+ * <p>磁盘文件:
+ * <p>1. 每条记录为[4字节长度][数据], 通过RandomAccessFile和缓冲区批量写入;
+ * 不使用FileChannel, 因为线程被中断(例如停止消费者)时FileChannel会被关闭, 导致磁盘中的产品读不出来;
+ * <p>2. 文件超过segmentBytes后换新的分段, 读完的分段立即删除, 磁盘取空后删除所有分段;
+ * <p>3. 分段文件只是临时缓冲, 不保证进程退出后可以恢复, 构造时会删除目录中遗留的分段.
+ * <p>超过maxSpillBytes或者磁盘写入失败时offer返回false, 此时按容量语义和OverflowPolicy等待或者丢弃.
+ * <p>例如日志: new LogConsumer(new SpillingWarehouse&lt;String&gt;(dir, SpillingWarehouse.STRING_SERIALIZER, 1024)).
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class SpillingWarehouse<T> extends RingWarehouseBase<T> {
+
+	private static final String TAG = "SpillingWarehouse";
+
+	/**
+	 * 分段文件后缀
+	 */
+	public static final String SEGMENT_SUFFIX = ".spill";
+
+	/**
+	 * 默认每个分段64M
+	 */
+	public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	private static final int RECORD_HEADER_SIZE = 4;
+
+	/**
+	 * 产品序列化
+	 * @param <T>
+	 */
+	public interface Serializer<T> {
+		byte[] serialize(T product);
+
+		T deserialize(byte[] data);
+	}
+
+	/**
+	 * 字符串序列化(UTF-8)
+	 */
+	public static final Serializer<String> STRING_SERIALIZER = new Serializer<String>() {
+		private final Charset mCharset = Charset.forName("UTF-8");
+
+		@Override
+		public byte[] serialize(String product) {
+			return product.getBytes(mCharset);
+		}
+
+		@Override
+		public String deserialize(byte[] data) {
+			return new String(data, mCharset);
+		}
+	};
+
+	/**
+	 * 内存缓冲区
+	 */
+	protected final RingWarehouse<T> mMemory;
+
+	protected final Serializer<T> mSerializer;
+
+	/**
+	 * 分段文件目录
+	 */
+	protected final File mDir;
+
+	/**
+	 * 磁盘读写锁, 同时保护是否溢出状态的切换
+	 */
+	private final ReentrantLock mSpillLock = new ReentrantLock();
+
+	/**
+	 * 是否正在溢出: 为true时新产品直接写入磁盘, 保证顺序
+	 */
+	private volatile boolean mSpilling = false;
+
+	/**
+	 * 磁盘写入失败后不再溢出
+	 */
+	private volatile boolean mSpillDisabled = false;
+
+	private volatile long mSegmentBytes = DEFAULT_SEGMENT_BYTES;
+
+	/**
+	 * 磁盘最多占用的字节数, 小于等于0表示不限制
+	 */
+	private volatile long mMaxSpillBytes = 0;
+
+	/**
+	 * 磁盘中的产品数量和字节数
+	 */
+	private volatile int mSpilledCount = 0;
+	private volatile long mSpilledBytes = 0;
+
+	/**
+	 * 累计溢出的产品数量
+	 */
+	private volatile long mTotalSpilledCount = 0;
+
+	private long mWriteSegment = -1;
+	private long mWriteSegmentBytes = 0;
+	private RandomAccessFile mWriteFile;
+	private final ByteBuffer mWriteBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+
+	/**
+	 * 读取单独打开文件, 读写同一个分段时各自有自己的文件位置
+	 */
+	private long mReadSegment = -1;
+	private RandomAccessFile mReadFile;
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(IO_BUFFER_SIZE);
+
+	public SpillingWarehouse(File dir, Serializer<T> serializer) {
+		this(dir, serializer, WarehouseBase.DEFAULT_PRODUST_CAPACITY, WarehouseBase.MAX_PRODUST_CAPACITY);
+	}
+
+	public SpillingWarehouse(File dir, Serializer<T> serializer, int capacity) {
+		this(dir, serializer, capacity, capacity);
+	}
+
+	/**
+	 * 构造函数
+	 * @param dir 分段文件目录, 不存在时创建
+	 * @param serializer 产品序列化
+	 * @param capacity 内存容量
+	 * @param maxCapacity 内存容量最大值
+	 */
+	public SpillingWarehouse(File dir, Serializer<T> serializer, int capacity, int maxCapacity) {
+		super(capacity, maxCapacity);
+		if(dir == null) {
+			throw new IllegalArgumentException("dir is null");
+		}
+		if(serializer == null) {
+			throw new IllegalArgumentException("serializer is null");
+		}
+		this.mDir = dir;
+		this.mSerializer = serializer;
+		this.mMemory = new RingWarehouse<T>(this.capacity, this.mMaxCapacity);
+		if(!dir.exists() && !dir.mkdirs()) {
+			SysLog.e(TAG, "SpillingWarehouse: Failed to create dir: " + dir);
+		}
+		deleteSegments();
+		mReadBuffer.flip();
+		mWriteBuffer.clear();
+	}
+
+	@Override
+	public boolean offer(T product) {
+		checkNotNull(product);
+		if(!mSpilling && mMemory.offer(product)) {
+			return true;
+		}
+		if(mSpillDisabled) {
+			return false;
+		}
+		return spill(product);
+	}
+
+	@Override
+	public T poll() {
+		T product = mMemory.poll();
+		if(product != null || !mSpilling) {
+			return product;
+		}
+		byte[] data = null;
+		mSpillLock.lock();
+		try {
+			if(mSpilledCount > 0) {
+				data = readRecord();
+			}
+			if(mSpilledCount <= 0) {
+				//磁盘已经取空, 恢复直接放入内存
+				mSpilling = false;
+				closeSegments();
+			}
+		} finally {
+			mSpillLock.unlock();
+		}
+		if(data == null) {
+			//溢出期间内存中仍可能有产品(并发放入)
+			return mMemory.poll();
+		}
+		return mSerializer.deserialize(data);
+	}
+
+	@Override
+	public int size() {
+		return mMemory.size() + mSpilledCount;
+	}
+
+	/**
+	 * 序列化后写入磁盘
+	 * @param product
+	 * @return 超过maxSpillBytes或者写入失败返回false
+	 */
+	protected boolean spill(T product) {
+		//在锁外序列化
+		byte[] data = mSerializer.serialize(product);
+		int recordSize = RECORD_HEADER_SIZE + data.length;
+		mSpillLock.lock();
+		try {
+			if(mSpillDisabled) {
+				return false;
+			}
+			long maxSpillBytes = mMaxSpillBytes;
+			if(maxSpillBytes > 0 && mSpilledBytes + recordSize > maxSpillBytes) {
+				return false;
+			}
+			if(!mSpilling) {
+				if(mMemory.offer(product)) {
+					//获取锁期间内存有了空位
+					return true;
+				}
+				mSpilling = true;
+				SysLog.w(TAG, "spill: memory is full, spilling to " + mDir + ", size=" + mMemory.size());
+			}
+			writeRecord(data);
+			mSpilledCount++;
+			mSpilledBytes += recordSize;
+			mTotalSpilledCount++;
+			return true;
+		} catch (IOException e) {
+			SysLog.e(TAG, "spill IOException: " + e, e);
+			mSpillDisabled = true;
+			return false;
+		} finally {
+			mSpillLock.unlock();
+		}
+	}
+
+	/**
+	 * 写入一条记录, 需要持有锁
+	 * @param data
+	 * @throws IOException
+	 */
+	private void writeRecord(byte[] data) throws IOException {
+		if(mWriteFile == null || mWriteSegmentBytes >= mSegmentBytes) {
+			nextWriteSegment();
+		}
+		int recordSize = RECORD_HEADER_SIZE + data.length;
+		if(recordSize > mWriteBuffer.remaining()) {
+			flushWriteBuffer();
+		}
+		if(recordSize > mWriteBuffer.remaining()) {
+			//大记录直接写入
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+			header.putInt(data.length).flip();
+			writeFully(header);
+			writeFully(ByteBuffer.wrap(data));
+		} else {
+			mWriteBuffer.putInt(data.length);
+			mWriteBuffer.put(data);
+		}
+		mWriteSegmentBytes += recordSize;
+	}
+
+	/**
+	 * 换新的写入分段
+	 * @throws IOException
+	 */
+	private void nextWriteSegment() throws IOException {
+		if(mWriteFile != null) {
+			flushWriteBuffer();
+			mWriteFile.close();
+			mWriteFile = null;
+		}
+		mWriteSegment++;
+		mWriteSegmentBytes = 0;
+		if(mReadSegment < 0) {
+			mReadSegment = mWriteSegment;
+		}
+		mWriteFile = new RandomAccessFile(segmentFile(mWriteSegment), "rw");
+	}
+
+	private void flushWriteBuffer() throws IOException {
+		if(mWriteBuffer.position() == 0) {
+			return;
+		}
+		mWriteBuffer.flip();
+		writeFully(mWriteBuffer);
+		mWriteBuffer.clear();
+	}
+
+	/**
+	 * 追加到写入分段, 写入文件只有写入者使用, 文件位置一直在末尾
+	 * @param buffer 堆内存缓冲区
+	 * @throws IOException
+	 */
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		mWriteFile.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		buffer.position(buffer.limit());
+	}
+
+	/**
+	 * 读取一条记录, 需要持有锁
+	 * @return 读取失败返回null, 并丢弃磁盘中剩余的产品
+	 */
+	private byte[] readRecord() {
+		try {
+			if(!fillReadBuffer(RECORD_HEADER_SIZE)) {
+				throw new IOException("Missing record header, spilledCount=" + mSpilledCount);
+			}
+			int length = mReadBuffer.getInt();
+			if(length < 0) {
+				throw new IOException("Invalid record length: " + length);
+			}
+			byte[] data = new byte[length];
+			int offset = 0;
+			while(offset < length) {
+				if(!mReadBuffer.hasRemaining() && !fillReadBuffer(1)) {
+					throw new IOException("Truncated record, length=" + length + ", read=" + offset);
+				}
+				int n = Math.min(length - offset, mReadBuffer.remaining());
+				mReadBuffer.get(data, offset, n);
+				offset += n;
+			}
+			mSpilledCount--;
+			mSpilledBytes -= RECORD_HEADER_SIZE + length;
+			return data;
+		} catch (IOException e) {
+			SysLog.e(TAG, "readRecord IOException: " + e + ", lost spilledCount=" + mSpilledCount, e);
+			mSpilledCount = 0;
+			mSpilledBytes = 0;
+			return null;
+		}
+	}
+
+	/**
+	 * 读取缓冲区中至少有required个字节, 当前分段读完后切换到下一个分段并删除读完的分段
+	 * @param required
+	 * @return 没有更多数据返回false
+	 * @throws IOException
+	 */
+	private boolean fillReadBuffer(int required) throws IOException {
+		while(mReadBuffer.remaining() < required) {
+			if(mReadFile == null) {
+				if(mReadSegment < 0 || mReadSegment > mWriteSegment) {
+					return false;
+				}
+				mReadFile = new RandomAccessFile(segmentFile(mReadSegment), "r");
+			}
+			if(mReadSegment == mWriteSegment) {
+				//正在写入的分段, 先把缓冲的数据写到文件
+				flushWriteBuffer();
+			}
+			mReadBuffer.compact();
+			int n = mReadFile.read(mReadBuffer.array(), mReadBuffer.arrayOffset() + mReadBuffer.position(),
+					mReadBuffer.remaining());
+			if(n > 0) {
+				mReadBuffer.position(mReadBuffer.position() + n);
+			}
+			mReadBuffer.flip();
+			if(n > 0) {
+				continue;
+			}
+			if(mReadSegment >= mWriteSegment) {
+				return false;
+			}
+			//分段读完, 记录不会跨分段
+			mReadFile.close();
+			mReadFile = null;
+			deleteSegment(mReadSegment);
+			mReadSegment++;
+		}
+		return true;
+	}
+
+	/**
+	 * 磁盘取空后关闭并删除所有分段, 需要持有锁
+	 */
+	private void closeSegments() {
+		closeQuietly(mReadFile);
+		closeQuietly(mWriteFile);
+		mReadFile = null;
+		mWriteFile = null;
+		mWriteBuffer.clear();
+		mReadBuffer.clear();
+		mReadBuffer.flip();
+		for(long segment = Math.max(0, mReadSegment); segment <= mWriteSegment; segment++) {
+			deleteSegment(segment);
+		}
+		mReadSegment = -1;
+		mWriteSegment = -1;
+		mWriteSegmentBytes = 0;
+		mSpilledCount = 0;
+		mSpilledBytes = 0;
+	}
+
+	private void closeQuietly(RandomAccessFile file) {
+		if(file == null) {
+			return;
+		}
+		try {
+			file.close();
+		} catch (IOException e) {
+			SysLog.w(TAG, "closeQuietly: " + e);
+		}
+	}
+
+	protected File segmentFile(long segment) {
+		return new File(mDir, String.format(Locale.US, "%016d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private void deleteSegment(long segment) {
+		File file = segmentFile(segment);
+		if(file.exists() && !file.delete()) {
+			SysLog.w(TAG, "deleteSegment: Failed to delete " + file);
+		}
+	}
+
+	/**
+	 * 删除目录中遗留的分段文件
+	 */
+	private void deleteSegments() {
+		File[] files = mDir.listFiles();
+		if(files == null) {
+			return;
+		}
+		for(File file : files) {
+			if(file.getName().endsWith(SEGMENT_SUFFIX) && !file.delete()) {
+				SysLog.w(TAG, "deleteSegments: Failed to delete " + file);
+			}
+		}
+	}
+
+	/**
+	 * 关闭并删除磁盘文件, 磁盘中未取出的产品被丢弃
+	 * @return 丢弃的产品数量
+	 */
+	public int close() {
+		mSpillLock.lock();
+		try {
+			int lost = mSpilledCount;
+			mSpillDisabled = true;
+			mSpilling = false;
+			closeSegments();
+			if(lost > 0) {
+				SysLog.w(TAG, "close: dropped spilled products: " + lost);
+			}
+			return lost;
+		} finally {
+			mSpillLock.unlock();
+		}
+	}
+
+	/**
+	 * 分段文件大小, 超过后换新的分段
+	 * @param segmentBytes
+	 */
+	public void setSegmentBytes(long segmentBytes) {
+		if(segmentBytes <= 0) {
+			throw new IllegalArgumentException("segmentBytes must be positive: " + segmentBytes);
+		}
+		this.mSegmentBytes = segmentBytes;
+	}
+
+	public long getSegmentBytes() {
+		return mSegmentBytes;
+	}
+
+	/**
+	 * 磁盘最多占用的字节数, 小于等于0表示不限制
+	 * @param maxSpillBytes
+	 */
+	public void setMaxSpillBytes(long maxSpillBytes) {
+		this.mMaxSpillBytes = maxSpillBytes;
+	}
+
+	public long getMaxSpillBytes() {
+		return mMaxSpillBytes;
+	}
+
+	public boolean isSpilling() {
+		return mSpilling;
+	}
+
+	/**
+	 * 磁盘中的产品数量
+	 * @return
+	 */
+	public int getSpilledCount() {
+		return mSpilledCount;
+	}
+
+	/**
+	 * 磁盘中的字节数
+	 * @return
+	 */
+	public long getSpilledBytes() {
+		return mSpilledBytes;
+	}
+
+	/**
+	 * 累计溢出到磁盘的产品数量
+	 * @return
+	 */
+	public long getTotalSpilledCount() {
+		return mTotalSpilledCount;
+	}
+
+	public File getDir() {
+		return mDir;
+	}
+
+	/**
+	 * 内存缓冲区
+	 * @return
+	 */
+	public RingWarehouse<T> getMemory() {
+		return mMemory;
+	}
+
+	/**
+	 * 统计对象共用, 停留时间只统计内存中的产品
+	 */
+	@Override
+	protected void setMetrics(WarehouseMetrics metrics) {
+		super.setMetrics(metrics);
+		mMemory.setMetrics(metrics);
+	}
+
+	@Override
+	public void setMetricsEnabled(boolean enabled) {
+		super.setMetricsEnabled(enabled);
+		if(!enabled) {
+			mMemory.setMetricsEnabled(false);
+		}
+	}
+
+	@Override
+	protected void changeCapacity(int newCapacity, String reason) {
+		super.changeCapacity(newCapacity, reason);
+		mMemory.setCapacity(Math.min(this.capacity, mMemory.getBufferSize()));
+	}
+
+	@Override
+	public void setCapacity(int capacity) {
+		super.setCapacity(capacity);
+		mMemory.setCapacity(Math.min(this.capacity, mMemory.getBufferSize()));
+	}
+
+	@Override
+	public void setMaxCapacity(int maxCapacity) {
+		super.setMaxCapacity(maxCapacity);
+		mMemory.setMaxCapacity(this.mMaxCapacity);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + size() + ", capacity=" + capacity
+				+ ", spilledCount=" + mSpilledCount + ", spilledBytes=" + mSpilledBytes + ", dir=" + mDir + "]";
+	}
+}
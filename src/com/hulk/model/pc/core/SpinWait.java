@@ -0,0 +1,46 @@
+package com.hulk.model.pc.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * 自旋等待提示
+ * <p>Thread.onSpinWait是JDK 9加入的, 直接调用时低版本编译不通过.
+ * 这里查找一次并缓存MethodHandle, 没有该方法时什么都不做(与普通的空循环一样).
+ * @author zhanghao
+ *
+ */
+final class SpinWait {
+
+	/**
+	 * Thread.onSpinWait, 低版本JDK为null
+	 */
+	private static final MethodHandle ON_SPIN_WAIT = findOnSpinWait();
+
+	private SpinWait() {
+	}
+
+	private static MethodHandle findOnSpinWait() {
+		try {
+			return MethodHandles.lookup().findStatic(Thread.class, "onSpinWait", MethodType.methodType(void.class));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * 提示CPU当前在自旋等待, 例如x86的PAUSE指令
+	 */
+	static void onSpinWait() {
+		MethodHandle handle = ON_SPIN_WAIT;
+		if(handle == null) {
+			return;
+		}
+		try {
+			handle.invokeExact();
+		} catch (Throwable e) {
+			//onSpinWait不会抛出异常
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 无锁环形数组仓库: 单生产者-单消费者(SPSC)
+ * <p>读写序列号各自只有一个线程修改, 不需要CAS和槽位序列号, 用lazySet发布.
+ * 生产者缓存读序列号, 消费者缓存写序列号, 减少跨核读取.
+ * <p>注意: 同一时刻只能有一个线程调用put/offer, 一个线程调用get/poll. 溢出策略不支持DROP_OLDEST.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class SpscRingWarehouse<T> extends RingWarehouseBase<T> {
+
+	private static final String TAG = "SpscRingWarehouse";
+
+	/**
+	 * 产品数组
+	 */
+	protected final AtomicReferenceArray<Object> mBuffer;
+
+	/**
+	 * 写序列号, 只有生产者修改
+	 */
+	protected final PaddedAtomicLong mTail = new PaddedAtomicLong();
+
+	/**
+	 * 读序列号, 只有消费者修改
+	 */
+	protected final PaddedAtomicLong mHead = new PaddedAtomicLong();
+
+	/**
+	 * 生产者缓存的读序列号
+	 */
+	private long mHeadCache = 0;
+
+	/**
+	 * 消费者缓存的写序列号
+	 */
+	private long mTailCache = 0;
+
+	public SpscRingWarehouse() {
+		super();
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+	}
+
+	public SpscRingWarehouse(int capacity) {
+		super(capacity);
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+	}
+
+	public SpscRingWarehouse(int capacity, int maxCapacity) {
+		super(capacity, maxCapacity);
+		mBuffer = new AtomicReferenceArray<Object>(mBufferSize);
+	}
+
+	@Override
+	public boolean offer(T product) {
+		checkNotNull(product);
+		long tail = mTail.get();
+		if(tail - mHeadCache >= capacity) {
+			mHeadCache = mHead.get();
+			if(tail - mHeadCache >= capacity) {
+				return false;
+			}
+		}
+		int index = (int) (tail & mMask);
+		markPutTime(index);
+		mBuffer.lazySet(index, product);
+		mTail.lazySet(tail + 1);
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T poll() {
+		long head = mHead.get();
+		if(head >= mTailCache) {
+			mTailCache = mTail.get();
+			if(head >= mTailCache) {
+				return null;
+			}
+		}
+		int index = (int) (head & mMask);
+		T product = (T) mBuffer.get(index);
+		recordSojourn(index);
+		mBuffer.lazySet(index, null);
+		mHead.lazySet(head + 1);
+		return product;
+	}
+
+	@Override
+	public int size() {
+		long head = mHead.get();
+		long tail = mTail.get();
+		long size = tail - head;
+		if(size < 0) {
+			return 0;
+		}
+		return size > mBufferSize ? mBufferSize : (int) size;
+	}
+
+	/**
+	 * 不支持DROP_OLDEST: 丢弃时生产者线程要调用poll, 会和消费者同时取出
+	 */
+	@Override
+	public void setOverflowPolicy(OverflowPolicy<T> overflowPolicy) {
+		if(overflowPolicy != null && overflowPolicy.getMode() == OverflowPolicy.Mode.DROP_OLDEST) {
+			throw new IllegalArgumentException("DROP_OLDEST is not supported by " + TAG);
+		}
+		super.setOverflowPolicy(overflowPolicy);
+	}
+}
@@ -6,6 +6,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 import hulk.util.DateTimeUtil;
+import hulk.util.LogRecordEncoder;
 
 /**
  * 系统日志打印工具类
@@ -22,7 +23,7 @@ public class SysLog {
 	}
 	
 	public static void v(String tag, String text, String threadInfo) {
-		System.out.println(formatLogStr("V", tag, text, threadInfo));
+		LogRecordEncoder.println(System.out, "V", tag, text, threadInfo);
 	}
 	
 	public static void d(String tag, String text) {
@@ -30,7 +31,7 @@ public class SysLog {
 	}
 	
 	public static void d(String tag, String text, String threadInfo) {
-		System.out.println(formatLogStr("D", tag, text, threadInfo));
+		LogRecordEncoder.println(System.out, "D", tag, text, threadInfo);
 	}
 	
 	public static void i(String tag, String text) {
@@ -38,7 +39,7 @@ public class SysLog {
 	}
 	
 	public static void i(String tag, String text, String threadInfo) {
-		System.out.println(formatLogStr("I", tag, text, threadInfo));
+		LogRecordEncoder.println(System.out, "I", tag, text, threadInfo);
 	}
 	
 	public static void w(String tag, String text) {
@@ -50,6 +51,10 @@ public class SysLog {
 	}
 	
 	public static void w(String tag, String text, String threadInfo, Throwable e) {
+		if(e == null) {
+			LogRecordEncoder.println(System.err, "W", tag, text, threadInfo);
+			return;
+		}
 		String str = formatLogStr("W", tag, text, threadInfo, e);
 		System.err.println(str);
 	}
@@ -63,6 +68,10 @@ public class SysLog {
 	}
 	
 	public static void e(String tag, String text, String threadInfo, Throwable e) {
+		if(e == null) {
+			LogRecordEncoder.println(System.err, "E", tag, text, threadInfo);
+			return;
+		}
 		String str = formatLogStr("E", tag, text, threadInfo, e);
 		System.err.println(str);
 	}
@@ -97,12 +106,11 @@ public class SysLog {
         return buff.toString();
     }
 	
+	/**
+	 * 格式化日志信息, 格式与ANDROID_LOG_FORMAT相同, 由LogRecordEncoder直接拼接, 不使用String.format
+	 */
 	public static String formatLogStr(String level, String tag, String text, String threadInfo) {
-    	String timeStr = getLogCurentTime();
-    	String tStr = fixThreadInfo(threadInfo);
-    	//"%s %s %s/%s: %s"
-    	String msg = String.format(ANDROID_LOG_FORMAT, timeStr, tStr, level, tag, text);
-        return msg;
+        return LogRecordEncoder.formatLogStr(false, level, tag, text, threadInfo);
     }
 	
 	/**
@@ -0,0 +1,29 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 等待策略
+ * <p>用于生产者/消费者每次循环之间的停顿, 以及无锁仓库满/空时的等待.
+ * <p>可选实现(延迟从低到高, CPU占用从高到低):
+ * <p>1. BusySpinWaitStrategy: 忙等, 微秒级延迟, 独占一个CPU核;
+ * <p>2. YieldingWaitStrategy: 自旋后yield, 适合CPU核数多于工作线程的场景;
+ * <p>3. ParkingWaitStrategy: 自旋/yield后parkNanos指数退避, 延迟和CPU占用的折中;
+ * <p>4. BlockingWaitStrategy: 锁+条件等待, 被signalAll唤醒, 后台任务最省CPU;
+ * <p>5. SleepingWaitStrategy: 固定Thread.sleep, 即原来的sleepTime行为.
+ * @author zhanghao
+ *
+ */
+public interface WaitStrategy {
+
+	/**
+	 * 等待一次
+	 * @param idleCount 连续等待(没有拿到产品)的次数, 从0开始, 用于退避
+	 * @throws InterruptedException
+	 */
+	void idle(int idleCount) throws InterruptedException;
+
+	/**
+	 * 唤醒在此策略上等待的线程
+	 * <p>状态变化(放入或取出产品)后调用, 只有阻塞策略需要实现, 其他策略为空操作.
+	 */
+	void signalAll();
+}
@@ -1,21 +1,47 @@
 package com.hulk.model.pc.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 日志仓库基类
- * 使用synchronized关键字实现同步锁.
+ * 默认使用synchronized关键字实现同步锁, 可以通过setBlockingMode切换为ReentrantLock+Condition模式.
  * @author zhanghao
  *
  * @param <T>
  */
 public abstract class WarehouseBase<T> implements IWarehouse<T> {
+	
+	/**
+	 * 阻塞模式
+	 */
+	public enum BlockingMode {
+		/**
+		 * synchronized + wait/notifyAll, 生产者和消费者共用一个监视器(默认)
+		 */
+		MONITOR,
+		/**
+		 * ReentrantLock + notFull/notEmpty两个条件, 只唤醒等待的一方
+		 */
+		CONDITION
+	}
 
 	private static final String TAG = "WarehouseBase";
 	private static final String PRODUCT_INFO_FORMAT = "%s: productStrLength=%d, bufferSize=%d, thread=%s";
 	
+	/**
+	 * 持有锁放入的结果: 已放入, 没有放入, 需要在锁外交给OverflowPolicy.Handler处理
+	 */
+	private static final int PUT_DONE = 0;
+	private static final int PUT_REJECTED = 1;
+	private static final int PUT_HANDOFF = 2;
+	
 	/**
 	 * 默认一次获取或者存放睡眠时间，避免一直占用CPN导致程序占用套多资源
 	 * <p> 如果确实需要调整策略，可以自行在seepTime()函数中返回具体数值，0表示不睡眠。
@@ -71,7 +97,53 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 	protected volatile boolean mProductBufferEmpty = false;
 	protected volatile boolean mProductBufferFull = false;
 	
-	protected OnWarehouseListener mListener;
+	protected OnWarehouseListener<T> mListener;
+	
+	/**
+	 * 容量策略, 为空时按mCapacityAuto固定梯度增长
+	 */
+	protected CapacityPolicy<T> mCapacityPolicy;
+	
+	/**
+	 * 统计, 为空时不统计
+	 */
+	protected volatile WarehouseMetrics mMetrics;
+	
+	/**
+	 * 缓冲区满时的处理策略, 为空时按checkPutFullWaitingEnabled等待或者丢弃
+	 */
+	protected volatile OverflowPolicy<T> mOverflowPolicy;
+	
+	/**
+	 * 产品放入时间, 与缓冲区同样按FIFO顺序的环形队列, 持有锁时读写, 用于统计停留时间.
+	 * <p>不按放入顺序取出的子类需要重写recordPutTime/takePutTime, 自己保存每个产品的放入时间(例如PriorityWarehouse).
+	 */
+	private long[] mPutTimes;
+	private int mPutTimesHead = 0;
+	private int mPutTimesSize = 0;
+	
+	/**
+	 * 启用统计时已经在缓冲区中的产品数量, 这些产品没有放入时间, 取出时不统计停留时间
+	 */
+	private int mUntimedCount = 0;
+	
+	/**
+	 * 阻塞模式, 默认MONITOR
+	 */
+	protected volatile BlockingMode mBlockingMode = BlockingMode.MONITOR;
+	
+	/**
+	 * CONDITION模式使用的锁和条件
+	 */
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotFull = mLock.newCondition();
+	private final Condition mNotEmpty = mLock.newCondition();
+	
+	/**
+	 * 等待的生产者/消费者数量, 持有锁时读写, 没有等待方时不需要唤醒
+	 */
+	private int mPutWaiters = 0;
+	private int mGetWaiters = 0;
 	
 	public WarehouseBase() {
 		this.mProductBuffer = new LinkedList<T>();
@@ -88,33 +160,136 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 	 */
 	@Override
 	public void put(T product) {
-		synchronized (mProductBuffer) {
+		int result;
+		if(isConditionMode()) {
+			mLock.lock();
 			try {
+				result = putLocked(product);
+			} finally {
+				mLock.unlock();
+			}
+		} else {
+			synchronized (mProductBuffer) {
+				result = putLocked(product);
+			}
+		}
+		if(result == PUT_DONE) {
+			//建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况, 睡眠时不持有锁
+			doThreadSleepQuietly();
+		} else if(result == PUT_HANDOFF) {
+			handoffOverflow(product);
+		}
+	}
+	
+	/**
+	 * 持有锁时放入产品
+	 * @param product
+	 * @return PUT_DONE, PUT_REJECTED或者PUT_HANDOFF
+	 */
+	private int putLocked(T product) {
+		try {
+			OverflowPolicy<T> policy = mOverflowPolicy;
+			if(policy != null) {
+				int result = prepareOverflow(policy, product, -1L);
+				if(result != PUT_DONE) {
+					return result;
+				}
+			} else {
 				boolean prepared = preparePut(product);
 				if(!prepared) {
 					//如果缓冲区已经满了,且不能等待,此时表示未准备好,
 					//此时,这个产品不能放进去,系统日志打印出来,避免Android场景出现ANR
 					SysLog.i(TAG, "put: Not prepared, Can not put product=" + product);
-					return;
-				} 
-				//放入数据
-				doPut(product);
-				
-				//建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况
-				doThreadSleep();
-			} catch (InterruptedException e) {
-				SysLog.e(TAG, "put Interrupted: " + e, e);
-			} finally {
-				//产品放完后，通知其他线程释放锁
-				mProductBuffer.notify();
+					recordRejected(1);
+					return PUT_REJECTED;
+				}
+			}
+			//放入数据
+			doPut(product);
+			//产品放完后，通知等待的消费者
+			signalNotEmpty(false);
+			return PUT_DONE;
+		} catch (InterruptedException e) {
+			//被停止唤醒(中断)时不是错误, 保留中断状态交给调用者处理
+			SysLog.w(TAG, "put Interrupted, Can not put product=" + product + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+		}
+		return PUT_REJECTED;
+	}
+	
+	/**
+	 * 按溢出策略准备放入, 需要持有锁
+	 * @param policy
+	 * @param product
+	 * @param timeoutNanos 调用者的等待时间, 小于0表示不限制
+	 * @return PUT_DONE表示可以放入
+	 * @throws InterruptedException
+	 */
+	private int prepareOverflow(OverflowPolicy<T> policy, T product, long timeoutNanos) throws InterruptedException {
+		if(!checkProductBufferFull()) {
+			return PUT_DONE;
+		}
+		doPutFullCallback(product);
+		if(policy.shouldWait(product)) {
+			if(!checkPutFullWaitingEnabled()) {
+				policy.report(this, mListener, product, OverflowPolicy.Action.DROP_NEWEST);
+				return PUT_REJECTED;
+			}
+			long nanos = policy.getTimeoutNanos();
+			if(timeoutNanos >= 0 && (nanos < 0 || timeoutNanos < nanos)) {
+				nanos = timeoutNanos;
 			}
+			boolean timed = nanos >= 0;
+			while(checkProductBufferFull()) {
+				if(timed && nanos <= 0) {
+					policy.report(this, mListener, product, OverflowPolicy.Action.DROP_TIMEOUT);
+					return PUT_REJECTED;
+				}
+				nanos = awaitNotFull(timed ? nanos : -1L);
+			}
+			return PUT_DONE;
+		}
+		switch (policy.getMode()) {
+		case DROP_OLDEST:
+			while(checkProductBufferFull()) {
+				T oldest = removeOverflowProduct();
+				if(oldest == null) {
+					break;
+				}
+				takePutTime(oldest);
+				policy.report(this, mListener, oldest, OverflowPolicy.Action.DROP_OLDEST);
+			}
+			return PUT_DONE;
+		case SPILL:
+		case CALLER_RUNS:
+			return PUT_HANDOFF;
+		default:
+			policy.report(this, mListener, product, policy.getDropAction());
+			return PUT_REJECTED;
+		}
+	}
+	
+	/**
+	 * 不持有锁时把溢出的产品交给OverflowPolicy.Handler处理
+	 * @param product
+	 */
+	private void handoffOverflow(T product) {
+		OverflowPolicy<T> policy = mOverflowPolicy;
+		if(policy == null) {
+			return;
+		}
+		try {
+			policy.handoff(product);
+		} catch (Exception e) {
+			SysLog.e(TAG, "handoffOverflow Exception: " + e, e);
 		}
+		policy.report(this, mListener, product, policy.getDropAction());
 	}
 	
 	/**
 	 * 准备放入数据缓冲区
 	 * <p>如果缓冲区已经满了,且不能等待,此时表示未准备好,这个产品不能放进去;
-	 * <p>注: wait(排队等待)也是准摆好的一种情况.
+	 * <p>注: wait(排队等待)也是准摆好的一种情况, 被唤醒后重新检查, 直到缓冲区不满.
 	 * @param product
 	 * @return 如果缓冲区已经满了,且不能等待,此时返回false,默认返回true
 	 * @throws InterruptedException
@@ -131,7 +306,9 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 		SysLog.w(TAG, "preparePut: ## products buffer is full for thread=" + thread);
 		if(waitingEnabled) {		
 			SysLog.w(TAG, "preparePut: waiting is enabled, please waiting a moment for consumed buffer.");
-			mProductBuffer.wait();
+			while(checkProductBufferFull()) {
+				awaitNotFull(-1L);
+			}
 		} else {
 			//存放缓存等待是否禁用: 在缓冲区满,如果线程不能等待,直接略过,避免内存溢出.
 			SysLog.w(TAG, "preparePut: waiting is not enabled");
@@ -154,6 +331,14 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 				SysLog.i(TAG, "doPut: add product=" + product);
 			}
 		}
+		if(mCapacityPolicy != null) {
+			mCapacityPolicy.onPut(product, getProductBufferSize());
+		}
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			recordPutTime(product, System.nanoTime());
+			metrics.recordPut(getProductBufferSize());
+		}
 	}
 	
 	/**
@@ -202,31 +387,57 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 	 */
 	@Override
 	public T get() {
-		synchronized (mProductBuffer) {
+		T product;
+		if(isConditionMode()) {
+			mLock.lock();
 			try {
-				//准备获取
-				prepareGet();
-				
-				//获取数据
-				T product = doGet();
-				
-				//建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况
-				doThreadSleep();
-				return product;
-			} catch (InterruptedException e) {
-				String thread = getCurrentThreadInfo();
-				SysLog.e(TAG, "put Interrupted: " + e + ", thread=" + thread, e);
+				product = getLocked();
 			} finally {
-				//产品放完后，通知其他线程释放锁
-				mProductBuffer.notify();
+				mLock.unlock();
+			}
+		} else {
+			synchronized (mProductBuffer) {
+				product = getLocked();
+			}
+		}
+		//建议每次睡眠间隔一定时间，避免出现该线程一直占用cup情况, 睡眠时不持有锁
+		doThreadSleepQuietly();
+		return product;
+	}
+	
+	/**
+	 * 持有锁时获取产品
+	 * @return 线程被中断时返回null
+	 */
+	private T getLocked() {
+		try {
+			//准备获取
+			prepareGet();
+			
+			//获取数据
+			T product = doGet();
+			applyCapacityPolicyOnGet(product);
+			
+			//产品取走后，通知等待的生产者
+			signalNotFull(false);
+			return product;
+		} catch (InterruptedException e) {
+			//消费者被停止时会中断等待, 不是错误, 保留中断状态交给调用者处理
+			if(isDebugMode()) {
+				SysLog.i(TAG, "get Interrupted, thread=" + getCurrentThreadInfo());
 			}
+			Thread.currentThread().interrupt();
 		}
 		return null;
 	}
 	
+	/**
+	 * 准备获取: 缓冲区为空时等待, 被唤醒后重新检查, 直到缓冲区不为空.
+	 * @throws InterruptedException
+	 */
 	protected void prepareGet() throws InterruptedException {
 		if(isShowInfoMode()) {
-			int size = this.mProductBuffer.size();
+			int size = getProductBufferSize();
 			SysLog.i(TAG, "prepareGet: Current mProductBuffer size=" + size);
 		}
 		mProductBufferEmpty = this.isProductBufferEmpty();
@@ -236,7 +447,306 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 				String thread = getCurrentThreadInfo();
 				SysLog.w(TAG, "prepareGet: ## products is empty, please wait...thread=" + thread);
 			}
+			//被唤醒后必须重新检查, 避免虚假唤醒时返回null
+			while(isProductBufferEmpty()) {
+				awaitNotEmpty(-1L);
+			}
+		}
+	}
+	
+	/**
+	 * 批量存放产品
+	 * <p>一次加锁放入尽可能多的产品, 缓冲区满时先通知消费者, 再等待.
+	 */
+	@Override
+	public int putAll(Collection<? extends T> products) {
+		return doPutAll(products, -1L);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+		return doPutAll(products, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量存放产品
+	 * @param products
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际放入的数量
+	 */
+	protected int doPutAll(Collection<? extends T> products, long timeoutNanos) {
+		if(products == null || products.isEmpty()) {
+			return 0;
+		}
+		int count;
+		OverflowPolicy<T> policy = mOverflowPolicy;
+		List<T> handoffs = policy != null && policy.isHandoff() ? new ArrayList<T>() : null;
+		if(isConditionMode()) {
+			mLock.lock();
+			try {
+				count = putAllLocked(products, timeoutNanos, handoffs);
+			} finally {
+				mLock.unlock();
+			}
+		} else {
+			synchronized (mProductBuffer) {
+				count = putAllLocked(products, timeoutNanos, handoffs);
+			}
+		}
+		if(handoffs != null) {
+			for(T product : handoffs) {
+				handoffOverflow(product);
+			}
+		}
+		if(count > 0) {
+			//每批只睡眠一次
+			doThreadSleepQuietly();
+		}
+		return count;
+	}
+	
+	private int putAllLocked(Collection<? extends T> products, long timeoutNanos, List<T> handoffs) {
+		int count = 0;
+		int pending = 0;
+		OverflowPolicy<T> policy = mOverflowPolicy;
+		try {
+			long nanos = timeoutNanos;
+			long deadline = System.nanoTime() + timeoutNanos;
+			for(T product : products) {
+				if(policy != null) {
+					if(pending > 0 && checkProductBufferFull()) {
+						//先让消费者取走已放入的产品
+						signalNotEmpty(pending > 1);
+						pending = 0;
+					}
+					long remaining = timeoutNanos < 0 ? -1L : Math.max(0L, deadline - System.nanoTime());
+					int result = prepareOverflow(policy, product, remaining);
+					if(result == PUT_HANDOFF && handoffs != null) {
+						handoffs.add(product);
+						continue;
+					} else if(result != PUT_DONE) {
+						continue;
+					}
+				} else if(checkProductBufferFull()) {
+					doPutFullCallback(product);
+					if(!checkPutFullWaitingEnabled()) {
+						SysLog.i(TAG, "putAll: Not prepared, Can not put products from index " + count);
+						break;
+					}
+					while(checkProductBufferFull()) {
+						if(timeoutNanos >= 0 && nanos <= 0) {
+							return count;
+						}
+						//先让消费者取走已放入的产品
+						if(pending > 0) {
+							signalNotEmpty(pending > 1);
+							pending = 0;
+						}
+						nanos = awaitNotFull(nanos);
+					}
+				}
+				doPut(product);
+				count++;
+				pending++;
+			}
+		} catch (InterruptedException e) {
+			SysLog.w(TAG, "putAll Interrupted, Can not put products from index " + count + ", thread=" + getCurrentThreadInfo());
+			Thread.currentThread().interrupt();
+		} finally {
+			if(pending > 0) {
+				signalNotEmpty(pending > 1);
+			}
+			if(policy == null) {
+				//按策略处理的产品已经在OverflowPolicy.report中统计
+				recordRejected(products.size() - count);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 批量获取产品
+	 * <p>缓冲区为空时等待, 有产品后一次取出最多maxElements个.
+	 */
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		return doDrainTo(c, maxElements, -1L);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+		return doDrainTo(c, maxElements, unit.toNanos(timeout));
+	}
+
+	/**
+	 * 批量获取产品
+	 * @param c
+	 * @param maxElements
+	 * @param timeoutNanos 小于0表示一直等待
+	 * @return 实际取出的数量
+	 */
+	protected int doDrainTo(Collection<? super T> c, int maxElements, long timeoutNanos) {
+		if(c == null || maxElements <= 0) {
+			return 0;
+		}
+		int count;
+		if(isConditionMode()) {
+			mLock.lock();
+			try {
+				count = drainToLocked(c, maxElements, timeoutNanos);
+			} finally {
+				mLock.unlock();
+			}
+		} else {
+			synchronized (mProductBuffer) {
+				count = drainToLocked(c, maxElements, timeoutNanos);
+			}
+		}
+		if(count > 0) {
+			//每批只睡眠一次
+			doThreadSleepQuietly();
+		}
+		return count;
+	}
+	
+	private int drainToLocked(Collection<? super T> c, int maxElements, long timeoutNanos) {
+		int count = 0;
+		try {
+			if(checkProductBufferEmpty()) {
+				doGetEmptyCallback();
+				long nanos = timeoutNanos;
+				while(isProductBufferEmpty()) {
+					if(timeoutNanos >= 0 && nanos <= 0) {
+						return 0;
+					}
+					nanos = awaitNotEmpty(nanos);
+				}
+			}
+			while(count < maxElements && !isProductBufferEmpty()) {
+				T product = doGet();
+				applyCapacityPolicyOnGet(product);
+				c.add(product);
+				count++;
+			}
+		} catch (InterruptedException e) {
+			if(isDebugMode()) {
+				SysLog.i(TAG, "drainTo Interrupted, thread=" + getCurrentThreadInfo());
+			}
+			Thread.currentThread().interrupt();
+		} finally {
+			if(count > 0) {
+				signalNotFull(count > 1);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * 等待缓冲区不满, 需要持有锁
+	 * @param nanos 小于0表示一直等待
+	 * @return 剩余等待时间
+	 * @throws InterruptedException
+	 */
+	private long awaitNotFull(long nanos) throws InterruptedException {
+		WarehouseMetrics metrics = mMetrics;
+		long start = metrics != null ? System.nanoTime() : 0L;
+		mPutWaiters++;
+		try {
+			if(isConditionMode()) {
+				return awaitCondition(mNotFull, nanos);
+			}
+			return awaitProductBuffer(nanos);
+		} finally {
+			mPutWaiters--;
+			if(metrics != null) {
+				metrics.recordPutBlocked(System.nanoTime() - start);
+			}
+		}
+	}
+	
+	/**
+	 * 等待缓冲区不为空, 需要持有锁
+	 * @param nanos 小于0表示一直等待
+	 * @return 剩余等待时间
+	 * @throws InterruptedException
+	 */
+	private long awaitNotEmpty(long nanos) throws InterruptedException {
+		WarehouseMetrics metrics = mMetrics;
+		long start = metrics != null ? System.nanoTime() : 0L;
+		mGetWaiters++;
+		try {
+			if(isConditionMode()) {
+				return awaitCondition(mNotEmpty, nanos);
+			}
+			return awaitProductBuffer(nanos);
+		} finally {
+			mGetWaiters--;
+			if(metrics != null) {
+				metrics.recordGetIdle(System.nanoTime() - start);
+			}
+		}
+	}
+	
+	private static long awaitCondition(Condition condition, long nanos) throws InterruptedException {
+		if(nanos < 0) {
+			condition.await();
+			return nanos;
+		}
+		return condition.awaitNanos(nanos);
+	}
+
+	/**
+	 * 在缓冲区上等待, 需要持有mProductBuffer锁
+	 * @param nanos 小于0表示一直等待
+	 * @return 剩余等待时间
+	 * @throws InterruptedException
+	 */
+	private long awaitProductBuffer(long nanos) throws InterruptedException {
+		if(nanos < 0) {
 			mProductBuffer.wait();
+			return nanos;
+		}
+		long deadline = System.nanoTime() + nanos;
+		TimeUnit.NANOSECONDS.timedWait(mProductBuffer, nanos);
+		return deadline - System.nanoTime();
+	}
+	
+	/**
+	 * 通知等待的消费者, 需要持有锁. 没有消费者等待时不通知.
+	 * <p>CONDITION模式只唤醒消费者; MONITOR模式只有一个监视器, 只能唤醒全部等待线程.
+	 * @param all 是否唤醒全部消费者(放入多个产品时)
+	 */
+	private void signalNotEmpty(boolean all) {
+		if(mGetWaiters <= 0) {
+			return;
+		}
+		if(isConditionMode()) {
+			if(all) {
+				mNotEmpty.signalAll();
+			} else {
+				mNotEmpty.signal();
+			}
+		} else {
+			mProductBuffer.notifyAll();
+		}
+	}
+	
+	/**
+	 * 通知等待的生产者, 需要持有锁. 没有生产者等待时不通知.
+	 * @param all 是否唤醒全部生产者(取出多个产品时)
+	 */
+	private void signalNotFull(boolean all) {
+		if(mPutWaiters <= 0) {
+			return;
+		}
+		if(isConditionMode()) {
+			if(all) {
+				mNotFull.signalAll();
+			} else {
+				mNotFull.signal();
+			}
+		} else {
+			mProductBuffer.notifyAll();
 		}
 	}
 	
@@ -263,9 +773,88 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 				SysLog.i(TAG, "doGet: onGet result is null, remove fist product " + product);
 			}
 		}
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null && product != null) {
+			metrics.recordGet();
+			long putTime = takePutTime(product);
+			if(putTime != 0) {
+				metrics.recordSojourn(System.nanoTime() - putTime);
+			}
+		}
 		return product;
 	}
 	
+	/**
+	 * 记录产品的放入时间, 启用统计时放入后调用, 需要持有锁
+	 * <p>默认按FIFO顺序保存, 与takePutTime对应.
+	 * @param product
+	 * @param time System.nanoTime
+	 */
+	protected void recordPutTime(T product, long time) {
+		pushPutTime(time);
+	}
+	
+	/**
+	 * 取出(或者丢弃)产品后返回它的放入时间, 启用统计时调用, 需要持有锁
+	 * <p>默认返回最早的放入时间, 只适用于按放入顺序取出的仓库.
+	 * @param product
+	 * @return 没有记录(例如启用统计前放入的产品)时返回0
+	 */
+	protected long takePutTime(T product) {
+		return popPutTime();
+	}
+	
+	/**
+	 * 记录放入时间, 需要持有锁. 只有积压超过之前的最大值时才扩容
+	 * @param time
+	 */
+	private void pushPutTime(long time) {
+		long[] times = mPutTimes;
+		if(times == null) {
+			return;
+		}
+		if(mPutTimesSize == times.length) {
+			long[] newTimes = new long[times.length << 1];
+			for(int i = 0; i < mPutTimesSize; i++) {
+				newTimes[i] = times[(mPutTimesHead + i) % times.length];
+			}
+			mPutTimes = times = newTimes;
+			mPutTimesHead = 0;
+		}
+		times[(mPutTimesHead + mPutTimesSize) % times.length] = time;
+		mPutTimesSize++;
+	}
+	
+	/**
+	 * 取出最早的放入时间, 需要持有锁
+	 * @return 没有记录时返回0
+	 */
+	private long popPutTime() {
+		long[] times = mPutTimes;
+		if(times == null) {
+			return 0L;
+		}
+		if(mUntimedCount > 0) {
+			//启用统计之前放入的产品
+			mUntimedCount--;
+			return 0L;
+		}
+		if(mPutTimesSize == 0) {
+			return 0L;
+		}
+		long time = times[mPutTimesHead];
+		mPutTimesHead = (mPutTimesHead + 1) % times.length;
+		mPutTimesSize--;
+		return time;
+	}
+	
+	private void recordRejected(int count) {
+		WarehouseMetrics metrics = mMetrics;
+		if(metrics != null) {
+			metrics.recordRejected(count);
+		}
+	}
+	
 	/**
 	 * 子类实现具体的获取数据
 	 * @return
@@ -285,11 +874,17 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 	 * @return
 	 */
 	public int fixMaxCapacity() {
-		if(mCapacityAuto) {
+		if(mCapacityPolicy != null) {
+			int fixCapacity = mCapacityPolicy.onPutFull(capacity, getProductBufferSize(), mMaxCapacity);
+			if(fixCapacity > capacity) {
+				changeCapacity(fixCapacity, "fixMaxCapacity");
+				mProductBufferFull = isProductBufferFull();
+			}
+		} else if(mCapacityAuto) {
 			//每次增加一个变化梯度
 			int fixCapacity = capacity + CAPACITY_GRADIENT_UNIT;
 			if(fixCapacity < mMaxCapacity) {	
-				capacity = fixCapacity;
+				changeCapacity(fixCapacity, "fixMaxCapacity");
 				mProductBufferFull = isProductBufferFull();
 				SysLog.w(TAG, "fixMaxCapacity: Fixed capacity=" + capacity + ",  Full=" + mProductBufferFull);
 			}
@@ -297,6 +892,112 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 		return this.capacity;
 	}
 	
+	/**
+	 * 取出产品后按容量策略调整容量, 需要持有锁
+	 * <p>容量增大时, 取出后的signalNotFull会唤醒等待的生产者.
+	 * @param product
+	 */
+	private void applyCapacityPolicyOnGet(T product) {
+		if(mCapacityPolicy == null || capacity <= 0) {
+			return;
+		}
+		int newCapacity = mCapacityPolicy.onGet(product, capacity, getProductBufferSize(), mMaxCapacity);
+		if(newCapacity != capacity) {
+			changeCapacity(newCapacity, "onGet");
+		}
+	}
+	
+	/**
+	 * 修改容量并回调OnWarehouseCapacityListener, 需要持有锁
+	 * @param newCapacity 限制在[1, mMaxCapacity]
+	 * @param reason
+	 */
+	protected void changeCapacity(int newCapacity, String reason) {
+		int oldCapacity = capacity;
+		newCapacity = Math.max(1, Math.min(newCapacity, mMaxCapacity));
+		if(newCapacity == oldCapacity) {
+			return;
+		}
+		capacity = newCapacity;
+		if(isDebugMode()) {
+			SysLog.i(TAG, "changeCapacity: " + oldCapacity + " -> " + newCapacity + ", reason=" + reason
+					+ ", policy=" + mCapacityPolicy);
+		}
+		if(mListener instanceof OnWarehouseCapacityListener) {
+			((OnWarehouseCapacityListener<T>) mListener).onCapacityChanged(this, oldCapacity, newCapacity, reason);
+		}
+	}
+	
+	/**
+	 * 设置容量策略, 代替mCapacityAuto的固定梯度增长
+	 * <p>需要在生产者/消费者启动之前设置, 为空时恢复原来的增长方式.
+	 * @param capacityPolicy
+	 */
+	public void setCapacityPolicy(CapacityPolicy<T> capacityPolicy) {
+		this.mCapacityPolicy = capacityPolicy;
+	}
+	
+	public CapacityPolicy<T> getCapacityPolicy() {
+		return this.mCapacityPolicy;
+	}
+	
+	/**
+	 * 设置缓冲区满时的处理策略, 为空时恢复原来的等待或者丢弃
+	 * @param overflowPolicy
+	 */
+	public void setOverflowPolicy(OverflowPolicy<T> overflowPolicy) {
+		this.mOverflowPolicy = overflowPolicy;
+	}
+	
+	public OverflowPolicy<T> getOverflowPolicy() {
+		return this.mOverflowPolicy;
+	}
+	
+	/**
+	 * 启用或者关闭统计
+	 * <p>需要在生产者/消费者启动之前设置, 启用前已经在缓冲区中的产品不统计停留时间.
+	 * @param enabled
+	 */
+	public void setMetricsEnabled(boolean enabled) {
+		if(isConditionMode()) {
+			mLock.lock();
+			try {
+				doSetMetricsEnabled(enabled);
+			} finally {
+				mLock.unlock();
+			}
+		} else {
+			synchronized (mProductBuffer) {
+				doSetMetricsEnabled(enabled);
+			}
+		}
+	}
+	
+	private void doSetMetricsEnabled(boolean enabled) {
+		if(!enabled) {
+			mMetrics = null;
+			mPutTimes = null;
+			return;
+		}
+		if(mMetrics != null) {
+			return;
+		}
+		mPutTimes = new long[Math.max(capacity, DEFAULT_PRODUST_CAPACITY)];
+		mPutTimesHead = 0;
+		mPutTimesSize = 0;
+		mUntimedCount = getProductBufferSize();
+		mMetrics = new WarehouseMetrics(this);
+	}
+	
+	public boolean isMetricsEnabled() {
+		return mMetrics != null;
+	}
+	
+	@Override
+	public WarehouseMetrics getMetrics() {
+		return mMetrics;
+	}
+	
 	public void setCapacityAuto(boolean capacityAuto) {
 		this.mCapacityAuto = capacityAuto;
 	}
@@ -341,7 +1042,8 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 	}
 	
 	public boolean isProductBufferFull() {
-		return mProductBuffer != null && mProductBuffer.size() >= capacity;
+		//通过getProductBufferSize获取数量, 子类替换缓冲区结构时只需要重写该函数
+		return getProductBufferSize() >= capacity;
 	}
 	
 	/**
@@ -407,6 +1109,14 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 		return mProductBuffer.removeLast();
 	}
 	
+	/**
+	 * 缓冲区满时DROP_OLDEST丢弃的产品, 默认最先放入的
+	 * <p>不是按放入顺序取出的子类需要重写, 例如优先级仓库丢弃优先级最低的.
+	 */
+	protected T removeOverflowProduct() {
+		return removeFistProduct();
+	}
+	
 	protected T getFirstProduct() {
 		if(isProductBufferEmpty()) {
 			return null;
@@ -443,7 +1153,8 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 		return size;
 	}
 	
-	protected int size() {
+	@Override
+	public int size() {
 		return getProductSize();
 	}
 	
@@ -461,6 +1172,17 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
 		}
 	}
 	
+	/**
+	 * 睡眠一次, 不持有锁时调用
+	 */
+	private void doThreadSleepQuietly() {
+		try {
+			doThreadSleep();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
 	/**
 	 * 每次循环睡眠时间， 0表示不睡眠
 	 * <p> 如果确实需要调整策略，可以自行在子类onSleepTime()函数中返回具体数值，0表示不睡眠。
@@ -502,8 +1224,32 @@ public abstract class WarehouseBase<T> implements IWarehouse<T> {
     	return this.mShowInfoMode;
     }
     
+    /**
+     * 设置阻塞模式
+     * <p>需要在生产者/消费者启动之前设置, 运行过程中切换会导致等待的线程无法被唤醒.
+     * @param blockingMode
+     */
+    public void setBlockingMode(BlockingMode blockingMode) {
+    	if(blockingMode == null) {
+    		throw new IllegalArgumentException("blockingMode is null");
+    	}
+    	this.mBlockingMode = blockingMode;
+    }
+    
+    public BlockingMode getBlockingMode() {
+    	return this.mBlockingMode;
+    }
+    
+    public boolean isConditionMode() {
+    	return this.mBlockingMode == BlockingMode.CONDITION;
+    }
+    
+    /**
+     * 设置监听器, 监听器的产品类型由调用者保证与仓库一致
+     */
+    @SuppressWarnings("unchecked")
     public void setListener(OnWarehouseListener<?> listener) {
-    	mListener = listener;
+    	mListener = (OnWarehouseListener<T>) listener;
 	}
     
     /**
@@ -0,0 +1,196 @@
+package com.hulk.model.pc.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 仓库统计
+ * <p>代替mShowInfoMode/mDebugMode每次存取打印日志的方式, 存取时只做计数(LongAdder)和直方图记录,
+ * 不分配内存, 通过snapshot()读取, 也可以用WarehouseMetricsReporter定时输出.
+ * <p>统计项: 放入/取出/拒绝数量, 最大产品数量(high-water mark), 生产者等待时间, 消费者空闲时间,
+ * 产品在仓库中的停留时间直方图.
+ * @author zhanghao
+ *
+ */
+public class WarehouseMetrics {
+
+	private final IWarehouse<?> mWarehouse;
+
+	private final LongAdder mPuts = new LongAdder();
+	private final LongAdder mGets = new LongAdder();
+	private final LongAdder mRejections = new LongAdder();
+	private final LongAdder mPutBlockedCount = new LongAdder();
+	private final LongAdder mPutBlockedNanos = new LongAdder();
+	private final LongAdder mGetIdleCount = new LongAdder();
+	private final LongAdder mGetIdleNanos = new LongAdder();
+	private final AtomicInteger mHighWaterMark = new AtomicInteger();
+	private final LatencyHistogram mSojournHistogram = new LatencyHistogram();
+
+	private volatile long mStartTime = System.currentTimeMillis();
+
+	public WarehouseMetrics(IWarehouse<?> warehouse) {
+		this.mWarehouse = warehouse;
+	}
+
+	/**
+	 * 放入一个产品
+	 * @param size 放入后的产品数量
+	 */
+	public void recordPut(int size) {
+		mPuts.increment();
+		int highWaterMark = mHighWaterMark.get();
+		while(size > highWaterMark && !mHighWaterMark.compareAndSet(highWaterMark, size)) {
+			highWaterMark = mHighWaterMark.get();
+		}
+	}
+
+	/**
+	 * 取出一个产品
+	 */
+	public void recordGet() {
+		mGets.increment();
+	}
+
+	/**
+	 * 缓冲区满不能等待, 或者等待超时/被中断, 产品没有放入
+	 * @param count
+	 */
+	public void recordRejected(int count) {
+		if(count > 0) {
+			mRejections.add(count);
+		}
+	}
+
+	/**
+	 * 生产者因为缓冲区满等待了一次
+	 * @param nanos
+	 */
+	public void recordPutBlocked(long nanos) {
+		mPutBlockedCount.increment();
+		mPutBlockedNanos.add(nanos);
+	}
+
+	/**
+	 * 消费者因为缓冲区空等待了一次
+	 * @param nanos
+	 */
+	public void recordGetIdle(long nanos) {
+		mGetIdleCount.increment();
+		mGetIdleNanos.add(nanos);
+	}
+
+	/**
+	 * 产品在仓库中的停留时间
+	 * @param nanos
+	 */
+	public void recordSojourn(long nanos) {
+		mSojournHistogram.record(nanos);
+	}
+
+	public LatencyHistogram getSojournHistogram() {
+		return mSojournHistogram;
+	}
+
+	/**
+	 * 读取当前统计
+	 * @return
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * 清空统计, 例如每次导出后重新统计
+	 */
+	public void reset() {
+		mPuts.reset();
+		mGets.reset();
+		mRejections.reset();
+		mPutBlockedCount.reset();
+		mPutBlockedNanos.reset();
+		mGetIdleCount.reset();
+		mGetIdleNanos.reset();
+		mHighWaterMark.set(mWarehouse != null ? mWarehouse.size() : 0);
+		mSojournHistogram.reset();
+		mStartTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * 统计快照
+	 */
+	public static final class Snapshot {
+		/**
+		 * 统计开始时间和快照时间
+		 */
+		public final long startTime;
+		public final long time;
+		public final long puts;
+		public final long gets;
+		public final long rejections;
+		public final int size;
+		public final int highWaterMark;
+		public final long putBlockedCount;
+		public final long putBlockedNanos;
+		public final long getIdleCount;
+		public final long getIdleNanos;
+		/**
+		 * 停留时间, 纳秒
+		 */
+		public final long sojournCount;
+		public final long sojournMean;
+		public final long sojournP50;
+		public final long sojournP90;
+		public final long sojournP99;
+		public final long sojournP999;
+		public final long sojournMax;
+
+		private Snapshot(WarehouseMetrics metrics) {
+			this.startTime = metrics.mStartTime;
+			this.time = System.currentTimeMillis();
+			this.puts = metrics.mPuts.sum();
+			this.gets = metrics.mGets.sum();
+			this.rejections = metrics.mRejections.sum();
+			this.size = metrics.mWarehouse != null ? metrics.mWarehouse.size() : 0;
+			this.highWaterMark = metrics.mHighWaterMark.get();
+			this.putBlockedCount = metrics.mPutBlockedCount.sum();
+			this.putBlockedNanos = metrics.mPutBlockedNanos.sum();
+			this.getIdleCount = metrics.mGetIdleCount.sum();
+			this.getIdleNanos = metrics.mGetIdleNanos.sum();
+			LatencyHistogram histogram = metrics.mSojournHistogram;
+			long[] percentiles = histogram.getValuesAtPercentiles(50, 90, 99, 99.9);
+			this.sojournCount = histogram.getCount();
+			this.sojournMean = histogram.getMean();
+			this.sojournP50 = percentiles[0];
+			this.sojournP90 = percentiles[1];
+			this.sojournP99 = percentiles[2];
+			this.sojournP999 = percentiles[3];
+			this.sojournMax = histogram.getMax();
+		}
+
+		/**
+		 * 统计期间的取出速率
+		 * @return 个/秒
+		 */
+		public double getThroughput() {
+			long elapsed = time - startTime;
+			return elapsed > 0 ? gets * 1000.0 / elapsed : 0;
+		}
+
+		@Override
+		public String toString() {
+			return "puts=" + puts + ", gets=" + gets + ", rejections=" + rejections
+					+ ", size=" + size + ", highWaterMark=" + highWaterMark
+					+ ", throughput=" + (long) getThroughput() + "/s"
+					+ ", putBlocked=" + putBlockedCount + "/" + toMicros(putBlockedNanos) + "us"
+					+ ", getIdle=" + getIdleCount + "/" + toMicros(getIdleNanos) + "us"
+					+ ", sojourn(us) mean=" + toMicros(sojournMean) + " p50=" + toMicros(sojournP50)
+					+ " p90=" + toMicros(sojournP90) + " p99=" + toMicros(sojournP99)
+					+ " p999=" + toMicros(sojournP999) + " max=" + toMicros(sojournMax);
+		}
+
+		private static long toMicros(long nanos) {
+			return TimeUnit.NANOSECONDS.toMicros(nanos);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.hulk.model.pc.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 仓库统计定时输出
+ * <p>在一个后台守护线程中按周期读取每个仓库的统计快照, 交给Exporter输出, 默认输出到SysLog.
+ * @author zhanghao
+ *
+ */
+public class WarehouseMetricsReporter {
+
+	private static final String TAG = "WarehouseMetricsReporter";
+
+	/**
+	 * 统计输出
+	 */
+	public interface Exporter {
+		/**
+		 * 输出一个仓库的统计快照
+		 * @param name 仓库名称
+		 * @param snapshot
+		 */
+		void export(String name, WarehouseMetrics.Snapshot snapshot);
+	}
+
+	/**
+	 * 输出到SysLog
+	 */
+	public static final Exporter LOG_EXPORTER = new Exporter() {
+		@Override
+		public void export(String name, WarehouseMetrics.Snapshot snapshot) {
+			SysLog.i(TAG, name + ": " + snapshot);
+		}
+	};
+
+	private final Map<String, IWarehouse<?>> mWarehouses = new ConcurrentHashMap<String, IWarehouse<?>>();
+	private final Exporter mExporter;
+	private ScheduledExecutorService mScheduler;
+	private ScheduledFuture<?> mFuture;
+
+	/**
+	 * 每次输出后是否清空统计
+	 */
+	private volatile boolean mResetAfterExport = false;
+
+	public WarehouseMetricsReporter() {
+		this(LOG_EXPORTER);
+	}
+
+	public WarehouseMetricsReporter(Exporter exporter) {
+		if(exporter == null) {
+			throw new IllegalArgumentException("exporter is null");
+		}
+		this.mExporter = exporter;
+	}
+
+	/**
+	 * 添加仓库, 仓库需要先启用统计
+	 * @param name
+	 * @param warehouse
+	 */
+	public void addWarehouse(String name, IWarehouse<?> warehouse) {
+		mWarehouses.put(name, warehouse);
+	}
+
+	public void removeWarehouse(String name) {
+		mWarehouses.remove(name);
+	}
+
+	/**
+	 * 开始定时输出
+	 * @param period
+	 * @param unit
+	 */
+	public synchronized void start(long period, TimeUnit unit) {
+		if(mFuture != null) {
+			SysLog.w(TAG, "start: Already started");
+			return;
+		}
+		mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, TAG);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mFuture = mScheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				report();
+			}
+		}, period, period, unit);
+	}
+
+	/**
+	 * 停止定时输出
+	 */
+	public synchronized void stop() {
+		if(mFuture != null) {
+			mFuture.cancel(false);
+			mFuture = null;
+		}
+		if(mScheduler != null) {
+			mScheduler.shutdown();
+			mScheduler = null;
+		}
+	}
+
+	/**
+	 * 立即输出一次
+	 */
+	public void report() {
+		for(Map.Entry<String, IWarehouse<?>> entry : mWarehouses.entrySet()) {
+			WarehouseMetrics metrics = entry.getValue().getMetrics();
+			if(metrics == null) {
+				continue;
+			}
+			try {
+				mExporter.export(entry.getKey(), metrics.snapshot());
+			} catch (Exception e) {
+				SysLog.e(TAG, "report Exception: " + e, e);
+			}
+			if(mResetAfterExport) {
+				metrics.reset();
+			}
+		}
+	}
+
+	public void setResetAfterExport(boolean resetAfterExport) {
+		this.mResetAfterExport = resetAfterExport;
+	}
+}
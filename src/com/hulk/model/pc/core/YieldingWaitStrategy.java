@@ -0,0 +1,44 @@
+package com.hulk.model.pc.core;
+
+/**
+ * 自旋后yield的等待策略
+ * <p>先自旋spinTries次, 之后每次调用Thread.yield让出CPU.
+ * @author zhanghao
+ *
+ */
+public class YieldingWaitStrategy implements WaitStrategy {
+
+	/**
+	 * 默认自旋次数
+	 */
+	public static final int DEFAULT_SPIN_TRIES = 100;
+
+	private final int mSpinTries;
+
+	public YieldingWaitStrategy() {
+		this(DEFAULT_SPIN_TRIES);
+	}
+
+	public YieldingWaitStrategy(int spinTries) {
+		this.mSpinTries = spinTries;
+	}
+
+	@Override
+	public void idle(int idleCount) {
+		if(idleCount < mSpinTries) {
+			SpinWait.onSpinWait();
+		} else {
+			Thread.yield();
+		}
+	}
+
+	@Override
+	public void signalAll() {
+		//不需要唤醒
+	}
+
+	@Override
+	public String toString() {
+		return "YieldingWaitStrategy[spinTries=" + mSpinTries + "]";
+	}
+}
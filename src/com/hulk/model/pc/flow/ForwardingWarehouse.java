@@ -0,0 +1,70 @@
+package com.hulk.model.pc.flow;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.hulk.model.pc.core.IWarehouse;
+import com.hulk.model.pc.core.WarehouseMetrics;
+
+/**
+ * 转发所有调用的仓库, 子类在存取后加上通知
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+abstract class ForwardingWarehouse<T> implements IWarehouse<T> {
+
+	protected final IWarehouse<T> mDelegate;
+
+	ForwardingWarehouse(IWarehouse<T> delegate) {
+		if(delegate == null) {
+			throw new IllegalArgumentException("warehouse is null");
+		}
+		this.mDelegate = delegate;
+	}
+
+	@Override
+	public void put(T data) {
+		mDelegate.put(data);
+	}
+
+	@Override
+	public T get() {
+		return mDelegate.get();
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products) {
+		return mDelegate.putAll(products);
+	}
+
+	@Override
+	public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+		return mDelegate.putAll(products, timeout, unit);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		return mDelegate.drainTo(c, maxElements);
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+		return mDelegate.drainTo(c, maxElements, timeout, unit);
+	}
+
+	@Override
+	public int size() {
+		return mDelegate.size();
+	}
+
+	@Override
+	public WarehouseMetrics getMetrics() {
+		return mDelegate.getMetrics();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + mDelegate + "]";
+	}
+}
@@ -0,0 +1,339 @@
+package com.hulk.model.pc.flow;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hulk.model.pc.core.IWarehouse;
+import com.hulk.model.pc.core.SysLog;
+
+/**
+ * 仓库发布者: 把仓库中的产品按Flow.Subscriber的request(n)发给订阅者
+ * <p>不需要为每个消费者准备一个ConsumerBase线程: 只有订阅者有需求并且仓库有产品时才在Executor中执行一次投递,
+ * 没有需求时产品留在仓库中, 仓库满后生产者按仓库原来的方式等待, 即背压.
+ * <p>生产者需要通过getWarehouse()返回的仓库放入, 放入后通知发布者; 直接放入原仓库时需要调用signal().
+ * <p>多个订阅者之间是竞争关系, 每个产品只发给其中一个, 需要广播时每个订阅者使用BroadcastWarehouse的一个Subscription.
+ * <p>close()后仓库中剩余的产品发完再回调onComplete.
+ * <p>需要JDK9及以上.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class WarehousePublisher<T> implements Flow.Publisher<T> {
+
+	private static final String TAG = "WarehousePublisher";
+
+	/**
+	 * 每次投递最多发送的数量, 之后重新提交到Executor, 避免长时间占用一个线程
+	 */
+	public static final int DEFAULT_MAX_BATCH = 256;
+
+	private final IWarehouse<T> mWarehouse;
+
+	private final Executor mExecutor;
+
+	private final IWarehouse<T> mProducerWarehouse;
+
+	private final CopyOnWriteArrayList<WarehouseSubscription> mSubscriptions = new CopyOnWriteArrayList<WarehouseSubscription>();
+
+	private volatile int mMaxBatch = DEFAULT_MAX_BATCH;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param warehouse 产品来源
+	 * @param executor 执行投递, 回调onNext/onComplete/onError的线程
+	 */
+	public WarehousePublisher(IWarehouse<T> warehouse, Executor executor) {
+		if(warehouse == null || executor == null) {
+			throw new IllegalArgumentException("warehouse and executor can not be null");
+		}
+		this.mWarehouse = warehouse;
+		this.mExecutor = executor;
+		this.mProducerWarehouse = new ForwardingWarehouse<T>(warehouse) {
+			@Override
+			public void put(T data) {
+				super.put(data);
+				signal();
+			}
+
+			@Override
+			public int putAll(Collection<? extends T> products) {
+				int count = super.putAll(products);
+				signal();
+				return count;
+			}
+
+			@Override
+			public int putAll(Collection<? extends T> products, long timeout, TimeUnit unit) {
+				int count = super.putAll(products, timeout, unit);
+				signal();
+				return count;
+			}
+		};
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if(subscriber == null) {
+			throw new NullPointerException("subscriber is null");
+		}
+		WarehouseSubscription subscription = new WarehouseSubscription(subscriber);
+		mSubscriptions.add(subscription);
+		try {
+			subscriber.onSubscribe(subscription);
+		} catch (RuntimeException e) {
+			SysLog.e(TAG, "subscribe: onSubscribe Exception: " + e, e);
+			subscription.cancel();
+			return;
+		}
+		if(closed) {
+			subscription.schedule();
+		}
+	}
+
+	/**
+	 * 生产者使用的仓库, 放入后通知订阅者
+	 * @return
+	 */
+	public IWarehouse<T> getWarehouse() {
+		return mProducerWarehouse;
+	}
+
+	/**
+	 * 仓库中有新产品, 有需求的订阅者开始投递
+	 */
+	public void signal() {
+		for(WarehouseSubscription subscription : mSubscriptions) {
+			subscription.schedule();
+		}
+	}
+
+	/**
+	 * 不再放入产品, 仓库中的产品发完后回调onComplete
+	 */
+	public void close() {
+		closed = true;
+		signal();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * 当前订阅者数量
+	 * @return
+	 */
+	public int getSubscriberCount() {
+		return mSubscriptions.size();
+	}
+
+	/**
+	 * 设置每次投递最多发送的数量
+	 * @param maxBatch
+	 */
+	public void setMaxBatch(int maxBatch) {
+		if(maxBatch <= 0) {
+			throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+		}
+		this.mMaxBatch = maxBatch;
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[subscribers=" + mSubscriptions.size() + ", closed=" + closed + ", " + mWarehouse + "]";
+	}
+
+	/**
+	 * 一个订阅者的订阅
+	 * <p>需求和仓库产品都有时由Executor执行投递, mWip保证同一时刻只有一个线程回调订阅者, 回调之间有先后顺序.
+	 */
+	private final class WarehouseSubscription implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super T> mSubscriber;
+
+		/**
+		 * 还没有满足的需求, Long.MAX_VALUE表示不限制
+		 */
+		private final AtomicLong mDemand = new AtomicLong();
+
+		/**
+		 * 需要执行投递的次数, 大于0时已经提交或者正在执行
+		 */
+		private final AtomicInteger mWip = new AtomicInteger();
+
+		private final List<T> mBatch = new ArrayList<T>();
+
+		private volatile boolean cancelled = false;
+
+		/**
+		 * 已经回调onComplete/onError
+		 */
+		private boolean mDone = false;
+
+		private volatile Throwable mError;
+
+		WarehouseSubscription(Flow.Subscriber<? super T> subscriber) {
+			this.mSubscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if(n <= 0) {
+				mError = new IllegalArgumentException("request must be positive: " + n);
+				schedule();
+				return;
+			}
+			while(true) {
+				long current = mDemand.get();
+				long next = current + n;
+				if(next < 0) {
+					//溢出, 不再限制
+					next = Long.MAX_VALUE;
+				}
+				if(mDemand.compareAndSet(current, next)) {
+					break;
+				}
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			mSubscriptions.remove(this);
+		}
+
+		void schedule() {
+			if(cancelled) {
+				return;
+			}
+			if(mWip.getAndIncrement() == 0) {
+				try {
+					mExecutor.execute(this);
+				} catch (RuntimeException e) {
+					SysLog.e(TAG, "schedule: Executor rejected: " + e);
+					mWip.set(0);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = mWip.get();
+			int sent = 0;
+			while(true) {
+				sent += deliver(mMaxBatch - sent);
+				if(sent >= mMaxBatch && !cancelled && !mDone) {
+					//本次已经发送够多, 重新提交, 让出线程
+					resubmit();
+					return;
+				}
+				missed = mWip.addAndGet(-missed);
+				if(missed == 0) {
+					return;
+				}
+			}
+		}
+
+		private void resubmit() {
+			try {
+				mExecutor.execute(this);
+			} catch (RuntimeException e) {
+				SysLog.e(TAG, "resubmit: Executor rejected: " + e);
+				mWip.set(0);
+			}
+		}
+
+		/**
+		 * 按需求从仓库取出产品并发送
+		 * @param limit 最多发送数量
+		 * @return 发送的数量
+		 */
+		private int deliver(int limit) {
+			if(cancelled || mDone) {
+				return 0;
+			}
+			Throwable error = mError;
+			if(error != null) {
+				finish(error);
+				return 0;
+			}
+			int sent = 0;
+			while(sent < limit && !cancelled) {
+				long demand = mDemand.get();
+				if(demand <= 0) {
+					break;
+				}
+				int max = (int) Math.min(demand, limit - sent);
+				List<T> batch = mBatch;
+				batch.clear();
+				int count = mWarehouse.drainTo(batch, max, 0, TimeUnit.NANOSECONDS);
+				if(count <= 0) {
+					break;
+				}
+				for(int i = 0; i < count; i++) {
+					if(cancelled) {
+						//已经取出的产品放回仓库, 不丢失
+						putBack(batch.subList(i, count));
+						break;
+					}
+					try {
+						mSubscriber.onNext(batch.get(i));
+					} catch (RuntimeException e) {
+						SysLog.e(TAG, "deliver: onNext Exception: " + e, e);
+						cancel();
+						putBack(batch.subList(i + 1, count));
+						break;
+					}
+					sent++;
+				}
+				batch.clear();
+				if(demand != Long.MAX_VALUE) {
+					mDemand.addAndGet(-count);
+				}
+			}
+			if(closed && !cancelled && mWarehouse.size() <= 0) {
+				finish(null);
+			}
+			return sent;
+		}
+
+		/**
+		 * 取消后把已经取出的产品放回仓库, 交给其他订阅者
+		 * @param products
+		 */
+		private void putBack(List<T> products) {
+			if(products.isEmpty()) {
+				return;
+			}
+			mWarehouse.putAll(products);
+			signal();
+		}
+
+		/**
+		 * 回调onComplete或者onError, 只回调一次
+		 * @param error
+		 */
+		private void finish(Throwable error) {
+			mDone = true;
+			mSubscriptions.remove(this);
+			try {
+				if(error != null) {
+					mSubscriber.onError(error);
+				} else {
+					mSubscriber.onComplete();
+				}
+			} catch (RuntimeException e) {
+				SysLog.e(TAG, "finish: Subscriber Exception: " + e, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package com.hulk.model.pc.flow;
+
+import java.util.Collection;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hulk.model.pc.core.IWarehouse;
+import com.hulk.model.pc.core.RingWarehouseBase;
+import com.hulk.model.pc.core.SysLog;
+import com.hulk.model.pc.core.WarehouseBase;
+
+/**
+ * 仓库订阅者: 订阅Flow.Publisher, 把收到的产品放入仓库, 交给ConsumerBase等消费
+ * <p>request(n)的需求按仓库容量计算: 已放入还没有取出的产品加上已请求还没有收到的产品不超过prefetch,
+ * 所以onNext放入时不会因为仓库满而阻塞发布者的线程.
+ * <p>消费者需要通过getWarehouse()返回的仓库取出, 取出后补充需求; 直接从原仓库取出时需要调用replenish().
+ * <p>onComplete/onError之后isDone()返回true, 可以用来停止消费者.
+ * <p>需要JDK9及以上.
+ * @author zhanghao
+ *
+ * @param <T>
+ */
+public class WarehouseSubscriber<T> implements Flow.Subscriber<T> {
+
+	private static final String TAG = "WarehouseSubscriber";
+
+	private final IWarehouse<T> mWarehouse;
+
+	private final IWarehouse<T> mConsumerWarehouse;
+
+	/**
+	 * 最多在仓库和路上的产品数量
+	 */
+	private final int mPrefetch;
+
+	/**
+	 * 空位达到这个数量时才请求, 避免每取出一个请求一次
+	 */
+	private final int mRequestThreshold;
+
+	/**
+	 * 已请求还没有收到的数量
+	 */
+	private final AtomicLong mOutstanding = new AtomicLong();
+
+	private volatile Flow.Subscription mSubscription;
+
+	private volatile boolean done = false;
+
+	private volatile Throwable mError;
+
+	/**
+	 * 按仓库容量预取
+	 * @param warehouse WarehouseBase或者RingWarehouseBase
+	 */
+	public WarehouseSubscriber(IWarehouse<T> warehouse) {
+		this(warehouse, getCapacity(warehouse));
+	}
+
+	/**
+	 * @param warehouse 接收产品的仓库
+	 * @param prefetch 最多在仓库和路上的产品数量, 不应超过仓库容量
+	 */
+	public WarehouseSubscriber(IWarehouse<T> warehouse, int prefetch) {
+		if(warehouse == null) {
+			throw new IllegalArgumentException("warehouse is null");
+		}
+		if(prefetch <= 0) {
+			throw new IllegalArgumentException("prefetch must be positive: " + prefetch);
+		}
+		this.mWarehouse = warehouse;
+		this.mPrefetch = prefetch;
+		this.mRequestThreshold = Math.max(1, prefetch / 4);
+		this.mConsumerWarehouse = new ForwardingWarehouse<T>(warehouse) {
+			@Override
+			public T get() {
+				T product = super.get();
+				replenish();
+				return product;
+			}
+
+			@Override
+			public int drainTo(Collection<? super T> c, int maxElements) {
+				int count = super.drainTo(c, maxElements);
+				replenish();
+				return count;
+			}
+
+			@Override
+			public int drainTo(Collection<? super T> c, int maxElements, long timeout, TimeUnit unit) {
+				int count = super.drainTo(c, maxElements, timeout, unit);
+				replenish();
+				return count;
+			}
+		};
+	}
+
+	private static int getCapacity(IWarehouse<?> warehouse) {
+		if(warehouse instanceof WarehouseBase) {
+			return ((WarehouseBase<?>) warehouse).getCapacity();
+		}
+		if(warehouse instanceof RingWarehouseBase) {
+			return ((RingWarehouseBase<?>) warehouse).getCapacity();
+		}
+		throw new IllegalArgumentException("Unknown capacity of " + warehouse + ", please set prefetch");
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if(mSubscription != null) {
+			//只能订阅一个发布者
+			SysLog.w(TAG, "onSubscribe: Already subscribed, cancel " + subscription);
+			subscription.cancel();
+			return;
+		}
+		mSubscription = subscription;
+		replenish();
+	}
+
+	@Override
+	public void onNext(T item) {
+		//需求按空位计算, 正常情况下不会等待. 先放入再减少在路上的数量, 计算空位时不会多算
+		mWarehouse.put(item);
+		mOutstanding.decrementAndGet();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		mError = throwable;
+		done = true;
+		SysLog.e(TAG, "onError: " + throwable, throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		done = true;
+		SysLog.i(TAG, "onComplete: remaining size=" + mWarehouse.size());
+	}
+
+	/**
+	 * 按仓库空位补充需求
+	 */
+	public void replenish() {
+		Flow.Subscription subscription = mSubscription;
+		if(subscription == null || done) {
+			return;
+		}
+		while(true) {
+			long outstanding = mOutstanding.get();
+			long free = mPrefetch - mWarehouse.size() - outstanding;
+			if(free < mRequestThreshold && outstanding > 0) {
+				//还有请求在路上, 等空位多一些再请求
+				return;
+			}
+			if(free <= 0) {
+				return;
+			}
+			if(mOutstanding.compareAndSet(outstanding, outstanding + free)) {
+				subscription.request(free);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 取消订阅, 仓库中已经收到的产品保留
+	 */
+	public void cancel() {
+		Flow.Subscription subscription = mSubscription;
+		done = true;
+		if(subscription != null) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * 消费者使用的仓库, 取出后补充需求
+	 * @return
+	 */
+	public IWarehouse<T> getWarehouse() {
+		return mConsumerWarehouse;
+	}
+
+	/**
+	 * 发布者已经结束(onComplete/onError)或者已经取消
+	 * @return
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * 发布者的错误, 正常结束时为null
+	 * @return
+	 */
+	public Throwable getError() {
+		return mError;
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[prefetch=" + mPrefetch + ", outstanding=" + mOutstanding.get() + ", done=" + done
+				+ ", " + mWarehouse + "]";
+	}
+}
@@ -0,0 +1,537 @@
+package com.hulk.model.pc.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.hulk.model.pc.core.IWarehouse;
+import com.hulk.model.pc.core.SysLog;
+import com.hulk.model.pc.core.WarehouseBase;
+
+/**
+ * 流水线
+ * <p>把多步处理声明为阶段, 不再手工把ProducerBase -> WarehouseBase -> ConsumerBase(再放入下一个仓库)连起来.
+ * 每个阶段是一个有界仓库加一个消费者线程池, 阶段之间通过仓库满时等待实现端到端背压.
+ * <p>阶段: map(转换, 返回null丢弃), filter(过滤), batch(攒批), to(最终消费);
+ * 分支: fanOut广播或者按分区把产品交给多个下游流水线, 多个流水线to同一个下游流水线即为合并(fan-in).
+ * <p>eg:
+ * <pre>
+ * Pipeline&lt;String&gt; pipeline = Pipeline.&lt;String&gt;builder("log")
+ *     .map("parse", 2, parseFunction)
+ *     .filter("level", 1, errorOnly)
+ *     .batch("batch", 100, 50, TimeUnit.MILLISECONDS)
+ *     .to("write", 1, fileSink);
+ * pipeline.start();
+ * pipeline.put(line);
+ * ...
+ * pipeline.stop(true, 5, TimeUnit.SECONDS);
+ * </pre>
+ * <p>停止时按顺序停止每个阶段, drain为true时上游阶段排空(攒批阶段输出剩余的批)后再停止下游阶段.
+ * 阶段的工作者没有退出(不排空或者超时)时, 阻塞在下游已满仓库的输出被中断, 该产品被丢弃, 工作者随后退出.
+ * 下游流水线需要在上游停止后单独停止.
+ * <p>主线程放入时与仓库相同, 仓库满不会等待而是丢弃.
+ * @author zhanghao
+ *
+ * @param <I> 输入类型
+ */
+public class Pipeline<I> {
+
+	private static final String TAG = "Pipeline";
+
+	/**
+	 * 阶段之间仓库的默认容量
+	 */
+	public static final int DEFAULT_STAGE_CAPACITY = WarehouseBase.DEFAULT_PRODUST_CAPACITY * 10;
+
+	/**
+	 * 转换
+	 * @param <A>
+	 * @param <B>
+	 */
+	public interface Function<A, B> {
+		/**
+		 * @param input
+		 * @return 返回null表示丢弃
+		 */
+		B apply(A input);
+	}
+
+	/**
+	 * 过滤条件
+	 * @param <A>
+	 */
+	public interface Predicate<A> {
+		boolean test(A input);
+	}
+
+	/**
+	 * 最终消费
+	 * @param <A>
+	 */
+	public interface Sink<A> {
+		void accept(A input);
+	}
+
+	/**
+	 * 分区: 返回下游流水线的下标
+	 * @param <A>
+	 */
+	public interface Partitioner<A> {
+		/**
+		 * @param input
+		 * @param count 下游数量
+		 * @return [0, count)
+		 */
+		int partition(A input, int count);
+	}
+
+	/**
+	 * 阶段输出
+	 * @param <A>
+	 */
+	interface Emitter<A> {
+		void emit(A product);
+	}
+
+	/**
+	 * 阶段之间的连接, 声明下一个阶段时设置目标
+	 * @param <A>
+	 */
+	static final class Link<A> implements Emitter<A> {
+		private volatile Emitter<A> mTarget;
+
+		void setTarget(Emitter<A> target) {
+			if(mTarget != null) {
+				throw new IllegalStateException("Stage output is already connected");
+			}
+			mTarget = target;
+		}
+
+		boolean isConnected() {
+			return mTarget != null;
+		}
+
+		@Override
+		public void emit(A product) {
+			mTarget.emit(product);
+		}
+	}
+
+	/**
+	 * 放入仓库
+	 * @param <A>
+	 */
+	static final class WarehouseEmitter<A> implements Emitter<A> {
+		private final IWarehouse<A> mWarehouse;
+
+		WarehouseEmitter(IWarehouse<A> warehouse) {
+			this.mWarehouse = warehouse;
+		}
+
+		@Override
+		public void emit(A product) {
+			mWarehouse.put(product);
+		}
+	}
+
+	protected final String mName;
+
+	protected final List<PipelineStage<?>> mStages = new ArrayList<PipelineStage<?>>();
+
+	/**
+	 * 流水线输入
+	 */
+	private final Link<I> mHead = new Link<I>();
+
+	private volatile boolean running = false;
+
+	private Pipeline(String name) {
+		this.mName = name;
+	}
+
+	/**
+	 * 开始声明流水线
+	 * @param name 流水线名称, 也是阶段线程名称的前缀
+	 * @return
+	 */
+	public static <I> Builder<I, I> builder(String name) {
+		Pipeline<I> pipeline = new Pipeline<I>(name);
+		return new Builder<I, I>(pipeline, pipeline.mHead, DEFAULT_STAGE_CAPACITY);
+	}
+
+	/**
+	 * 启动所有阶段, 从下游开始, 保证上游输出时下游已经在运行
+	 */
+	public synchronized void start() {
+		if(running) {
+			SysLog.w(TAG, "start: Already running " + mName);
+			return;
+		}
+		SysLog.i(TAG, "start: " + mName + ", stages=" + mStages.size());
+		for(int i = mStages.size() - 1; i >= 0; i--) {
+			mStages.get(i).start();
+		}
+		running = true;
+	}
+
+	/**
+	 * 放入产品, 第一个阶段的仓库满时等待
+	 * @param product
+	 */
+	public void put(I product) {
+		mHead.emit(product);
+	}
+
+	public void putAll(Collection<? extends I> products) {
+		for(I product : products) {
+			mHead.emit(product);
+		}
+	}
+
+	/**
+	 * 立即停止所有阶段, 仓库中没有处理的产品被丢弃
+	 */
+	public void stop() {
+		stop(false, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 按顺序停止每个阶段
+	 * @param drain 是否等待每个阶段处理完再停止下一个阶段
+	 * @param timeout 总的等待时间, 超时后剩余阶段直接停止
+	 * @param unit
+	 * @return 是否所有阶段都已经排空
+	 */
+	public synchronized boolean stop(boolean drain, long timeout, TimeUnit unit) {
+		SysLog.w(TAG, "stop: " + mName + ", drain=" + drain);
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean drained = true;
+		for(PipelineStage<?> stage : mStages) {
+			long remaining = Math.max(0L, deadline - System.nanoTime());
+			if(!stage.stop(drain && drained, remaining)) {
+				if(drain && drained) {
+					SysLog.w(TAG, "stop: " + mName + " Not drained at stage " + stage.getName());
+				}
+				drained = false;
+			}
+		}
+		running = false;
+		return drain ? drained : true;
+	}
+
+	/**
+	 * 等待所有阶段的线程退出
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for(PipelineStage<?> stage : getStages()) {
+			if(!stage.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * 调整阶段的并行度
+	 * @param stageName
+	 * @param parallelism
+	 */
+	public void resize(String stageName, int parallelism) {
+		PipelineStage<?> stage = getStage(stageName);
+		if(stage == null) {
+			throw new IllegalArgumentException("No stage named " + stageName + " in " + mName);
+		}
+		stage.resize(parallelism);
+	}
+
+	public synchronized List<PipelineStage<?>> getStages() {
+		return new ArrayList<PipelineStage<?>>(mStages);
+	}
+
+	public synchronized PipelineStage<?> getStage(String stageName) {
+		for(PipelineStage<?> stage : mStages) {
+			if(stage.getName().equals(stageName)) {
+				return stage;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 每个阶段的统计
+	 * @return
+	 */
+	public List<StageStats> getStats() {
+		List<StageStats> stats = new ArrayList<StageStats>();
+		for(PipelineStage<?> stage : getStages()) {
+			stats.add(stage.getStats());
+		}
+		return stats;
+	}
+
+	/**
+	 * 瓶颈阶段: 输入仓库占用比例最高的阶段
+	 * @return 没有阶段时返回null
+	 */
+	public StageStats getBottleneck() {
+		StageStats bottleneck = null;
+		for(StageStats stats : getStats()) {
+			if(bottleneck == null || stats.getFillRatio() > bottleneck.getFillRatio()) {
+				bottleneck = stats;
+			}
+		}
+		return bottleneck;
+	}
+
+	/**
+	 * 打印每个阶段的统计
+	 */
+	public void report() {
+		for(StageStats stats : getStats()) {
+			SysLog.i(TAG, mName + "." + stats);
+		}
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	private synchronized <A> PipelineStage<A> addStage(String name, int capacity, int parallelism,
+			PipelineStage.StageFactory<A> factory) {
+		if(parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		if(running) {
+			throw new IllegalStateException("Can not add stage to running pipeline " + mName);
+		}
+		PipelineStage<A> stage = new PipelineStage<A>(mName + "-" + name, capacity, parallelism, factory);
+		mStages.add(stage);
+		return stage;
+	}
+
+	@Override
+	public String toString() {
+		return mName + getStages();
+	}
+
+	/**
+	 * 流水线声明
+	 * @param <I> 流水线输入类型
+	 * @param <O> 当前阶段输出类型
+	 */
+	public static final class Builder<I, O> {
+
+		private final Pipeline<I> mPipeline;
+
+		private final Link<O> mOut;
+
+		private int mCapacity;
+
+		Builder(Pipeline<I> pipeline, Link<O> out, int capacity) {
+			this.mPipeline = pipeline;
+			this.mOut = out;
+			this.mCapacity = capacity;
+		}
+
+		/**
+		 * 设置之后声明的阶段的仓库容量
+		 * @param capacity
+		 * @return
+		 */
+		public Builder<I, O> capacity(int capacity) {
+			if(capacity <= 0) {
+				throw new IllegalArgumentException("capacity must be positive: " + capacity);
+			}
+			this.mCapacity = capacity;
+			return this;
+		}
+
+		/**
+		 * 转换阶段
+		 * @param name
+		 * @param parallelism 消费者数量
+		 * @param function 返回null表示丢弃
+		 * @return
+		 */
+		public <B> Builder<I, B> map(String name, int parallelism, final Function<? super O, ? extends B> function) {
+			checkNotNull(function, "function");
+			final Link<B> next = new Link<B>();
+			connect(name, parallelism, new PipelineStage.StageFactory<O>() {
+				@Override
+				public StageConsumer<O> newConsumer(PipelineStage<O> stage, IWarehouse<O> warehouse) {
+					return new StageConsumer.MapConsumer<O, B>(stage, warehouse, function, next);
+				}
+			});
+			return new Builder<I, B>(mPipeline, next, mCapacity);
+		}
+
+		/**
+		 * 过滤阶段
+		 * @param name
+		 * @param parallelism
+		 * @param predicate 返回true的产品交给下游
+		 * @return
+		 */
+		public Builder<I, O> filter(String name, int parallelism, final Predicate<? super O> predicate) {
+			checkNotNull(predicate, "predicate");
+			final Link<O> next = new Link<O>();
+			connect(name, parallelism, new PipelineStage.StageFactory<O>() {
+				@Override
+				public StageConsumer<O> newConsumer(PipelineStage<O> stage, IWarehouse<O> warehouse) {
+					return new StageConsumer.FilterConsumer<O>(stage, warehouse, predicate, next);
+				}
+			});
+			return new Builder<I, O>(mPipeline, next, mCapacity);
+		}
+
+		/**
+		 * 攒批阶段(一个消费者)
+		 * @param name
+		 * @param batchSize 每批最多数量
+		 * @param maxLinger 第一个产品最多等待时间, 超时输出不满的批
+		 * @param unit
+		 * @return
+		 */
+		public Builder<I, List<O>> batch(String name, final int batchSize, long maxLinger, TimeUnit unit) {
+			if(batchSize <= 0) {
+				throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+			}
+			final long maxLingerNanos = unit.toNanos(maxLinger);
+			final Link<List<O>> next = new Link<List<O>>();
+			connect(name, 1, new PipelineStage.StageFactory<O>() {
+				@Override
+				public StageConsumer<O> newConsumer(PipelineStage<O> stage, IWarehouse<O> warehouse) {
+					return new StageConsumer.BatchConsumer<O>(stage, warehouse, batchSize, maxLingerNanos, next);
+				}
+			});
+			return new Builder<I, List<O>>(mPipeline, next, mCapacity);
+		}
+
+		/**
+		 * 最终消费阶段, 结束声明
+		 * @param name
+		 * @param parallelism
+		 * @param sink
+		 * @return
+		 */
+		public Pipeline<I> to(String name, int parallelism, final Sink<? super O> sink) {
+			checkNotNull(sink, "sink");
+			connect(name, parallelism, new PipelineStage.StageFactory<O>() {
+				@Override
+				public StageConsumer<O> newConsumer(PipelineStage<O> stage, IWarehouse<O> warehouse) {
+					return new StageConsumer.SinkConsumer<O>(stage, warehouse, sink);
+				}
+			});
+			return mPipeline;
+		}
+
+		/**
+		 * 交给下游流水线, 结束声明. 多个流水线交给同一个下游即为合并(fan-in)
+		 * @param downstream
+		 * @return
+		 */
+		public Pipeline<I> to(final Pipeline<O> downstream) {
+			checkNotNull(downstream, "downstream");
+			mOut.setTarget(new Emitter<O>() {
+				@Override
+				public void emit(O product) {
+					downstream.put(product);
+				}
+			});
+			return mPipeline;
+		}
+
+		/**
+		 * 广播给每个下游流水线, 结束声明
+		 * @param branches
+		 * @return
+		 */
+		@SafeVarargs
+		public final Pipeline<I> fanOut(Pipeline<O>... branches) {
+			//逐个复制, 调用者之后修改数组不影响分发, 数组也不会被保存
+			final List<Pipeline<O>> targets = new ArrayList<Pipeline<O>>();
+			if(branches != null) {
+				for(Pipeline<O> branch : branches) {
+					targets.add(branch);
+				}
+			}
+			checkBranches(targets);
+			mOut.setTarget(new Emitter<O>() {
+				@Override
+				public void emit(O product) {
+					for(Pipeline<O> branch : targets) {
+						branch.put(product);
+					}
+				}
+			});
+			return mPipeline;
+		}
+
+		/**
+		 * 按分区交给一个下游流水线, 结束声明
+		 * @param partitioner
+		 * @param branches
+		 * @return
+		 */
+		@SafeVarargs
+		public final Pipeline<I> fanOut(final Partitioner<? super O> partitioner, Pipeline<O>... branches) {
+			checkNotNull(partitioner, "partitioner");
+			//逐个复制, 调用者之后修改数组不影响分发, 数组也不会被保存
+			final List<Pipeline<O>> targets = new ArrayList<Pipeline<O>>();
+			if(branches != null) {
+				for(Pipeline<O> branch : branches) {
+					targets.add(branch);
+				}
+			}
+			checkBranches(targets);
+			mOut.setTarget(new Emitter<O>() {
+				@Override
+				public void emit(O product) {
+					int size = targets.size();
+					int index = partitioner.partition(product, size);
+					if(index < 0 || index >= size) {
+						throw new IndexOutOfBoundsException("partition " + index + " is out of [0, " + size + ")");
+					}
+					targets.get(index).put(product);
+				}
+			});
+			return mPipeline;
+		}
+
+		/**
+		 * 创建消费mOut的阶段
+		 * @param name
+		 * @param parallelism
+		 * @param factory
+		 */
+		private void connect(String name, int parallelism, PipelineStage.StageFactory<O> factory) {
+			PipelineStage<O> stage = mPipeline.addStage(name, mCapacity, parallelism, factory);
+			mOut.setTarget(new WarehouseEmitter<O>(stage.getInput()));
+		}
+
+		private static void checkBranches(List<? extends Pipeline<?>> branches) {
+			if(branches.isEmpty()) {
+				throw new IllegalArgumentException("branches is empty");
+			}
+			for(Pipeline<?> branch : branches) {
+				checkNotNull(branch, "branch");
+			}
+		}
+
+		private static void checkNotNull(Object value, String name) {
+			if(value == null) {
+				throw new IllegalArgumentException(name + " is null");
+			}
+		}
+	}
+}
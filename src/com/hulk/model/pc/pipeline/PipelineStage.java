@@ -0,0 +1,159 @@
+package com.hulk.model.pc.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hulk.model.pc.core.ConsumerBase;
+import com.hulk.model.pc.core.ConsumerPool;
+import com.hulk.model.pc.core.IWarehouse;
+import com.hulk.model.pc.core.PCWorkerFactory;
+import com.hulk.model.pc.core.RingWarehouse;
+import com.hulk.model.pc.core.SysLog;
+
+/**
+ * 流水线阶段
+ * <p>一个有界输入仓库(RingWarehouse)和一个消费者线程池, 下游处理不过来时输入仓库满, 上游放入时等待(背压).
+ * @author zhanghao
+ *
+ * @param <A> 输入类型
+ */
+public class PipelineStage<A> {
+
+	private static final String TAG = "PipelineStage";
+
+	/**
+	 * 打印错误日志的间隔, 避免大量失败时刷屏
+	 */
+	private static final int ERROR_LOG_INTERVAL = 1000;
+
+	protected final String mName;
+
+	protected final RingWarehouse<A> mInput;
+
+	protected final ConsumerPool<A> mPool;
+
+	private final AtomicLong mErrorCount = new AtomicLong();
+
+	/**
+	 * 启动时间, 用于计算平均吞吐量
+	 */
+	private volatile long mStartNanos = System.nanoTime();
+
+	PipelineStage(String name, int capacity, int parallelism, final StageFactory<A> factory) {
+		this.mName = name;
+		this.mInput = new RingWarehouse<A>(capacity);
+		this.mPool = new ConsumerPool<A>(mInput, new PCWorkerFactory<A, ConsumerBase<A>>() {
+			@Override
+			public ConsumerBase<A> newWorker(IWarehouse<A> warehouse, int index) {
+				return factory.newConsumer(PipelineStage.this, warehouse);
+			}
+		}, parallelism);
+		mPool.setName(name);
+		//阶段之间靠仓库等待, 不需要每次循环睡眠
+		mPool.setSleepTime(0);
+	}
+
+	/**
+	 * 创建阶段的消费者
+	 * @param <A>
+	 */
+	interface StageFactory<A> {
+		StageConsumer<A> newConsumer(PipelineStage<A> stage, IWarehouse<A> warehouse);
+	}
+
+	void start() {
+		mStartNanos = System.nanoTime();
+		mPool.start();
+	}
+
+	/**
+	 * 停止阶段
+	 * @param drain 是否先处理完输入仓库中的产品
+	 * @param timeoutNanos
+	 * @return 是否已经排空并且所有消费者已经退出
+	 */
+	boolean stop(boolean drain, long timeoutNanos) {
+		//攒批阶段在消费者退出时输出剩余的批, 线程池停止时等它退出后再停止下游
+		if(mPool.stop(drain, timeoutNanos, TimeUnit.NANOSECONDS)) {
+			return true;
+		}
+		//没有退出的工作者可能阻塞在下游已满的仓库, 下游随后停止, 中断放入, 否则工作者永远不会退出
+		for(ConsumerBase<A> worker : mPool.getWorkers()) {
+			if(worker instanceof StageConsumer) {
+				((StageConsumer<?>) worker).interruptEmit();
+			}
+		}
+		return false;
+	}
+
+	boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return mPool.awaitTermination(timeout, unit);
+	}
+
+	void onError(A product, RuntimeException e) {
+		long count = mErrorCount.incrementAndGet();
+		if(count == 1 || count % ERROR_LOG_INTERVAL == 0) {
+			SysLog.e(TAG, mName + ": Failed to process product=" + product + ", errorCount=" + count + ": " + e, e);
+		}
+	}
+
+	/**
+	 * 调整并行度, 用于扩容瓶颈阶段
+	 * @param parallelism
+	 */
+	public void resize(int parallelism) {
+		mPool.resize(parallelism);
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public int getParallelism() {
+		return mPool.getPoolSize();
+	}
+
+	/**
+	 * 输入仓库
+	 * @return
+	 */
+	public IWarehouse<A> getInput() {
+		return mInput;
+	}
+
+	/**
+	 * 处理完成的数量
+	 * @return
+	 */
+	public long getProcessedCount() {
+		return mPool.getLoopCount();
+	}
+
+	public long getErrorCount() {
+		return mErrorCount.get();
+	}
+
+	public boolean isRunning() {
+		return mPool.isRunning();
+	}
+
+	/**
+	 * 统计, 吞吐量为启动以来的平均值, 不修改状态, 可以多处调用
+	 * <p>一段时间内的吞吐量用StageStats.getThroughputSince(上一次的统计)计算.
+	 * @return
+	 */
+	public StageStats getStats() {
+		long now = System.nanoTime();
+		long processed = getProcessedCount();
+		long elapsed = now - mStartNanos;
+		double throughput = elapsed > 0 ? processed * 1e9 / elapsed : 0;
+		return new StageStats(mName, getParallelism(), mInput.size(), mInput.getCapacity(), processed,
+				getErrorCount(), throughput, now);
+	}
+
+	@Override
+	public String toString() {
+		return mName + "[parallelism=" + getParallelism() + ", queued=" + mInput.size()
+				+ ", processed=" + getProcessedCount() + ", errors=" + getErrorCount() + "]";
+	}
+}
@@ -0,0 +1,223 @@
+package com.hulk.model.pc.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hulk.model.pc.core.ConsumerBase;
+import com.hulk.model.pc.core.IWarehouse;
+
+/**
+ * 流水线阶段的消费者
+ * <p>从阶段的输入仓库取出产品处理, 结果交给下游. 处理抛出的异常计入阶段的错误数, 不影响后面的产品.
+ * @author zhanghao
+ *
+ * @param <A> 输入类型
+ */
+abstract class StageConsumer<A> extends ConsumerBase<A> {
+
+	protected final PipelineStage<A> mStage;
+
+	/**
+	 * 保护mEmitThread
+	 */
+	private final Object mEmitLock = new Object();
+
+	/**
+	 * 正在输出(可能阻塞在下游已满的仓库)的线程
+	 */
+	private Thread mEmitThread;
+
+	/**
+	 * 阶段停止时不再等待下游空位, 由interruptEmit设置
+	 */
+	private volatile boolean mInterruptEmit = false;
+
+	StageConsumer(PipelineStage<A> stage, IWarehouse<A> warehouse) {
+		super(warehouse);
+		this.mStage = stage;
+	}
+
+	@Override
+	protected boolean doConsume(A product) {
+		if(product == null) {
+			return false;
+		}
+		try {
+			return process(product);
+		} catch (RuntimeException e) {
+			mStage.onError(product, e);
+			return false;
+		}
+	}
+
+	/**
+	 * 处理一个产品
+	 * @param product
+	 * @return 是否处理完成(被过滤也算完成)
+	 */
+	protected abstract boolean process(A product);
+
+	/**
+	 * 交给下游, 记录正在输出的线程, 让interruptEmit可以中断阻塞在下游仓库的put
+	 * @param out
+	 * @param product
+	 */
+	protected <B> void emit(Pipeline.Emitter<B> out, B product) {
+		synchronized (mEmitLock) {
+			mEmitThread = Thread.currentThread();
+		}
+		try {
+			if(mInterruptEmit) {
+				//interruptEmit在标记输出之前调用, 不再等待下游空位
+				Thread.currentThread().interrupt();
+			}
+			out.emit(product);
+		} finally {
+			synchronized (mEmitLock) {
+				mEmitThread = null;
+			}
+			if(mInterruptEmit) {
+				//清除停止时的中断状态
+				Thread.interrupted();
+			}
+		}
+	}
+
+	/**
+	 * 中断阻塞在下游仓库的put, 之后的输出也不再等待, 下游仓库满时产品被丢弃
+	 * <p>阶段停止但是工作者没有退出时调用, 下游阶段随后停止, 不中断的话工作者会一直等待下游空位.
+	 */
+	void interruptEmit() {
+		mInterruptEmit = true;
+		synchronized (mEmitLock) {
+			Thread thread = mEmitThread;
+			if(thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 转换
+	 */
+	static class MapConsumer<A, B> extends StageConsumer<A> {
+		private final Pipeline.Function<? super A, ? extends B> mFunction;
+		private final Pipeline.Emitter<B> mOut;
+
+		MapConsumer(PipelineStage<A> stage, IWarehouse<A> warehouse, Pipeline.Function<? super A, ? extends B> function,
+				Pipeline.Emitter<B> out) {
+			super(stage, warehouse);
+			this.mFunction = function;
+			this.mOut = out;
+		}
+
+		@Override
+		protected boolean process(A product) {
+			B result = mFunction.apply(product);
+			if(result != null) {
+				//返回null表示丢弃
+				emit(mOut, result);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 过滤
+	 */
+	static class FilterConsumer<A> extends StageConsumer<A> {
+		private final Pipeline.Predicate<? super A> mPredicate;
+		private final Pipeline.Emitter<A> mOut;
+
+		FilterConsumer(PipelineStage<A> stage, IWarehouse<A> warehouse, Pipeline.Predicate<? super A> predicate,
+				Pipeline.Emitter<A> out) {
+			super(stage, warehouse);
+			this.mPredicate = predicate;
+			this.mOut = out;
+		}
+
+		@Override
+		protected boolean process(A product) {
+			if(mPredicate.test(product)) {
+				emit(mOut, product);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * 最终消费
+	 */
+	static class SinkConsumer<A> extends StageConsumer<A> {
+		private final Pipeline.Sink<? super A> mSink;
+
+		SinkConsumer(PipelineStage<A> stage, IWarehouse<A> warehouse, Pipeline.Sink<? super A> sink) {
+			super(stage, warehouse);
+			this.mSink = sink;
+		}
+
+		@Override
+		protected boolean process(A product) {
+			mSink.accept(product);
+			return true;
+		}
+	}
+
+	/**
+	 * 攒批: 达到batchSize或者第一个产品等待超过maxLinger时输出一批. 停止时输出剩余的产品
+	 * <p>每个消费者有自己的批, 并行度大于1时批之间没有顺序.
+	 */
+	static class BatchConsumer<A> extends StageConsumer<A> {
+		private final int mBatchSize;
+		private final long mMaxLingerNanos;
+		private final Pipeline.Emitter<List<A>> mOut;
+		private List<A> mPending;
+		private long mFirstNanos;
+
+		BatchConsumer(PipelineStage<A> stage, IWarehouse<A> warehouse, int batchSize, long maxLingerNanos,
+				Pipeline.Emitter<List<A>> out) {
+			super(stage, warehouse);
+			this.mBatchSize = batchSize;
+			this.mMaxLingerNanos = maxLingerNanos;
+			this.mOut = out;
+			//等待超时醒来检查是否到了输出时间
+			setGetTimeout(Math.max(1, Math.min(100, maxLingerNanos / 1000000)));
+		}
+
+		@Override
+		protected boolean process(A product) {
+			if(mPending == null) {
+				mPending = new ArrayList<A>(mBatchSize);
+				mFirstNanos = System.nanoTime();
+			}
+			mPending.add(product);
+			if(mPending.size() >= mBatchSize) {
+				flush();
+			}
+			return true;
+		}
+
+		@Override
+		protected void doOnceFinal() {
+			if(mPending != null && System.nanoTime() - mFirstNanos >= mMaxLingerNanos) {
+				flush();
+			}
+		}
+
+		@Override
+		protected void onPCFinised() {
+			flush();
+			super.onPCFinised();
+		}
+
+		private void flush() {
+			List<A> batch = mPending;
+			if(batch == null) {
+				return;
+			}
+			//下游持有这个列表, 不复用
+			mPending = null;
+			emit(mOut, batch);
+		}
+	}
+}
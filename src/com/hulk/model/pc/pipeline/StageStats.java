@@ -0,0 +1,104 @@
+package com.hulk.model.pc.pipeline;
+
+import java.util.Locale;
+
+/**
+ * 流水线阶段的统计快照
+ * <p>输入仓库接近满的阶段处理不过来, 是瓶颈, 可以通过Pipeline.resize增加并行度.
+ * @author zhanghao
+ *
+ */
+public class StageStats {
+
+	private final String mName;
+	private final int mParallelism;
+	private final int mQueued;
+	private final int mCapacity;
+	private final long mProcessed;
+	private final long mErrors;
+	private final double mThroughput;
+	private final long mNanos;
+
+	StageStats(String name, int parallelism, int queued, int capacity, long processed, long errors, double throughput,
+			long nanos) {
+		this.mName = name;
+		this.mParallelism = parallelism;
+		this.mQueued = queued;
+		this.mCapacity = capacity;
+		this.mProcessed = processed;
+		this.mErrors = errors;
+		this.mThroughput = throughput;
+		this.mNanos = nanos;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public int getParallelism() {
+		return mParallelism;
+	}
+
+	/**
+	 * 输入仓库中等待处理的数量
+	 * @return
+	 */
+	public int getQueued() {
+		return mQueued;
+	}
+
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * 输入仓库占用比例, 接近1表示该阶段是瓶颈
+	 * @return
+	 */
+	public double getFillRatio() {
+		return mCapacity > 0 ? (double) mQueued / mCapacity : 0;
+	}
+
+	public long getProcessed() {
+		return mProcessed;
+	}
+
+	public long getErrors() {
+		return mErrors;
+	}
+
+	/**
+	 * 启动以来平均每秒处理数量
+	 * @return
+	 */
+	public double getThroughput() {
+		return mThroughput;
+	}
+
+	/**
+	 * 从上一次统计到这一次平均每秒处理数量, 由调用者保存上一次的统计, 多处调用互不影响
+	 * @param previous 同一个阶段之前的统计, 为空时返回getThroughput
+	 * @return
+	 */
+	public double getThroughputSince(StageStats previous) {
+		if(previous == null) {
+			return mThroughput;
+		}
+		long elapsed = mNanos - previous.mNanos;
+		return elapsed > 0 ? (mProcessed - previous.mProcessed) * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * 统计时间(System.nanoTime)
+	 * @return
+	 */
+	public long getNanos() {
+		return mNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.US, "%s: parallelism=%d, queued=%d/%d, processed=%d, errors=%d, throughput=%.0f/s",
+				mName, mParallelism, mQueued, mCapacity, mProcessed, mErrors, mThroughput);
+	}
+}
@@ -0,0 +1,501 @@
+package com.hulk.model.pc.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.hulk.model.pc.core.AckWarehouse;
+import com.hulk.model.pc.core.BlockingWaitStrategy;
+import com.hulk.model.pc.core.BroadcastWarehouse;
+import com.hulk.model.pc.core.MpscRingWarehouse;
+import com.hulk.model.pc.core.PersistentWarehouse;
+import com.hulk.model.pc.core.RingWarehouse;
+import com.hulk.model.pc.core.RingWarehouseBase;
+import com.hulk.model.pc.core.SpillingWarehouse;
+import com.hulk.model.pc.core.SpscRingWarehouse;
+import com.hulk.model.pc.core.SysLog;
+
+/**
+ * 并发仓库正确性检查
+ * <p>不依赖第三方库, 直接运行main函数, 每项检查输出PASS/FAIL, 有失败时退出码为1:
+ * <p>1. ring: SPSC/MPSC/MPMC环形仓库小容量下多线程存取, 每个产品恰好取出一次且同一生产者的产品有序;
+ * <p>2. spill: 内存满时溢出到磁盘, 产品不丢失且保持FIFO;
+ * <p>3. wal: 持久化仓库ack之后关闭, 日志末尾追加不完整的记录(模拟写入时崩溃), 重新创建后恢复所有没有确认的产品;
+ * <p>4. ack: 多个消费者lease/ack/nack, 部分租约超时, 每个产品恰好确认一次且没有进入死信仓库;
+ * <p>5. broadcast: 每个订阅者按顺序收到所有产品.
+ * <p>参数: [每项检查的产品数量]
+ * @author zhanghao
+ *
+ */
+public class HulkConcurrencyCheck {
+
+	private static final String TAG = "HulkConcurrencyCheck";
+
+	private static final int DEFAULT_COUNT = 20000;
+
+	/**
+	 * 每项检查的最长时间, 超过后认为卡死
+	 */
+	private static final long TIMEOUT_MILLIS = 60 * 1000;
+
+	private static final int N = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private static int sCount = DEFAULT_COUNT;
+	private static int sFailed = 0;
+
+	public static void main(String[] args) {
+		if(args.length > 0) {
+			sCount = Integer.parseInt(args[0]);
+		}
+		File dir = new File(System.getProperty("java.io.tmpdir"), TAG + "-" + System.nanoTime());
+		try {
+			check("ring spsc", checkRing(new SpscRingWarehouse<Integer>(16), 1, 1));
+			check("ring mpsc", checkRing(new MpscRingWarehouse<Integer>(16), N, 1));
+			check("ring mpmc", checkRing(new RingWarehouse<Integer>(16), N, N));
+			RingWarehouse<Integer> blocking = new RingWarehouse<Integer>(16);
+			blocking.setWaitStrategy(new BlockingWaitStrategy());
+			check("ring mpmc blocking", checkRing(blocking, N, N));
+			check("spill", checkSpill(new File(dir, "spill")));
+			check("wal", checkWal(new File(dir, "wal")));
+			check("ack", checkAck());
+			check("broadcast", checkBroadcast(3));
+		} catch (Exception e) {
+			SysLog.e(TAG, "check failed: " + e, e);
+			sFailed++;
+		} finally {
+			delete(dir);
+		}
+		SysLog.i(TAG, sFailed == 0 ? "All checks passed" : "Failed checks: " + sFailed);
+		System.exit(sFailed == 0 ? 0 : 1);
+	}
+
+	private static void check(String name, String error) {
+		if(error == null) {
+			SysLog.i(TAG, "PASS " + name);
+		} else {
+			SysLog.e(TAG, "FAIL " + name + ": " + error);
+			sFailed++;
+		}
+	}
+
+	/**
+	 * 产品编号: 生产者序号 * sCount + 生产者内序号
+	 * @param warehouse
+	 * @param producers
+	 * @param consumers
+	 * @return 错误信息, 通过时返回null
+	 */
+	private static String checkRing(final RingWarehouseBase<Integer> warehouse, int producers, int consumers)
+			throws InterruptedException {
+		final int total = producers * sCount;
+		final AtomicInteger taken = new AtomicInteger();
+		final AtomicInteger[] counts = newCounters(total);
+		final AtomicBoolean disordered = new AtomicBoolean();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int p = 0; p < producers; p++) {
+			final int base = p * sCount;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i = 0; i < sCount; i++) {
+						warehouse.put(base + i);
+					}
+				}
+			}, "producer-" + p));
+		}
+		for(int c = 0; c < consumers; c++) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					//每个消费者看到的同一生产者的产品必须递增
+					int[] last = new int[total / sCount];
+					Arrays.fill(last, -1);
+					List<Integer> buffer = new ArrayList<Integer>();
+					while(taken.get() < total) {
+						warehouse.drainTo(buffer, 64, 10, TimeUnit.MILLISECONDS);
+						for(Integer product : buffer) {
+							int producer = product / sCount;
+							if(product <= last[producer]) {
+								disordered.set(true);
+							}
+							last[producer] = product;
+							counts[product].incrementAndGet();
+						}
+						taken.addAndGet(buffer.size());
+						buffer.clear();
+					}
+				}
+			}, "consumer-" + c));
+		}
+		if(!runAll(threads)) {
+			return "timeout, taken=" + taken.get() + "/" + total + ", size=" + warehouse.size();
+		}
+		if(disordered.get()) {
+			return "products of one producer out of order";
+		}
+		String error = checkCounters(counts);
+		if(error != null) {
+			return error;
+		}
+		return warehouse.size() == 0 ? null : "size=" + warehouse.size() + " after all taken";
+	}
+
+	private static String checkSpill(File dir) throws InterruptedException {
+		final SpillingWarehouse<String> warehouse = new SpillingWarehouse<String>(dir,
+				SpillingWarehouse.STRING_SERIALIZER, 16);
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicBoolean disordered = new AtomicBoolean();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < sCount; i++) {
+					warehouse.put(String.valueOf(i));
+				}
+			}
+		}, "producer");
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				List<String> buffer = new ArrayList<String>();
+				while(next.get() < sCount) {
+					warehouse.drainTo(buffer, 64, 10, TimeUnit.MILLISECONDS);
+					for(String product : buffer) {
+						if(!product.equals(String.valueOf(next.getAndIncrement()))) {
+							disordered.set(true);
+						}
+					}
+					buffer.clear();
+					if(next.get() < sCount / 2) {
+						//前一半慢慢取, 让生产者溢出到磁盘
+						sleep(1);
+					}
+				}
+			}
+		}, "consumer");
+		try {
+			List<Thread> threads = new ArrayList<Thread>();
+			threads.add(producer);
+			threads.add(consumer);
+			if(!runAll(threads)) {
+				return "timeout, taken=" + next.get() + "/" + sCount;
+			}
+			if(disordered.get()) {
+				return "products out of order";
+			}
+			if(warehouse.getTotalSpilledCount() <= 0) {
+				return "nothing spilled to disk";
+			}
+			if(warehouse.size() != 0 || warehouse.getSpilledCount() != 0) {
+				return "size=" + warehouse.size() + ", spilled=" + warehouse.getSpilledCount() + " after all taken";
+			}
+			SysLog.i(TAG, "spill: totalSpilled=" + warehouse.getTotalSpilledCount());
+			return null;
+		} finally {
+			warehouse.close();
+		}
+	}
+
+	/**
+	 * 多个生产者写入(不限容量), 取出一半并ack, 再取出一些不ack, 关闭后恢复
+	 * @param dir
+	 * @return
+	 */
+	private static String checkWal(File dir) throws InterruptedException, IOException {
+		final PersistentWarehouse<String> warehouse = new PersistentWarehouse<String>(dir,
+				SpillingWarehouse.STRING_SERIALIZER, 0, PersistentWarehouse.SyncMode.ALWAYS);
+		warehouse.setAutoAck(false);
+		final int producers = N;
+		final int total = producers * (sCount / 10);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int p = 0; p < producers; p++) {
+			final int base = p * (sCount / 10);
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i = 0; i < sCount / 10; i++) {
+						warehouse.put(String.valueOf(base + i));
+					}
+				}
+			}, "producer-" + p));
+		}
+		final Set<String> acked = new HashSet<String>();
+		threads.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < total / 2; i++) {
+					String product = warehouse.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+					if(product == null) {
+						return;
+					}
+					acked.add(product);
+				}
+				warehouse.ack();
+			}
+		}, "consumer"));
+		if(!runAll(threads)) {
+			warehouse.close();
+			return "timeout, acked=" + acked.size();
+		}
+		//取出但是没有ack的产品重启后还要再次取出
+		for(int i = 0; i < 10; i++) {
+			warehouse.poll();
+		}
+		warehouse.close();
+		appendTornRecord(dir);
+
+		PersistentWarehouse<String> recovered = new PersistentWarehouse<String>(dir,
+				SpillingWarehouse.STRING_SERIALIZER, 0, PersistentWarehouse.SyncMode.ALWAYS);
+		try {
+			if(recovered.size() != total - acked.size()) {
+				return "recovered " + recovered.size() + ", expected " + (total - acked.size());
+			}
+			Set<String> all = new HashSet<String>(acked);
+			String product;
+			while((product = recovered.poll()) != null) {
+				if(!all.add(product)) {
+					return "duplicate product: " + product;
+				}
+			}
+			if(all.size() != total) {
+				return "lost products: " + (total - all.size());
+			}
+			//截断后新写入的产品可以正常恢复
+			recovered.put("after-recover");
+			recovered.close();
+			recovered = new PersistentWarehouse<String>(dir, SpillingWarehouse.STRING_SERIALIZER, 0,
+					PersistentWarehouse.SyncMode.ALWAYS);
+			product = recovered.poll();
+			return "after-recover".equals(product) ? null : "product after torn record: " + product;
+		} finally {
+			recovered.close();
+		}
+	}
+
+	/**
+	 * 在最后一个分段末尾写入不完整的记录, 与写入时崩溃相同
+	 * @param dir
+	 * @throws IOException
+	 */
+	private static void appendTornRecord(File dir) throws IOException {
+		File last = null;
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				if(file.getName().endsWith(PersistentWarehouse.SEGMENT_SUFFIX)
+						&& (last == null || file.getName().compareTo(last.getName()) > 0)) {
+					last = file;
+				}
+			}
+		}
+		if(last == null) {
+			throw new IOException("No segment in " + dir);
+		}
+		RandomAccessFile file = new RandomAccessFile(last, "rw");
+		try {
+			file.seek(file.length());
+			file.writeInt(100);
+			file.writeInt(0);
+			file.write(new byte[] {1, 2, 3});
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * 第一次投递时编号能被7整除的nack, 能被11整除的不确认(等租约超时), 其余ack
+	 * @return
+	 */
+	private static String checkAck() throws InterruptedException {
+		final RingWarehouse<Integer> deadLetter = new RingWarehouse<Integer>(1024);
+		final AckWarehouse<Integer> warehouse = new AckWarehouse<Integer>(new RingWarehouse<Integer>(1024), deadLetter);
+		warehouse.setLeaseTimeout(200, TimeUnit.MILLISECONDS);
+		warehouse.setBackoff(10, 50, TimeUnit.MILLISECONDS);
+		final int total = sCount / 4;
+		final AtomicInteger[] counts = newCounters(total);
+		final AtomicInteger acked = new AtomicInteger();
+		final ConcurrentHashMap<Integer, Boolean> failedAcks = new ConcurrentHashMap<Integer, Boolean>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < total; i++) {
+					warehouse.put(i);
+				}
+			}
+		}, "producer"));
+		for(int c = 0; c < N; c++) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(acked.get() < total) {
+						AckWarehouse.Lease<Integer> lease = warehouse.lease(10, TimeUnit.MILLISECONDS);
+						if(lease == null) {
+							continue;
+						}
+						int product = lease.getProduct();
+						if(lease.getAttempt() == 1 && product % 7 == 0) {
+							warehouse.nack(lease);
+						} else if(lease.getAttempt() == 1 && product % 11 == 0) {
+							//不确认, 租约超时后重新投递
+						} else if(warehouse.ack(lease)) {
+							counts[product].incrementAndGet();
+							acked.incrementAndGet();
+						} else {
+							failedAcks.put(product, Boolean.TRUE);
+						}
+					}
+				}
+			}, "consumer-" + c));
+		}
+		if(!runAll(threads)) {
+			return "timeout, acked=" + acked.get() + "/" + total + ", " + warehouse;
+		}
+		String error = checkCounters(counts);
+		if(error != null) {
+			return error;
+		}
+		if(deadLetter.size() != 0) {
+			return "dead letters: " + deadLetter.size();
+		}
+		if(warehouse.getRetriedCount() <= 0 || warehouse.getExpiredCount() <= 0) {
+			return "retried=" + warehouse.getRetriedCount() + ", expired=" + warehouse.getExpiredCount();
+		}
+		SysLog.i(TAG, "ack: retried=" + warehouse.getRetriedCount() + ", expired=" + warehouse.getExpiredCount()
+				+ ", lateAcks=" + failedAcks.size());
+		return null;
+	}
+
+	private static String checkBroadcast(int subscribers) throws InterruptedException {
+		final BroadcastWarehouse<Integer> warehouse = new BroadcastWarehouse<Integer>(64);
+		final int producers = N;
+		final int total = producers * sCount;
+		final String[] errors = new String[subscribers];
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int s = 0; s < subscribers; s++) {
+			//在生产者启动之前订阅
+			final BroadcastWarehouse.Subscription<Integer> subscription = warehouse.subscribe("subscriber-" + s);
+			final int index = s;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					int[] last = new int[producers];
+					Arrays.fill(last, -1);
+					List<Integer> buffer = new ArrayList<Integer>();
+					int taken = 0;
+					while(taken < total) {
+						subscription.drainTo(buffer, 64, 10, TimeUnit.MILLISECONDS);
+						for(Integer product : buffer) {
+							int producer = product / sCount;
+							if(product <= last[producer]) {
+								errors[index] = subscription.getName() + " out of order: " + product;
+								return;
+							}
+							last[producer] = product;
+						}
+						taken += buffer.size();
+						buffer.clear();
+					}
+					for(int p = 0; p < producers; p++) {
+						if(last[p] != (p + 1) * sCount - 1) {
+							errors[index] = subscription.getName() + " missed products of producer " + p;
+						}
+					}
+				}
+			}, "subscriber-" + s));
+		}
+		for(int p = 0; p < producers; p++) {
+			final int base = p * sCount;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i = 0; i < sCount; i++) {
+						warehouse.put(base + i);
+					}
+				}
+			}, "producer-" + p));
+		}
+		if(!runAll(threads)) {
+			return "timeout, " + warehouse;
+		}
+		for(String error : errors) {
+			if(error != null) {
+				return error;
+			}
+		}
+		return null;
+	}
+
+	private static AtomicInteger[] newCounters(int count) {
+		AtomicInteger[] counters = new AtomicInteger[count];
+		for(int i = 0; i < count; i++) {
+			counters[i] = new AtomicInteger();
+		}
+		return counters;
+	}
+
+	/**
+	 * 检查每个产品恰好计数一次
+	 * @param counts
+	 * @return
+	 */
+	private static String checkCounters(AtomicInteger[] counts) {
+		for(int i = 0; i < counts.length; i++) {
+			if(counts[i].get() != 1) {
+				return "product " + i + " taken " + counts[i].get() + " times";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 启动并等待所有线程, 超时后中断
+	 * @param threads
+	 * @return 是否全部结束
+	 */
+	private static boolean runAll(List<Thread> threads) throws InterruptedException {
+		for(Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		for(Thread thread : threads) {
+			thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			if(thread.isAlive()) {
+				for(Thread t : threads) {
+					t.interrupt();
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for(File child : files) {
+				delete(child);
+			}
+		}
+		if(file.exists() && !file.delete()) {
+			SysLog.w(TAG, "Failed to delete " + file);
+		}
+	}
+}
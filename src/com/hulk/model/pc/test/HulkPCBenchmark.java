@@ -0,0 +1,375 @@
+package com.hulk.model.pc.test;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.hulk.model.pc.core.IWarehouse;
+import com.hulk.model.pc.core.LatencyHistogram;
+import com.hulk.model.pc.core.RingWarehouse;
+import com.hulk.model.pc.core.ShardedWarehouse;
+import com.hulk.model.pc.core.WarehouseBase;
+
+/**
+ * 生产者-消费者 性能测试
+ * <p>不依赖第三方库, 直接运行main函数. 测量不同仓库在1P1C, NP1C, NPMC配置和不同容量下的
+ * 吞吐量(ops/s)和端到端延迟(放入到取出, 微秒), 与java.util.concurrent的阻塞队列对比.
+ * <p>每个组合先预热, 再测量多轮取平均; 测量期间屏蔽System.out/System.err,
+ * 日志格式化的开销计入结果, 但不受控制台输出速度影响.
+ * <p>参数: [每轮毫秒数] [测量轮数] [名称过滤], 例如: 1000 3 Ring
+ * @author zhanghao
+ *
+ */
+public class HulkPCBenchmark {
+
+	private static final int DEFAULT_ITERATION_MILLIS = 1000;
+	private static final int DEFAULT_ITERATIONS = 3;
+	private static final int WARMUP_ITERATIONS = 1;
+
+	/**
+	 * 每个生产者预先分配的产品数量, 需要大于最大容量, 避免产品还在仓库中就被重用
+	 */
+	private static final int ITEM_POOL_SIZE = 4096;
+
+	private static final int[] CAPACITIES = {16, 100, 1024};
+
+	private static final int N = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * 生产者数量, 消费者数量
+	 */
+	private static final int[][] TOPOLOGIES = {{1, 1}, {N, 1}, {N, N}};
+
+	/**
+	 * 测试产品, 记录放入时间; 预先分配, 放入取出不产生垃圾
+	 */
+	static final class Item {
+		long putTime;
+		final boolean poison;
+
+		Item(boolean poison) {
+			this.poison = poison;
+		}
+	}
+
+	/**
+	 * 统一仓库和阻塞队列的存取
+	 */
+	interface Channel {
+		void put(Item item) throws InterruptedException;
+
+		Item take() throws InterruptedException;
+	}
+
+	/**
+	 * 创建测试对象
+	 */
+	interface ChannelFactory {
+		String getName();
+
+		Channel create(int capacity);
+	}
+
+	static final class BenchWarehouse extends WarehouseBase<Item> {
+		@Override
+		protected boolean onPut(Item product) {
+			return false;
+		}
+
+		@Override
+		protected Item onGet() {
+			return null;
+		}
+	}
+
+	static Channel warehouseChannel(final IWarehouse<Item> warehouse) {
+		return new Channel() {
+			@Override
+			public void put(Item item) {
+				warehouse.put(item);
+			}
+
+			@Override
+			public Item take() {
+				return warehouse.get();
+			}
+		};
+	}
+
+	static Channel queueChannel(final BlockingQueue<Item> queue) {
+		return new Channel() {
+			@Override
+			public void put(Item item) throws InterruptedException {
+				queue.put(item);
+			}
+
+			@Override
+			public Item take() throws InterruptedException {
+				return queue.take();
+			}
+		};
+	}
+
+	static WarehouseBase<Item> newWarehouse(int capacity, WarehouseBase.BlockingMode mode) {
+		BenchWarehouse warehouse = new BenchWarehouse();
+		warehouse.setCapacity(capacity);
+		warehouse.setMaxCapacity(Math.max(capacity, WarehouseBase.MAX_PRODUST_CAPACITY));
+		warehouse.setBlockingMode(mode);
+		return warehouse;
+	}
+
+	static List<ChannelFactory> channelFactories() {
+		List<ChannelFactory> factories = new ArrayList<ChannelFactory>();
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "WarehouseBase-MONITOR";
+			}
+
+			public Channel create(int capacity) {
+				return warehouseChannel(newWarehouse(capacity, WarehouseBase.BlockingMode.MONITOR));
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "WarehouseBase-CONDITION";
+			}
+
+			public Channel create(int capacity) {
+				return warehouseChannel(newWarehouse(capacity, WarehouseBase.BlockingMode.CONDITION));
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "WarehouseBase-capacityAuto";
+			}
+
+			public Channel create(int capacity) {
+				WarehouseBase<Item> warehouse = newWarehouse(capacity, WarehouseBase.BlockingMode.MONITOR);
+				warehouse.setCapacityAuto(true);
+				return warehouseChannel(warehouse);
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "WarehouseBase-onceSleep";
+			}
+
+			public Channel create(int capacity) {
+				WarehouseBase<Item> warehouse = newWarehouse(capacity, WarehouseBase.BlockingMode.MONITOR);
+				warehouse.setOnceSleepEnabled(true);
+				return warehouseChannel(warehouse);
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "RingWarehouse";
+			}
+
+			public Channel create(int capacity) {
+				return warehouseChannel(new RingWarehouse<Item>(capacity));
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "ShardedWarehouse";
+			}
+
+			public Channel create(int capacity) {
+				return warehouseChannel(new ShardedWarehouse<Item>(N, capacity));
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "ArrayBlockingQueue";
+			}
+
+			public Channel create(int capacity) {
+				return queueChannel(new ArrayBlockingQueue<Item>(capacity));
+			}
+		});
+		factories.add(new ChannelFactory() {
+			public String getName() {
+				return "LinkedBlockingQueue";
+			}
+
+			public Channel create(int capacity) {
+				return queueChannel(new LinkedBlockingQueue<Item>(capacity));
+			}
+		});
+		return factories;
+	}
+
+	/**
+	 * 一轮测试结果
+	 */
+	static final class Result {
+		double opsPerSecond;
+		long p50;
+		long p99;
+		long max;
+	}
+
+	/**
+	 * 运行一轮: 生产者不停放入, 消费者不停取出, 到时间后统计取出数量, 再用毒丸结束消费者
+	 */
+	static Result runIteration(ChannelFactory factory, int capacity, int producers, int consumers, long millis)
+			throws InterruptedException {
+		final Channel channel = factory.create(capacity);
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final AtomicLong consumed = new AtomicLong();
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final AtomicBoolean stopped = new AtomicBoolean(false);
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Thread> producerThreads = new ArrayList<Thread>();
+		for(int i = 0; i < producers; i++) {
+			Thread t = new Thread("bench-producer-" + i) {
+				@Override
+				public void run() {
+					Item[] pool = new Item[ITEM_POOL_SIZE];
+					for(int j = 0; j < pool.length; j++) {
+						pool[j] = new Item(false);
+					}
+					try {
+						startLatch.await();
+						int index = 0;
+						while(!stopped.get()) {
+							Item item = pool[index];
+							index = (index + 1) & (ITEM_POOL_SIZE - 1);
+							item.putTime = System.nanoTime();
+							channel.put(item);
+						}
+					} catch (InterruptedException e) {
+						//结束
+					}
+				}
+			};
+			threads.add(t);
+			producerThreads.add(t);
+		}
+		for(int i = 0; i < consumers; i++) {
+			threads.add(new Thread("bench-consumer-" + i) {
+				@Override
+				public void run() {
+					long count = 0;
+					try {
+						startLatch.await();
+						while(true) {
+							Item item = channel.take();
+							if(item == null) {
+								continue;
+							}
+							if(item.poison) {
+								break;
+							}
+							if(!stopped.get()) {
+								count++;
+								if((count & 0x3F) == 0) {
+									//每64个采样一次延迟, 减少计时开销
+									histogram.record(System.nanoTime() - item.putTime);
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						//结束
+					}
+					consumed.addAndGet(count);
+				}
+			});
+		}
+		for(Thread t : threads) {
+			t.start();
+		}
+		long start = System.nanoTime();
+		startLatch.countDown();
+		Thread.sleep(millis);
+		stopped.set(true);
+		long elapsed = System.nanoTime() - start;
+		for(Thread t : producerThreads) {
+			t.join();
+		}
+		//主线程不能在仓库满时等待, 用单独的线程放入毒丸
+		final int poisonCount = consumers;
+		Thread stopper = new Thread("bench-stopper") {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < poisonCount; i++) {
+						channel.put(new Item(true));
+					}
+				} catch (InterruptedException e) {
+					//结束
+				}
+			}
+		};
+		stopper.start();
+		for(Thread t : threads) {
+			t.join();
+		}
+		stopper.join();
+		Result result = new Result();
+		result.opsPerSecond = consumed.get() * 1e9 / elapsed;
+		long[] percentiles = histogram.getValuesAtPercentiles(50, 99);
+		result.p50 = percentiles[0];
+		result.p99 = percentiles[1];
+		result.max = histogram.getMax();
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterationMillis = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATION_MILLIS;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+		String filter = args.length > 2 ? args[2] : null;
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		PrintStream nullStream = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		});
+		out.println(String.format(Locale.US, "%-28s %-6s %8s %14s %10s %10s %10s",
+				"name", "P/C", "capacity", "ops/s", "p50(us)", "p99(us)", "max(us)"));
+		for(ChannelFactory factory : channelFactories()) {
+			if(filter != null && !factory.getName().contains(filter)) {
+				continue;
+			}
+			for(int[] topology : TOPOLOGIES) {
+				for(int capacity : CAPACITIES) {
+					System.setOut(nullStream);
+					System.setErr(nullStream);
+					double ops = 0;
+					long p50 = 0, p99 = 0, max = 0;
+					try {
+						for(int i = 0; i < WARMUP_ITERATIONS; i++) {
+							runIteration(factory, capacity, topology[0], topology[1], iterationMillis);
+						}
+						for(int i = 0; i < iterations; i++) {
+							Result result = runIteration(factory, capacity, topology[0], topology[1], iterationMillis);
+							ops += result.opsPerSecond;
+							p50 += result.p50;
+							p99 += result.p99;
+							max = Math.max(max, result.max);
+						}
+					} finally {
+						System.setOut(out);
+						System.setErr(err);
+					}
+					out.println(String.format(Locale.US, "%-28s %-6s %8d %14.0f %10.1f %10.1f %10.1f",
+							factory.getName(), topology[0] + "/" + topology[1], capacity, ops / iterations,
+							p50 / iterations / 1000.0, p99 / iterations / 1000.0, max / 1000.0));
+				}
+			}
+		}
+	}
+}
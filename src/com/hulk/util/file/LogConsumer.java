@@ -1,10 +1,14 @@
 package com.hulk.util.file;
 
+import java.util.List;
+
 import com.hulk.model.pc.core.*;
 
 /**
  * 日志打印消费者实现类
  * <p>消费者实际消费： 把日志信息写到文件里面
+ * <p>默认合并写入(group commit): 一次取出仓库中最多DEFAULT_BATCH_COUNT条日志, 不满一批时最多再等待DEFAULT_MAX_LINGER毫秒,
+ * 按mMaxBatchLength分组, 每组调用一次TxtFile.writeAll. 负载高时每秒只写几次文件, 负载低时延迟不超过等待时间.
  * @author zhanghao
  *
  */
@@ -12,17 +16,52 @@ public class LogConsumer extends ConsumerBase<String> {
 
 	private static final String TAG = "LogConsumer";
 	
+	/**
+	 * 默认一次最多取出的日志条数
+	 */
+	public static final int DEFAULT_BATCH_COUNT = 1024;
+	
+	/**
+	 * 默认一次写入的最大长度(字符数)
+	 */
+	public static final int DEFAULT_MAX_BATCH_LENGTH = 256 * 1024;
+	
+	/**
+	 * 默认不满一批时最多等待的时间(毫秒)
+	 */
+	public static final long DEFAULT_MAX_LINGER = 200;
+	
 	TxtFile mTxtFile = null;
 	boolean mAppend = true;
+	int mMaxBatchLength = DEFAULT_MAX_BATCH_LENGTH;
 
 	public LogConsumer(IWarehouse<String> warehouse) {
 		super(warehouse);
+		initGroupCommit();
 	}
 	
 	public LogConsumer(IWarehouse<String> warehouse, TxtFile txtFile, boolean append) {
 		super(warehouse);
 		this.mTxtFile = txtFile;
 		this.mAppend = append;
+		initGroupCommit();
+	}
+	
+	private void initGroupCommit() {
+		setBatchSize(DEFAULT_BATCH_COUNT);
+		setMaxLinger(DEFAULT_MAX_LINGER);
+	}
+	
+	/**
+	 * 设置一次写入的最大长度(字符数), 一批日志超过时分多次写入
+	 * @param maxBatchLength
+	 */
+	public void setMaxBatchLength(int maxBatchLength) {
+		this.mMaxBatchLength = maxBatchLength;
+	}
+	
+	public int getMaxBatchLength() {
+		return this.mMaxBatchLength;
 	}
 
 	public void setAppend(boolean append) {
@@ -42,26 +81,84 @@ public class LogConsumer extends ConsumerBase<String> {
 	}
 	
 	/**
-	 * 手动触发停止. 添加一个对象,使其自动跳出循环
-	 * if(mWarehouse != null) {
-			mWarehouse.put("Stopped");
+	 * 消费者实际消费： 把日志信息写到文件里面
+	 */
+	@Override
+	protected boolean doConsume(String data) {
+		//SysLog.i(TAG, "doConsume: ### Consumed data=" + data + "\n\n");
+		boolean written = writeToFile(data);
+        return written;
+	}
+	
+	/**
+	 * 合并写入: 按mMaxBatchLength分组, 每组写一次文件
+	 */
+	@Override
+	protected int doConsumeBatch(List<String> products) {
+		int consumed = 0;
+		int size = products.size();
+		int start = 0;
+		int length = 0;
+		for(int i = 0; i < size; i++) {
+			String text = products.get(i);
+			length += text != null ? text.length() : 0;
+			if(length >= mMaxBatchLength || i == size - 1) {
+				List<String> group = products.subList(start, i + 1);
+				if(writeAllToFile(group)) {
+					consumed += group.size();
+				}
+				start = i + 1;
+				length = 0;
+			}
 		}
+		return consumed;
+	}
+	
+	/**
+	 * 日志总长度达到mMaxBatchLength时不再等待
 	 */
 	@Override
-	protected void triggerStoppedManually() {
-		if(mWarehouse != null) {
-			mWarehouse.put("triggerStoppedManually");
+	protected boolean isBatchFull(List<String> batch) {
+		int length = 0;
+		for(String text : batch) {
+			if(text != null) {
+				length += text.length();
+				if(length >= mMaxBatchLength) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	protected boolean writeAllToFile(List<String> texts) {
+		if(mTxtFile == null) {
+			if(isDebugMode()) {
+				SysLog.e(TAG, "writeAllToFile: mTxtFile is null");
+			}
+			return false;
+		}
+		boolean written = false;
+		try {
+			written = mTxtFile.writeAll(texts, mAppend);
+		} catch (Throwable e) {
+			if(isDebugMode()) {
+				SysLog.e(TAG, "writeAllToFile Failed:" + e);
+			}
 		}
+		return written;
 	}
 	
 	/**
-	 * 消费者实际消费： 把日志信息写到文件里面
+	 * 线程退出时关闭文件, 写完追加模式缓冲区中的日志
 	 */
 	@Override
-	protected boolean doConsume(String data) {
-		//SysLog.i(TAG, "doConsume: ### Consumed data=" + data + "\n\n");
-		boolean written = writeToFile(data);
-        return written;
+	protected void onPCFinised() {
+		TxtFile txtFile = mTxtFile;
+		if(txtFile != null) {
+			txtFile.close();
+		}
+		super.onPCFinised();
 	}
 	
 	protected boolean writeToFile(String text) {
@@ -0,0 +1,92 @@
+package com.hulk.util.file;
+
+import com.hulk.model.pc.core.PriorityWarehouse;
+
+/**
+ * 优先级日志仓库
+ * <p>ERROR(E/A)日志优先写入, 其次WARN(W), 其他级别按放入顺序.
+ * <p>日志格式为PrintUtil.formatLogStr的格式: "时间 线程 级别/TAG: 内容".
+ * <p>注意: 写入文件的日志不再严格按时间排序.
+ * @author zhanghao
+ *
+ */
+public class LogPriorityWarehouse extends PriorityWarehouse<String> {
+
+	private static final String TAG = "LogPriorityWarehouse";
+
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_WARN = 1;
+	public static final int PRIORITY_ERROR = 2;
+
+	private static final PriorityExtractor<String> LOG_LEVEL_PRIORITY = new PriorityExtractor<String>() {
+		@Override
+		public int getPriority(String product) {
+			return getLogPriority(product);
+		}
+	};
+
+	public LogPriorityWarehouse() {
+		this(DEFAULT_PRODUST_CAPACITY);
+	}
+
+	public LogPriorityWarehouse(int capacity) {
+		super(capacity, LOG_LEVEL_PRIORITY);
+	}
+
+	@Override
+	protected boolean onPut(String product) {
+		if(isDebugMode()) {
+			logProductInfo(TAG, "onPut", product);
+		}
+		return false;
+	}
+
+	/**
+	 * 根据日志级别获取优先级
+	 * <p>格式为"时间 线程 级别/TAG: 内容", 时间"yyyy-MM-dd HH:mm:ss.SSS"中有一个空格.
+	 * 线程名可能包含'/'(例如"pid/tid"), 所以跳过时间后从线程开始查找第一个" 级别/", 不取第一个'/'.
+	 * @param log
+	 * @return
+	 */
+	public static int getLogPriority(String log) {
+		if(log == null) {
+			return PRIORITY_NORMAL;
+		}
+		int length = log.length();
+		int start = 0;
+		while(start < length && log.charAt(start) == '\n') {
+			//formatLogStrNewLine开头的换行
+			start++;
+		}
+		if(start + 1 < length && log.charAt(start + 1) == '/') {
+			//没有时间和线程, 例如"E/TAG: 内容"
+			return getLevelPriority(log.charAt(start));
+		}
+		//跳过日期和时间之间, 时间和线程之间的两个空格
+		int index = start;
+		for(int i = 0; i < 2; i++) {
+			index = log.indexOf(' ', index);
+			if(index < 0) {
+				return PRIORITY_NORMAL;
+			}
+			index++;
+		}
+		while((index = log.indexOf(' ', index)) >= 0 && index + 2 < length) {
+			if(log.charAt(index + 2) == '/') {
+				return getLevelPriority(log.charAt(index + 1));
+			}
+			index++;
+		}
+		return PRIORITY_NORMAL;
+	}
+
+	private static int getLevelPriority(char level) {
+		if(level == 'E' || level == 'A') {
+			return PRIORITY_ERROR;
+		}
+		if(level == 'W') {
+			return PRIORITY_WARN;
+		}
+		return PRIORITY_NORMAL;
+	}
+}
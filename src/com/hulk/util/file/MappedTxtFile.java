@@ -0,0 +1,482 @@
+package com.hulk.util.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hulk.text.TextUtils;
+import hulk.util.DateTimeUtil;
+import hulk.util.PrintUtil;
+
+/**
+ * 内存映射文本文件: 追加写入映射到文件末尾的MappedByteBuffer, 写一条日志只是内存拷贝, 没有系统调用
+ * <p>1. 映射区按mChunkSize预先扩展文件, 写满后在文件末尾映射下一块;
+ * <p>2. close/读取/改名/删除之前截断到实际写入的长度, 去掉预扩展的部分;
+ * <p>3. 长度达到mMaxLength后轮转: 截断, 改名为"yyyyMMdd_HHmmss_原文件名", 在原路径映射新文件,
+ * 所以PrintLog和LogConsumer持有的对象不变;
+ * <p>4. 进程崩溃时写入的内容已经在系统页缓存中, 不会丢失, 但是没有截断, 文件末尾会有0字节,
+ * 下一次打开时从末尾跳过0字节后继续写入;
+ * <p>5. ForcePolicy: EVERY_WRITE每次写入后force, ON_FLUSH在flush/close时force, NEVER由系统决定.
+ * <p>6. 写入线程被中断时不会关闭文件: 只有映射使用FileChannel, 映射时暂时清除中断状态.
+ * <p>Java不能主动解除映射, 旧的映射在GC时释放, Windows下映射存在时不能截断和改名, 只适合Linux/Android.
+ * @author zhanghao
+ *
+ */
+public class MappedTxtFile extends TxtFile {
+	private static final String TAG = "MappedTxtFile";
+
+	/**
+	 * 默认每次映射(预扩展)的大小
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * 从文件末尾查找实际长度时每次读取的大小
+	 */
+	private static final int SCAN_BLOCK_SIZE = 4096;
+
+	/**
+	 * 检查文件是否被外部删除或者改名的间隔(毫秒), 避免每次写入都访问文件系统
+	 */
+	private static final long REMAP_CHECK_INTERVAL = 1000;
+
+	private final Lock mMapLock = new ReentrantLock();
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+	private long mMaxLength = PrintLog.FILE_LENGTH_LIMIT;
+
+	private RandomAccessFile mRandomAccessFile;
+	private FileChannel mChannel;
+	private MappedByteBuffer mMapped;
+	/**
+	 * 当前映射区在文件中的起始位置
+	 */
+	private long mMappedStart = 0;
+	/**
+	 * 实际写入的长度, 打开时等于映射区起始位置加映射区position
+	 */
+	private long mLength = 0;
+	private CharsetEncoder mEncoder;
+	private int mRotateCount = 0;
+	private long mLastCheckTime = 0;
+	/**
+	 * 轮转失败后写满下一块再重试, 避免每次写入都改名
+	 */
+	private long mRotateRetryLength = 0;
+
+	public MappedTxtFile(String filePath) {
+		super(filePath);
+		mLength = super.length();
+	}
+
+	public MappedTxtFile(File file) {
+		super(file);
+		mLength = super.length();
+	}
+
+	/**
+	 * 设置每次映射的大小, 下一次映射时生效
+	 * @param chunkSize
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+		}
+		mChunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return mChunkSize;
+	}
+
+	/**
+	 * 设置轮转的长度, 小于等于0表示不轮转
+	 * @param maxLength
+	 */
+	public void setMaxLength(long maxLength) {
+		mMaxLength = maxLength;
+	}
+
+	public long getMaxLength() {
+		return mMaxLength;
+	}
+
+	/**
+	 * 已经轮转的次数
+	 * @return
+	 */
+	public int getRotateCount() {
+		return mRotateCount;
+	}
+
+	/**
+	 * 映射文件一直打开, 忽略
+	 */
+	@Override
+	public void setAppendMode(boolean appendMode) {
+		//ignored
+	}
+
+	@Override
+	public boolean isAppendMode() {
+		return true;
+	}
+
+	@Override
+	public void setCharsetName(String charsetName) {
+		mMapLock.lock();
+		try {
+			super.setCharsetName(charsetName);
+			mEncoder = null;
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean write(String text, boolean append) throws Exception {
+		if (append && TextUtils.isEmpty(text)) {
+			PrintUtil.w(TAG, "write canceled, can not append a empty text !!");
+			return false;
+		}
+		mMapLock.lock();
+		try {
+			if(!append) {
+				//覆盖写入使用原来的方式
+				closeMapping();
+				boolean written = super.write(text, false);
+				mLength = getFile().length();
+				return written;
+			}
+			return appendLocked(text);
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	/**
+	 * 一次写入多段文本, 追加时逐段拷贝到映射区
+	 */
+	@Override
+	public boolean writeAll(List<String> texts, boolean append) throws Exception {
+		if (texts == null || texts.isEmpty()) {
+			return false;
+		}
+		mMapLock.lock();
+		try {
+			if(!append) {
+				return super.writeAll(texts, false);
+			}
+			for(String text : texts) {
+				if(!TextUtils.isEmpty(text) && !appendLocked(text)) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	/**
+	 * 写入映射区, 需要持有锁
+	 * @param text
+	 * @return
+	 */
+	private boolean appendLocked(String text) {
+		try {
+			ensureMapped();
+			CharsetEncoder encoder = mEncoder;
+			//最多需要的字节数, 保证一条日志不会跨文件
+			long maxBytes = (long) (text.length() * (double) encoder.maxBytesPerChar()) + 16;
+			if(mMaxLength > 0 && mLength > 0 && mLength + maxBytes > mMaxLength && mLength >= mRotateRetryLength) {
+				rotate();
+				ensureMapped();
+			}
+			if(mMapped.remaining() < maxBytes) {
+				remap(maxBytes);
+			}
+			CharBuffer in = CharBuffer.wrap(text);
+			encoder.reset();
+			while(true) {
+				CoderResult result = encoder.encode(in, mMapped, true);
+				if(result.isOverflow()) {
+					remap(maxBytes);
+					continue;
+				}
+				break;
+			}
+			while(encoder.flush(mMapped).isOverflow()) {
+				remap(maxBytes);
+			}
+			mLength = mMappedStart + mMapped.position();
+			if(getForcePolicy() == ForcePolicy.EVERY_WRITE) {
+				mMapped.force();
+			}
+			return true;
+		} catch (IOException e) {
+			PrintUtil.e(TAG, "append: " + e + ", Failed to write text to " + getFile());
+			closeMapping();
+			return false;
+		}
+	}
+
+	/**
+	 * 打开文件并映射末尾, 文件被外部删除后重新创建
+	 * @throws IOException
+	 */
+	private void ensureMapped() throws IOException {
+		if(mMapped != null) {
+			long now = System.currentTimeMillis();
+			if(now - mLastCheckTime < REMAP_CHECK_INTERVAL) {
+				return;
+			}
+			mLastCheckTime = now;
+			if(getFile().exists()) {
+				return;
+			}
+			PrintUtil.w(TAG, "ensureMapped: File is removed, remap " + getFile());
+			closeMapping();
+		}
+		createNewFile();
+		openFile();
+		long size = mRandomAccessFile.length();
+		mLength = findDataEnd(mRandomAccessFile, size);
+		if(mLength < size) {
+			PrintUtil.w(TAG, "ensureMapped: Skip " + (size - mLength) + " padding bytes of " + getFile());
+		}
+		if(mEncoder == null) {
+			mEncoder = Charset.forName(getCharsetName()).newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+		map(mLength, mChunkSize);
+		mLastCheckTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * 打开文件, 关闭之前打开的
+	 * @throws IOException
+	 */
+	private void openFile() throws IOException {
+		closeFileQuietly();
+		mRandomAccessFile = new RandomAccessFile(getFile(), "rw");
+		mChannel = mRandomAccessFile.getChannel();
+	}
+
+	private void closeFileQuietly() {
+		if(mRandomAccessFile != null) {
+			try {
+				mRandomAccessFile.close();
+			} catch (IOException e) {
+				PrintUtil.e(TAG, "Failed to close: " + e);
+			}
+		}
+		mMapped = null;
+		mChannel = null;
+		mRandomAccessFile = null;
+	}
+
+	/**
+	 * 从当前写入位置映射下一块
+	 * @param minSize
+	 * @throws IOException
+	 */
+	private void remap(long minSize) throws IOException {
+		long start = mMappedStart + mMapped.position();
+		mMapped = null;
+		map(start, Math.max(mChunkSize, minSize));
+	}
+
+	/**
+	 * 映射会把文件扩展到start + size
+	 * <p>FileChannel.map可以被中断, 中断会关闭通道. PrintLog同步模式在调用者线程中写入,
+	 * 所以映射之前清除中断状态, 之后恢复; 映射过程中被中断时重新打开文件再映射一次.
+	 * 其他文件操作使用RandomAccessFile, 不会被中断.
+	 * @param start
+	 * @param size
+	 * @throws IOException
+	 */
+	private void map(long start, long size) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			try {
+				mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			} catch (ClosedChannelException e) {
+				PrintUtil.w(TAG, "map: " + e + ", reopen " + getFile());
+				interrupted |= Thread.interrupted();
+				openFile();
+				mMapped = mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			}
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		mMappedStart = start;
+	}
+
+	/**
+	 * 上一次没有截断(进程崩溃)时文件末尾是0字节, 从末尾往前找到最后一个非0字节
+	 * @param file
+	 * @param size 文件长度
+	 * @return 实际长度
+	 * @throws IOException
+	 */
+	private static long findDataEnd(RandomAccessFile file, long size) throws IOException {
+		long end = size;
+		byte[] block = new byte[SCAN_BLOCK_SIZE];
+		while(end > 0) {
+			long start = Math.max(0, end - SCAN_BLOCK_SIZE);
+			int length = (int) (end - start);
+			file.seek(start);
+			file.readFully(block, 0, length);
+			for(int i = length - 1; i >= 0; i--) {
+				if(block[i] != 0) {
+					return start + i + 1;
+				}
+			}
+			end = start;
+		}
+		return 0;
+	}
+
+	/**
+	 * 轮转: 截断后改名为"yyyyMMdd_HHmmss_原文件名", 需要持有锁
+	 */
+	private void rotate() {
+		closeMapping();
+		File file = getFile();
+		File dest = createRotateFile(file);
+		boolean renamed = file.renameTo(dest);
+		if(renamed) {
+			mRotateCount++;
+			mLength = 0;
+			PrintUtil.i(TAG, "rotate: " + file + " to " + dest + ", maxLength= " + mMaxLength);
+		} else {
+			//改名失败继续写入原文件, 避免日志丢失
+			mRotateRetryLength = mLength + mChunkSize;
+			PrintUtil.w(TAG, "rotate failed: " + file + " to " + dest);
+		}
+	}
+
+	private static File createRotateFile(File file) {
+		String time = DateTimeUtil.formatTimeSecond(System.currentTimeMillis());
+		File dest = new File(file.getParentFile(), time + "_" + file.getName());
+		int index = 1;
+		while(dest.exists()) {
+			dest = new File(file.getParentFile(), time + "_" + index + "_" + file.getName());
+			index++;
+		}
+		return dest;
+	}
+
+	/**
+	 * 截断到实际长度并关闭, 需要持有锁
+	 */
+	private void closeMapping() {
+		if(mRandomAccessFile == null) {
+			return;
+		}
+		try {
+			if(mMapped != null && getForcePolicy() != ForcePolicy.NEVER) {
+				mMapped.force();
+			}
+			mMapped = null;
+			//RandomAccessFile.setLength不会被中断, FileChannel.truncate被中断时会关闭文件
+			mRandomAccessFile.setLength(mLength);
+		} catch (IOException e) {
+			PrintUtil.e(TAG, "close: " + e + ", file=" + getFile());
+		}
+		closeFileQuietly();
+	}
+
+	/**
+	 * ForcePolicy不是NEVER时把映射区同步到磁盘
+	 */
+	@Override
+	public boolean flush() {
+		mMapLock.lock();
+		try {
+			if(mMapped != null && getForcePolicy() != ForcePolicy.NEVER) {
+				mMapped.force();
+			}
+			return true;
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	/**
+	 * 截断到实际长度并关闭, 之后写入会重新映射
+	 */
+	@Override
+	public void close() {
+		mMapLock.lock();
+		try {
+			closeMapping();
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	/**
+	 * 删除之前关闭映射, 之后写入会重新创建文件
+	 */
+	@Override
+	public boolean delete() {
+		mMapLock.lock();
+		try {
+			closeMapping();
+			mLength = 0;
+			return super.delete();
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	@Override
+	public long length() {
+		mMapLock.lock();
+		try {
+			if(mMapped != null) {
+				return mLength;
+			}
+			File file = getFile();
+			return file.exists() ? file.length() : 0;
+		} finally {
+			mMapLock.unlock();
+		}
+	}
+
+	/**
+	 * 读取之前截断, 不会读到预扩展的0字节
+	 */
+	@Override
+	public List<String> readLines() {
+		close();
+		return super.readLines();
+	}
+
+	@Override
+	public String readText() {
+		close();
+		return super.readText();
+	}
+
+	@Override
+	public String toString() {
+		return "MappedTxtFile[Path= " + getFile() + ", length= " + mLength + ", chunkSize= " + mChunkSize
+				+ ", maxLength= " + mMaxLength + ", rotateCount= " + mRotateCount + "]";
+	}
+}
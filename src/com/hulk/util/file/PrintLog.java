@@ -13,6 +13,8 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 打印log信息到txt文件中. 日志文件名称根据timeMode分为两种模式：
@@ -55,13 +57,16 @@ public class PrintLog {
     /**locked标记的log文件不会被自动删除*/
     public static final String LOCKED_FLAG = "locked";
     
+    /**关闭时等待日志写完的默认时间(毫秒)*/
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 3000;
+    
     File mDir;
     TxtFile mTxtFile;
   //是否为缓冲区模式，可以减少IO此时，自己控制缓冲区，可以提高效率
     boolean mBufferMode = false;
     int mBufferLength = DEFAULT_BUFFER_LENGTH;
-    StringBuffer mBuffer;
-    Object mBufferLock = new Object();
+    //按线程分开的缓冲区, 后台线程合并写入
+    volatile ThreadLogBuffers mLogBuffers;
     //是否每次新起一行
     boolean mLineMode = true;
     
@@ -79,7 +84,14 @@ public class PrintLog {
     //限制文件大小,最近文件进行判断文件
     long mMaxFileLength = FILE_LENGTH_LIMIT;
     
-    Object mWriteFileLock = new Object();
+    //文件一直打开追加写入, 不用每次写入都打开关闭文件
+    boolean mKeepFileOpen = true;
+    
+    //内存映射模式, 写入映射区, 长度达到mMaxFileLength后自动轮转, 适合日志量很大的情况
+    boolean mMappedMode = false;
+    
+    //使用显式锁而不是synchronized, 虚拟线程写文件时不会固定载体线程
+    final ReentrantLock mWriteFileLock = new ReentrantLock();
     private volatile boolean mLogSyncWriting = false;
     
     /**
@@ -88,11 +100,17 @@ public class PrintLog {
      */
     private boolean mWriteLogAsyncMode = true;
     
-    private LogConsumer mLogConsumer = null;
+    private volatile LogConsumer mLogConsumer = null;
+    private final Object mConsumerStartLock = new Object();
     private LogWarehouse mLogWarehouse = null;
 
     private int mWarehouseCapacity = 10;
     
+    /**
+     * 进程退出时写完日志的钩子
+     */
+    private Thread mShutdownHook = null;
+    
     /**
      * 是否初始化成功的
      */
@@ -123,7 +141,7 @@ public class PrintLog {
     }
     
     public PrintLog(TxtFile file, boolean bufferMode, boolean lineMode) {
-    	this.mTxtFile = file;
+    	this.mTxtFile = applyKeepFileOpen(file);
     	this.mDir = getParentDirFile();
         this.mBufferMode = bufferMode;
         this.mLineMode = lineMode;
@@ -185,11 +203,18 @@ public class PrintLog {
     
     public void setBufferMode(boolean bufferMode) {
     	this.mBufferMode = bufferMode;
-    	ensureBuffer();
+    	if(bufferMode) {
+    		ensureBuffer();
+    	} else {
+    		stopBuffer();
+    	}
     }
     
     public void setBufferLength(int bufferLength) {
     	this.mBufferLength = bufferLength;
+    	if(mLogBuffers != null) {
+    		mLogBuffers.setBufferLength(bufferLength);
+    	}
     }
     
     public void setLineMode(boolean lineMode) {
@@ -448,15 +473,14 @@ public class PrintLog {
     
     /**
      * 追加日志
-     * <p>如果超过缓存大小，立刻写入文件
+     * <p>追加到当前线程的缓冲区, 由后台线程合并写入; 当前线程缓冲超过最大长度时直接写入, 不丢弃
      * @param str
      * @return
      * @throws Exception
      */
     public PrintLog appendToBuffer(String str) throws Exception {
     	ensureBuffer();
-		mBuffer.append(str);
-		flushBuffer();
+    	mLogBuffers.append(str);
 		return this;
     }
     
@@ -477,11 +501,6 @@ public class PrintLog {
     			PrintUtil.e(TAG, "flushBuffer failed: " + e, e);
     		}
     	}
-    	if(isBufferMaxExceeding()) {
-			//Force clear buffer avoid to OOM
-			int len = clearBuffer();
-			PrintUtil.w(TAG, "##flush: Force clear buffer avoid to OOM， length: " + len);
-		}
     	return 0;
     }
     
@@ -501,19 +520,16 @@ public class PrintLog {
      * @throws Exception
      */
     public int doFlush() throws Exception {
-    	//及时清空buffer，避免缓存越来越大，占用资源
-		String str = getBufferStr();
-    	int len = clearBuffer();
-    	if(str == null || str.equals("")) {
+    	if(mLogBuffers == null) {
     		return 0;
     	}
     	if(!isWriteLogAsyncMode() && isLogSyncWriting()) {
+    		//日志保留在缓冲区中
     		PrintUtil.w(TAG, "##doFlush: Not Async ModeAnd current wirting. next time to write.");
     		return 0;
     	}
-    	// write text and clear buffer
-    	boolean written = writeToFile(str, true);
-    	if(!written) {
+    	int len = mLogBuffers.flush();
+    	if(len < 0) {
     		PrintUtil.w(TAG, "##doFlush: Failed to write buffer to file");
      		return -1;
     	}
@@ -521,54 +537,65 @@ public class PrintLog {
         return len;
     }
     
+    /**
+     * 合并后的日志写入文件, 后台刷新线程调用
+     * @param text
+     * @return
+     * @throws Exception
+     */
+    private boolean writeBufferText(String text) throws Exception {
+    	return writeToFile(text, true);
+    }
+    
     /**
      * 缓存是否超过长度限制
      * @return
      */
     public boolean isBufferExceeding() {
-    	if(isBufferEmpty()) {
-    		//Ignored invalid buffer
-    		return false;
-    	}
-    	int length = mBuffer.length();
-    	if(length > mBufferLength) {
-    		return true;
-    	}
-    	if(isBufferMaxExceeding()) {
-    		//超最大限制必须写入
-    		return true;
-    	}
-    	return false;
+    	return getBufferLength() > mBufferLength;
     }
     
     /**
      * 缓存是否超过最大长度限制
-     * <p> 超最大限制必须写入，或者清除缓存避免OOM
+     * <p> 超最大限制必须写入
      * @return
      */
     public boolean isBufferMaxExceeding() {
-    	if(isBufferEmpty()) {
-    		//Ignored invalid buffer
-    		return false;
-    	}
-    	int length = mBuffer.length();
-    	if(length > MAX_BUFFER_LENGTH) {
-    		//超最大限制必须写入，或者清除缓存避免OOM
-    		return true;
+    	return getBufferLength() > MAX_BUFFER_LENGTH;
+    }
+    
+    /**
+     * 所有线程缓冲的长度
+     * @return
+     */
+    public long getBufferLength() {
+    	if(mLogBuffers == null) {
+    		return 0;
     	}
-    	return false;
+    	return mLogBuffers.length();
     }
     
+    /**
+     * 写入文件一直失败时缓冲区丢弃的日志行数
+     * <p>写入失败的日志最多保留MAX_BUFFER_LENGTH, 超过后丢弃最早的日志, 避免OOM
+     * @return
+     */
+    public long getBufferDroppedCount() {
+    	if(mLogBuffers == null) {
+    		return 0;
+    	}
+    	return mLogBuffers.getDroppedCount();
+    }
     
     /**
-     * 获取缓冲区的数据
+     * 获取缓冲区的数据, 按追加时间合并
      * @return
      */
     public String getBufferStr() {
-    	if(mBuffer == null) {
+    	if(mLogBuffers == null) {
     		return "";
     	}
-    	return mBuffer.toString();
+    	return mLogBuffers.snapshot();
     }
     
     /**
@@ -578,29 +605,21 @@ public class PrintLog {
      */
     public String getBufferStr(boolean isClear) {
     	String str = getBufferStr();
-		//及时清空buffer，避免缓存越来越大，占用资源
-    	clearBuffer();
+    	if(isClear) {
+    		clearBuffer();
+    	}
     	return str;
     }
     
     /**
-     * 清空缓存数据
+     * 清空缓存数据, 丢弃所有线程缓冲的日志
      * @return cleared string length
      */
     public int clearBuffer() {
-    	if(mBuffer == null) {
+    	if(mLogBuffers == null) {
     		return -1;
     	}
-    	if(isBufferEmpty()) {
-    		//Ignored invalid buffer
-    		return 0;
-    	}
-    	int len = mBuffer.length();
-    	//delete包前不包后
-		//buffer.delete(0, len);
-    	//setLength效率不delete高
-		mBuffer.setLength(0);
-        return len;
+        return mLogBuffers.clear();
     }
     
     /**
@@ -608,10 +627,7 @@ public class PrintLog {
      * @return
      */
     public boolean isBufferEmpty() {
-    	if(mBuffer == null || mBuffer.length() <= 0) {
-    		return true;
-    	}
-    	return false;
+    	return mLogBuffers == null || mLogBuffers.isEmpty();
     }
     
     /**
@@ -710,7 +726,8 @@ public class PrintLog {
      */
     private boolean writeToFileSync(String text, boolean append) throws Exception {
     	//此处需要使用同步锁，避免文件内容乱序
-    	synchronized (mWriteFileLock) {
+    	mWriteFileLock.lock();
+    	try {
     		mLogSyncWriting = true;
     		if(mTxtFile == null) {
         		//为空说明之前初始化时已经失败，此处没不要重复创建，有些设备会耗时过长，出现ANR
@@ -727,6 +744,8 @@ public class PrintLog {
     		}
     		mLogSyncWriting = false;
             return written;
+    	} finally {
+    		mWriteFileLock.unlock();
     	}
     }
     
@@ -872,7 +891,16 @@ public class PrintLog {
      * 启动日志文件消费者
      */
     public boolean startFileConsumer() {
-    	if(!isFileConsumerRunning()) {
+    	LogConsumer consumer = mLogConsumer;
+    	if(consumer != null && consumer.isAlive()) {
+    		//SysLog.i(TAG, "startFileConsumer: Alreay running.");
+    		return true;
+    	}
+    	//isRunning在线程开始运行之后才为true, 用isAlive并加锁, 避免多个线程同时写日志时启动多次
+    	synchronized (mConsumerStartLock) {
+    		if(mLogConsumer != null && mLogConsumer.isAlive()) {
+    			return true;
+    		}
     		boolean isInit = initLogConsumer();
     		if(!isInit) {
     			SysLog.w(TAG, "startFileConsumer: Failed to init Log Consumer.");
@@ -881,9 +909,6 @@ public class PrintLog {
     		SysLog.w(TAG, "startFileConsumer: starting.");
     		mLogConsumer.start();
     		return true;
-    	} else {
-    		//SysLog.i(TAG, "startFileConsumer: Alreay running.");
-    		return true;
     	}
     }
     
@@ -899,6 +924,87 @@ public class PrintLog {
     	}
     }
     
+    /**
+     * 停止日志文件消费者并等待退出
+     * @param drain 是否先把仓库中的日志写完
+     * @param timeout 写完和等待退出的总时间
+     * @param unit
+     * @return 是否已经写完(drain为true时)并且消费者已经退出
+     */
+    public boolean stopFileConsumer(boolean drain, long timeout, TimeUnit unit) {
+    	LogConsumer consumer = mLogConsumer;
+    	if(consumer == null || !consumer.isAlive()) {
+    		SysLog.w(TAG, "stopFileConsumer: Ignore Not running.");
+    		return true;
+    	}
+    	boolean stopped = consumer.stop(drain, timeout, unit);
+    	SysLog.w(TAG, "stopFileConsumer: stopped=" + stopped + ", drain=" + drain);
+    	return stopped;
+    }
+    
+    /**
+     * 关闭: 写出缓冲区, 等待仓库中的日志写完后停止消费者
+     * @param timeout
+     * @param unit
+     * @return 是否全部写完
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+    	stopBuffer();
+    	boolean stopped = stopFileConsumer(true, timeout, unit);
+    	closeTxtFile();
+    	return stopped;
+    }
+    
+    /**
+     * 注册进程退出钩子, 退出时按DEFAULT_SHUTDOWN_TIMEOUT等待日志写完
+     */
+    public void registerShutdownHook() {
+    	registerShutdownHook(DEFAULT_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * 注册进程退出钩子, 退出时调用shutdown, 缓冲区和仓库中的日志不会丢失
+     * <p>重复调用只注册一次.
+     * @param timeout 最多等待时间, 避免日志太多时进程迟迟不能退出
+     * @param unit
+     */
+    public synchronized void registerShutdownHook(final long timeout, final TimeUnit unit) {
+    	if(mShutdownHook != null) {
+    		return;
+    	}
+    	Thread hook = new Thread("PrintLog-shutdown") {
+    		@Override
+    		public void run() {
+    			boolean done = shutdown(timeout, unit);
+    			if(!done) {
+    				SysLog.w(TAG, "shutdownHook: Not finished in " + timeout + " " + unit);
+    			}
+    		}
+    	};
+    	try {
+    		Runtime.getRuntime().addShutdownHook(hook);
+    		mShutdownHook = hook;
+    	} catch (IllegalStateException e) {
+    		//进程正在退出
+    		SysLog.w(TAG, "registerShutdownHook: " + e);
+    	}
+    }
+    
+    /**
+     * 取消进程退出钩子
+     */
+    public synchronized void unregisterShutdownHook() {
+    	if(mShutdownHook == null) {
+    		return;
+    	}
+    	try {
+    		Runtime.getRuntime().removeShutdownHook(mShutdownHook);
+    	} catch (IllegalStateException e) {
+    		SysLog.w(TAG, "unregisterShutdownHook: " + e);
+    	}
+    	mShutdownHook = null;
+    }
+    
     /**
      * 设置日志仓库容量
      * @param capacity
@@ -1140,7 +1246,7 @@ public class PrintLog {
     public TxtFile createNewFile(boolean timeMode) throws IOException {
     	ensureFileExtension();
         String filePath = createCurrentFilePath(timeMode);
-    	TxtFile logFile = new TxtFile(filePath);
+    	TxtFile logFile = newTxtFile(new File(filePath));
     	PrintUtil.w(TAG, "createNewFile: logFile=" + logFile);
     	boolean created = true;
     	if(!logFile.exists()) {
@@ -1270,10 +1376,11 @@ public class PrintLog {
      */
     public TxtFile createTxtFile() throws IOException {
     	ensureDir();
+    	closeTxtFile();
     	if(customFilename != null && !customFilename.equals("")) {
     		//用户自定义的文件名
     		File file= new File(mDir, customFilename);
-    		mTxtFile = new TxtFile(file);
+    		mTxtFile = newTxtFile(file);
     	} else {
     		//自动创建文件名,当前日期时间创建
     		mTxtFile = createLogFile();
@@ -1319,6 +1426,7 @@ public class PrintLog {
     	if(mTxtFile != null && mTxtFile.exists()) {
     		long length = mTxtFile.length();
 			if(length > mMaxFileLength || length > FILE_LENGTH_LIMIT) {
+				closeTxtFile();
 				mTxtFile = createNewFile(true);
 				return true;
 			}
@@ -1338,6 +1446,7 @@ public class PrintLog {
     		String todayStr = DateTimeUtil.formatDateStr(now);
     		String filepath = mTxtFile.getFilePath();
 			if(!filepath.contains(todayStr)) {
+				closeTxtFile();
 				mTxtFile = createNewFile(false);
 				return true;
 			}
@@ -1352,6 +1461,68 @@ public class PrintLog {
     	return null;
     }
     
+    /**
+     * 设置文件是否一直打开追加写入, 默认打开
+     * <p>关闭后每次写入都打开关闭文件, 适合其他进程也会写入或者移动日志文件的情况.
+     * @param keepFileOpen
+     */
+    public void setKeepFileOpen(boolean keepFileOpen) {
+    	mKeepFileOpen = keepFileOpen;
+    	applyKeepFileOpen(mTxtFile);
+    }
+    
+    public boolean isKeepFileOpen() {
+    	return mKeepFileOpen;
+    }
+    
+    /**
+     * 设置内存映射模式, 下一次创建文件时生效
+     * <p>写一条日志只是内存拷贝, 没有系统调用. 文件按块预先扩展, 关闭和轮转时截断到实际长度,
+     * 长度达到mMaxFileLength(不超过FILE_LENGTH_LIMIT)后改名为"yyyyMMdd_HHmmss_原文件名", 在原路径继续写入.
+     * @param mappedMode
+     */
+    public void setMappedMode(boolean mappedMode) {
+    	mMappedMode = mappedMode;
+    }
+    
+    public boolean isMappedMode() {
+    	return mMappedMode;
+    }
+    
+    /**
+     * 按当前模式创建文件对象
+     * @param file
+     * @return
+     */
+    private TxtFile newTxtFile(File file) {
+    	if(mMappedMode) {
+    		MappedTxtFile mappedFile = new MappedTxtFile(file);
+    		long maxLength = FILE_LENGTH_LIMIT;
+    		if(mMaxFileLength > 0 && mMaxFileLength < maxLength) {
+    			maxLength = mMaxFileLength;
+    		}
+    		mappedFile.setMaxLength(maxLength);
+    		return mappedFile;
+    	}
+    	return applyKeepFileOpen(new TxtFile(file));
+    }
+    
+    private TxtFile applyKeepFileOpen(TxtFile txtFile) {
+    	if(txtFile != null) {
+    		txtFile.setAppendMode(mKeepFileOpen);
+    	}
+    	return txtFile;
+    }
+    
+    /**
+     * 写完并关闭当前日志文件, 切换文件或者退出时调用, 之后再写入会重新打开
+     */
+    public void closeTxtFile() {
+    	if(mTxtFile != null) {
+    		mTxtFile.close();
+    	}
+    }
+    
     public TxtFile getTxtFile() {
     	return mTxtFile;
     }
@@ -1373,8 +1544,37 @@ public class PrintLog {
     }
     
     private void ensureBuffer() {
-    	if(mBuffer == null) {
-    		this.mBuffer = new StringBuffer();
+    	ThreadLogBuffers logBuffers = mLogBuffers;
+    	if(logBuffers != null && logBuffers.isRunning()) {
+    		return;
+    	}
+    	startBuffer();
+    }
+    
+    private synchronized void startBuffer() {
+    	if(mLogBuffers == null) {
+    		mLogBuffers = new ThreadLogBuffers(new ThreadLogBuffers.LogWriter() {
+				@Override
+				public boolean write(String text) throws Exception {
+					return writeBufferText(text);
+				}
+			}, mBufferLength, MAX_BUFFER_LENGTH);
+    	}
+    	if(!mLogBuffers.isRunning()) {
+    		mLogBuffers.start();
+    	}
+    }
+    
+    /**
+     * 停止后台刷新线程, 写完所有线程缓冲的日志
+     */
+    private void stopBuffer() {
+    	ThreadLogBuffers logBuffers = mLogBuffers;
+    	if(logBuffers != null) {
+    		int len = logBuffers.stop();
+    		if(len < 0) {
+    			PrintUtil.w(TAG, "stopBuffer: Failed to write buffer to file");
+    		}
     	}
     }
     
@@ -0,0 +1,502 @@
+package com.hulk.util.file;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import hulk.util.PrintUtil;
+
+/**
+ * 按线程分开的日志缓冲区
+ * <p>PrintLog原来所有线程追加到同一个StringBuffer, 每次追加都要竞争锁, 超过MAX_BUFFER_LENGTH时直接清空丢弃.
+ * 这里每个线程只追加到自己的字符缓冲区(StringBuilder加上每条日志的时间和结束位置), 只和收集时的刷新线程竞争;
+ * 后台刷新线程定时或者缓冲区超过mBufferLength时收集所有线程的日志, 按追加时间(System.nanoTime)合并后一次写入.
+ * <p>背压: 一个线程的缓冲加上写入失败等待重试的日志超过mMaxBufferLength时在该线程直接刷新, 写得比文件慢的线程会等待.
+ * <p>写入失败的日志保留到下一次刷新, 最多保留mMaxBufferLength, 一直写入失败时丢弃最早的日志并计数(getDroppedCount).
+ * <p>注意: 合并只保证一次收集内的顺序, 正在追加的日志可能进入下一次收集.
+ * @author zhanghao
+ *
+ */
+public class ThreadLogBuffers {
+	private static final String TAG = "ThreadLogBuffers";
+
+	/**
+	 * 默认刷新间隔(毫秒)
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	/**
+	 * 每个线程缓冲区初始可以记录的日志条数
+	 */
+	private static final int INITIAL_RECORD_CAPACITY = 64;
+
+	/**
+	 * 写入合并后的日志
+	 */
+	public interface LogWriter {
+		/**
+		 * @param text 合并后的日志
+		 * @return 是否写入成功, 失败时保留到下一次刷新
+		 * @throws Exception
+		 */
+		boolean write(String text) throws Exception;
+	}
+
+	private final LogWriter mWriter;
+
+	/**
+	 * 所有线程的缓冲区, 只在线程第一次追加时加入
+	 */
+	private final CopyOnWriteArrayList<ThreadBuffer> mBuffers = new CopyOnWriteArrayList<ThreadBuffer>();
+
+	private final ThreadLocal<ThreadBuffer> mLocalBuffer = new ThreadLocal<ThreadBuffer>() {
+		@Override
+		protected ThreadBuffer initialValue() {
+			ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread());
+			mBuffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	/**
+	 * 同一时刻只有一个线程收集和写入, 保证写入顺序
+	 */
+	private final ReentrantLock mFlushLock = new ReentrantLock();
+
+	/**
+	 * 上一次写入失败的日志, 不超过mMaxBufferLength
+	 */
+	private volatile String mFailedText = null;
+
+	/**
+	 * 写入一直失败时丢弃的日志行数
+	 */
+	private final AtomicLong mDroppedCount = new AtomicLong();
+
+	private volatile int mBufferLength;
+
+	private volatile int mMaxBufferLength;
+
+	private volatile long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+
+	private volatile Thread mFlushThread;
+
+	private volatile boolean running = false;
+
+	/**
+	 * @param writer 写入合并后的日志
+	 * @param bufferLength 一个线程缓冲超过该长度时唤醒刷新线程
+	 * @param maxBufferLength 一个线程缓冲超过该长度时在该线程直接刷新, 也是写入失败时最多保留的长度
+	 */
+	public ThreadLogBuffers(LogWriter writer, int bufferLength, int maxBufferLength) {
+		if(writer == null) {
+			throw new IllegalArgumentException("writer is null");
+		}
+		this.mWriter = writer;
+		this.mBufferLength = bufferLength;
+		this.mMaxBufferLength = maxBufferLength;
+	}
+
+	public void setBufferLength(int bufferLength) {
+		this.mBufferLength = bufferLength;
+	}
+
+	public void setMaxBufferLength(int maxBufferLength) {
+		this.mMaxBufferLength = maxBufferLength;
+	}
+
+	/**
+	 * 设置刷新线程的刷新间隔
+	 * @param interval
+	 * @param unit
+	 */
+	public void setFlushInterval(long interval, TimeUnit unit) {
+		if(interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive: " + interval);
+		}
+		this.mFlushInterval = unit.toMillis(interval);
+	}
+
+	/**
+	 * 追加到当前线程的缓冲区
+	 * @param text
+	 */
+	public void append(String text) {
+		if(text == null || text.length() == 0) {
+			return;
+		}
+		ThreadBuffer buffer = mLocalBuffer.get();
+		int length = buffer.append(System.nanoTime(), text);
+		if(length + failedLength() > mMaxBufferLength) {
+			//刷新线程跟不上或者一直写入失败, 当前线程直接刷新
+			flush();
+		} else if(length > mBufferLength && length - text.length() <= mBufferLength) {
+			//刚超过时唤醒一次刷新线程
+			wakeUp();
+		}
+	}
+
+	/**
+	 * 收集所有线程的日志, 合并后写入
+	 * @return 写入的长度, 没有日志返回0, 写入失败返回-1
+	 */
+	public int flush() {
+		mFlushLock.lock();
+		try {
+			String text = collect();
+			if(mFailedText != null) {
+				text = mFailedText + text;
+				mFailedText = null;
+			}
+			if(text.length() == 0) {
+				return 0;
+			}
+			boolean written = false;
+			try {
+				written = mWriter.write(text);
+			} catch (Throwable e) {
+				PrintUtil.e(TAG, "flush: Failed to write: " + e, e);
+			}
+			if(!written) {
+				//保留到下一次刷新, 超过最大长度时丢弃最早的日志
+				mFailedText = trimFailedText(text);
+				return -1;
+			}
+			return text.length();
+		} finally {
+			mFlushLock.unlock();
+		}
+	}
+
+	/**
+	 * 写入失败的日志超过mMaxBufferLength时从最早的整行开始丢弃, 需要持有mFlushLock
+	 * @param text
+	 * @return 保留的日志
+	 */
+	private String trimFailedText(String text) {
+		int excess = text.length() - Math.max(0, mMaxBufferLength);
+		if(excess <= 0) {
+			return text;
+		}
+		int end = text.indexOf('\n', excess - 1);
+		end = end < 0 ? text.length() : end + 1;
+		int lines = 0;
+		for(int i = 0; i < end; i++) {
+			if(text.charAt(i) == '\n') {
+				lines++;
+			}
+		}
+		if(lines == 0) {
+			lines = 1;
+		}
+		long dropped = mDroppedCount.addAndGet(lines);
+		PrintUtil.w(TAG, "flush: Failed to write, dropped " + lines + " lines, total dropped=" + dropped);
+		return end < text.length() ? text.substring(end) : null;
+	}
+
+	private int failedLength() {
+		String failedText = mFailedText;
+		return failedText != null ? failedText.length() : 0;
+	}
+
+	/**
+	 * 取出所有线程的日志, 按追加时间合并, 需要持有mFlushLock
+	 * @return
+	 */
+	private String collect() {
+		List<Run> runs = new ArrayList<Run>();
+		for(ThreadBuffer buffer : mBuffers) {
+			Run run = buffer.drain();
+			if(run == null) {
+				if(!buffer.isOwnerAlive()) {
+					//线程已经结束, 不再需要
+					mBuffers.remove(buffer);
+				}
+				continue;
+			}
+			runs.add(run);
+		}
+		return merge(runs);
+	}
+
+	/**
+	 * 按追加时间合并多个线程的日志
+	 * @param runs
+	 * @return
+	 */
+	private static String merge(List<Run> runs) {
+		int total = 0;
+		for(Run run : runs) {
+			total += run.mText.length();
+		}
+		StringBuilder builder = new StringBuilder(total);
+		if(runs.size() == 1) {
+			builder.append(runs.get(0).mText);
+			return builder.toString();
+		}
+		//每个线程的日志已经有序, 多路归并
+		PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()), new Comparator<Run>() {
+			@Override
+			public int compare(Run lhs, Run rhs) {
+				long diff = lhs.currentTime() - rhs.currentTime();
+				if(diff != 0) {
+					return diff < 0 ? -1 : 1;
+				}
+				return lhs.mIndex - rhs.mIndex;
+			}
+		});
+		for(int i = 0; i < runs.size(); i++) {
+			Run run = runs.get(i);
+			run.mIndex = i;
+			queue.add(run);
+		}
+		while(!queue.isEmpty()) {
+			Run run = queue.poll();
+			run.appendCurrent(builder);
+			if(run.next()) {
+				queue.add(run);
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * 所有线程缓冲的日志, 按追加时间合并, 不取出
+	 * @return
+	 */
+	public String snapshot() {
+		List<Run> runs = new ArrayList<Run>();
+		for(ThreadBuffer buffer : mBuffers) {
+			Run run = buffer.copy();
+			if(run != null) {
+				runs.add(run);
+			}
+		}
+		return merge(runs);
+	}
+
+	/**
+	 * 丢弃所有线程缓冲的日志
+	 * @return 丢弃的长度
+	 */
+	public int clear() {
+		mFlushLock.lock();
+		try {
+			int length = 0;
+			for(ThreadBuffer buffer : mBuffers) {
+				Run run = buffer.drain();
+				if(run != null) {
+					length += run.mText.length();
+				}
+			}
+			if(mFailedText != null) {
+				length += mFailedText.length();
+				mFailedText = null;
+			}
+			return length;
+		} finally {
+			mFlushLock.unlock();
+		}
+	}
+
+	/**
+	 * 所有线程缓冲的长度, 包括写入失败等待重试的日志
+	 * @return
+	 */
+	public long length() {
+		long length = 0;
+		for(ThreadBuffer buffer : mBuffers) {
+			length += buffer.mLength;
+		}
+		return length + failedLength();
+	}
+
+	public boolean isEmpty() {
+		return length() <= 0;
+	}
+
+	/**
+	 * 写入一直失败时丢弃的日志行数
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+	/**
+	 * 启动后台刷新线程, 重复调用只启动一次
+	 */
+	public synchronized void start() {
+		if(running) {
+			return;
+		}
+		running = true;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				PrintUtil.i(TAG, "Flush thread started");
+				while(running) {
+					LockSupport.parkNanos(ThreadLogBuffers.this, TimeUnit.MILLISECONDS.toNanos(mFlushInterval));
+					if(!isEmpty()) {
+						flush();
+					}
+				}
+				PrintUtil.i(TAG, "Flush thread stopped");
+			}
+		}, "PrintLog-flusher");
+		thread.setDaemon(true);
+		mFlushThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * 停止后台刷新线程, 并刷新剩余的日志
+	 * @return 刷新的长度
+	 */
+	public int stop() {
+		synchronized (this) {
+			running = false;
+		}
+		wakeUp();
+		mFlushThread = null;
+		return flush();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void wakeUp() {
+		Thread thread = mFlushThread;
+		if(thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return TAG + "[threads=" + mBuffers.size() + ", length=" + length()
+				+ ", dropped=" + mDroppedCount.get() + ", running=" + running + "]";
+	}
+
+	/**
+	 * 一个线程的缓冲区, 只有所属线程追加和刷新线程取出
+	 * <p>日志追加到同一个StringBuilder, 每条日志只记录时间和结束位置, 不再为每条日志创建对象.
+	 */
+	private static final class ThreadBuffer {
+		final WeakReference<Thread> mOwner;
+		StringBuilder mText = new StringBuilder();
+		long[] mTimes = new long[INITIAL_RECORD_CAPACITY];
+		int[] mEnds = new int[INITIAL_RECORD_CAPACITY];
+		int mCount = 0;
+		/**
+		 * 当前缓冲的长度, 其他线程统计时读取
+		 */
+		volatile int mLength = 0;
+
+		ThreadBuffer(Thread owner) {
+			this.mOwner = new WeakReference<Thread>(owner);
+		}
+
+		/**
+		 * @param time
+		 * @param text
+		 * @return 追加后缓冲的长度
+		 */
+		synchronized int append(long time, String text) {
+			if(mCount == mTimes.length) {
+				int capacity = mCount * 2;
+				long[] times = new long[capacity];
+				int[] ends = new int[capacity];
+				System.arraycopy(mTimes, 0, times, 0, mCount);
+				System.arraycopy(mEnds, 0, ends, 0, mCount);
+				mTimes = times;
+				mEnds = ends;
+			}
+			mText.append(text);
+			mTimes[mCount] = time;
+			mEnds[mCount] = mText.length();
+			mCount++;
+			mLength = mText.length();
+			return mLength;
+		}
+
+		/**
+		 * 取出当前所有日志, 按追加顺序, 之后从新的缓冲区开始追加
+		 * @return 没有日志时返回null
+		 */
+		synchronized Run drain() {
+			if(mCount == 0) {
+				return null;
+			}
+			Run run = new Run(mText, mTimes, mEnds, mCount);
+			int capacity = Math.max(INITIAL_RECORD_CAPACITY, mTimes.length / 2);
+			mText = new StringBuilder(Math.min(mText.length(), 1024));
+			mTimes = new long[capacity];
+			mEnds = new int[capacity];
+			mCount = 0;
+			mLength = 0;
+			return run;
+		}
+
+		/**
+		 * 复制当前所有日志, 不取出
+		 * @return 没有日志时返回null
+		 */
+		synchronized Run copy() {
+			if(mCount == 0) {
+				return null;
+			}
+			long[] times = new long[mCount];
+			int[] ends = new int[mCount];
+			System.arraycopy(mTimes, 0, times, 0, mCount);
+			System.arraycopy(mEnds, 0, ends, 0, mCount);
+			return new Run(new StringBuilder(mText), times, ends, mCount);
+		}
+
+		boolean isOwnerAlive() {
+			Thread owner = mOwner.get();
+			return owner != null && owner.isAlive();
+		}
+	}
+
+	/**
+	 * 一个线程取出的日志和合并时的读取位置
+	 */
+	private static final class Run {
+		final StringBuilder mText;
+		final long[] mTimes;
+		final int[] mEnds;
+		final int mCount;
+		int mIndex = 0;
+		int mPosition = 0;
+
+		Run(StringBuilder text, long[] times, int[] ends, int count) {
+			this.mText = text;
+			this.mTimes = times;
+			this.mEnds = ends;
+			this.mCount = count;
+		}
+
+		long currentTime() {
+			return mTimes[mPosition];
+		}
+
+		void appendCurrent(StringBuilder builder) {
+			int start = mPosition == 0 ? 0 : mEnds[mPosition - 1];
+			builder.append(mText, start, mEnds[mPosition]);
+		}
+
+		boolean next() {
+			mPosition++;
+			return mPosition < mCount;
+		}
+	}
+}
@@ -7,6 +7,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
@@ -15,15 +21,86 @@ import java.util.concurrent.locks.ReentrantLock;
 import hulk.text.TextUtils;
 import hulk.util.PrintUtil;
 
+/**
+ * 文本文件
+ * <p>默认每次write打开文件, 写入后关闭. 追加模式(setAppendMode)下文件输出流一直打开,
+ * 文本用复用的CharsetEncoder编码到复用的缓冲区后写入文件, 每次写入不再open/close和分配byte数组.
+ * <p>追加模式下:
+ * <p>1. FlushPolicy决定缓冲区什么时候写入文件: EVERY_WRITE每次write后写入(默认, 与原来一样进程退出不丢失),
+ * WHEN_FULL缓冲区满或者flush/close时写入;
+ * <p>2. ForcePolicy决定什么时候同步到磁盘, 默认不主动同步, 由系统决定;
+ * <p>3. renameTo/delete/覆盖写入之前关闭文件, 文件被外部删除或者改名后下一次写入重新打开, 轮转不会写到旧文件中;
+ * <p>4. 通过FileOutputStream写入, 不使用FileChannel: 被中断的线程写入时FileChannel会被关闭;
+ * 写入失败时缓冲区中其他日志保留, 下一次写入重新打开文件后再写.
+ * <p>不再使用时需要close.
+ */
 public class TxtFile {
 	private static final String TAG = "TxtFile";
 	private static final String ENCODING = "UTF-8";
+	
+	/**
+	 * 追加模式的默认缓冲区大小
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * 追加模式下检查文件是否被外部删除或者改名的间隔(毫秒)
+	 */
+	private static final long REOPEN_CHECK_INTERVAL = 1000;
+	
+	/**
+	 * 缓冲区写入文件的时机
+	 */
+	public enum FlushPolicy {
+		/**
+		 * 每次write后写入文件
+		 */
+		EVERY_WRITE,
+		/**
+		 * 缓冲区满或者flush/close时写入文件
+		 */
+		WHEN_FULL
+	}
+	
+	/**
+	 * 同步到磁盘(FileDescriptor.sync)的时机
+	 */
+	public enum ForcePolicy {
+		/**
+		 * 不主动同步, 由系统决定
+		 */
+		NEVER,
+		/**
+		 * flush/close时同步
+		 */
+		ON_FLUSH,
+		/**
+		 * 每次写入文件后同步, 最安全也最慢
+		 */
+		EVERY_WRITE
+	}
 
 	private File mFile;
 	private long length = 0;
 	private Lock mLock = new ReentrantLock();
 	private String mCharsetName = ENCODING;
 	
+	/**
+	 * 追加模式: 文件输出流一直打开
+	 */
+	private boolean mAppendMode = false;
+	private int mBufferSize = DEFAULT_BUFFER_SIZE;
+	private FlushPolicy mFlushPolicy = FlushPolicy.EVERY_WRITE;
+	private ForcePolicy mForcePolicy = ForcePolicy.NEVER;
+	private FileOutputStream mOutputStream;
+	private ByteBuffer mWriteBuffer;
+	/**
+	 * 缓冲区写入文件的次数, 用于判断写入失败时能否撤销当前文本
+	 */
+	private long mWriteCount = 0;
+	private CharsetEncoder mEncoder;
+	private long mLastCheckTime = 0;
+	
 	public TxtFile(String filePath) {
 		mFile = new File(filePath);
 		length = mFile.exists() ? mFile.length() : 0;
@@ -35,7 +112,70 @@ public class TxtFile {
 	}
 	
 	public void setCharsetName(String charsetName) {
-		mCharsetName = charsetName;
+		mLock.lock();
+		try {
+			mCharsetName = charsetName;
+			mEncoder = null;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	public String getCharsetName() {
+		return mCharsetName;
+	}
+	
+	/**
+	 * 设置追加模式, 关闭时写出缓冲区并关闭文件
+	 * @param appendMode
+	 */
+	public void setAppendMode(boolean appendMode) {
+		mLock.lock();
+		try {
+			if(!appendMode) {
+				closeStream();
+			}
+			mAppendMode = appendMode;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	public boolean isAppendMode() {
+		return mAppendMode;
+	}
+	
+	/**
+	 * 设置追加模式的缓冲区大小, 下一次打开时生效
+	 * @param bufferSize
+	 */
+	public void setBufferSize(int bufferSize) {
+		if(bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		}
+		mBufferSize = bufferSize;
+	}
+	
+	public void setFlushPolicy(FlushPolicy flushPolicy) {
+		if(flushPolicy == null) {
+			throw new IllegalArgumentException("flushPolicy is null");
+		}
+		mFlushPolicy = flushPolicy;
+	}
+	
+	public FlushPolicy getFlushPolicy() {
+		return mFlushPolicy;
+	}
+	
+	public void setForcePolicy(ForcePolicy forcePolicy) {
+		if(forcePolicy == null) {
+			throw new IllegalArgumentException("forcePolicy is null");
+		}
+		mForcePolicy = forcePolicy;
+	}
+	
+	public ForcePolicy getForcePolicy() {
+		return mForcePolicy;
 	}
 	
 	public boolean writeLines(List<String> list, boolean append) throws Exception {
@@ -67,7 +207,16 @@ public class TxtFile {
 			PrintUtil.w(TAG, "write canceled, can not append a empty text !!");
 			return false;
 		}
-		synchronized (mLock) {
+		mLock.lock();
+		try {
+			if(mAppendMode) {
+				if(append) {
+					return appendLocked(text);
+				}
+				//覆盖写入使用原来的方式, 没有写出的追加内容被覆盖
+				closeStream();
+				discardBuffer();
+			}
 			BufferedOutputStream bos = null;
 			try {
 				createNewFile();//create file
@@ -98,9 +247,274 @@ public class TxtFile {
 					}
 				}
 			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * 追加模式写入, 需要持有锁
+	 * @param text
+	 * @return
+	 */
+	private boolean appendLocked(String text) {
+		int mark = -1;
+		long markLength = length;
+		long markWriteCount = mWriteCount;
+		try {
+			ensureStream();
+			mark = mWriteBuffer.position();
+			encodeLocked(text);
+			if(mFlushPolicy == FlushPolicy.EVERY_WRITE) {
+				writeBuffer();
+			}
+			return true;
+		} catch (IOException e) {
+			PrintUtil.e(TAG, "append: " + e + ", Failed to write text to " + mFile);
+			resetBuffer(mark, markLength, markWriteCount);
+			//下一次写入重新打开, 缓冲区中之前的内容保留
+			closeStreamQuietly();
+			return false;
+		}
+	}
+	
+	/**
+	 * 一次写入多段文本
+	 * <p>追加模式下全部编码到缓冲区后一起写入文件(缓冲区满时分段), 否则拼接后打开一次文件写入.
+	 * @param texts 空文本忽略
+	 * @param append
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean writeAll(List<String> texts, boolean append) throws Exception {
+		if (texts == null || texts.isEmpty()) {
+			return false;
+		}
+		mLock.lock();
+		try {
+			if(mAppendMode && append) {
+				int mark = -1;
+				long markLength = length;
+				long markWriteCount = mWriteCount;
+				try {
+					ensureStream();
+					mark = mWriteBuffer.position();
+					for(String text : texts) {
+						if(!TextUtils.isEmpty(text)) {
+							encodeLocked(text);
+						}
+					}
+					if(mFlushPolicy == FlushPolicy.EVERY_WRITE) {
+						writeBuffer();
+					}
+					return true;
+				} catch (IOException e) {
+					PrintUtil.e(TAG, "writeAll: " + e + ", Failed to write texts to " + mFile);
+					resetBuffer(mark, markLength, markWriteCount);
+					closeStreamQuietly();
+					return false;
+				}
+			}
+			StringBuilder builder = new StringBuilder();
+			for(String text : texts) {
+				if(text != null) {
+					builder.append(text);
+				}
+			}
+			return write(builder.toString(), append);
+		} finally {
+			mLock.unlock();
 		}
 	}
 	
+	/**
+	 * 写入失败时撤销本次编码到缓冲区的内容, 让调用者可以重新写入, 需要持有锁
+	 * <p>本次编码期间已经有内容写入文件时不能撤销, 保留缓冲区.
+	 * @param mark 本次编码开始时缓冲区的位置, 小于0表示还没有开始编码
+	 * @param markLength
+	 * @param markWriteCount
+	 */
+	private void resetBuffer(int mark, long markLength, long markWriteCount) {
+		if(mark < 0 || mWriteCount != markWriteCount || mWriteBuffer.position() < mark) {
+			return;
+		}
+		mWriteBuffer.position(mark);
+		length = markLength;
+	}
+	
+	/**
+	 * 丢弃缓冲区中没有写出的内容, 需要持有锁
+	 */
+	private void discardBuffer() {
+		if(mWriteBuffer != null) {
+			mWriteBuffer.clear();
+		}
+	}
+	
+	/**
+	 * 编码到缓冲区, 缓冲区满时写入文件, 需要持有锁
+	 * @param text
+	 * @throws IOException
+	 */
+	private void encodeLocked(String text) throws IOException {
+		ByteBuffer buffer = mWriteBuffer;
+		CharsetEncoder encoder = mEncoder;
+		CharBuffer in = CharBuffer.wrap(text);
+		encoder.reset();
+		long encoded = 0;
+		int start = buffer.position();
+		while(true) {
+			CoderResult result = encoder.encode(in, buffer, true);
+			if(result.isOverflow()) {
+				encoded += buffer.position() - start;
+				writeBuffer();
+				start = 0;
+				continue;
+			}
+			break;
+		}
+		while(encoder.flush(buffer).isOverflow()) {
+			encoded += buffer.position() - start;
+			writeBuffer();
+			start = 0;
+		}
+		encoded += buffer.position() - start;
+		length += encoded;
+	}
+	
+	/**
+	 * 打开追加文件, 文件被外部删除或者改名后重新打开
+	 * <p>上一次写入失败时缓冲区中没有写出的内容保留, 重新打开后写入.
+	 * @throws IOException
+	 */
+	private void ensureStream() throws IOException {
+		if(mOutputStream != null) {
+			long now = System.currentTimeMillis();
+			if(now - mLastCheckTime < REOPEN_CHECK_INTERVAL) {
+				return;
+			}
+			mLastCheckTime = now;
+			if(mFile.exists()) {
+				return;
+			}
+			PrintUtil.w(TAG, "ensureStream: File is removed, reopen " + mFile);
+			closeStreamQuietly();
+		}
+		createNewFile();
+		mOutputStream = new FileOutputStream(mFile, true);
+		int buffered = mWriteBuffer != null ? mWriteBuffer.position() : 0;
+		length = mFile.length() + buffered;
+		mLastCheckTime = System.currentTimeMillis();
+		if(mWriteBuffer == null || (buffered == 0 && mWriteBuffer.capacity() != mBufferSize)) {
+			mWriteBuffer = ByteBuffer.allocate(mBufferSize);
+		}
+		if(mEncoder == null) {
+			mEncoder = Charset.forName(mCharsetName).newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	}
+	
+	/**
+	 * 缓冲区写入文件, 需要持有锁. 失败时缓冲区不变
+	 * @throws IOException
+	 */
+	private void writeBuffer() throws IOException {
+		ByteBuffer buffer = mWriteBuffer;
+		if(buffer.position() == 0) {
+			return;
+		}
+		mOutputStream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+		buffer.clear();
+		mWriteCount++;
+		if(mForcePolicy == ForcePolicy.EVERY_WRITE) {
+			mOutputStream.getFD().sync();
+		}
+	}
+	
+	/**
+	 * 读取之前写出缓冲区, 需要持有锁
+	 */
+	private void flushLocked() {
+		if(mOutputStream == null) {
+			return;
+		}
+		try {
+			writeBuffer();
+		} catch (IOException e) {
+			PrintUtil.e(TAG, "flush: " + e + ", file=" + mFile);
+			closeStreamQuietly();
+		}
+	}
+	
+	/**
+	 * 追加模式下把缓冲区写入文件, ForcePolicy不是NEVER时同步到磁盘
+	 * @return
+	 */
+	public boolean flush() {
+		mLock.lock();
+		try {
+			if(mOutputStream == null) {
+				return true;
+			}
+			writeBuffer();
+			if(mForcePolicy == ForcePolicy.ON_FLUSH) {
+				mOutputStream.getFD().sync();
+			}
+			return true;
+		} catch (IOException e) {
+			PrintUtil.e(TAG, "flush: " + e + ", file=" + mFile);
+			closeStreamQuietly();
+			return false;
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * 写出缓冲区并关闭追加文件, 之后写入会重新打开
+	 */
+	public void close() {
+		mLock.lock();
+		try {
+			closeStream();
+		} finally {
+			mLock.unlock();
+		}
+	}
+	
+	/**
+	 * 写出缓冲区并关闭文件, 需要持有锁
+	 */
+	private void closeStream() {
+		if(mOutputStream == null) {
+			return;
+		}
+		try {
+			writeBuffer();
+			if(mForcePolicy != ForcePolicy.NEVER) {
+				mOutputStream.getFD().sync();
+			}
+		} catch (IOException e) {
+			PrintUtil.e(TAG, "close: " + e + ", file=" + mFile);
+		}
+		closeStreamQuietly();
+	}
+	
+	/**
+	 * 关闭文件, 缓冲区中没有写出的内容保留到下一次打开
+	 */
+	private void closeStreamQuietly() {
+		if(mOutputStream != null) {
+			try {
+				mOutputStream.close();
+			} catch (IOException e) {
+				PrintUtil.e(TAG, "Failed to close: " + e);
+			}
+		}
+		mOutputStream = null;
+	}
+	
 	public boolean createNewFile() throws IOException {
 		if(mFile.exists()) {
 			//PrintUtil.i(TAG, "Exists file: " + mFile);
@@ -120,7 +534,9 @@ public class TxtFile {
 	 * @return text list
 	 */
 	public List<String> readLines() {
-		synchronized (mLock) {
+		mLock.lock();
+		try {
+			flushLocked();
 			List<String> list = new ArrayList<String>();
 			FileInputStream fis = null;
 			BufferedReader reader = null;
@@ -159,6 +575,8 @@ public class TxtFile {
 				}
 			}
 			return list;
+		} finally {
+			mLock.unlock();
 		}
 	}
 	
@@ -168,7 +586,9 @@ public class TxtFile {
 	 * @return text list
 	 */
 	public String readText() {
-		synchronized (mLock) {
+		mLock.lock();
+		try {
+			flushLocked();
 			FileInputStream fis = null;
 			BufferedReader reader = null;
 			try {
@@ -202,6 +622,8 @@ public class TxtFile {
 				}
 			}
 			return "";
+		} finally {
+			mLock.unlock();
 		}
 	}
 	
@@ -247,6 +669,13 @@ public class TxtFile {
 	}
 	
 	public boolean delete() {
+		mLock.lock();
+		try {
+			closeStream();
+			discardBuffer();
+		} finally {
+			mLock.unlock();
+		}
 		return mFile != null? mFile.delete() : false;
 	}
 	
@@ -257,6 +686,8 @@ public class TxtFile {
 	
 	public boolean renameTo(File dest) {
 		if(mFile != null) {
+			//轮转: 先写完并关闭文件, 之后的写入重新打开原路径, 不会写到改名后的文件中
+			close();
 			return mFile.renameTo(dest);
 		}
 		return false;
@@ -269,7 +700,7 @@ public class TxtFile {
 	@Override
     public String toString() {
 		return "TxtFile[Path= " + mFile + ", length= " + length
-				+ ", mCharsetName= " + mCharsetName + "]";
+				+ ", mCharsetName= " + mCharsetName + ", appendMode= " + mAppendMode + "]";
     	
     }
 }
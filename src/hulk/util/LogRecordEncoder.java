@@ -0,0 +1,203 @@
+package hulk.util;
+
+import java.io.PrintStream;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * 日志记录编码器: 按"时间 线程 级别/TAG: 内容"格式(与ANDROID_LOG_FORMAT相同)直接写入每个线程复用的缓冲区
+ * <p>不使用String.format, 不为时间和线程信息创建中间字符串:
+ * <p>1. 时间"yyyy-MM-dd HH:mm:ss."部分每个线程每秒只计算一次(使用当时的默认时区), 毫秒直接写数字;
+ * <p>2. 线程信息"线程名-线程ID"在线程名不变时复用;
+ * <p>3. println和format都只创建最终的一个字符串, println由PrintStream按自己的字符集编码和换行.
+ * <p>每个线程一个实例(get()), 不能跨线程使用. 超过MAX_RETAINED_CAPACITY的缓冲区用完后不保留, 避免一条大日志长期占用内存.
+ * @author zhanghao
+ *
+ */
+public final class LogRecordEncoder {
+
+	/**
+	 * 用完后保留的最大缓冲区大小
+	 */
+	public static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * "yyyy-MM-dd HH:mm:ss."的长度
+	 */
+	private static final int SECOND_PREFIX_LENGTH = 20;
+
+	private static final ThreadLocal<LogRecordEncoder> sLocal = new ThreadLocal<LogRecordEncoder>() {
+		@Override
+		protected LogRecordEncoder initialValue() {
+			return new LogRecordEncoder();
+		}
+	};
+
+	private StringBuilder mBuilder = new StringBuilder(INITIAL_CAPACITY);
+
+	private final Calendar mCalendar = Calendar.getInstance();
+
+	private final char[] mSecondPrefix = new char[SECOND_PREFIX_LENGTH];
+
+	private long mCachedSecond = Long.MIN_VALUE;
+
+	private String mThreadName;
+
+	private long mThreadId = -1;
+
+	private String mThreadInfo;
+
+	private LogRecordEncoder() {
+	}
+
+	/**
+	 * 当前线程的编码器
+	 * @return
+	 */
+	public static LogRecordEncoder get() {
+		return sLocal.get();
+	}
+
+	/**
+	 * 格式化日志字符串, 与String.format(ANDROID_LOG_FORMAT, ...)结果相同
+	 * @param newLine 是否在开头加换行, 即ANDROID_LOG_FORMAT_NEW_LINE
+	 * @param level
+	 * @param tag
+	 * @param text
+	 * @param threadInfo 为空时使用当前线程"线程名-线程ID"
+	 * @return
+	 */
+	public static String formatLogStr(boolean newLine, String level, String tag, String text, String threadInfo) {
+		return get().format(newLine, level, tag, text, threadInfo);
+	}
+
+	/**
+	 * 编码一条日志并换行输出
+	 * @param out System.out或者System.err
+	 * @param level
+	 * @param tag
+	 * @param text
+	 * @param threadInfo
+	 */
+	public static void println(PrintStream out, String level, String tag, String text, String threadInfo) {
+		get().print(out, level, tag, text, threadInfo);
+	}
+
+	/**
+	 * 编码到复用的缓冲区
+	 * @return 当前线程的缓冲区, 下一次编码之前有效
+	 */
+	public StringBuilder encode(boolean newLine, String level, String tag, String text, String threadInfo) {
+		StringBuilder builder = mBuilder;
+		builder.setLength(0);
+		if(newLine) {
+			builder.append('\n');
+		}
+		appendTime(builder, System.currentTimeMillis());
+		builder.append(' ');
+		appendThreadInfo(builder, threadInfo);
+		builder.append(' ').append(level).append('/').append(tag).append(": ").append(text);
+		return builder;
+	}
+
+	public String format(boolean newLine, String level, String tag, String text, String threadInfo) {
+		String str = encode(newLine, level, tag, text, threadInfo).toString();
+		trim();
+		return str;
+	}
+
+	/**
+	 * 按PrintStream的字符集和系统换行符输出, 持有PrintStream的锁, 多个线程的日志不会交错
+	 */
+	public void print(PrintStream out, String level, String tag, String text, String threadInfo) {
+		StringBuilder builder = encode(false, level, tag, text, threadInfo);
+		synchronized (out) {
+			out.append(builder);
+			out.println();
+		}
+		trim();
+	}
+
+	/**
+	 * 追加"yyyy-MM-dd HH:mm:ss.SSS", 秒不变时复用前缀
+	 * @param builder
+	 * @param timeMillis
+	 */
+	public void appendTime(StringBuilder builder, long timeMillis) {
+		long second = timeMillis / 1000;
+		int millis = (int) (timeMillis - second * 1000);
+		if(millis < 0) {
+			//1970年之前
+			second--;
+			millis += 1000;
+		}
+		if(second != mCachedSecond) {
+			updateSecondPrefix(second);
+		}
+		builder.append(mSecondPrefix, 0, SECOND_PREFIX_LENGTH);
+		builder.append((char) ('0' + millis / 100));
+		builder.append((char) ('0' + millis / 10 % 10));
+		builder.append((char) ('0' + millis % 10));
+	}
+
+	private void updateSecondPrefix(long second) {
+		Calendar calendar = mCalendar;
+		//默认时区可能被修改(TimeZone.setDefault), 每秒重新读取一次
+		calendar.setTimeZone(TimeZone.getDefault());
+		calendar.setTimeInMillis(second * 1000);
+		char[] prefix = mSecondPrefix;
+		writeDigits(prefix, 0, calendar.get(Calendar.YEAR), 4);
+		prefix[4] = '-';
+		writeDigits(prefix, 5, calendar.get(Calendar.MONTH) + 1, 2);
+		prefix[7] = '-';
+		writeDigits(prefix, 8, calendar.get(Calendar.DAY_OF_MONTH), 2);
+		prefix[10] = ' ';
+		writeDigits(prefix, 11, calendar.get(Calendar.HOUR_OF_DAY), 2);
+		prefix[13] = ':';
+		writeDigits(prefix, 14, calendar.get(Calendar.MINUTE), 2);
+		prefix[16] = ':';
+		writeDigits(prefix, 17, calendar.get(Calendar.SECOND), 2);
+		prefix[19] = '.';
+		mCachedSecond = second;
+	}
+
+	private static void writeDigits(char[] chars, int offset, int value, int width) {
+		for(int i = offset + width - 1; i >= offset; i--) {
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+	}
+
+	/**
+	 * 追加线程信息, 为空时使用当前线程"线程名-线程ID"
+	 * @param builder
+	 * @param threadInfo
+	 */
+	public void appendThreadInfo(StringBuilder builder, String threadInfo) {
+		if(threadInfo != null && threadInfo.length() > 0) {
+			builder.append(threadInfo);
+			return;
+		}
+		Thread t = Thread.currentThread();
+		String name = t.getName();
+		long id = t.getId();
+		if(name != mThreadName || id != mThreadId) {
+			//线程名被修改或者是虚拟线程复用的载体, 重新生成
+			mThreadName = name;
+			mThreadId = id;
+			mThreadInfo = name + "-" + id;
+		}
+		builder.append(mThreadInfo);
+	}
+
+	/**
+	 * 大日志之后不保留大缓冲区
+	 */
+	private void trim() {
+		if(mBuilder.capacity() > MAX_RETAINED_CAPACITY) {
+			mBuilder = new StringBuilder(INITIAL_CAPACITY);
+		}
+	}
+}
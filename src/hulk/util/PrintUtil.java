@@ -23,7 +23,7 @@ public class PrintUtil {
 	}
 	
 	public static void v(String tag, String text, String threadInfo) {
-		System.out.println(formatLogStr("V", tag, text, threadInfo));
+		LogRecordEncoder.println(System.out, "V", tag, text, threadInfo);
 	}
 	
 	public static void d(String tag, String text) {
@@ -31,7 +31,7 @@ public class PrintUtil {
 	}
 	
 	public static void d(String tag, String text, String threadInfo) {
-		System.out.println(formatLogStr("D", tag, text, threadInfo));
+		LogRecordEncoder.println(System.out, "D", tag, text, threadInfo);
 	}
 	
 	public static void i(String tag, String text) {
@@ -39,7 +39,7 @@ public class PrintUtil {
 	}
 	
 	public static void i(String tag, String text, String threadInfo) {
-		System.out.println(formatLogStr("I", tag, text, threadInfo));
+		LogRecordEncoder.println(System.out, "I", tag, text, threadInfo);
 	}
 	
 	public static void w(String tag, String text) {
@@ -51,6 +51,10 @@ public class PrintUtil {
 	}
 	
 	public static void w(String tag, String text, String threadInfo, Throwable e) {
+		if(e == null) {
+			LogRecordEncoder.println(System.err, "W", tag, text, threadInfo);
+			return;
+		}
 		String str = formatLogStr("W", tag, text, threadInfo, e);
 		System.err.println(str);
 	}
@@ -64,6 +68,10 @@ public class PrintUtil {
 	}
 	
 	public static void e(String tag, String text, String threadInfo, Throwable e) {
+		if(e == null) {
+			LogRecordEncoder.println(System.err, "E", tag, text, threadInfo);
+			return;
+		}
 		String str = formatLogStr("E", tag, text, threadInfo, e);
 		System.err.println(str);
 	}
@@ -117,6 +125,13 @@ public class PrintUtil {
 		if(TextUtils.isEmpty(format)) {
 			throw new IllegalArgumentException("format is empty");
 		}
+    	//常用的两种格式由LogRecordEncoder直接拼接, 不使用String.format
+    	if(ANDROID_LOG_FORMAT.equals(format)) {
+    		return LogRecordEncoder.formatLogStr(false, level, tag, text, threadInfo);
+    	}
+    	if(ANDROID_LOG_FORMAT_NEW_LINE.equals(format)) {
+    		return LogRecordEncoder.formatLogStr(true, level, tag, text, threadInfo);
+    	}
     	String timeStr = getLogCurentTime();
     	String tStr = fixThreadInfo(threadInfo);
     	//"%s %s %s/%s: %s" or "\n%s %s %s/%s: %s"